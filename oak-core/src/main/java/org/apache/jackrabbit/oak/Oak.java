@@ -17,6 +17,8 @@
 package org.apache.jackrabbit.oak;
 
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nonnull;
 import javax.jcr.NoSuchWorkspaceException;
 import javax.security.auth.login.LoginException;
@@ -28,9 +30,16 @@ import org.apache.jackrabbit.oak.api.ContentSession;
 import org.apache.jackrabbit.oak.api.Root;
 import org.apache.jackrabbit.oak.core.ContentRepositoryImpl;
 import org.apache.jackrabbit.oak.kernel.KernelNodeStore;
+import org.apache.jackrabbit.oak.plugins.index.AsyncIndexUpdate;
 import org.apache.jackrabbit.oak.plugins.index.CompositeIndexHookProvider;
 import org.apache.jackrabbit.oak.plugins.index.IndexHookManager;
 import org.apache.jackrabbit.oak.plugins.index.IndexHookProvider;
+import org.apache.jackrabbit.oak.plugins.index.IndexMerger;
+import org.apache.jackrabbit.oak.plugins.index.ParallelReindex;
+import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexStatistics;
+import org.apache.jackrabbit.oak.plugins.observation.ChangeDispatcher;
+import org.apache.jackrabbit.oak.plugins.observation.EventJournal;
+import org.apache.jackrabbit.oak.plugins.observation.EventJournalCompaction;
 import org.apache.jackrabbit.oak.spi.commit.CommitHook;
 import org.apache.jackrabbit.oak.spi.commit.CompositeHook;
 import org.apache.jackrabbit.oak.spi.commit.CompositeValidatorProvider;
@@ -73,6 +82,8 @@ public class Oak {
 
     private final List<IndexHookProvider> indexHookProviders = newArrayList();
 
+    private final List<IndexMerger> indexMergers = newArrayList();
+
     private final List<CommitHook> commitHooks = newArrayList();
 
     private List<ValidatorProvider> validatorProviders = newArrayList();
@@ -84,6 +95,10 @@ public class Oak {
 
     private ConflictHandler conflictHandler;
 
+    private ScheduledExecutorService executor;
+
+    private EventJournal journal;
+
     public Oak(MicroKernel kernel) {
         this.kernel = kernel;
     }
@@ -124,6 +139,19 @@ public class Oak {
         return this;
     }
 
+    /**
+     * Associates the given index merger with the repository to be created.
+     * It is used to re-index the indexes of its type in parallel.
+     *
+     * @param merger index merger
+     * @return this builder
+     */
+    @Nonnull
+    public Oak with(@Nonnull IndexMerger merger) {
+        indexMergers.add(merger);
+        return this;
+    }
+
     /**
      * Associates the given commit hook with the repository to be created.
      *
@@ -217,11 +245,48 @@ public class Oak {
         return this;
     }
 
+    /**
+     * Associates the given event journal with the repository to be created.
+     * It records the changes of all commits, after the other commit hooks.
+     * The journal is also enabled by the {@code oak.journal} system property.
+     *
+     * @param journal event journal
+     * @return this builder
+     */
+    @Nonnull
+    public Oak with(@Nonnull EventJournal journal) {
+        this.journal = checkNotNull(journal);
+        return this;
+    }
+
+    /**
+     * Associates the given executor with the repository to be created. It
+     * is used to run background tasks, such as refreshing the statistics of
+     * the property indexes, updating the asynchronous indexes, checking
+     * for changes to dispatch to the observation listeners, and compacting
+     * the event journal.
+     *
+     * @param executor executor
+     * @return this builder
+     */
+    @Nonnull
+    public Oak with(@Nonnull ScheduledExecutorService executor) {
+        this.executor = checkNotNull(executor);
+        return this;
+    }
+
     public ContentRepository createContentRepository() {
         KernelNodeStore store = new KernelNodeStore(kernel);
 
         IndexHookProvider indexHooks = CompositeIndexHookProvider
                 .compose(indexHookProviders);
+        if (journal == null && EventJournal.isEnabled()) {
+            journal = new EventJournal();
+        }
+        if (journal != null) {
+            // creates the first buckets
+            initializers.add(journal);
+        }
         OakInitializer.initialize(store,
                 new CompositeInitializer(initializers), indexHooks);
 
@@ -229,7 +294,34 @@ public class Oak {
 
         withValidatorHook();
         withSecurityHooks();
+        if (journal != null) {
+            // last, to record the changes of all other hooks
+            commitHooks.add(journal);
+        }
         store.setHook(CompositeHook.compose(commitHooks));
+        ChangeDispatcher dispatcher = new ChangeDispatcher(store);
+        store.setObserver(dispatcher);
+
+        if (executor != null) {
+            dispatcher.start(executor);
+            long delay = Property2IndexStatistics.getRefreshDelay();
+            executor.scheduleWithFixedDelay(new Property2IndexStatistics(store),
+                    delay, delay, TimeUnit.MILLISECONDS);
+            delay = AsyncIndexUpdate.getDelay();
+            executor.scheduleWithFixedDelay(
+                    new AsyncIndexUpdate(store, indexHooks),
+                    delay, delay, TimeUnit.MILLISECONDS);
+            delay = ParallelReindex.getDelay();
+            executor.scheduleWithFixedDelay(
+                    new ParallelReindex(store, indexHooks, indexMergers),
+                    delay, delay, TimeUnit.MILLISECONDS);
+            if (journal != null) {
+                delay = EventJournalCompaction.getDelay();
+                executor.scheduleWithFixedDelay(
+                        new EventJournalCompaction(store),
+                        delay, delay, TimeUnit.MILLISECONDS);
+            }
+        }
 
         return new ContentRepositoryImpl(
                 store,
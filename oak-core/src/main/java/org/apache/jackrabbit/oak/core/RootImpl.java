@@ -33,10 +33,13 @@ import org.apache.jackrabbit.oak.api.CommitFailedException;
 import org.apache.jackrabbit.oak.api.Root;
 import org.apache.jackrabbit.oak.api.QueryEngine;
 import org.apache.jackrabbit.oak.api.TreeLocation;
+import org.apache.jackrabbit.oak.kernel.KernelNodeStore;
 import org.apache.jackrabbit.oak.namepath.NamePathMapper;
 import org.apache.jackrabbit.oak.plugins.commit.DefaultConflictHandler;
+import org.apache.jackrabbit.oak.plugins.observation.ChangeDispatcher;
 import org.apache.jackrabbit.oak.query.QueryEngineImpl;
 import org.apache.jackrabbit.oak.spi.commit.ConflictHandler;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
 import org.apache.jackrabbit.oak.spi.observation.ChangeExtractor;
 import org.apache.jackrabbit.oak.spi.query.CompositeQueryIndexProvider;
 import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
@@ -288,6 +291,26 @@ public class RootImpl implements Root {
         };
     }
 
+    /**
+     * Returns the dispatcher of the content changes of the repository. If
+     * the node store does not have one, a new dispatcher is returned, which
+     * needs to be started to find the changes, and stopped when it is no
+     * longer used.
+     *
+     * @return the change dispatcher
+     */
+    @Nonnull
+    public ChangeDispatcher getChangeDispatcher() {
+        checkLive();
+        if (store instanceof KernelNodeStore) {
+            Observer observer = ((KernelNodeStore) store).getObserver();
+            if (observer instanceof ChangeDispatcher) {
+                return (ChangeDispatcher) observer;
+            }
+        }
+        return new ChangeDispatcher(store);
+    }
+
     @Override
     public QueryEngine getQueryEngine() {
         checkLive();
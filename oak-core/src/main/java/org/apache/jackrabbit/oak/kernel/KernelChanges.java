@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.kernel;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jackrabbit.mk.json.JsopReader;
+import org.apache.jackrabbit.mk.json.JsopTokenizer;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+
+/**
+ * The locations of the changes within a subtree, as reported by one
+ * {@code MicroKernel.diff} call. Only the touched property and child node
+ * names are kept: the actual changes are found by comparing the node
+ * states at these locations, so that it does not matter whether the
+ * MicroKernel reports the net changes or the operations of a commit (where
+ * a node may be added and removed again).
+ * <p>
+ * A node is <em>partial</em> if the changes within it are not known, that
+ * is, if it was added, removed, moved, copied or changed below the depth
+ * limit of the diff.
+ */
+class KernelChanges {
+
+    private boolean partial;
+
+    private final Set<String> properties = new LinkedHashSet<String>();
+
+    private final Map<String, KernelChanges> children =
+            new LinkedHashMap<String, KernelChanges>();
+
+    /**
+     * Parse the result of a {@code MicroKernel.diff} call.
+     *
+     * @param path the path of the diff
+     * @param jsop the diff
+     * @return the changes within the node at the given path
+     */
+    static KernelChanges parse(String path, String jsop) {
+        KernelChanges root = new KernelChanges();
+        JsopReader reader = new JsopTokenizer(jsop);
+        while (true) {
+            int r = reader.read();
+            if (r == JsopReader.END) {
+                break;
+            }
+            switch (r) {
+            case '+':
+                root.touched(path, reader.readString(), true);
+                reader.read(':');
+                reader.readRawValue();
+                break;
+            case '-':
+                root.touched(path, reader.readString(), true);
+                break;
+            case '^': {
+                String p = reader.readString();
+                if (!reader.matches(':')) {
+                    // changed below the depth limit (moves)
+                    root.touched(path, p, true);
+                } else if (reader.matches('{')) {
+                    // changed below the depth limit
+                    reader.read('}');
+                    root.touched(path, p, true);
+                } else {
+                    reader.readRawValue();
+                    root.touched(path, p, false);
+                }
+                break;
+            }
+            case '>':
+            case '*':
+                String from = reader.readString();
+                reader.read(':');
+                String to = reader.readString();
+                if (r == '>') {
+                    root.touched(path, from, true);
+                }
+                root.touched(path, to, true);
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "jsop: unexpected token " + reader.getToken());
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Whether the changes within this node are unknown.
+     *
+     * @return true if they are unknown
+     */
+    boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * The names of the properties of this node that may have changed.
+     *
+     * @return the property names
+     */
+    Set<String> getProperties() {
+        return properties;
+    }
+
+    /**
+     * The changes of the child nodes of this node that may have changed.
+     *
+     * @return the changes by child node name
+     */
+    Map<String, KernelChanges> getChildren() {
+        return children;
+    }
+
+    private void touched(String root, String path, boolean node) {
+        if (!PathUtils.isAncestor(root, path)) {
+            return;
+        }
+        KernelChanges changes = this;
+        String relative = PathUtils.relativize(root, path);
+        String name = PathUtils.getName(relative);
+        for (String element : PathUtils.elements(PathUtils.getParentPath(relative))) {
+            changes = changes.child(element);
+            if (changes.partial) {
+                return;
+            }
+        }
+        if (node) {
+            changes = changes.child(name);
+            changes.partial = true;
+            changes.properties.clear();
+            changes.children.clear();
+        } else {
+            changes.properties.add(name);
+        }
+    }
+
+    private KernelChanges child(String name) {
+        KernelChanges child = children.get(name);
+        if (child == null) {
+            child = new KernelChanges();
+            children.put(name, child);
+        }
+        return child;
+    }
+
+}
@@ -24,17 +24,16 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nonnull;
 import javax.jcr.PropertyType;
 
 import com.google.common.base.Function;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import org.apache.jackrabbit.mk.api.MicroKernel;
 import org.apache.jackrabbit.mk.api.MicroKernelException;
+import org.apache.jackrabbit.mk.core.MicroKernelImpl;
 import org.apache.jackrabbit.mk.json.JsopReader;
 import org.apache.jackrabbit.mk.json.JsopTokenizer;
 import org.apache.jackrabbit.oak.api.PropertyState;
@@ -56,7 +55,8 @@ import static org.apache.jackrabbit.oak.plugins.memory.PropertyStates.createProp
 
 /**
  * Basic {@link NodeState} implementation based on the {@link MicroKernel}
- * interface. This class makes an attempt to load data lazily.
+ * interface. The node states are loaded when they are added to the
+ * {@link KernelNodeStateCache}; the child node states are loaded lazily.
  */
 public final class KernelNodeState extends AbstractNodeState {
 
@@ -65,6 +65,18 @@ public final class KernelNodeState extends AbstractNodeState {
      */
     static final int MAX_CHILD_NODE_NAMES = 10000;
 
+    /**
+     * The filter used to read the nodes: all properties and the hash.
+     */
+    private static final String FILTER = "{\"properties\":[\"*\",\":hash\"]}";
+
+    /**
+     * The depth of the {@code MicroKernel.diff} calls, which limits the
+     * size of the added subtrees that are included. Changes below that
+     * depth are read with another call when the changed node is compared.
+     */
+    private static final int DIFF_DEPTH = 3;
+
     private final MicroKernel kernel;
 
     private final String path;
@@ -79,7 +91,13 @@ public final class KernelNodeState extends AbstractNodeState {
 
     private Map<String, String> childPaths;
 
-    private final LoadingCache<String, KernelNodeState> cache;
+    private final KernelNodeStateCache cache;
+
+    /**
+     * A node state of another revision at the same path with the same
+     * content hash, or null. Its cached child node states can be copied.
+     */
+    private KernelNodeState same;
 
     /**
      * Create a new instance of this class representing the node at the
@@ -91,25 +109,105 @@ public final class KernelNodeState extends AbstractNodeState {
      * @param revision the revision of the node to read from the kernel.
      * @param cache the KernelNodeState cache
      */
-    public KernelNodeState(
+    KernelNodeState(
             MicroKernel kernel, String path, String revision,
-            LoadingCache<String, KernelNodeState> cache) {
+            KernelNodeStateCache cache) {
         this.kernel = checkNotNull(kernel);
         this.path = checkNotNull(path);
         this.revision = checkNotNull(revision);
         this.cache = checkNotNull(cache);
     }
 
+    /**
+     * Create a copy of a node state with the same content at another
+     * revision.
+     *
+     * @param other the loaded node state to copy
+     * @param revision the revision of the copy
+     */
+    private KernelNodeState(KernelNodeState other, String revision) {
+        this(other.kernel, other.path, revision, other.cache);
+        this.properties = other.properties;
+        this.childNodeCount = other.childNodeCount;
+        this.hash = other.hash;
+        this.childPaths = other.childPaths;
+        this.same = other;
+    }
+
+    /**
+     * Load the node state from the MicroKernel.
+     */
+    void load() {
+        init();
+    }
+
     private synchronized void init() {
-        if (properties == null) {
-            String json = kernel.getNodes(
-                    path, revision, 0, 0, MAX_CHILD_NODE_NAMES,
-                    "{\"properties\":[\"*\",\":hash\"]}");
-
-            JsopReader reader = new JsopTokenizer(json);
-            reader.read('{');
-            properties = new LinkedHashMap<String, PropertyState>();
-            childPaths = new LinkedHashMap<String, String>();
+        if (properties == null && kernel instanceof MicroKernelImpl) {
+            init((MicroKernelImpl) kernel);
+        } else if (properties == null) {
+            SubtreePrefetcher prefetcher = cache.getPrefetcher();
+            int depth = prefetcher.getDepth(path);
+            int count = MAX_CHILD_NODE_NAMES;
+            if (depth > 0) {
+                count = Math.min(
+                        prefetcher.getChildNodeLimit(path), MAX_CHILD_NODE_NAMES);
+            }
+            read(kernel.getNodes(path, revision, depth, 0, count, FILTER));
+            if (!isComplete()) {
+                // the child node list was cut off by the prefetch limit
+                read(kernel.getNodes(
+                        path, revision, 0, 0, MAX_CHILD_NODE_NAMES, FILTER));
+            }
+            prefetcher.loaded(path, childNodeCount);
+            share();
+        }
+    }
+
+    /**
+     * Share the properties and the child node list with a node state of
+     * another revision that has the same content hash, if there is one.
+     */
+    private void share() {
+        if (hash == null) {
+            return;
+        }
+        KernelNodeState other = cache.getByHash(hash);
+        if (other == null) {
+            cache.putHash(hash, this);
+        } else if (other != this) {
+            properties = other.properties;
+            if (path.equals(other.path)) {
+                childPaths = other.childPaths;
+                same = other;
+            }
+        }
+    }
+
+    /**
+     * Read the state of this node from its JSON rendering. The child nodes
+     * that are included with their properties (when a subtree was
+     * requested) are added to the cache, unless their child node list is
+     * incomplete.
+     *
+     * @param json the JSON rendering
+     */
+    private void read(String json) {
+        JsopReader reader = new JsopTokenizer(json);
+        reader.read('{');
+        read(reader);
+        reader.read(JsopReader.END);
+    }
+
+    /**
+     * Read the state of this node, after the opening brace, up to and
+     * including the closing brace.
+     *
+     * @param reader the reader
+     */
+    private void read(JsopReader reader) {
+        properties = new LinkedHashMap<String, PropertyState>();
+        childPaths = new LinkedHashMap<String, String>();
+        if (!reader.matches('}')) {
             do {
                 String name = StringCache.get(reader.readString());
                 reader.read(':');
@@ -119,12 +217,18 @@ public final class KernelNodeState extends AbstractNodeState {
                 } else if (":hash".equals(name)) {
                     hash = new String(reader.read(JsopReader.STRING));
                 } else if (reader.matches('{')) {
-                    reader.read('}');
-                    String childPath = path + '/' + name;
-                    if ("/".equals(path)) {
-                        childPath = '/' + name;
-                    }
+                    String childPath = getChildPath(name);
                     childPaths.put(name, childPath);
+                    if (!reader.matches('}')) {
+                        // prefetched child node
+                        KernelNodeState child = new KernelNodeState(
+                                kernel, childPath, revision, cache);
+                        child.read(reader);
+                        if (child.isComplete()) {
+                            child.share();
+                            cache.put(child);
+                        }
+                    }
                 } else if (reader.matches('[')) {
                     properties.put(name, readArrayProperty(name, reader));
                 } else {
@@ -132,12 +236,69 @@ public final class KernelNodeState extends AbstractNodeState {
                 }
             } while (reader.matches(','));
             reader.read('}');
-            reader.read(JsopReader.END);
-            // optimize for empty childNodes
-            if (childPaths.isEmpty()) {
-                childPaths = Collections.emptyMap();
+        }
+        // optimize for empty childNodes
+        if (childPaths.isEmpty()) {
+            childPaths = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Checks whether all child node names (up to the maximum number kept in
+     * memory) were read.
+     *
+     * @return true if the child node list is complete
+     */
+    private boolean isComplete() {
+        return childPaths.size() >= Math.min(childNodeCount, MAX_CHILD_NODE_NAMES);
+    }
+
+    /**
+     * In-process variant of {@link #init()} reading the node state directly
+     * from a local {@link MicroKernelImpl} instead of parsing the JSON
+     * rendering of the whole node. Only the individual property values,
+     * which are stored in their JSON encoded form, need to be parsed.
+     *
+     * @param mk the local MicroKernel
+     */
+    private void init(MicroKernelImpl mk) {
+        org.apache.jackrabbit.mk.model.tree.NodeState state =
+                mk.getNodeState(path, revision);
+        if (state == null) {
+            throw new MicroKernelException(
+                    "Path " + path + " not found in revision " + revision);
+        }
+
+        properties = new LinkedHashMap<String, PropertyState>();
+        for (org.apache.jackrabbit.mk.model.tree.PropertyState property
+                : state.getProperties()) {
+            String name = StringCache.get(property.getName());
+            JsopReader reader = new JsopTokenizer(property.getEncodedValue());
+            if (reader.matches('[')) {
+                properties.put(name, readArrayProperty(name, reader));
+            } else {
+                properties.put(name, readProperty(name, reader));
             }
         }
+        childNodeCount = state.getChildNodeCount();
+        hash = mk.getHash(state);
+        childPaths = readChildPaths(state, 0, MAX_CHILD_NODE_NAMES);
+        share();
+    }
+
+    private Map<String, String> readChildPaths(
+            org.apache.jackrabbit.mk.model.tree.NodeState state,
+            long offset, int count) {
+        if (state.getChildNodeCount() <= offset) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> paths = new LinkedHashMap<String, String>();
+        for (org.apache.jackrabbit.mk.model.tree.ChildNode child
+                : state.getChildNodeEntries(offset, count)) {
+            String name = StringCache.get(child.getName());
+            paths.put(name, getChildPath(name));
+        }
+        return paths;
     }
 
     @Override
@@ -164,6 +325,19 @@ public final class KernelNodeState extends AbstractNodeState {
         return childNodeCount;
     }
 
+    @Override
+    public boolean hasChildNode(String name) {
+        init();
+        if (childPaths.containsKey(name)) {
+            return true;
+        } else if (childNodeCount > MAX_CHILD_NODE_NAMES) {
+            String path = getChildPath(name);
+            return cache.getIfPresent(revision, path) != null
+                    || kernel.nodeExists(path, revision);
+        }
+        return false;
+    }
+
     @Override
     public NodeState getChildNode(String name) {
         init();
@@ -171,7 +345,7 @@ public final class KernelNodeState extends AbstractNodeState {
         if (childPath == null && childNodeCount > MAX_CHILD_NODE_NAMES) {
             String path = getChildPath(name);
             // OAK-506: Avoid the nodeExists() call when already cached
-            NodeState state = cache.getIfPresent(revision + path);
+            NodeState state = cache.getIfPresent(revision, path);
             if (state != null) {
                 return state;
             } else if (kernel.nodeExists(path, revision)) {
@@ -181,16 +355,13 @@ public final class KernelNodeState extends AbstractNodeState {
         if (childPath == null) {
             return null;
         }
-        try {
-            return cache.get(revision + childPath);
-        } catch (ExecutionException e) {
-            throw new MicroKernelException(e);
-        }
+        return getChildState(childPath);
     }
 
     @Override
     public Iterable<? extends ChildNodeEntry> getChildNodeEntries() {
         init();
+        cache.getPrefetcher().traversed(path);
         Iterable<ChildNodeEntry> iterable = iterable(childPaths.entrySet());
         if (childNodeCount > childPaths.size()) {
             List<Iterable<ChildNodeEntry>> iterables = Lists.newArrayList();
@@ -219,6 +390,11 @@ public final class KernelNodeState extends AbstractNodeState {
      * and child nodes if both this and the given base node state come from
      * the same MicroKernel and either have the same content hash (when
      * available) or are located at the same path in different revisions.
+     * In the latter case the locations of the changes within the subtree
+     * are read with one {@code MicroKernel.diff} call, and only the touched
+     * properties and child nodes are compared. The changes within the
+     * changed child nodes are cached, so that comparing them does not need
+     * another call.
      *
      * @see <a href="https://issues.apache.org/jira/browse/OAK-175">OAK-175</a>
      */
@@ -236,11 +412,17 @@ public final class KernelNodeState extends AbstractNodeState {
                     kbase.init();
                     if (hash != null && hash.equals(kbase.hash)) {
                         return; // no differences
-                    } else if (path.equals(kbase.path) && !path.equals("/")) {
-                        String jsonDiff = kernel.diff(kbase.getRevision(), revision, path, 0);
-                        if (!hasChanges(jsonDiff)) {
-                            return; // no differences
+                    } else if (path.equals(kbase.path)) {
+                        KernelChanges changes =
+                                cache.getChanges(kbase.revision, revision, path);
+                        if (changes == null) {
+                            String jsonDiff = kernel.diff(
+                                    kbase.revision, revision, path, DIFF_DEPTH);
+                            changes = KernelChanges.parse(path, jsonDiff);
+                            cache.putChanges(kbase.revision, revision, path, changes);
                         }
+                        compare(kbase, changes, diff);
+                        return;
                     }
                 }
             }
@@ -296,8 +478,89 @@ public final class KernelNodeState extends AbstractNodeState {
         return path;
     }
 
+    /**
+     * Estimate the memory used by this node state, for the cache.
+     *
+     * @return the estimated memory in bytes
+     */
+    int getMemory() {
+        long memory = 200 + 2 * path.length();
+        if (properties != null) {
+            for (PropertyState property : properties.values()) {
+                memory += 64 + 2 * property.getName().length();
+                int count = property.count();
+                if (property.getType().tag() == PropertyType.BINARY) {
+                    memory += 64 * count;
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        memory += 32 + 2 * property.size(i);
+                    }
+                }
+            }
+        }
+        if (childPaths != null) {
+            for (Entry<String, String> e : childPaths.entrySet()) {
+                memory += 100 + 2 * (e.getKey().length() + e.getValue().length());
+            }
+        }
+        return (int) Math.min(memory, Integer.MAX_VALUE);
+    }
+
     //------------------------------------------------------------< private >---
 
+    /**
+     * Compare the touched properties and child nodes against the base
+     * node state at the same path.
+     *
+     * @param base the base node state
+     * @param changes the locations of the changes
+     * @param diff the diff handler
+     */
+    private void compare(
+            KernelNodeState base, KernelChanges changes, NodeStateDiff diff) {
+        for (String name : changes.getProperties()) {
+            PropertyState before = base.getProperty(name);
+            PropertyState after = getProperty(name);
+            if (before == null) {
+                if (after != null) {
+                    diff.propertyAdded(after);
+                }
+            } else if (after == null) {
+                diff.propertyDeleted(before);
+            } else if (!before.equals(after)) {
+                diff.propertyChanged(before, after);
+            }
+        }
+        for (Entry<String, KernelChanges> entry : changes.getChildren().entrySet()) {
+            String name = entry.getKey();
+            KernelNodeState before = (KernelNodeState) base.getChildNode(name);
+            KernelNodeState after = (KernelNodeState) getChildNode(name);
+            if (before == null) {
+                if (after != null) {
+                    diff.childNodeAdded(name, after);
+                }
+            } else if (after == null) {
+                diff.childNodeDeleted(name, before);
+            } else {
+                KernelChanges c = entry.getValue();
+                boolean changed;
+                if (before.hash != null && after.hash != null) {
+                    changed = !before.hash.equals(after.hash);
+                } else {
+                    // the changes reported within a node may cancel out,
+                    // but the child node comparison will not find any
+                    changed = c.isPartial() ? !before.equals(after) : true;
+                }
+                if (changed) {
+                    if (!c.isPartial()) {
+                        cache.putChanges(base.revision, revision, after.path, c);
+                    }
+                    diff.childNodeChanged(name, before, after);
+                }
+            }
+        }
+    }
+
     private boolean hasChanges(String journal) {
         return !journal.trim().isEmpty();
     }
@@ -307,6 +570,17 @@ public final class KernelNodeState extends AbstractNodeState {
         return new Iterable<ChildNodeEntry>() {
             @Override
             public Iterator<ChildNodeEntry> iterator() {
+                if (kernel instanceof MicroKernelImpl) {
+                    MicroKernelImpl mk = (MicroKernelImpl) kernel;
+                    org.apache.jackrabbit.mk.model.tree.NodeState state =
+                            mk.getNodeState(path, revision);
+                    if (state == null) {
+                        throw new MicroKernelException(
+                                "Path " + path + " not found in revision " + revision);
+                    }
+                    return iterable(readChildPaths(state, offset, count)
+                            .entrySet()).iterator();
+                }
                 List<ChildNodeEntry> entries =
                         Lists.newArrayListWithCapacity(count);
                 String json = kernel.getNodes(
@@ -335,6 +609,29 @@ public final class KernelNodeState extends AbstractNodeState {
         };
     }
 
+    /**
+     * Get the child node state with the given path. If the content of this
+     * node is the same as in another revision, the cached child node state of
+     * that revision is copied instead of loading it.
+     *
+     * @param childPath the path of the child node
+     * @return the child node state
+     */
+    private KernelNodeState getChildState(String childPath) {
+        KernelNodeState child = cache.getIfPresent(revision, childPath);
+        if (child == null && same != null) {
+            KernelNodeState other = cache.getIfPresent(same.revision, childPath);
+            if (other != null) {
+                child = cache.put(new KernelNodeState(other, revision));
+                cache.reused();
+            }
+        }
+        if (child == null) {
+            child = cache.get(revision, childPath);
+        }
+        return child;
+    }
+
     private String getChildPath(String name) {
         if ("/".equals(path)) {
             return '/' + name;
@@ -390,11 +687,7 @@ public final class KernelNodeState extends AbstractNodeState {
 
         @Override
         public NodeState getNodeState() {
-            try {
-                return cache.get(revision + path);
-            } catch (ExecutionException e) {
-                throw new MicroKernelException(e);
-            }
+            return getChildState(path);
         }
 
     }
@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.kernel;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jackrabbit.mk.api.MicroKernel;
+import org.apache.jackrabbit.mk.api.MicroKernelException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+
+/**
+ * The cache of the {@link KernelNodeState}s of a {@link KernelNodeStore}.
+ * <p>
+ * The entries are weighted by their estimated memory usage, and node states
+ * are loaded from the MicroKernel when they are added, so that the load time
+ * is part of the statistics. Node states of different revisions with the
+ * same content hash share their properties, and if they are at the same
+ * path, their child nodes are copied from the other revision (when cached)
+ * instead of being loaded again.
+ * <p>
+ * The changes between two revisions of a subtree are also kept for a while,
+ * so that the comparison of the changed child nodes does not need to call
+ * {@code MicroKernel.diff} again.
+ */
+class KernelNodeStateCache {
+
+    /**
+     * The system property for the size of the cache, in bytes.
+     */
+    static final String CACHE_SIZE = "oak.kernel.cacheSize";
+
+    private final MicroKernel kernel;
+
+    /**
+     * Decides which subtrees are loaded together with a node.
+     */
+    private final SubtreePrefetcher prefetcher = new SubtreePrefetcher();
+
+    private final LoadingCache<Key, KernelNodeState> cache;
+
+    /**
+     * The node states by content hash, as long as they are referenced.
+     */
+    private final Cache<String, KernelNodeState> hashes =
+            CacheBuilder.newBuilder().weakValues().build();
+
+    /**
+     * The changes between two revisions, by base revision, revision and path.
+     */
+    private final Cache<Key, KernelChanges> changes =
+            CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    /**
+     * The number of node states that were copied from another revision.
+     */
+    private final AtomicLong reuseCount = new AtomicLong();
+
+    KernelNodeStateCache(MicroKernel kernel) {
+        this(kernel, Long.getLong(CACHE_SIZE, 32 * 1024 * 1024));
+    }
+
+    KernelNodeStateCache(MicroKernel kernel, long size) {
+        this.kernel = kernel;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(size)
+                .weigher(new Weigher<Key, KernelNodeState>() {
+                    @Override
+                    public int weigh(Key key, KernelNodeState value) {
+                        return value.getMemory();
+                    }
+                })
+                .recordStats()
+                .build(new CacheLoader<Key, KernelNodeState>() {
+                    @Override
+                    public KernelNodeState load(Key key) {
+                        KernelNodeState state = new KernelNodeState(
+                                KernelNodeStateCache.this.kernel,
+                                key.path, key.revision,
+                                KernelNodeStateCache.this);
+                        state.load();
+                        return state;
+                    }
+                });
+    }
+
+    /**
+     * Get the node state at the given revision and path, loading it if
+     * needed. It is an error if the node does not exist.
+     *
+     * @param revision the revision
+     * @param path the path
+     * @return the node state
+     */
+    KernelNodeState get(String revision, String path) {
+        try {
+            return cache.get(new Key(revision, path));
+        } catch (ExecutionException e) {
+            throw new MicroKernelException(e);
+        }
+    }
+
+    /**
+     * Get the node state at the given revision and path, if it is cached.
+     *
+     * @param revision the revision
+     * @param path the path
+     * @return the node state, or null
+     */
+    KernelNodeState getIfPresent(String revision, String path) {
+        return cache.getIfPresent(new Key(revision, path));
+    }
+
+    /**
+     * Add a loaded node state, unless the cache already contains a node
+     * state for the same revision and path.
+     *
+     * @param state the node state
+     * @return the cached node state
+     */
+    KernelNodeState put(KernelNodeState state) {
+        KernelNodeState old = cache.asMap().putIfAbsent(
+                new Key(state.getRevision(), state.getPath()), state);
+        return old == null ? state : old;
+    }
+
+    /**
+     * Get a node state with the given content hash, if there is one.
+     *
+     * @param hash the content hash
+     * @return the node state, or null
+     */
+    KernelNodeState getByHash(String hash) {
+        return hashes.getIfPresent(hash);
+    }
+
+    /**
+     * Register the content hash of a loaded node state.
+     *
+     * @param hash the content hash
+     * @param state the node state
+     */
+    void putHash(String hash, KernelNodeState state) {
+        hashes.asMap().putIfAbsent(hash, state);
+    }
+
+    /**
+     * Get the changes of the node at the given path between two revisions,
+     * if they are cached.
+     *
+     * @param base the base revision
+     * @param revision the revision
+     * @param path the path
+     * @return the changes, or null
+     */
+    KernelChanges getChanges(String base, String revision, String path) {
+        return changes.getIfPresent(new Key(base, revision, path));
+    }
+
+    /**
+     * Add the changes of the node at the given path between two revisions.
+     *
+     * @param base the base revision
+     * @param revision the revision
+     * @param path the path
+     * @param c the changes
+     */
+    void putChanges(String base, String revision, String path, KernelChanges c) {
+        changes.put(new Key(base, revision, path), c);
+    }
+
+    /**
+     * Record that a node state was copied from another revision instead of
+     * being loaded.
+     */
+    void reused() {
+        reuseCount.incrementAndGet();
+    }
+
+    SubtreePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    CacheStats getStats() {
+        return cache.stats();
+    }
+
+    long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    /**
+     * The key of a cache entry.
+     */
+    private static final class Key {
+
+        /**
+         * The base revision (only for changes), or null.
+         */
+        final String base;
+
+        final String revision;
+
+        final String path;
+
+        private final int hash;
+
+        Key(String revision, String path) {
+            this(null, revision, path);
+        }
+
+        Key(String base, String revision, String path) {
+            this.base = base;
+            this.revision = revision;
+            this.path = path;
+            this.hash = 31 * (31 * (base == null ? 0 : base.hashCode())
+                    + revision.hashCode()) + path.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            } else if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && path.equals(other.path)
+                    && revision.equals(other.revision)
+                    && (base == null ? other.base == null : base.equals(other.base));
+        }
+
+    }
+
+}
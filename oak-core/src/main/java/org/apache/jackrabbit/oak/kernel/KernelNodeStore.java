@@ -18,13 +18,10 @@ package org.apache.jackrabbit.oak.kernel;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nonnull;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.CacheStats;
 import org.apache.jackrabbit.mk.api.MicroKernel;
 import org.apache.jackrabbit.mk.api.MicroKernelException;
 import org.apache.jackrabbit.oak.spi.commit.CommitHook;
@@ -59,18 +56,10 @@ public class KernelNodeStore implements NodeStore {
     @Nonnull
     private volatile Observer observer = EmptyObserver.INSTANCE;
 
-    private final LoadingCache<String, KernelNodeState> cache =
-            CacheBuilder.newBuilder().maximumSize(10000).build(
-                    new CacheLoader<String, KernelNodeState>() {
-                        @Override
-                        public KernelNodeState load(String key) {
-                            int slash = key.indexOf('/');
-                            String revision = key.substring(0, slash);
-                            String path = key.substring(slash);
-                            return new KernelNodeState(
-                                    kernel, path, revision, cache);
-                        }
-                    });
+    /**
+     * The cache of the node states.
+     */
+    private final KernelNodeStateCache cache;
 
     /**
      * State of the current root node.
@@ -79,8 +68,9 @@ public class KernelNodeStore implements NodeStore {
 
     public KernelNodeStore(MicroKernel kernel) {
         this.kernel = checkNotNull(kernel);
+        this.cache = new KernelNodeStateCache(kernel);
         try {
-            this.root = cache.get(kernel.getHeadRevision() + "/");
+            this.root = cache.get(kernel.getHeadRevision(), "/");
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -104,6 +94,25 @@ public class KernelNodeStore implements NodeStore {
         this.observer = checkNotNull(observer);
     }
 
+    /**
+     * Get the statistics of the node state cache.
+     *
+     * @return the cache statistics
+     */
+    public CacheStats getCacheStats() {
+        return cache.getStats();
+    }
+
+    /**
+     * Get the number of node states that were copied from a node state of
+     * another revision with the same content, instead of being loaded.
+     *
+     * @return the number of reused node states
+     */
+    public long getCacheReuseCount() {
+        return cache.getReuseCount();
+    }
+
     //----------------------------------------------------------< NodeStore >---
 
     @Override
@@ -136,6 +145,34 @@ public class KernelNodeStore implements NodeStore {
         }
     }
 
+    /**
+     * @return The revision of the given root node state
+     */
+    @Override
+    public String checkpoint(NodeState root) {
+        if (root instanceof KernelNodeState) {
+            KernelNodeState state = (KernelNodeState) root;
+            if ("/".equals(state.getPath())) {
+                return state.getRevision();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public NodeState retrieve(String checkpoint) {
+        try {
+            if (!kernel.nodeExists("/", checkpoint)) {
+                return null;
+            }
+        }
+        catch (MicroKernelException e) {
+            // unknown revision, for example removed by the garbage collection
+            return null;
+        }
+        return getRootState(checkpoint);
+    }
+
     //-----------------------------------------------------------< internal >---
 
     @Nonnull
@@ -144,11 +181,7 @@ public class KernelNodeStore implements NodeStore {
     }
 
     KernelNodeState getRootState(String revision) {
-        try {
-            return cache.get(revision + "/");
-        } catch (ExecutionException e) {
-            throw new MicroKernelException(e);
-        }
+        return cache.get(revision, "/");
     }
 
 }
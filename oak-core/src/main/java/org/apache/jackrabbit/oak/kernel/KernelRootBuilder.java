@@ -16,12 +16,15 @@
  */
 package org.apache.jackrabbit.oak.kernel;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Map;
 import java.util.Set;
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.jackrabbit.mk.api.MicroKernel;
+import org.apache.jackrabbit.mk.api.MicroKernelException;
 import org.apache.jackrabbit.mk.json.JsopBuilder;
 import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeBuilder;
 import org.apache.jackrabbit.oak.plugins.memory.ModifiedNodeState;
@@ -64,6 +67,20 @@ class KernelRootBuilder extends MemoryNodeBuilder {
         return new KernelNodeBuilder(this, name, this);
     }
 
+    /**
+     * Write the content to the MicroKernel.
+     *
+     * @return An instance of {@link KernelBlob}
+     */
+    @Override
+    public KernelBlob createBlob(InputStream inputStream) throws IOException {
+        try {
+            return new KernelBlob(kernel.write(inputStream), kernel);
+        } catch (MicroKernelException e) {
+            throw new IOException(e);
+        }
+    }
+
     @Override
     protected void updated() {
         if (updates++ > UPDATE_LIMIT) {
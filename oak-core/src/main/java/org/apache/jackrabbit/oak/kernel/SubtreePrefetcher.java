@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.kernel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jackrabbit.oak.commons.PathUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Decides how many levels of the subtree of a node are loaded together
+ * with the node, in one {@code MicroKernel.getNodes} call.
+ * <p>
+ * The subtree is only prefetched for the child nodes of a node that is
+ * traversed, that is, whose child node list was iterated, or where a number
+ * of child nodes were loaded one by one. The depth is limited so that the
+ * estimated number of prefetched nodes stays within a budget. The fan-out
+ * is estimated from the child node count of the traversed node, and of its
+ * child nodes that were loaded so far.
+ * <p>
+ * The access statistics are kept per path, independent of the revision, for
+ * a limited number of nodes.
+ */
+class SubtreePrefetcher {
+
+    /**
+     * The system property for the maximum prefetch depth (0 to disable).
+     */
+    static final String MAX_DEPTH = "oak.kernel.prefetchDepth";
+
+    /**
+     * The system property for the maximum number of nodes to prefetch in
+     * one call, which limits the memory used.
+     */
+    static final String MAX_NODES = "oak.kernel.prefetchNodes";
+
+    /**
+     * The number of child nodes that need to be loaded before a node is
+     * considered to be traversed.
+     */
+    private static final int TRAVERSAL_THRESHOLD = 3;
+
+    /**
+     * The minimum number of child nodes per node to request.
+     */
+    private static final int MIN_FAN_OUT = 10;
+
+    private final int maxDepth;
+
+    private final int maxNodes;
+
+    private final Cache<String, Stats> stats =
+            CacheBuilder.newBuilder().maximumSize(1000).build();
+
+    SubtreePrefetcher() {
+        this(Integer.getInteger(MAX_DEPTH, 3), Integer.getInteger(MAX_NODES, 1000));
+    }
+
+    SubtreePrefetcher(int maxDepth, int maxNodes) {
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * Get the number of levels below the given node to load together with
+     * the node.
+     *
+     * @param path the path of the node to load
+     * @return the depth, 0 for only the node itself
+     */
+    int getDepth(String path) {
+        if (maxDepth <= 0 || PathUtils.denotesRoot(path)) {
+            return 0;
+        }
+        Stats parent = stats.getIfPresent(PathUtils.getParentPath(path));
+        if (parent == null || !parent.isTraversed()) {
+            return 0;
+        }
+        long fanOut = getFanOut(parent);
+        int depth = 0;
+        long nodes = 1;
+        long level = 1;
+        while (depth < maxDepth) {
+            level *= fanOut;
+            if (nodes + level > maxNodes) {
+                break;
+            }
+            nodes += level;
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Get the maximum number of child nodes per node to load when the
+     * subtree of the given node is prefetched. Nodes with more child nodes
+     * than that are not prefetched.
+     *
+     * @param path the path of the node to load
+     * @return the number of child nodes
+     */
+    int getChildNodeLimit(String path) {
+        Stats parent = stats.getIfPresent(PathUtils.getParentPath(path));
+        return parent == null ? MIN_FAN_OUT : (int) getFanOut(parent);
+    }
+
+    /**
+     * Record that the given node was loaded individually.
+     *
+     * @param path the path of the node
+     * @param childNodeCount the number of child nodes of the node
+     */
+    void loaded(String path, long childNodeCount) {
+        getStats(path).childNodeCount = childNodeCount;
+        if (!PathUtils.denotesRoot(path)) {
+            Stats parent = getStats(PathUtils.getParentPath(path));
+            parent.loads.incrementAndGet();
+            if (childNodeCount > parent.maxChildFanOut) {
+                parent.maxChildFanOut = childNodeCount;
+            }
+        }
+    }
+
+    /**
+     * Record that the child node list of the given node is iterated.
+     *
+     * @param path the path of the node
+     */
+    void traversed(String path) {
+        getStats(path).traversed = true;
+    }
+
+    private static long getFanOut(Stats s) {
+        return Math.max(MIN_FAN_OUT, Math.max(s.childNodeCount, s.maxChildFanOut));
+    }
+
+    private Stats getStats(String path) {
+        Stats s = stats.getIfPresent(path);
+        if (s == null) {
+            s = new Stats();
+            Stats old = stats.asMap().putIfAbsent(path, s);
+            if (old != null) {
+                s = old;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * The access statistics of a node.
+     */
+    private static class Stats {
+
+        /**
+         * Whether the child node list was iterated.
+         */
+        volatile boolean traversed;
+
+        /**
+         * The number of child nodes that were loaded individually.
+         */
+        final AtomicInteger loads = new AtomicInteger();
+
+        /**
+         * The child node count, as last seen.
+         */
+        volatile long childNodeCount;
+
+        /**
+         * The largest child node count of the child nodes that were loaded.
+         */
+        volatile long maxChildFanOut;
+
+        boolean isTraversed() {
+            return traversed || loads.get() >= TRAVERSAL_THRESHOLD;
+        }
+
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index;
+
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_CHECKPOINT_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_STATE_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.TYPE_PROPERTY_NAME;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A task that updates the asynchronous indexes in the background. Those are
+ * the index types of the root {@code oak:index} node where all definitions
+ * have the {@code async} flag set; they are skipped by the
+ * {@link IndexHookManager} within the commits.
+ * <p>
+ * Each run compares the repository state that was indexed last (the
+ * checkpoint) against the current head, and applies all changes in between in
+ * one commit. The time of the indexed state is recorded in the
+ * {@code asyncCheckpoint} property of the index definitions, and the state
+ * itself as a checkpoint of the node store in the {@code asyncState}
+ * property (see {@link NodeStore#checkpoint(NodeState)}). After a restart,
+ * the first run compares against that state. Only if it is not available
+ * anymore, or the node store does not support checkpoints, the asynchronous
+ * indexes are re-indexed.
+ * <p>
+ * It is meant to be run periodically, for example every few seconds.
+ */
+public class AsyncIndexUpdate implements Runnable {
+
+    /**
+     * The system property for the delay between two runs, in milliseconds.
+     */
+    public static final String ASYNC_DELAY = "oak.asyncIndexDelay";
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncIndexUpdate.class);
+
+    private final NodeStore store;
+
+    private final IndexHookManager manager;
+
+    /**
+     * The repository state the asynchronous indexes are updated to, or null
+     * if they were not updated yet.
+     */
+    private NodeState checkpoint;
+
+    /**
+     * The time when the checkpoint was read, or -1.
+     */
+    private volatile long checkpointTime = -1;
+
+    public AsyncIndexUpdate(NodeStore store, IndexHookProvider provider) {
+        this.store = store;
+        this.manager = new IndexHookManager(provider, true);
+    }
+
+    /**
+     * Get the configured delay between two runs.
+     *
+     * @return the delay in milliseconds
+     */
+    public static long getDelay() {
+        return Long.getLong(ASYNC_DELAY, 5 * 1000);
+    }
+
+    /**
+     * Get the indexing lag, that is, how old the repository state is that
+     * the asynchronous indexes reflect. Changes that were made since then may
+     * be missing in those indexes.
+     *
+     * @return the lag in milliseconds, or -1 if the indexes were not updated
+     *         yet
+     */
+    public long getLag() {
+        long time = checkpointTime;
+        return time < 0 ? -1 : System.currentTimeMillis() - time;
+    }
+
+    /**
+     * Get the indexing lag of the given index definition, as recorded by the
+     * last run (possibly in another process).
+     *
+     * @param definition the index definition
+     * @return the lag in milliseconds, or -1 if the index was not updated
+     *         asynchronously yet
+     */
+    public static long getLag(NodeState definition) {
+        PropertyState time = definition.getProperty(ASYNC_CHECKPOINT_PROPERTY_NAME);
+        if (time == null) {
+            return -1;
+        }
+        return System.currentTimeMillis() - time.getValue(Type.LONG);
+    }
+
+    @Override
+    public synchronized void run() {
+        long time = System.currentTimeMillis();
+        NodeStoreBranch branch = store.branch();
+        NodeState head = branch.getRoot();
+        List<String> names = getAsyncIndexNames(head);
+        NodeState before = checkpoint;
+        if (before == null) {
+            before = retrieveCheckpoint(head, names);
+        }
+        NodeState after = head;
+        if (names.isEmpty()) {
+            // nothing to do, but changes from now on need to be indexed
+            // once an index is marked as async
+            before = head;
+        } else if (before == null) {
+            // the changes since the last update are not known
+            NodeBuilder builder = head.builder();
+            NodeBuilder definitions = builder.child(INDEX_DEFINITIONS_NAME);
+            for (String name : names) {
+                definitions.child(name).setProperty(REINDEX_PROPERTY_NAME, true);
+            }
+            before = head;
+            after = builder.getNodeState();
+        } else if (!hasChanges(before, head, names)) {
+            before = head;
+        }
+        if (before == after) {
+            checkpoint = head;
+            checkpointTime = time;
+            return;
+        }
+        try {
+            NodeBuilder builder = manager.processCommit(before, after).builder();
+            NodeBuilder definitions = builder.child(INDEX_DEFINITIONS_NAME);
+            String state = store.checkpoint(head);
+            for (String name : names) {
+                NodeBuilder definition = definitions.child(name);
+                definition.setProperty(ASYNC_CHECKPOINT_PROPERTY_NAME, time);
+                if (state != null) {
+                    definition.setProperty(ASYNC_STATE_PROPERTY_NAME, state);
+                }
+            }
+            branch.setRoot(builder.getNodeState());
+            branch.merge();
+            checkpoint = head;
+            checkpointTime = time;
+        } catch (CommitFailedException e) {
+            // will be retried in the next run
+            LOG.warn("Could not update the asynchronous indexes", e);
+        }
+    }
+
+    /**
+     * Retrieve the repository state the asynchronous indexes were updated to
+     * by an earlier run, possibly before a restart.
+     *
+     * @param root the root node
+     * @param names the names of the asynchronous index definitions
+     * @return the state, or null if it is not known for all indexes, or not
+     *         available anymore
+     */
+    private NodeState retrieveCheckpoint(NodeState root, List<String> names) {
+        NodeState definitions = root.getChildNode(INDEX_DEFINITIONS_NAME);
+        String state = null;
+        for (String name : names) {
+            PropertyState p = definitions.getChildNode(name).getProperty(
+                    ASYNC_STATE_PROPERTY_NAME);
+            if (p == null || (state != null && !state.equals(p.getValue(Type.STRING)))) {
+                return null;
+            }
+            state = p.getValue(Type.STRING);
+        }
+        if (state == null) {
+            return null;
+        }
+        NodeState checkpoint = store.retrieve(state);
+        if (checkpoint == null) {
+            LOG.info("The indexed state {} is not available, re-indexing the asynchronous indexes", state);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Get the names of the index definitions that are updated asynchronously.
+     *
+     * @param root the root node
+     * @return the names of the index definitions
+     */
+    private static List<String> getAsyncIndexNames(NodeState root) {
+        List<String> names = new ArrayList<String>();
+        NodeState definitions = root.getChildNode(INDEX_DEFINITIONS_NAME);
+        if (definitions == null) {
+            return names;
+        }
+        for (ChildNodeEntry c : definitions.getChildNodeEntries()) {
+            PropertyState type = c.getNodeState().getProperty(TYPE_PROPERTY_NAME);
+            if (type != null && !type.isArray()
+                    && IndexUtils.isAsyncType(root, type.getValue(Type.STRING))) {
+                names.add(c.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Checks whether there are changes to index: the content was changed, or
+     * an index needs to be re-indexed. Changes to the index definitions are
+     * otherwise ignored, as those are mainly the changes of the previous run.
+     *
+     * @param before the checkpoint
+     * @param after the current head
+     * @param names the names of the asynchronous index definitions
+     * @return true if there are changes to index
+     */
+    private static boolean hasChanges(NodeState before, NodeState after,
+            List<String> names) {
+        NodeState definitions = after.getChildNode(INDEX_DEFINITIONS_NAME);
+        for (String name : names) {
+            PropertyState reindex = definitions.getChildNode(name).getProperty(
+                    REINDEX_PROPERTY_NAME);
+            if (reindex != null && reindex.getValue(Type.BOOLEAN)) {
+                return true;
+            }
+        }
+        ContentChanges diff = new ContentChanges();
+        after.compareAgainstBaseState(before, diff);
+        return diff.changed;
+    }
+
+    /**
+     * Detects changes of the root node, except for hidden nodes and the index
+     * definitions. It does not descend into the child nodes.
+     */
+    private static class ContentChanges implements NodeStateDiff {
+
+        boolean changed;
+
+        @Override
+        public void propertyAdded(PropertyState after) {
+            changed = true;
+        }
+
+        @Override
+        public void propertyChanged(PropertyState before, PropertyState after) {
+            changed = true;
+        }
+
+        @Override
+        public void propertyDeleted(PropertyState before) {
+            changed = true;
+        }
+
+        @Override
+        public void childNodeAdded(String name, NodeState after) {
+            childNodeChanged(name, null, after);
+        }
+
+        @Override
+        public void childNodeChanged(String name, NodeState before, NodeState after) {
+            if (!NodeStateUtils.isHidden(name)
+                    && !INDEX_DEFINITIONS_NAME.equals(name)) {
+                changed = true;
+            }
+        }
+
+        @Override
+        public void childNodeDeleted(String name, NodeState before) {
+            childNodeChanged(name, before, null);
+        }
+
+    }
+
+}
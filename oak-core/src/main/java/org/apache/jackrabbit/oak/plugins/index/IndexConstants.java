@@ -41,4 +41,36 @@ public interface IndexConstants {
      * property index definition.
      */
     String PROPERTY_NAMES = "propertyNames";
+
+    /**
+     * Marks an index that is updated asynchronously, in the background,
+     * instead of within each commit.
+     */
+    String ASYNC_PROPERTY_NAME = "async";
+
+    /**
+     * The time (in milliseconds since 1970) of the repository state up to
+     * which an asynchronous index is updated.
+     */
+    String ASYNC_CHECKPOINT_PROPERTY_NAME = "asyncCheckpoint";
+
+    /**
+     * The node store checkpoint of the repository state up to which an
+     * asynchronous index is updated.
+     *
+     * @see org.apache.jackrabbit.oak.spi.state.NodeStore#checkpoint(org.apache.jackrabbit.oak.spi.state.NodeState)
+     */
+    String ASYNC_STATE_PROPERTY_NAME = "asyncState";
+
+    /**
+     * Requests that the index is re-indexed in the background, in parallel
+     * and in multiple commits, instead of within the commit.
+     */
+    String REINDEX_PARALLEL_PROPERTY_NAME = "reindexParallel";
+
+    /**
+     * The hidden child node of an index definition that records the progress
+     * of a parallel re-index, while it is running.
+     */
+    String REINDEX_PROGRESS_NAME = ":reindex";
 }
@@ -41,12 +41,27 @@ public class IndexHookManager implements CommitHook {
 
     private final IndexHookProvider provider;
 
+    private final boolean async;
+
     public static final IndexHookManager of(IndexHookProvider provider) {
         return new IndexHookManager(provider);
     }
 
     protected IndexHookManager(IndexHookProvider provider) {
+        this(provider, false);
+    }
+
+    /**
+     * Create a manager that either updates the synchronous indexes (within
+     * the commit), or the asynchronous indexes (in the background).
+     *
+     * @param provider the index hook provider
+     * @param async whether to only update the asynchronous indexes
+     * @see AsyncIndexUpdate
+     */
+    protected IndexHookManager(IndexHookProvider provider, boolean async) {
         this.provider = provider;
+        this.async = async;
     }
 
     @Override
@@ -57,7 +72,7 @@ public class IndexHookManager implements CommitHook {
         // <type, <path, indexhook>>
         Map<String, Map<String, List<IndexHook>>> updates = new HashMap<String, Map<String, List<IndexHook>>>();
         after.compareAgainstBaseState(before, new IndexHookManagerDiff(
-                provider, builder, updates));
+                provider, builder, updates, async));
         apply(updates);
         return builder.getNodeState();
     }
@@ -40,6 +40,7 @@ import org.slf4j.LoggerFactory;
 
 import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
 import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_PROPERTY_NAME;
 import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
 import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NODE_TYPE;
 import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
@@ -52,6 +53,10 @@ import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.TYPE_UNKNOW
  * 
  * This allows for a simultaneous update of all the indexes via a single
  * traversal of the changes.
+ * <p>
+ * The index types of the root {@code oak:index} node that are marked as async
+ * (see {@link IndexUtils#isAsyncType(NodeState, String)}) are skipped, unless
+ * the diff runs in the async mode, in which case only those are updated.
  */
 class IndexHookManagerDiff implements NodeStateDiff {
 
@@ -68,6 +73,11 @@ class IndexHookManagerDiff implements NodeStateDiff {
 
     private String path;
 
+    /**
+     * Whether only the asynchronous indexes are updated.
+     */
+    private final boolean async;
+
     /**
      * <type, <path, indexhook>>
      */
@@ -76,35 +86,45 @@ class IndexHookManagerDiff implements NodeStateDiff {
     public IndexHookManagerDiff(IndexHookProvider provider, NodeBuilder root,
             Map<String, Map<String, List<IndexHook>>> updates)
             throws CommitFailedException {
-        this(provider, null, root, null, "/", updates);
+        this(provider, root, updates, false);
+    }
+
+    public IndexHookManagerDiff(IndexHookProvider provider, NodeBuilder root,
+            Map<String, Map<String, List<IndexHook>>> updates, boolean async)
+            throws CommitFailedException {
+        this(provider, null, root, null, "/", updates, async);
     }
 
     private IndexHookManagerDiff(IndexHookProvider provider,
             IndexHookManagerDiff parent, String name)
             throws CommitFailedException {
         this(provider, parent, getChildNode(parent.node, name), name, null,
-                parent.updates);
+                parent.updates, parent.async);
     }
 
     private IndexHookManagerDiff(IndexHookProvider provider,
             IndexHookManagerDiff parent, NodeBuilder node, String name,
-            String path, Map<String, Map<String, List<IndexHook>>> updates)
-            throws CommitFailedException {
+            String path, Map<String, Map<String, List<IndexHook>>> updates,
+            boolean async) throws CommitFailedException {
         this.provider = provider;
         this.parent = parent;
         this.node = node;
         this.name = name;
         this.path = path;
         this.updates = updates;
+        this.async = async;
 
         if (node != null && isIndexNodeType(node.getProperty(JCR_PRIMARYTYPE))) {
             // to prevent double-reindex we only call reindex if:
             // - the flag exists and is set to true
             // OR
             // - the flag does not exist
-            boolean reindex = node.getProperty(REINDEX_PROPERTY_NAME) == null
+            // AND
+            // - the index is not re-indexed in parallel
+            boolean reindex = (node.getProperty(REINDEX_PROPERTY_NAME) == null
                     || node.getProperty(REINDEX_PROPERTY_NAME).getValue(
-                            Type.BOOLEAN);
+                            Type.BOOLEAN))
+                    && !IndexUtils.isParallelReindex(node);
             if (reindex) {
                 node.setProperty(REINDEX_PROPERTY_NAME, true);
                 String type = TYPE_UNKNOWN;
@@ -127,6 +147,7 @@ class IndexHookManagerDiff implements NodeStateDiff {
         if (node != null && node.hasChildNode(INDEX_DEFINITIONS_NAME)) {
             Set<String> existingTypes = new HashSet<String>();
             Set<String> reindexTypes = new HashSet<String>();
+            Set<String> asyncTypes = new HashSet<String>();
 
             NodeBuilder index = node.child(INDEX_DEFINITIONS_NAME);
             for (String indexName : index.getChildNodeNames()) {
@@ -137,7 +158,8 @@ class IndexHookManagerDiff implements NodeStateDiff {
                     boolean reindex = indexChild
                             .getProperty(REINDEX_PROPERTY_NAME) != null
                             && indexChild.getProperty(REINDEX_PROPERTY_NAME)
-                                    .getValue(Type.BOOLEAN);
+                                    .getValue(Type.BOOLEAN)
+                            && !IndexUtils.isParallelReindex(indexChild);
                     String type = TYPE_UNKNOWN;
                     PropertyState typePS = indexChild
                             .getProperty(TYPE_PROPERTY_NAME);
@@ -147,9 +169,21 @@ class IndexHookManagerDiff implements NodeStateDiff {
                     if (reindex) {
                         reindexTypes.add(type);
                     }
-                    existingTypes.add(type);
+                    // only the indexes of the root node can be async
+                    if (parent == null && IndexUtils.isAsync(
+                            indexChild.getProperty(ASYNC_PROPERTY_NAME))) {
+                        asyncTypes.add(type);
+                    } else {
+                        existingTypes.add(type);
+                    }
                 }
             }
+            // if some definitions of a type are not async, all are updated
+            // synchronously
+            asyncTypes.removeAll(existingTypes);
+            if (async) {
+                existingTypes = asyncTypes;
+            }
             existingTypes.remove(TYPE_UNKNOWN);
             reindexTypes.remove(TYPE_UNKNOWN);
             for (String type : existingTypes) {
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+/**
+ * Extension point for merging the index content that was built for one part
+ * of the repository into an index. This allows to re-index the parts in
+ * parallel.
+ * 
+ * @see ParallelReindex
+ */
+public interface IndexMerger {
+
+    /**
+     * Checks whether the index content of the given type can be merged.
+     * 
+     * @param type the index type
+     * @return true if this merger supports the index type
+     */
+    boolean canMerge(String type);
+
+    /**
+     * Merge the index content of a part of the repository (a partition) into
+     * the index.
+     * <p>
+     * Besides the partition itself, the partial index content may contain
+     * entries for the ancestors of the partition. Those are indexed
+     * separately, and are not merged.
+     * 
+     * @param definition the index definition, with the index content to merge
+     *            into
+     * @param partial the index definition with the index content of the
+     *            partition
+     * @param path the path of the partition
+     * @throws CommitFailedException if the index content can not be merged,
+     *             for example because a uniqueness constraint is violated
+     */
+    void merge(NodeBuilder definition, NodeState partial, String path)
+            throws CommitFailedException;
+
+}
@@ -16,15 +16,20 @@
  */
 package org.apache.jackrabbit.oak.plugins.index;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.apache.jackrabbit.oak.util.NodeUtil;
 
+import static org.apache.jackrabbit.oak.api.Type.BOOLEAN;
 import static org.apache.jackrabbit.oak.api.Type.STRING;
 import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
 
@@ -33,6 +38,11 @@ import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
  */
 public class IndexUtils implements IndexConstants {
 
+    /**
+     * The asynchronous index types of the root node that was checked last.
+     */
+    private static volatile AsyncTypes asyncTypes;
+
     /**
      * Create a new property2 index definition below the given {@code indexNode}.
      *
@@ -100,4 +110,107 @@ public class IndexUtils implements IndexConstants {
         return new IndexDefinitionImpl(name, type, concat(path, name));
     }
 
+    /**
+     * Checks whether the given flag marks an asynchronous index.
+     *
+     * @param async the {@link #ASYNC_PROPERTY_NAME} property, or null
+     * @return true if the flag is set
+     */
+    public static boolean isAsync(PropertyState async) {
+        return async != null && !async.isArray() && async.getValue(BOOLEAN);
+    }
+
+    /**
+     * Checks whether the indexes of the given type in the {@code oak:index}
+     * node of the root are updated asynchronously. This is the case if all
+     * definitions of that type are marked as async; if only some of them are,
+     * all are updated synchronously, as the index hooks process all
+     * definitions of a type together.
+     *
+     * <p>
+     * The result is computed for all types at once, and cached for the root
+     * node that was checked last, as the query engine checks it for each
+     * index of each query.
+     *
+     * @param root the root node
+     * @param type the index type
+     * @return true if the indexes of this type are updated asynchronously
+     */
+    public static boolean isAsyncType(NodeState root, String type) {
+        AsyncTypes types = asyncTypes;
+        if (types == null || types.root.get() != root) {
+            types = new AsyncTypes(root);
+            asyncTypes = types;
+        }
+        return types.types.contains(type);
+    }
+
+    /**
+     * Checks whether the given index definition is (or is about to be)
+     * re-indexed in parallel, in which case it must not be re-indexed within
+     * a commit.
+     *
+     * @param definition the index definition
+     * @return true if a parallel re-index is requested or running
+     * @see ParallelReindex
+     */
+    public static boolean isParallelReindex(NodeBuilder definition) {
+        PropertyState parallel = definition.getProperty(REINDEX_PARALLEL_PROPERTY_NAME);
+        return definition.hasChildNode(REINDEX_PROGRESS_NAME)
+                || (parallel != null && !parallel.isArray()
+                        && parallel.getValue(BOOLEAN));
+    }
+
+    /**
+     * Checks whether the given index definition is (or is about to be)
+     * re-indexed in parallel, in which case the index content is incomplete
+     * and must not be used for queries.
+     *
+     * @param definition the index definition
+     * @return true if a parallel re-index is requested or running
+     */
+    public static boolean isParallelReindex(NodeState definition) {
+        PropertyState parallel = definition.getProperty(REINDEX_PARALLEL_PROPERTY_NAME);
+        return definition.getChildNode(REINDEX_PROGRESS_NAME) != null
+                || (parallel != null && !parallel.isArray()
+                        && parallel.getValue(BOOLEAN));
+    }
+
+    /**
+     * The asynchronous index types of a root node.
+     */
+    private static class AsyncTypes {
+
+        /**
+         * The root node, which is not kept alive by the cache.
+         */
+        final WeakReference<NodeState> root;
+
+        final Set<String> types = new HashSet<String>();
+
+        AsyncTypes(NodeState root) {
+            this.root = new WeakReference<NodeState>(root);
+            NodeState definitions = root.getChildNode(INDEX_DEFINITIONS_NAME);
+            if (definitions == null) {
+                return;
+            }
+            Set<String> sync = new HashSet<String>();
+            for (ChildNodeEntry c : definitions.getChildNodeEntries()) {
+                NodeState ns = c.getNodeState();
+                PropertyState typeProp = ns.getProperty(TYPE_PROPERTY_NAME);
+                if (typeProp == null || typeProp.isArray()) {
+                    continue;
+                }
+                String type = typeProp.getValue(STRING);
+                if (isAsync(ns.getProperty(ASYNC_PROPERTY_NAME))) {
+                    types.add(type);
+                } else {
+                    sync.add(type);
+                }
+            }
+            types.removeAll(sync);
+        }
+
+    }
+
 }
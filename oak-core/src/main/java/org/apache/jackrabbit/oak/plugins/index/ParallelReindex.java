@@ -0,0 +1,619 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index;
+
+import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
+import static org.apache.jackrabbit.oak.commons.PathUtils.denotesRoot;
+import static org.apache.jackrabbit.oak.commons.PathUtils.elements;
+import static org.apache.jackrabbit.oak.commons.PathUtils.getName;
+import static org.apache.jackrabbit.oak.commons.PathUtils.getParentPath;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PARALLEL_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROGRESS_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.TYPE_PROPERTY_NAME;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeState;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-indexes an index of the root {@code oak:index} node in parallel, and in
+ * multiple commits, instead of within one commit.
+ * <p>
+ * The repository is split into partitions: the subtrees at a given depth,
+ * and each node above that depth (without its child nodes). The index
+ * content of each partition is built by a pool of threads, using the index
+ * hooks on a private copy of the index. The partial index content is then
+ * merged into the index by an {@link IndexMerger}, and the changes that
+ * were made to the partition in the meantime are applied, so that each
+ * commit leaves the partition consistent. Changes made after that are
+ * indexed by the commits, as usual. While the re-index is running, the index
+ * is not used for queries.
+ * <p>
+ * The completed partitions are recorded in the {@code :reindex} child node
+ * of the index definition, so that a re-index that was interrupted (for
+ * example by a crash) resumes where it left off.
+ * <p>
+ * A re-index is requested by setting the {@code reindexParallel} property
+ * of the index definition. The task is meant to be run periodically in the
+ * background; it also resumes the interrupted re-index operations.
+ */
+public class ParallelReindex implements Runnable {
+
+    /**
+     * The system property for the number of threads.
+     */
+    public static final String THREADS = "oak.reindexThreads";
+
+    /**
+     * The system property for the depth of the partitions.
+     */
+    public static final String PARTITION_DEPTH = "oak.reindexPartitionDepth";
+
+    /**
+     * The system property for the delay between two runs, in milliseconds.
+     */
+    public static final String DELAY = "oak.reindexDelay";
+
+    /**
+     * The maximum number of partitions to merge in one commit.
+     */
+    private static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * The number of times a commit is retried if it failed, for example
+     * because of a conflict with a concurrent commit.
+     */
+    private static final int MAX_RETRIES = 10;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelReindex.class);
+
+    private final NodeStore store;
+
+    private final IndexHookProvider provider;
+
+    private final List<IndexMerger> mergers;
+
+    private final int threads;
+
+    private final int depth;
+
+    private volatile int partitionCount;
+
+    private volatile int completedCount;
+
+    public ParallelReindex(NodeStore store, IndexHookProvider provider,
+            List<IndexMerger> mergers) {
+        this(store, provider, mergers,
+                Integer.getInteger(THREADS, Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(PARTITION_DEPTH, 2));
+    }
+
+    ParallelReindex(NodeStore store, IndexHookProvider provider,
+            List<IndexMerger> mergers, int threads, int depth) {
+        this.store = store;
+        this.provider = provider;
+        this.mergers = mergers;
+        this.threads = Math.max(1, threads);
+        this.depth = Math.max(1, depth);
+    }
+
+    /**
+     * Get the configured delay between two runs.
+     *
+     * @return the delay in milliseconds
+     */
+    public static long getDelay() {
+        return Long.getLong(DELAY, 60 * 1000);
+    }
+
+    /**
+     * Get the number of partitions of the running (or last) re-index
+     * operation, not counting the partitions that were completed before it
+     * was resumed.
+     *
+     * @return the number of partitions
+     */
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    /**
+     * Get the number of partitions of the running (or last) re-index
+     * operation that are completed.
+     *
+     * @return the number of completed partitions
+     */
+    public int getCompletedCount() {
+        return completedCount;
+    }
+
+    @Override
+    public void run() {
+        NodeState definitions = store.getRoot().getChildNode(INDEX_DEFINITIONS_NAME);
+        if (definitions == null) {
+            return;
+        }
+        for (ChildNodeEntry entry : definitions.getChildNodeEntries()) {
+            if (IndexUtils.isParallelReindex(entry.getNodeState().builder())) {
+                try {
+                    reindex(entry.getName());
+                } catch (CommitFailedException e) {
+                    // will be retried in the next run
+                    LOG.warn("Could not re-index " + entry.getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-index the given index, or resume the re-index operation if it was
+     * interrupted.
+     *
+     * @param name the name of the index definition in the root
+     *            {@code oak:index} node
+     * @throws CommitFailedException if the index could not be re-indexed
+     */
+    public synchronized void reindex(String name) throws CommitFailedException {
+        NodeState definition = getDefinition(store.getRoot(), name);
+        String type = getType(definition);
+        IndexMerger merger = null;
+        for (IndexMerger m : mergers) {
+            if (m.canMerge(type)) {
+                merger = m;
+                break;
+            }
+        }
+        if (merger == null) {
+            throw new CommitFailedException(
+                    "Can not re-index " + name + " in parallel: unsupported index type " + type);
+        }
+        NodeState root;
+        if (definition.hasChildNode(REINDEX_PROGRESS_NAME)) {
+            LOG.info("Resuming the re-index of {}", name);
+            root = store.getRoot();
+        } else {
+            LOG.info("Starting the re-index of {}", name);
+            root = start(name);
+        }
+        NodeState progress = getDefinition(root, name).getChildNode(REINDEX_PROGRESS_NAME);
+        List<Partition> partitions = new ArrayList<Partition>();
+        collect(root, "/", 0, progress, partitions);
+        partitionCount = partitions.size();
+        completedCount = 0;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CompletionService<Partition> completion =
+                    new ExecutorCompletionService<Partition>(executor);
+            Iterator<Partition> it = partitions.iterator();
+            // limit the number of partial indexes that are kept in memory
+            int running = 0;
+            while (running < 2 * threads && it.hasNext()) {
+                completion.submit(new PartitionBuilder(root, name, type, it.next()));
+                running++;
+            }
+            int remaining = partitions.size();
+            while (remaining > 0) {
+                List<Partition> batch = new ArrayList<Partition>();
+                batch.add(get(completion.take()));
+                Future<Partition> f;
+                while (batch.size() < MAX_BATCH_SIZE
+                        && (f = completion.poll()) != null) {
+                    batch.add(get(f));
+                }
+                running -= batch.size();
+                remaining -= batch.size();
+                while (running < 2 * threads && it.hasNext()) {
+                    completion.submit(new PartitionBuilder(root, name, type, it.next()));
+                    running++;
+                }
+                commit(name, type, merger, batch, remaining == 0);
+                completedCount += batch.size();
+                LOG.info("Re-indexing {}: {} of {} partitions completed",
+                        new Object[] { name, completedCount, partitionCount });
+            }
+            if (partitions.isEmpty()) {
+                commit(name, type, merger, partitions, true);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommitFailedException("Re-index of " + name + " interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        LOG.info("Re-index of {} completed", name);
+    }
+
+    private static NodeState getDefinition(NodeState root, String name)
+            throws CommitFailedException {
+        NodeState definitions = root.getChildNode(INDEX_DEFINITIONS_NAME);
+        NodeState definition = definitions == null ? null : definitions.getChildNode(name);
+        if (definition == null) {
+            throw new CommitFailedException("Index definition " + name + " not found");
+        }
+        return definition;
+    }
+
+    private static String getType(NodeState definition) {
+        PropertyState type = definition.getProperty(TYPE_PROPERTY_NAME);
+        if (type == null || type.isArray()) {
+            return IndexConstants.TYPE_UNKNOWN;
+        }
+        return type.getValue(Type.STRING);
+    }
+
+    private static Partition get(Future<Partition> f) throws CommitFailedException,
+            InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CommitFailedException) {
+                throw (CommitFailedException) cause;
+            }
+            throw new CommitFailedException("Could not re-index a partition", cause);
+        }
+    }
+
+    /**
+     * Remove the index content, and mark the re-index operation as running.
+     *
+     * @param name the name of the index definition
+     * @return the new root
+     */
+    private NodeState start(String name) throws CommitFailedException {
+        NodeStoreBranch branch = store.branch();
+        NodeBuilder builder = branch.getRoot().builder();
+        NodeBuilder definition = builder.child(INDEX_DEFINITIONS_NAME).child(name);
+        removeHiddenNodes(definition);
+        definition.child(REINDEX_PROGRESS_NAME);
+        definition.removeProperty(REINDEX_PARALLEL_PROPERTY_NAME);
+        definition.setProperty(REINDEX_PROPERTY_NAME, false);
+        branch.setRoot(builder.getNodeState());
+        return branch.merge();
+    }
+
+    private static void removeHiddenNodes(NodeBuilder builder) {
+        List<String> hidden = new ArrayList<String>();
+        for (String n : builder.getChildNodeNames()) {
+            if (NodeStateUtils.isHidden(n)) {
+                hidden.add(n);
+            }
+        }
+        for (String n : hidden) {
+            builder.removeNode(n);
+        }
+    }
+
+    /**
+     * Remove the definitions of the other indexes of the given type, so that
+     * the index hooks only update the given index.
+     */
+    private static void removeOtherDefinitions(NodeBuilder builder,
+            String name, String type) {
+        NodeBuilder definitions = builder.child(INDEX_DEFINITIONS_NAME);
+        List<String> others = new ArrayList<String>();
+        for (String n : definitions.getChildNodeNames()) {
+            if (!n.equals(name) && type.equals(getType(
+                    definitions.child(n).getNodeState()))) {
+                others.add(n);
+            }
+        }
+        for (String n : others) {
+            definitions.removeNode(n);
+        }
+    }
+
+    /**
+     * Split the repository into partitions, skipping the completed ones.
+     */
+    private void collect(NodeState node, String path, int level,
+            NodeState progress, List<Partition> partitions) {
+        boolean done = progress != null && progress.getProperty("done") != null;
+        if (level == depth) {
+            if (!done) {
+                partitions.add(new Partition(path, true));
+            }
+            return;
+        }
+        if (!done) {
+            partitions.add(new Partition(path, false));
+        }
+        for (ChildNodeEntry entry : node.getChildNodeEntries()) {
+            String name = entry.getName();
+            if (NodeStateUtils.isHidden(name)) {
+                continue;
+            }
+            collect(entry.getNodeState(), concat(path, name), level + 1,
+                    progress == null ? null : progress.getChildNode(name),
+                    partitions);
+        }
+    }
+
+    /**
+     * Merge the index content of the given partitions into the index, and
+     * apply the changes of the partitions since their index content was
+     * built.
+     */
+    private void commit(String name, String type, IndexMerger merger,
+            List<Partition> batch, boolean last) throws CommitFailedException {
+        CommitFailedException failure = null;
+        for (int i = 0; i < MAX_RETRIES; i++) {
+            NodeStoreBranch branch = store.branch();
+            NodeState root = branch.getRoot();
+            // the changes are only applied to this index, in a separate
+            // builder without the other indexes of the same type
+            NodeBuilder index = root.builder();
+            removeOtherDefinitions(index, name, type);
+            NodeBuilder definition = index.child(INDEX_DEFINITIONS_NAME).child(name);
+            if (!definition.hasChildNode(REINDEX_PROGRESS_NAME)) {
+                throw new CommitFailedException("Re-index of " + name + " was cancelled");
+            }
+            NodeBuilder progress = definition.child(REINDEX_PROGRESS_NAME);
+            List<? extends IndexHook> hooks = provider.getIndexHooks(type, index);
+            try {
+                for (Partition p : batch) {
+                    merger.merge(definition, p.index, p.path);
+                    for (IndexHook hook : hooks) {
+                        update(hook, p, root);
+                    }
+                    NodeBuilder n = progress;
+                    for (String e : elements(p.path)) {
+                        n = n.child(e);
+                    }
+                    n.setProperty("done", true);
+                }
+                for (IndexHook hook : hooks) {
+                    hook.apply();
+                }
+            } finally {
+                close(hooks);
+            }
+            if (last) {
+                definition.removeNode(REINDEX_PROGRESS_NAME);
+            }
+            NodeBuilder builder = root.builder();
+            builder.child(INDEX_DEFINITIONS_NAME).setNode(
+                    name, definition.getNodeState());
+            branch.setRoot(builder.getNodeState());
+            try {
+                branch.merge();
+                return;
+            } catch (CommitFailedException e) {
+                LOG.debug("Merging the partitions failed, retrying", e);
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Apply the changes of the partition, from the state the partial index
+     * content was built from, to the given root.
+     */
+    private static void update(IndexHook hook, Partition p, NodeState root) {
+        if (denotesRoot(p.path)) {
+            root.compareAgainstBaseState(p.root, new PropertyDiff(hook));
+            return;
+        }
+        IndexHook parent = hook;
+        for (String e : elements(getParentPath(p.path))) {
+            parent = parent.child(e);
+        }
+        String name = getName(p.path);
+        NodeState before = getNode(p.root, p.path);
+        NodeState after = getNode(root, p.path);
+        if (before == null && after == null) {
+            return;
+        } else if (after == null) {
+            // also removes the entries of the other partitions below
+            // this node, which are removed as well
+            parent.childNodeDeleted(name, before);
+        } else if (p.subtree) {
+            if (before == null) {
+                parent.childNodeAdded(name, after);
+            } else {
+                parent.childNodeChanged(name, before, after);
+            }
+        } else {
+            if (before == null) {
+                before = MemoryNodeState.EMPTY_NODE;
+            }
+            after.compareAgainstBaseState(before, new PropertyDiff(parent.child(name)));
+        }
+    }
+
+    private static NodeState getNode(NodeState root, String path) {
+        NodeState node = root;
+        for (String e : elements(path)) {
+            node = node.getChildNode(e);
+            if (node == null) {
+                break;
+            }
+        }
+        return node;
+    }
+
+    private static void close(List<? extends IndexHook> hooks)
+            throws CommitFailedException {
+        for (IndexHook hook : hooks) {
+            try {
+                hook.close();
+            } catch (IOException e) {
+                throw new CommitFailedException(
+                        "Failed to close the index hook", e);
+            }
+        }
+    }
+
+    /**
+     * A partition of the repository: either a subtree, or a single node
+     * without its child nodes.
+     */
+    private static class Partition {
+
+        final String path;
+
+        final boolean subtree;
+
+        /**
+         * The root the index content was built from.
+         */
+        NodeState root;
+
+        /**
+         * The index definition with the index content of this partition.
+         */
+        NodeState index;
+
+        Partition(String path, boolean subtree) {
+            this.path = path;
+            this.subtree = subtree;
+        }
+
+    }
+
+    /**
+     * Builds the index content of a partition.
+     */
+    private class PartitionBuilder implements Callable<Partition> {
+
+        private final NodeState root;
+
+        private final String name;
+
+        private final String type;
+
+        private final Partition partition;
+
+        PartitionBuilder(NodeState root, String name, String type,
+                Partition partition) {
+            this.root = root;
+            this.name = name;
+            this.type = type;
+            this.partition = partition;
+        }
+
+        @Override
+        public Partition call() throws CommitFailedException {
+            NodeBuilder builder = root.builder();
+            // only build the content of this index
+            removeOtherDefinitions(builder, name, type);
+            removeHiddenNodes(builder.child(INDEX_DEFINITIONS_NAME).child(name));
+
+            String path = partition.path;
+            List<? extends IndexHook> hooks = provider.getIndexHooks(type, builder);
+            try {
+                for (IndexHook hook : hooks) {
+                    IndexHook h = hook;
+                    if (!denotesRoot(path)) {
+                        for (String e : elements(getParentPath(path))) {
+                            h = h.child(e);
+                        }
+                    }
+                    NodeState node = getNode(root, path);
+                    if (partition.subtree) {
+                        h.childNodeAdded(getName(path), node);
+                    } else {
+                        if (!denotesRoot(path)) {
+                            h = h.child(getName(path));
+                        }
+                        for (PropertyState property : node.getProperties()) {
+                            h.propertyAdded(property);
+                        }
+                    }
+                    hook.apply();
+                }
+            } finally {
+                close(hooks);
+            }
+            partition.root = root;
+            partition.index = builder.child(INDEX_DEFINITIONS_NAME).child(name).getNodeState();
+            return partition;
+        }
+
+    }
+
+    /**
+     * Forwards the property changes of a node to an index hook, but not the
+     * changes of the child nodes.
+     */
+    private static class PropertyDiff implements NodeStateDiff {
+
+        private final IndexHook hook;
+
+        PropertyDiff(IndexHook hook) {
+            this.hook = hook;
+        }
+
+        @Override
+        public void propertyAdded(PropertyState after) {
+            hook.propertyAdded(after);
+        }
+
+        @Override
+        public void propertyChanged(PropertyState before, PropertyState after) {
+            hook.propertyChanged(before, after);
+        }
+
+        @Override
+        public void propertyDeleted(PropertyState before) {
+            hook.propertyDeleted(before);
+        }
+
+        @Override
+        public void childNodeAdded(String name, NodeState after) {
+            // separate partitions
+        }
+
+        @Override
+        public void childNodeChanged(String name, NodeState before, NodeState after) {
+            // separate partitions
+        }
+
+        @Override
+        public void childNodeDeleted(String name, NodeState before) {
+            // separate partitions
+        }
+
+    }
+
+}
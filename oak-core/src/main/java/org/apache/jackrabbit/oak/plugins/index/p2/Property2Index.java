@@ -23,6 +23,7 @@ import java.util.List;
 
 import org.apache.jackrabbit.oak.api.PropertyValue;
 import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.index.IndexUtils;
 import org.apache.jackrabbit.oak.spi.query.Cursor;
 import org.apache.jackrabbit.oak.spi.query.Cursors;
 import org.apache.jackrabbit.oak.spi.query.Filter;
@@ -107,6 +108,11 @@ class Property2Index implements QueryIndex {
 
     @Override
     public double getCost(Filter filter, NodeState root) {
+        if (!filter.isEventualConsistencyAllowed()
+                && IndexUtils.isAsyncType(root, TYPE)) {
+            // the index may not reflect the most recent changes
+            return Double.POSITIVE_INFINITY;
+        }
         Property2IndexLookup lookup = new Property2IndexLookup(root);
         for (PropertyRestriction pr : filter.getPropertyRestrictions()) {
             // TODO support indexes on a path
@@ -28,6 +28,7 @@ import org.apache.jackrabbit.oak.api.PropertyValue;
 import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.plugins.index.IndexConstants;
+import org.apache.jackrabbit.oak.plugins.index.IndexUtils;
 import org.apache.jackrabbit.oak.plugins.index.p2.strategy.ContentMirrorStoreStrategy;
 import org.apache.jackrabbit.oak.plugins.index.p2.strategy.IndexStoreStrategy;
 import org.apache.jackrabbit.oak.spi.query.Filter;
@@ -132,6 +133,10 @@ public class Property2IndexLookup {
                     for (int i = 0; i < names.count(); i++) {
                         if (name.equals(names.getValue(Type.STRING, i))) {
                             NodeState indexDef = entry.getNodeState();
+                            if (IndexUtils.isParallelReindex(indexDef)) {
+                                // incomplete
+                                continue;
+                            }
                             NodeState index = indexDef.getChildNode(":index");
                             if (index != null) {
                                 return index;
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index.p2;
+
+import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.UNIQUE;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.index.IndexMerger;
+import org.apache.jackrabbit.oak.plugins.index.p2.strategy.ContentMirrorStoreStrategy;
+import org.apache.jackrabbit.oak.plugins.index.p2.strategy.IndexStoreStrategy;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+/**
+ * Merges the content of a {@link Property2Index} that was built for a part of
+ * the repository. The paths of each key are inserted into the index, so that
+ * the statistics and the uniqueness constraint are maintained.
+ */
+@Component
+@Service(IndexMerger.class)
+public class Property2IndexMerger implements IndexMerger {
+
+    private final IndexStoreStrategy store = new ContentMirrorStoreStrategy();
+
+    @Override
+    public boolean canMerge(String type) {
+        return Property2Index.TYPE.equals(type);
+    }
+
+    @Override
+    public void merge(NodeBuilder definition, NodeState partial, String path)
+            throws CommitFailedException {
+        NodeState source = partial.getChildNode(":index");
+        if (source == null) {
+            return;
+        }
+        PropertyState unique = definition.getProperty(UNIQUE);
+        boolean isUnique = unique != null && unique.getValue(Type.BOOLEAN);
+        NodeBuilder index = definition.child(":index");
+        for (ChildNodeEntry entry : source.getChildNodeEntries()) {
+            List<String> paths = new ArrayList<String>();
+            collect(entry.getNodeState(), "", paths);
+            store.insert(index, entry.getName(), isUnique, paths);
+        }
+    }
+
+    /**
+     * Collect the paths of the matching nodes in the index content.
+     */
+    private static void collect(NodeState node, String path, List<String> paths) {
+        if (node.getProperty("match") != null) {
+            paths.add(path);
+        }
+        for (ChildNodeEntry entry : node.getChildNodeEntries()) {
+            collect(entry.getNodeState(), concat(path, entry.getName()), paths);
+        }
+    }
+
+}
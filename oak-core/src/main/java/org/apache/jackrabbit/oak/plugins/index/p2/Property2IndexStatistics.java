@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index.p2;
+
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.TYPE_PROPERTY_NAME;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.index.p2.strategy.ContentMirrorStoreStrategy;
+import org.apache.jackrabbit.oak.plugins.index.p2.strategy.IndexStoreStrategy;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A task that maintains the statistics of the property indexes, which are not
+ * updated by the commits themselves. It is meant to be run periodically in
+ * the background.
+ * <p>
+ * The statistics are calculated from the changes of the index since the last
+ * run. For this, the index content of the last run is kept, together with the
+ * statistics calculated for it. On the first run, the stored statistics are
+ * used as they are, and only the missing statistics are calculated by
+ * counting all entries.
+ * <p>
+ * Currently, only the indexes on the root node are refreshed, as those are
+ * the only ones used for queries.
+ */
+public class Property2IndexStatistics implements Runnable {
+
+    /**
+     * The system property for the delay between two runs, in milliseconds.
+     */
+    public static final String REFRESH_DELAY = "oak.indexStatisticsRefreshDelay";
+
+    private static final Logger LOG = LoggerFactory.getLogger(Property2IndexStatistics.class);
+
+    private final IndexStoreStrategy store = new ContentMirrorStoreStrategy();
+
+    private final NodeStore nodeStore;
+
+    /**
+     * The index content of the last run, with the calculated statistics, by
+     * index name.
+     */
+    private final Map<String, NodeState> previous = new HashMap<String, NodeState>();
+
+    public Property2IndexStatistics(NodeStore nodeStore) {
+        this.nodeStore = nodeStore;
+    }
+
+    /**
+     * Get the configured delay between two runs.
+     *
+     * @return the delay in milliseconds
+     */
+    public static long getRefreshDelay() {
+        return Long.getLong(REFRESH_DELAY, 60 * 1000);
+    }
+
+    @Override
+    public synchronized void run() {
+        NodeStoreBranch branch = nodeStore.branch();
+        NodeBuilder builder = branch.getRoot().builder();
+        if (refresh(builder)) {
+            branch.setRoot(builder.getNodeState());
+            try {
+                branch.merge();
+            } catch (CommitFailedException e) {
+                // will be retried in the next run
+                LOG.warn("Could not refresh the index statistics", e);
+            }
+        }
+    }
+
+    /**
+     * Update the statistics of the property indexes.
+     *
+     * @param root the root node
+     * @return true if any statistics were changed
+     */
+    synchronized boolean refresh(NodeBuilder root) {
+        if (!root.hasChildNode(INDEX_DEFINITIONS_NAME)) {
+            previous.clear();
+            return false;
+        }
+        NodeBuilder definitions = root.child(INDEX_DEFINITIONS_NAME);
+        boolean changed = false;
+        Set<String> names = new HashSet<String>();
+        for (String name : definitions.getChildNodeNames()) {
+            NodeBuilder definition = definitions.child(name);
+            PropertyState type = definition.getProperty(TYPE_PROPERTY_NAME);
+            if (type == null || type.isArray()
+                    || !Property2Index.TYPE.equals(type.getValue(Type.STRING))
+                    || !definition.hasChildNode(":index")) {
+                continue;
+            }
+            NodeBuilder index = definition.child(":index");
+            if (store.updateStatistics(index, previous.get(name))) {
+                LOG.debug("Updated the statistics of index {}", name);
+                changed = true;
+            }
+            previous.put(name, index.getNodeState());
+            names.add(name);
+        }
+        // forget the removed indexes
+        previous.keySet().retainAll(names);
+        return changed;
+    }
+
+}
@@ -16,14 +16,18 @@
  */
 package org.apache.jackrabbit.oak.plugins.index.p2.strategy;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
+import javax.annotation.Nullable;
+
 import org.apache.jackrabbit.oak.api.CommitFailedException;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Type;
@@ -33,6 +37,7 @@ import org.apache.jackrabbit.oak.spi.query.Filter;
 import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
 import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,12 +47,47 @@ import com.google.common.collect.Queues;
 import com.google.common.collect.Sets;
 
 /**
- * TODO document
+ * An index store strategy that mirrors the content structure: for each
+ * indexed value (the key), the paths of the matching nodes are stored as
+ * child nodes of the key node, where a matching node has the property
+ * "match" set.
+ * <p>
+ * The statistics of the index are stored in the hidden child node
+ * ":statistics" of the index node: the total number of entries in the
+ * property "entryCount", and the number of matches of the keys with many
+ * matches as properties of the child node "keys". The statistics are not
+ * changed by the commits that add or remove entries, as concurrent commits
+ * would then conflict on them; instead, they are calculated in the
+ * background by {@link #updateStatistics(NodeBuilder, NodeState)}, from the
+ * changes since the last calculation.
  */
 public class ContentMirrorStoreStrategy implements IndexStoreStrategy {
 
     static final Logger LOG = LoggerFactory.getLogger(ContentMirrorStoreStrategy.class);
 
+    /**
+     * The hidden child node of the index node that contains the statistics.
+     */
+    public static final String STATISTICS = ":statistics";
+
+    /**
+     * The property of the statistics node that contains the total number of
+     * entries.
+     */
+    public static final String ENTRY_COUNT = "entryCount";
+
+    /**
+     * The child node of the statistics node that contains the number of
+     * matches of the keys with many matches.
+     */
+    public static final String KEY_COUNTS = "keys";
+
+    /**
+     * The number of matches from which on the count of a key is stored. The
+     * matches of the other keys are cheap to count when needed.
+     */
+    static final long MIN_KEY_COUNT = 100;
+
     @Override
     public void remove(NodeBuilder index, String key, Iterable<String> values) {
         if (!index.hasChildNode(key)) {
@@ -136,6 +176,82 @@ public class ContentMirrorStoreStrategy implements IndexStoreStrategy {
         }
     }
     
+    @Override
+    public boolean updateStatistics(NodeBuilder index, @Nullable NodeState before) {
+        NodeState after = index.getNodeState();
+        NodeState old = after.getChildNode(STATISTICS);
+        NodeState statistics = before == null ? null : before.getChildNode(STATISTICS);
+        if (before == null && old != null) {
+            // the last calculated statistics are used as they are
+            return false;
+        }
+        long total = 0;
+        Map<String, Long> keys = new HashMap<String, Long>();
+        if (statistics == null) {
+            for (ChildNodeEntry entry : after.getChildNodeEntries()) {
+                String key = entry.getName();
+                if (!NodeStateUtils.isHidden(key)) {
+                    long count = countAll(entry.getNodeState());
+                    if (count >= MIN_KEY_COUNT) {
+                        keys.put(key, count);
+                    }
+                    total += count;
+                }
+            }
+        } else {
+            readStatistics(statistics, keys);
+            StatisticsDiff diff = new StatisticsDiff(keys);
+            after.compareAgainstBaseState(before, diff);
+            total = getEntryCount(statistics) + diff.delta;
+        }
+        if (old != null && getEntryCount(old) == total) {
+            Map<String, Long> oldKeys = new HashMap<String, Long>();
+            readStatistics(old, oldKeys);
+            if (oldKeys.equals(keys)) {
+                return false;
+            }
+        }
+        NodeBuilder builder = index.child(STATISTICS);
+        builder.setProperty(ENTRY_COUNT, Math.max(0, total));
+        NodeBuilder keyCounts = builder.child(KEY_COUNTS);
+        List<String> removed = new ArrayList<String>();
+        for (PropertyState p : keyCounts.getProperties()) {
+            if (!keys.containsKey(p.getName())) {
+                removed.add(p.getName());
+            }
+        }
+        for (String name : removed) {
+            keyCounts.removeProperty(name);
+        }
+        for (Map.Entry<String, Long> e : keys.entrySet()) {
+            PropertyState p = keyCounts.getProperty(e.getKey());
+            if (p == null || p.getValue(Type.LONG) != e.getValue().longValue()) {
+                keyCounts.setProperty(e.getKey(), e.getValue());
+            }
+        }
+        return true;
+    }
+
+    private static long getEntryCount(NodeState statistics) {
+        PropertyState p = statistics.getProperty(ENTRY_COUNT);
+        return p == null ? 0 : p.getValue(Type.LONG);
+    }
+
+    private static void readStatistics(NodeState statistics, Map<String, Long> keys) {
+        NodeState keyCounts = statistics.getChildNode(KEY_COUNTS);
+        if (keyCounts != null) {
+            for (PropertyState p : keyCounts.getProperties()) {
+                keys.put(p.getName(), p.getValue(Type.LONG));
+            }
+        }
+    }
+
+    private static long countAll(NodeState state) {
+        CountingNodeVisitor v = new CountingNodeVisitor(Integer.MAX_VALUE);
+        v.visit(state);
+        return v.getCount();
+    }
+
     @Override
     public Iterable<String> query(final Filter filter, final String indexName, 
             final NodeState index, final Iterable<String> values) {
@@ -164,11 +280,18 @@ public class ContentMirrorStoreStrategy implements IndexStoreStrategy {
     @Override
     public int count(NodeState index, List<String> values, int max) {
         int count = 0;
+        NodeState statistics = index.getChildNode(STATISTICS);
         if (values == null) {
+            if (statistics != null) {
+                return (int) Math.min(getEntryCount(statistics),
+                        Integer.MAX_VALUE);
+            }
             CountingNodeVisitor v = new CountingNodeVisitor(max);
             v.visit(index);
             count = v.getEstimatedCount();
         } else {
+            NodeState keyCounts = statistics == null ? null
+                    : statistics.getChildNode(KEY_COUNTS);
             int size = values.size();
             if (size == 0) {
                 return 0;
@@ -180,11 +303,18 @@ public class ContentMirrorStoreStrategy implements IndexStoreStrategy {
                     count = count / size / i;
                     break;
                 }
-                NodeState s = index.getChildNode(p);
-                if (s != null) {
-                    CountingNodeVisitor v = new CountingNodeVisitor(max);
-                    v.visit(s);
-                    count += v.getEstimatedCount();
+                PropertyState c = keyCounts == null ? null
+                        : keyCounts.getProperty(p);
+                if (c != null) {
+                    count = (int) Math.min((long) count
+                            + c.getValue(Type.LONG), Integer.MAX_VALUE);
+                } else {
+                    NodeState s = index.getChildNode(p);
+                    if (s != null) {
+                        CountingNodeVisitor v = new CountingNodeVisitor(max);
+                        v.visit(s);
+                        count += v.getEstimatedCount();
+                    }
                 }
                 i++;
             }
@@ -318,6 +448,124 @@ public class ContentMirrorStoreStrategy implements IndexStoreStrategy {
         void visit(NodeState state);
     }
     
+    /**
+     * Calculates the number of added and removed entries of an index, and
+     * updates the counts of the keys with many matches.
+     */
+    static class StatisticsDiff extends EntryDiff {
+
+        private final Map<String, Long> keys;
+
+        StatisticsDiff(Map<String, Long> keys) {
+            this.keys = keys;
+        }
+
+        @Override
+        public void propertyAdded(PropertyState after) {
+            // not an entry
+        }
+
+        @Override
+        public void propertyDeleted(PropertyState before) {
+            // not an entry
+        }
+
+        @Override
+        public void childNodeAdded(String name, NodeState after) {
+            if (NodeStateUtils.isHidden(name)) {
+                return;
+            }
+            long count = countAll(after);
+            if (count >= MIN_KEY_COUNT) {
+                keys.put(name, count);
+            }
+            delta += count;
+        }
+
+        @Override
+        public void childNodeChanged(String name, NodeState before,
+                NodeState after) {
+            if (NodeStateUtils.isHidden(name)) {
+                return;
+            }
+            EntryDiff diff = new EntryDiff();
+            after.compareAgainstBaseState(before, diff);
+            delta += diff.delta;
+            Long old = keys.get(name);
+            long count;
+            if (old != null) {
+                count = old + diff.delta;
+            } else if (diff.delta > 0) {
+                // may now have many matches
+                count = countAll(after);
+            } else {
+                return;
+            }
+            if (count >= MIN_KEY_COUNT) {
+                keys.put(name, count);
+            } else {
+                keys.remove(name);
+            }
+        }
+
+        @Override
+        public void childNodeDeleted(String name, NodeState before) {
+            if (NodeStateUtils.isHidden(name)) {
+                return;
+            }
+            Long old = keys.remove(name);
+            delta -= old != null ? old : countAll(before);
+        }
+
+    }
+
+    /**
+     * Calculates the number of added and removed entries below a node.
+     */
+    static class EntryDiff implements NodeStateDiff {
+
+        /**
+         * The number of added entries, minus the number of removed entries.
+         */
+        long delta;
+
+        @Override
+        public void propertyAdded(PropertyState after) {
+            if ("match".equals(after.getName())) {
+                delta++;
+            }
+        }
+
+        @Override
+        public void propertyChanged(PropertyState before, PropertyState after) {
+            // still an entry
+        }
+
+        @Override
+        public void propertyDeleted(PropertyState before) {
+            if ("match".equals(before.getName())) {
+                delta--;
+            }
+        }
+
+        @Override
+        public void childNodeAdded(String name, NodeState after) {
+            delta += countAll(after);
+        }
+
+        @Override
+        public void childNodeChanged(String name, NodeState before,
+                NodeState after) {
+            after.compareAgainstBaseState(before, this);
+        }
+
+        @Override
+        public void childNodeDeleted(String name, NodeState before) {
+            delta -= countAll(before);
+        }
+
+    }
+
     /**
      * A node visitor that counts the number of matching nodes up to a given
      * maximum, in order to estimate the number of matches.
@@ -18,6 +18,8 @@ package org.apache.jackrabbit.oak.plugins.index.p2.strategy;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import org.apache.jackrabbit.oak.api.CommitFailedException;
 import org.apache.jackrabbit.oak.spi.query.Filter;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
@@ -75,4 +77,18 @@ public interface IndexStoreStrategy {
      */
     int count(NodeState index, List<String> values, int max);
 
+    /**
+     * Update the statistics that are used to calculate the cost. They are
+     * not changed when entries are added or removed, so that concurrent
+     * commits don't conflict on them, but only by this method, which is
+     * meant to be called in the background.
+     *
+     * @param index the index node
+     * @param before a previous state of the index node, with the statistics
+     *            that were calculated for it, or null if unknown, in which
+     *            case the statistics are only calculated if they are missing
+     * @return true if the statistics were changed
+     */
+    boolean updateStatistics(NodeBuilder index, @Nullable NodeState before);
+
 }
@@ -16,6 +16,8 @@
  */
 package org.apache.jackrabbit.oak.plugins.memory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -23,6 +25,8 @@ import java.util.Map.Entry;
 import javax.annotation.Nonnull;
 
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.spi.state.AbstractNodeState;
@@ -468,6 +472,23 @@ public class MemoryNodeBuilder implements NodeBuilder {
         return builder;
     }
 
+    /**
+     * Create a {@link Blob} from the given input stream. The root builder
+     * decides where the content is stored; by default, it is kept in
+     * memory.
+     */
+    @Override
+    public Blob createBlob(InputStream inputStream) throws IOException {
+        if (root != this) {
+            return root.createBlob(inputStream);
+        }
+        try {
+            return new ArrayBasedBlob(ByteStreams.toByteArray(inputStream));
+        } finally {
+            inputStream.close();
+        }
+    }
+
     /**
      * The <em>mutable</em> state being built. Instances of this class
      * are never passed beyond the containing {@code MemoryNodeBuilder},
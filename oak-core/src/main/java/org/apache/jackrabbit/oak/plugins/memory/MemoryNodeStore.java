@@ -58,6 +58,20 @@ public class MemoryNodeStore implements NodeStore {
         }
     }
 
+    /**
+     * The states of this store are not persisted, so there are no
+     * checkpoints.
+     */
+    @Override
+    public String checkpoint(NodeState root) {
+        return null;
+    }
+
+    @Override
+    public NodeState retrieve(String checkpoint) {
+        return null;
+    }
+
     private class MemoryNodeStoreBranch implements NodeStoreBranch {
 
         private final NodeState base;
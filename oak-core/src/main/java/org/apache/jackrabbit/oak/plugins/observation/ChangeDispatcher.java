@@ -0,0 +1,493 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.observation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.plugins.observation.ChangeProcessor.EventGeneratingNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches the content changes of a repository to the registered event
+ * listeners. There is one dispatcher per repository, which is the
+ * {@link Observer} of the node store: the changes of each commit are
+ * compared once, and the events are generated for all listeners while
+ * comparing. The listeners are indexed by the path of their filter, so
+ * that only the listeners for a changed subtree are involved in comparing
+ * it. The events are delivered by the {@link ChangeProcessor} of each
+ * listener.
+ * <p>
+ * The node store notifies the dispatcher while holding its lock, so the
+ * dispatcher only records the new revision there. The changes are compared
+ * and queued for the listeners by a task of the executor the dispatcher was
+ * started with, one revision after the other, so that slow listeners don't
+ * delay the commits. Each task dispatches a limited number of revisions,
+ * and then submits a new task for the rest, so that the listeners and the
+ * other tasks of the executor are not starved while there are many commits.
+ * <p>
+ * Changes committed by other cluster nodes are found by polling the node
+ * store once per second, while the dispatcher is started.
+ */
+public class ChangeDispatcher implements Observer, Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(ChangeDispatcher.class);
+
+    /**
+     * The delay between checks for new revisions, in milliseconds.
+     */
+    private static final long POLL_DELAY = 1000;
+
+    /**
+     * The maximum number of revisions that are not dispatched yet. If there
+     * are more, the changes of the last two revisions are merged.
+     */
+    private static final int MAX_PENDING = 1000;
+
+    /**
+     * The maximum number of revisions dispatched by one task.
+     */
+    private static final int MAX_DISPATCH = 100;
+
+    private final NodeStore store;
+
+    /**
+     * The registered change processors, by the path of their filter.
+     */
+    private final PathNode registrations = new PathNode();
+
+    /**
+     * The registered change processors and their paths.
+     */
+    private final Map<ChangeProcessor, String> paths =
+            new HashMap<ChangeProcessor, String>();
+
+    /**
+     * The content tree up to which the changes were dispatched, or null.
+     */
+    private NodeState root;
+
+    /**
+     * The revisions that are not dispatched yet, in commit order. This is
+     * synchronized on itself, and not on the dispatcher, so that recording a
+     * revision never waits for the listeners.
+     */
+    private final LinkedList<NodeState> pending = new LinkedList<NodeState>();
+
+    /**
+     * Whether a dispatch task was submitted and did not finish yet.
+     */
+    private boolean dispatching;
+
+    private volatile ScheduledExecutorService executor;
+
+    /**
+     * The number of calls to {@link #start(ScheduledExecutorService)}
+     * without a matching call to {@link #stop()}.
+     */
+    private int users;
+
+    private ScheduledFuture<?> poll;
+
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            boolean more;
+            synchronized (ChangeDispatcher.this) {
+                more = dispatchPending(MAX_DISPATCH);
+            }
+            if (more) {
+                executor.execute(this);
+            }
+        }
+    };
+
+    public ChangeDispatcher(NodeStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Dispatch the changes and check for new revisions periodically, using
+     * the given executor. The first call starts the dispatcher, further calls
+     * are only counted.
+     *
+     * @param executor the executor
+     */
+    public synchronized void start(ScheduledExecutorService executor) {
+        if (users++ == 0) {
+            this.executor = executor;
+            poll = executor.scheduleWithFixedDelay(
+                    this, POLL_DELAY, POLL_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop checking for new revisions, once this was called as often as
+     * {@link #start(ScheduledExecutorService)}.
+     */
+    public synchronized void stop() {
+        if (users > 0 && --users == 0) {
+            poll.cancel(false);
+            poll = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        // this notifies the dispatcher if it is the observer of the store
+        NodeState head = store.getRoot();
+        synchronized (this) {
+            if (root != null && root != head) {
+                contentChanged(root, head);
+            }
+        }
+    }
+
+    @Override
+    public void contentChanged(NodeState before, NodeState after) {
+        ScheduledExecutorService executor = this.executor;
+        synchronized (pending) {
+            if (executor == null || pending.size() >= MAX_PENDING) {
+                // dispatched later, merged with the next revision
+                pending.pollLast();
+            }
+            pending.add(after);
+            if (executor == null || dispatching) {
+                return;
+            }
+            dispatching = true;
+        }
+        executor.execute(dispatch);
+    }
+
+    /**
+     * The number of registered event listeners.
+     *
+     * @return the number of listeners
+     */
+    public synchronized int getListenerCount() {
+        return paths.size();
+    }
+
+    /**
+     * The number of commits with events that were not delivered yet, over
+     * all event listeners.
+     *
+     * @return the total queue length
+     */
+    public synchronized int getQueueLength() {
+        int length = 0;
+        for (ChangeProcessor processor : paths.keySet()) {
+            length += processor.getQueueLength();
+        }
+        return length;
+    }
+
+    /**
+     * The largest queue length of any event listener so far.
+     *
+     * @return the maximum queue length
+     */
+    public synchronized int getMaxQueueLength() {
+        int max = 0;
+        for (ChangeProcessor processor : paths.keySet()) {
+            max = Math.max(max, processor.getMaxQueueLength());
+        }
+        return max;
+    }
+
+    /**
+     * The number of commits that were merged into another queue entry
+     * because a queue was full, over all event listeners.
+     *
+     * @return the number of merged commits
+     */
+    public synchronized long getMergeCount() {
+        long count = 0;
+        for (ChangeProcessor processor : paths.keySet()) {
+            count += processor.getMergeCount();
+        }
+        return count;
+    }
+
+    //------------------------------------------------------------< internal >---
+
+    void add(ChangeProcessor processor) {
+        // dispatch the changes so far, which are not seen by the new listener
+        NodeState head = store.getRoot();
+        synchronized (this) {
+            dispatchPending(Integer.MAX_VALUE);
+            if (root != head) {
+                dispatch(head);
+            }
+            String path = processor.getNamePathMapper().getOakPath(
+                    processor.getPath());
+            if (path == null || !PathUtils.isAbsolute(path)) {
+                // the filter decides
+                path = "/";
+            }
+            paths.put(processor, path);
+            PathNode node = registrations;
+            node.subtree.add(processor);
+            for (String name : PathUtils.elements(path)) {
+                PathNode child = node.children.get(name);
+                if (child == null) {
+                    child = new PathNode();
+                    node.children.put(name, child);
+                }
+                node = child;
+                node.subtree.add(processor);
+            }
+            node.processors.add(processor);
+        }
+    }
+
+    synchronized void remove(ChangeProcessor processor) {
+        String path = paths.remove(processor);
+        if (path == null) {
+            return;
+        }
+        PathNode node = registrations;
+        node.subtree.remove(processor);
+        for (String name : PathUtils.elements(path)) {
+            PathNode child = node.children.get(name);
+            child.subtree.remove(processor);
+            if (child.subtree.isEmpty()) {
+                node.children.remove(name);
+            }
+            node = child;
+        }
+        node.processors.remove(processor);
+    }
+
+    /**
+     * Update the registration of a change processor whose filter changed.
+     *
+     * @param processor the change processor
+     */
+    void update(ChangeProcessor processor) {
+        synchronized (this) {
+            if (!paths.containsKey(processor)) {
+                return;
+            }
+            remove(processor);
+        }
+        add(processor);
+    }
+
+    //------------------------------------------------------------< private >---
+
+    /**
+     * Dispatch the pending revisions. The caller must hold the lock of the
+     * dispatcher, so that the revisions are dispatched in order.
+     *
+     * @param max the maximum number of revisions to dispatch
+     * @return true if there are more pending revisions, which the caller
+     *         needs to dispatch
+     */
+    private boolean dispatchPending(int max) {
+        for (int i = 0; i < max; i++) {
+            NodeState after;
+            synchronized (pending) {
+                after = pending.poll();
+                if (after == null) {
+                    dispatching = false;
+                    return false;
+                }
+            }
+            dispatch(after);
+        }
+        return true;
+    }
+
+    /**
+     * Generate and queue the events of the changes from the dispatched
+     * content tree to the given one, for all listeners.
+     *
+     * @param after the new content tree
+     */
+    private void dispatch(NodeState after) {
+        NodeState before = root;
+        root = after;
+        if (before == null || before == after || paths.isEmpty()) {
+            return;
+        }
+        List<EventGeneratingNodeStateDiff> diffs =
+                new ArrayList<EventGeneratingNodeStateDiff>();
+        for (ChangeProcessor processor : registrations.subtree) {
+            diffs.add(processor.newDiff(after));
+        }
+        try {
+            after.compareAgainstBaseState(before, new FanOutDiff(diffs,
+                    registrations, getDeep(registrations, null)));
+        } catch (RuntimeException e) {
+            log.warn("Failed to generate the observation events", e);
+        }
+        for (EventGeneratingNodeStateDiff diff : diffs) {
+            if (diff.hasEvents()) {
+                diff.getProcessor().queue(before, after, diff.getEvents());
+            }
+        }
+    }
+
+    /**
+     * Get the processors that include the whole subtree of a node.
+     *
+     * @param node the registrations at the path of the node
+     * @param parent the processors that include the whole subtree of the
+     *            parent node, or null for the root node
+     * @return the processors
+     */
+    private static Set<ChangeProcessor> getDeep(
+            PathNode node, Set<ChangeProcessor> parent) {
+        Set<ChangeProcessor> deep = parent;
+        for (ChangeProcessor processor : node.processors) {
+            if (processor.isDeep()) {
+                if (deep == parent) {
+                    deep = new HashSet<ChangeProcessor>();
+                    if (parent != null) {
+                        deep.addAll(parent);
+                    }
+                }
+                deep.add(processor);
+            }
+        }
+        return deep == null ? new HashSet<ChangeProcessor>() : deep;
+    }
+
+    /**
+     * A node of the index of the change processors by path.
+     */
+    private static class PathNode {
+
+        final Map<String, PathNode> children = new HashMap<String, PathNode>();
+
+        /**
+         * The processors registered at this path.
+         */
+        final Set<ChangeProcessor> processors = new HashSet<ChangeProcessor>();
+
+        /**
+         * The processors registered at this path or below.
+         */
+        final Set<ChangeProcessor> subtree = new HashSet<ChangeProcessor>();
+
+    }
+
+    /**
+     * Forwards the changes of a node to the diffs of all interested change
+     * processors, and compares the changed child nodes once for all of them.
+     */
+    private static class FanOutDiff implements NodeStateDiff {
+
+        private final List<EventGeneratingNodeStateDiff> diffs;
+
+        /**
+         * The registrations at the path of this node, or null if there are
+         * none at or below this path.
+         */
+        private final PathNode node;
+
+        /**
+         * The processors that include the whole subtree of this node.
+         */
+        private final Set<ChangeProcessor> deep;
+
+        FanOutDiff(List<EventGeneratingNodeStateDiff> diffs, PathNode node,
+                Set<ChangeProcessor> deep) {
+            this.diffs = diffs;
+            this.node = node;
+            this.deep = deep;
+        }
+
+        @Override
+        public void propertyAdded(PropertyState after) {
+            for (EventGeneratingNodeStateDiff diff : diffs) {
+                diff.propertyAdded(after);
+            }
+        }
+
+        @Override
+        public void propertyChanged(PropertyState before, PropertyState after) {
+            for (EventGeneratingNodeStateDiff diff : diffs) {
+                diff.propertyChanged(before, after);
+            }
+        }
+
+        @Override
+        public void propertyDeleted(PropertyState before) {
+            for (EventGeneratingNodeStateDiff diff : diffs) {
+                diff.propertyDeleted(before);
+            }
+        }
+
+        @Override
+        public void childNodeAdded(String name, NodeState after) {
+            for (EventGeneratingNodeStateDiff diff : diffs) {
+                diff.childNodeAdded(name, after);
+            }
+        }
+
+        @Override
+        public void childNodeDeleted(String name, NodeState before) {
+            for (EventGeneratingNodeStateDiff diff : diffs) {
+                diff.childNodeDeleted(name, before);
+            }
+        }
+
+        @Override
+        public void childNodeChanged(String name, NodeState before, NodeState after) {
+            PathNode child = node == null ? null : node.children.get(name);
+            List<EventGeneratingNodeStateDiff> childDiffs =
+                    new ArrayList<EventGeneratingNodeStateDiff>();
+            for (EventGeneratingNodeStateDiff diff : diffs) {
+                ChangeProcessor processor = diff.getProcessor();
+                if (deep.contains(processor)
+                        || (child != null && child.subtree.contains(processor))) {
+                    EventGeneratingNodeStateDiff childDiff =
+                            diff.getChildDiff(name, after);
+                    if (childDiff != null) {
+                        childDiffs.add(childDiff);
+                    }
+                }
+            }
+            if (!childDiffs.isEmpty()) {
+                Set<ChangeProcessor> childDeep =
+                        child == null ? deep : getDeep(child, deep);
+                after.compareAgainstBaseState(
+                        before, new FanOutDiff(childDiffs, child, childDeep));
+            }
+        }
+
+    }
+
+}
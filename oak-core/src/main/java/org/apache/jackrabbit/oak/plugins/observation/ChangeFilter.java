@@ -73,6 +73,24 @@ class ChangeFilter {
                 deep && PathUtils.isAncestor(this.path, path);
     }
 
+    /**
+     * The JCR path of the events to include.
+     *
+     * @return the path
+     */
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * Whether the events of the whole subtree are included.
+     *
+     * @return true for the whole subtree
+     */
+    boolean isDeep() {
+        return deep;
+    }
+
     //-----------------------------< internal >---------------------------------
 
     private boolean include(int eventType) {
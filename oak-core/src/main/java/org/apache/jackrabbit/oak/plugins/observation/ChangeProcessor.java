@@ -18,10 +18,10 @@ package org.apache.jackrabbit.oak.plugins.observation;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.jcr.observation.Event;
@@ -30,7 +30,6 @@ import javax.jcr.observation.EventListener;
 import com.google.common.base.Function;
 import com.google.common.collect.Iterators;
 import org.apache.jackrabbit.commons.iterator.EventIteratorAdapter;
-import org.apache.jackrabbit.oak.spi.observation.ChangeExtractor;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.namepath.NamePathMapper;
@@ -40,28 +39,53 @@ import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
 import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
 
 /**
- * TODO document
+ * Delivers the events of the content changes to an {@link EventListener}.
+ * The events are generated by the {@link ChangeDispatcher} of the
+ * repository, and queued here until they are delivered on the executor.
+ * <p>
+ * The queue is bounded. If it is full, the dispatcher merges the changes
+ * into the last queued entry, instead of waiting for the listener: the
+ * dispatcher and the listeners share the executor, which may have a single
+ * thread only. The events of a merged entry are generated again from the
+ * content trees when they are delivered, so that no events are lost.
  */
 class ChangeProcessor implements Runnable {
+
+    /**
+     * The system property for the maximum number of queued commits.
+     */
+    static final String QUEUE_SIZE = "oak.observation.queueSize";
+
     private final ObservationManagerImpl observationManager;
     private final NamePathMapper namePathMapper;
-    private final ChangeExtractor changeExtractor;
+    private final ChangeDispatcher dispatcher;
     private final EventListener listener;
     private final AtomicReference<ChangeFilter> filterRef;
+    private final int queueSize = Integer.getInteger(QUEUE_SIZE, 1000);
+
+    /**
+     * The changes that were not delivered yet.
+     */
+    private final LinkedList<Changes> queue = new LinkedList<Changes>();
+    private int maxQueueLength;
+    private long mergeCount;
+
+    private ScheduledExecutorService executor;
+    private Future<?> future;
     private volatile boolean running;
     private volatile boolean stopping;
-    private ScheduledFuture<?> future;
 
     public ChangeProcessor(ObservationManagerImpl observationManager, EventListener listener, ChangeFilter filter) {
         this.observationManager = observationManager;
         this.namePathMapper = observationManager.getNamePathMapper();
-        this.changeExtractor = observationManager.getChangeExtractor();
+        this.dispatcher = observationManager.getChangeDispatcher();
         this.listener = listener;
         filterRef = new AtomicReference<ChangeFilter>(filter);
     }
 
     public void setFilter(ChangeFilter filter) {
         filterRef.set(filter);
+        dispatcher.update(this);
     }
 
     /**
@@ -69,22 +93,30 @@ class ChangeProcessor implements Runnable {
      * events will be delivered.
      * @throws IllegalStateException if not yet started or stopped already
      */
-    public synchronized void stop() {
-        if (future == null) {
-            throw new IllegalStateException("Change processor not started");
-        }
+    public void stop() {
+        dispatcher.remove(this);
+        synchronized (this) {
+            if (executor == null) {
+                throw new IllegalStateException("Change processor not started");
+            }
 
-        try {
-            stopping = true;
-            future.cancel(true);
-            while (running) {
-                wait();
+            try {
+                stopping = true;
+                queue.clear();
+                if (future != null) {
+                    future.cancel(true);
+                }
+                notifyAll();
+                while (running) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                executor = null;
+                future = null;
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        }
-        finally {
-            future = null;
         }
     }
 
@@ -93,66 +125,244 @@ class ChangeProcessor implements Runnable {
      * @param executor
      * @throws IllegalStateException if started already
      */
-    public synchronized void start(ScheduledExecutorService executor) {
-        if (future != null) {
-            throw new IllegalStateException("Change processor started already");
+    public void start(ScheduledExecutorService executor) {
+        synchronized (this) {
+            if (this.executor != null) {
+                throw new IllegalStateException("Change processor started already");
+            }
+            stopping = false;
+            this.executor = executor;
         }
-        stopping = false;
-        future = executor.scheduleWithFixedDelay(this, 100, 1000, TimeUnit.MILLISECONDS);
+        dispatcher.add(this);
     }
 
     @Override
     public void run() {
-        running = true;
-        try{
-            EventGeneratingNodeStateDiff diff = new EventGeneratingNodeStateDiff();
-            changeExtractor.getChanges(diff);
-            if (!stopping) {
-                diff.sendEvents();
+        synchronized (this) {
+            running = true;
+        }
+        try {
+            while (true) {
+                List<Changes> changes;
+                synchronized (this) {
+                    if (stopping || queue.isEmpty()) {
+                        break;
+                    }
+                    changes = new ArrayList<Changes>(queue);
+                    queue.clear();
+                }
+                deliver(changes);
             }
         } finally {
             synchronized (this) {
                 running = false;
+                future = null;
+                if (!stopping && !queue.isEmpty()) {
+                    // the listener failed, continue with the next changes
+                    future = executor.submit(this);
+                }
                 notifyAll();
             }
         }
     }
 
+    //------------------------------------------------------------< internal >---
+
+    /**
+     * The JCR path of the events to include.
+     *
+     * @return the path
+     */
+    String getPath() {
+        return filterRef.get().getPath();
+    }
+
+    /**
+     * Whether the events of the whole subtree of the path are included.
+     *
+     * @return true for the whole subtree
+     */
+    boolean isDeep() {
+        return filterRef.get().isDeep();
+    }
+
+    NamePathMapper getNamePathMapper() {
+        return namePathMapper;
+    }
+
+    /**
+     * Create a diff that collects the events of a commit, to be queued.
+     *
+     * @param after the content tree after the commit
+     * @return the diff for the root node
+     */
+    EventGeneratingNodeStateDiff newDiff(NodeState after) {
+        return new EventGeneratingNodeStateDiff(
+                "/", new ArrayList<Iterator<Event>>(), after, false);
+    }
+
+    /**
+     * Queue the events of the given changes. If the queue is full, the
+     * changes are merged into the last queued entry.
+     *
+     * @param before the content tree before the changes
+     * @param after the content tree after the changes
+     * @param events the events
+     */
+    synchronized void queue(NodeState before, NodeState after, Iterator<Event> events) {
+        if (stopping || executor == null) {
+            return;
+        }
+        if (queue.size() >= queueSize) {
+            Changes last = queue.removeLast();
+            queue.addLast(new Changes(last.before, after, null));
+            mergeCount++;
+        } else {
+            queue.addLast(new Changes(before, after, events));
+            maxQueueLength = Math.max(maxQueueLength, queue.size());
+        }
+        if (future == null) {
+            future = executor.submit(this);
+        }
+    }
+
+    /**
+     * The number of commits with events that were not delivered yet.
+     *
+     * @return the queue length
+     */
+    synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * The largest queue length so far.
+     *
+     * @return the maximum queue length
+     */
+    synchronized int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    /**
+     * The number of commits that were merged into another entry because
+     * the queue was full.
+     *
+     * @return the number of merged commits
+     */
+    synchronized long getMergeCount() {
+        return mergeCount;
+    }
+
     //------------------------------------------------------------< private >---
 
-    private class EventGeneratingNodeStateDiff implements NodeStateDiff {
+    private void deliver(List<Changes> changes) {
+        List<Iterator<Event>> events = new ArrayList<Iterator<Event>>();
+        EventGeneratingNodeStateDiff diff = null;
+        for (Changes c : changes) {
+            diff = new EventGeneratingNodeStateDiff("/", events, c.after, true);
+            if (c.events != null) {
+                events.add(c.events);
+            } else {
+                c.after.compareAgainstBaseState(c.before, diff);
+            }
+        }
+        if (diff != null) {
+            diff.sendEvents();
+        }
+    }
+
+    private void sendEvents(Iterator<Event> eventIt) {
+        if (eventIt.hasNext()) {
+            observationManager.setHasEvents();
+            listener.onEvent(new EventIteratorAdapter(eventIt) {
+                @Override
+                public boolean hasNext() {
+                    return !stopping && super.hasNext();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queued changes: the events, or null if they need to be generated by
+     * comparing the content trees.
+     */
+    private static class Changes {
+
+        final NodeState before;
+        final NodeState after;
+        final Iterator<Event> events;
+
+        Changes(NodeState before, NodeState after, Iterator<Event> events) {
+            this.before = before;
+            this.after = after;
+            this.events = events;
+        }
+
+    }
+
+    class EventGeneratingNodeStateDiff implements NodeStateDiff {
         public static final int PURGE_LIMIT = 8192;
 
         private final String path;
         private final NodeState associatedParentNode;
 
+        /**
+         * Whether the events are sent while comparing, or queued afterwards.
+         */
+        private final boolean direct;
+
         private int childNodeCount;
-        private List<Iterator<Event>> events;
+        private final List<Iterator<Event>> events;
 
-        EventGeneratingNodeStateDiff(String path, List<Iterator<Event>> events, NodeState associatedParentNode) {
+        EventGeneratingNodeStateDiff(String path, List<Iterator<Event>> events,
+                NodeState associatedParentNode, boolean direct) {
             this.path = path;
             this.associatedParentNode = associatedParentNode;
             this.events = events;
+            this.direct = direct;
         }
 
-        public EventGeneratingNodeStateDiff() {
-            this("/", new ArrayList<Iterator<Event>>(PURGE_LIMIT), null);
+        ChangeProcessor getProcessor() {
+            return ChangeProcessor.this;
         }
 
-        public void sendEvents() {
-            Iterator<Event> eventIt = Iterators.concat(events.iterator());
-            if (eventIt.hasNext()) {
-                observationManager.setHasEvents();
-                listener.onEvent(new EventIteratorAdapter(eventIt) {
-                    @Override
-                    public boolean hasNext() {
-                        return !stopping && super.hasNext();
-                    }
-                });
-                events = new ArrayList<Iterator<Event>>(PURGE_LIMIT);
+        boolean hasEvents() {
+            return !events.isEmpty();
+        }
+
+        Iterator<Event> getEvents() {
+            Iterator<Event> eventIt = Iterators.concat(
+                    new ArrayList<Iterator<Event>>(events).iterator());
+            events.clear();
+            return eventIt;
+        }
+
+        void sendEvents() {
+            if (hasEvents()) {
+                ChangeProcessor.this.sendEvents(getEvents());
             }
         }
 
+        /**
+         * Get the diff for a changed child node.
+         *
+         * @param name the name of the child node
+         * @param after the child node after the change
+         * @return the diff, or null if the changes are not included
+         */
+        EventGeneratingNodeStateDiff getChildDiff(String name, NodeState after) {
+            if (NodeStateUtils.isHidden(name)) {
+                return null;
+            }
+            if (!stopping && filterRef.get().includeChildren(jcrPath())) {
+                return new EventGeneratingNodeStateDiff(
+                        PathUtils.concat(path, name), events, after, direct);
+            }
+            return null;
+        }
+
         private String jcrPath() {
             return namePathMapper.getJcrPath(path);
         }
@@ -189,7 +399,7 @@ class ChangeProcessor implements Runnable {
             if (!stopping && filterRef.get().includeChildren(jcrPath())) {
                 Iterator<Event> events = generateNodeEvents(Event.NODE_ADDED, path, name, after);
                 this.events.add(events);
-                if (++childNodeCount > PURGE_LIMIT) {
+                if (direct && ++childNodeCount > PURGE_LIMIT) {
                     sendEvents();
                 }
             }
@@ -208,14 +418,10 @@ class ChangeProcessor implements Runnable {
 
         @Override
         public void childNodeChanged(String name, NodeState before, NodeState after) {
-            if (NodeStateUtils.isHidden(name)) {
-                return;
-            }
-            if (!stopping && filterRef.get().includeChildren(jcrPath())) {
-                EventGeneratingNodeStateDiff diff = new EventGeneratingNodeStateDiff(
-                        PathUtils.concat(path, name), events, after);
+            EventGeneratingNodeStateDiff diff = getChildDiff(name, after);
+            if (diff != null) {
                 after.compareAgainstBaseState(before, diff);
-                if (events.size() > PURGE_LIMIT) {
+                if (direct && events.size() > PURGE_LIMIT) {
                     diff.sendEvents();
                 }
             }
@@ -0,0 +1,470 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.observation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.jcr.observation.Event;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.commit.CommitHook;
+import org.apache.jackrabbit.oak.spi.lifecycle.RepositoryInitializer;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeStateUtils;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
+
+/**
+ * A persistent journal of the content changes, for consumers that need to
+ * catch up with the changes after a downtime, such as external search
+ * indexes or caches. Unlike the events of the JCR observation, the journal
+ * survives a restart, and it contains the changes of all cluster nodes.
+ * <p>
+ * The journal is written by this commit hook, within the commits: there is
+ * one entry for each commit with visible changes. The entries are grouped
+ * in one bucket node per hour below the hidden {@code :journal} node, so
+ * that reading and compacting the journal only lists the entries of the
+ * relevant hours. The entries are compact: an added or
+ * removed node is recorded once, and not for each node of its subtree, and
+ * a move is recorded as a removed and an added node. Changes of hidden
+ * content are not recorded.
+ * <p>
+ * The entries are identified by a cursor, which starts with the time of the
+ * commit, so that the entries are ordered by time. A consumer reads the
+ * entries after the cursor of the last entry it has seen, or after a point
+ * in time (see {@link #getCursor(long)}). Since the commits of other cluster
+ * nodes may become visible slightly out of order, a consumer that must not
+ * miss any entry should read from a cursor some seconds before the last one
+ * it has seen, and skip the entries it already knows.
+ * <p>
+ * Concurrent commits that create the same node conflict, so the commits
+ * never create the buckets: the {@code :journal} node and the first bucket
+ * are created when the repository is initialized, and the bucket of the next
+ * hour is created ahead of time by the {@link EventJournalCompaction} task.
+ * If the bucket of the current hour does not exist yet, the entry is added
+ * to the most recent bucket. This means the entries of a bucket are older
+ * than the next bucket, but not necessarily within the hour of the bucket.
+ * <p>
+ * Entries that are older than the retention time are removed by the
+ * {@link EventJournalCompaction} task.
+ */
+public class EventJournal implements CommitHook, RepositoryInitializer {
+
+    /**
+     * The system property that enables the journal, if it is not set with
+     * {@code Oak.with(EventJournal)}.
+     */
+    public static final String ENABLED = "oak.journal";
+
+    /**
+     * The name of the hidden node that contains the journal entries.
+     */
+    public static final String JOURNAL = ":journal";
+
+    /**
+     * The name of the property of an entry that contains the events.
+     */
+    static final String EVENTS = "events";
+
+    /**
+     * The time span of the entries of a bucket, in milliseconds.
+     */
+    static final long BUCKET_SIZE = 60 * 60 * 1000;
+
+    private final Random random = new Random();
+
+    private long lastTime;
+
+    private int sequence;
+
+    /**
+     * Whether the journal is enabled by the system property.
+     *
+     * @return true if it is enabled
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED);
+    }
+
+    @Override
+    public void initialize(NodeStore store) {
+        NodeStoreBranch branch = store.branch();
+        NodeBuilder root = branch.getRoot().builder();
+        if (createBuckets(root, now())) {
+            branch.setRoot(root.getNodeState());
+            try {
+                branch.merge();
+            } catch (CommitFailedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Create the buckets that are needed from the given time on: the bucket
+     * of the given time if there is no bucket yet, and the bucket of the next
+     * hour. The bucket of the given time is not created if there are older
+     * buckets, as it may already have entries in the previous bucket.
+     *
+     * @param root the root node
+     * @param time the time in milliseconds
+     * @return true if a bucket was created
+     */
+    static boolean createBuckets(NodeBuilder root, long time) {
+        NodeBuilder journal = root.child(JOURNAL);
+        boolean changed = false;
+        if (journal.getChildNodeCount() == 0) {
+            journal.child(getBucket(time));
+            changed = true;
+        }
+        String next = getBucket(time + BUCKET_SIZE);
+        if (!journal.hasChildNode(next)) {
+            journal.child(next);
+            changed = true;
+        }
+        return changed;
+    }
+
+    @Override @Nonnull
+    public NodeState processCommit(NodeState before, NodeState after)
+            throws CommitFailedException {
+        List<String> events = new ArrayList<String>();
+        after.compareAgainstBaseState(before, new EventRecorder("/", events));
+        if (events.isEmpty()) {
+            return after;
+        }
+        String cursor = newCursor();
+        NodeBuilder builder = after.builder();
+        NodeBuilder journal = builder.child(JOURNAL);
+        journal.child(getBucket(journal, cursor))
+                .child(cursor).setProperty(EVENTS, events, Type.STRINGS);
+        return builder.getNodeState();
+    }
+
+    /**
+     * Get a cursor that is before all entries of the given time or later.
+     *
+     * @param time the time in milliseconds
+     * @return the cursor
+     */
+    @Nonnull
+    public static String getCursor(long time) {
+        return String.format("%013d", time);
+    }
+
+    /**
+     * Read the entries of the journal that follow the given cursor, in the
+     * order of their cursors.
+     *
+     * @param root the root node
+     * @param cursor the cursor, or null to read from the oldest entry
+     * @param limit the maximum number of entries to read
+     * @return the entries
+     */
+    @Nonnull
+    public static List<Entry> read(NodeState root, @Nullable String cursor,
+            int limit) {
+        NodeState journal = root.getChildNode(JOURNAL);
+        if (journal == null) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        List<String> buckets = getBuckets(journal);
+        for (int i = 0; i < buckets.size(); i++) {
+            String bucket = buckets.get(i);
+            if (cursor != null && i + 1 < buckets.size()
+                    && buckets.get(i + 1).compareTo(cursor) <= 0) {
+                // all entries of this bucket were already read
+                continue;
+            }
+            NodeState node = journal.getChildNode(bucket);
+            List<String> cursors = new ArrayList<String>();
+            for (String name : node.getChildNodeNames()) {
+                if (cursor == null || name.compareTo(cursor) > 0) {
+                    cursors.add(name);
+                }
+            }
+            Collections.sort(cursors);
+            for (String name : cursors) {
+                if (entries.size() >= limit) {
+                    return entries;
+                }
+                PropertyState events =
+                        node.getChildNode(name).getProperty(EVENTS);
+                if (events != null) {
+                    entries.add(new Entry(name, events.getValue(Type.STRINGS)));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get the name of the bucket of the entries of the given time. It is the
+     * cursor of the start of the hour, so that the buckets are ordered by
+     * time, in the same way as the entries.
+     *
+     * @param time the time in milliseconds
+     * @return the bucket name
+     */
+    static String getBucket(long time) {
+        return getCursor(time - time % BUCKET_SIZE);
+    }
+
+    /**
+     * Get the bucket to add the entry with the given cursor to: the bucket of
+     * its hour if it exists, and otherwise the most recent one. A bucket is
+     * only created if there is none.
+     *
+     * @param journal the journal node
+     * @param cursor the cursor of the entry
+     * @return the bucket name
+     */
+    private static String getBucket(NodeBuilder journal, String cursor) {
+        String bucket = getBucket(getTime(cursor));
+        if (journal.hasChildNode(bucket)) {
+            return bucket;
+        }
+        String last = null;
+        for (String name : journal.getChildNodeNames()) {
+            if (name.compareTo(bucket) < 0
+                    && (last == null || name.compareTo(last) > 0)) {
+                last = name;
+            }
+        }
+        return last == null ? bucket : last;
+    }
+
+    /**
+     * Get the names of the buckets of the journal, sorted by time.
+     *
+     * @param journal the journal node
+     * @return the bucket names
+     */
+    static List<String> getBuckets(NodeState journal) {
+        List<String> buckets = new ArrayList<String>();
+        for (String name : journal.getChildNodeNames()) {
+            buckets.add(name);
+        }
+        Collections.sort(buckets);
+        return buckets;
+    }
+
+    /**
+     * Get the time of the commit of the entry with the given cursor.
+     *
+     * @param cursor the cursor
+     * @return the time in milliseconds
+     */
+    static long getTime(String cursor) {
+        int end = cursor.indexOf('-');
+        return Long.parseLong(end < 0 ? cursor : cursor.substring(0, end));
+    }
+
+    /**
+     * Create a new, unique cursor. It consists of the time, a sequence
+     * number within the same millisecond, and a random part that avoids
+     * conflicts with the entries of other cluster nodes.
+     *
+     * @return the cursor
+     */
+    private synchronized String newCursor() {
+        long time = now();
+        if (time > lastTime) {
+            lastTime = time;
+            sequence = 0;
+        } else {
+            sequence++;
+        }
+        return String.format("%s-%04x-%08x", getCursor(lastTime),
+                sequence & 0xffff, random.nextInt());
+    }
+
+    /**
+     * Get the current time.
+     *
+     * @return the time in milliseconds
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * An entry of the journal: the events of one commit.
+     */
+    public static class Entry {
+
+        private final String cursor;
+
+        private final List<Record> events = new ArrayList<Record>();
+
+        Entry(String cursor, Iterable<String> events) {
+            this.cursor = cursor;
+            for (String event : events) {
+                int split = event.indexOf(' ');
+                this.events.add(new Record(
+                        Integer.parseInt(event.substring(0, split)),
+                        event.substring(split + 1)));
+            }
+        }
+
+        /**
+         * The cursor of this entry.
+         *
+         * @return the cursor
+         */
+        @Nonnull
+        public String getCursor() {
+            return cursor;
+        }
+
+        /**
+         * The time of the commit.
+         *
+         * @return the time in milliseconds
+         */
+        public long getTime() {
+            return EventJournal.getTime(cursor);
+        }
+
+        /**
+         * The events of the commit.
+         *
+         * @return the events
+         */
+        @Nonnull
+        public List<Record> getEvents() {
+            return events;
+        }
+
+        @Override
+        public String toString() {
+            return cursor + " " + events;
+        }
+
+        /**
+         * A recorded event.
+         */
+        public static class Record {
+
+            private final int type;
+
+            private final String path;
+
+            Record(int type, String path) {
+                this.type = type;
+                this.path = path;
+            }
+
+            /**
+             * The type of the event, one of the JCR event types
+             * {@code NODE_ADDED}, {@code NODE_REMOVED},
+             * {@code PROPERTY_ADDED}, {@code PROPERTY_CHANGED} or
+             * {@code PROPERTY_REMOVED}.
+             *
+             * @return the type
+             */
+            public int getType() {
+                return type;
+            }
+
+            /**
+             * The Oak path of the node or property.
+             *
+             * @return the path
+             */
+            @Nonnull
+            public String getPath() {
+                return path;
+            }
+
+            @Override
+            public String toString() {
+                return type + " " + path;
+            }
+
+        }
+
+    }
+
+    /**
+     * Records the events of a node and its changed child nodes, in the
+     * format "type path".
+     */
+    private static class EventRecorder implements NodeStateDiff {
+
+        private final String path;
+
+        private final List<String> events;
+
+        EventRecorder(String path, List<String> events) {
+            this.path = path;
+            this.events = events;
+        }
+
+        @Override
+        public void propertyAdded(PropertyState after) {
+            record(Event.PROPERTY_ADDED, after.getName());
+        }
+
+        @Override
+        public void propertyChanged(PropertyState before, PropertyState after) {
+            record(Event.PROPERTY_CHANGED, after.getName());
+        }
+
+        @Override
+        public void propertyDeleted(PropertyState before) {
+            record(Event.PROPERTY_REMOVED, before.getName());
+        }
+
+        @Override
+        public void childNodeAdded(String name, NodeState after) {
+            record(Event.NODE_ADDED, name);
+        }
+
+        @Override
+        public void childNodeChanged(String name, NodeState before, NodeState after) {
+            if (!NodeStateUtils.isHidden(name)) {
+                after.compareAgainstBaseState(before, new EventRecorder(
+                        PathUtils.concat(path, name), events));
+            }
+        }
+
+        @Override
+        public void childNodeDeleted(String name, NodeState before) {
+            record(Event.NODE_REMOVED, name);
+        }
+
+        private void record(int type, String name) {
+            if (!NodeStateUtils.isHidden(name)) {
+                events.add(type + " " + PathUtils.concat(path, name));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.observation;
+
+import static org.apache.jackrabbit.oak.plugins.observation.EventJournal.JOURNAL;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A task that removes the entries of the {@link EventJournal} that are older
+ * than the retention time, in one commit. The buckets that only contain
+ * expired entries are removed as a whole; only the entries of the bucket of
+ * the retention time are listed.
+ * <p>
+ * It also creates the bucket of the next hour ahead of time, so that the
+ * commits don't need to create it. It is meant to be run periodically, for
+ * example every minute.
+ */
+public class EventJournalCompaction implements Runnable {
+
+    /**
+     * The system property for the retention time of the journal entries, in
+     * milliseconds.
+     */
+    public static final String RETENTION = "oak.journal.retention";
+
+    /**
+     * The system property for the delay between two runs, in milliseconds.
+     */
+    public static final String DELAY = "oak.journal.compactionDelay";
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventJournalCompaction.class);
+
+    private final NodeStore store;
+
+    private final long retention;
+
+    public EventJournalCompaction(NodeStore store) {
+        this(store, Long.getLong(RETENTION, 24 * 60 * 60 * 1000));
+    }
+
+    public EventJournalCompaction(NodeStore store, long retention) {
+        this.store = store;
+        this.retention = retention;
+    }
+
+    /**
+     * Get the configured delay between two runs.
+     *
+     * @return the delay in milliseconds
+     */
+    public static long getDelay() {
+        return Long.getLong(DELAY, 60 * 1000);
+    }
+
+    @Override
+    public synchronized void run() {
+        long now = System.currentTimeMillis();
+        try {
+            createBuckets(now);
+            compact(now - retention);
+        } catch (CommitFailedException e) {
+            // will be retried in the next run
+            LOG.warn("Could not compact the event journal", e);
+        }
+    }
+
+    /**
+     * Create the buckets that are needed from the given time on.
+     *
+     * @param time the time in milliseconds
+     * @throws CommitFailedException if the changes could not be committed
+     */
+    void createBuckets(long time) throws CommitFailedException {
+        NodeStoreBranch branch = store.branch();
+        NodeBuilder builder = branch.getRoot().builder();
+        if (EventJournal.createBuckets(builder, time)) {
+            branch.setRoot(builder.getNodeState());
+            branch.merge();
+        }
+    }
+
+    /**
+     * Remove the entries of the journal that are older than the given time.
+     *
+     * @param time the time in milliseconds
+     * @return the number of removed entries
+     * @throws CommitFailedException if the changes could not be committed
+     */
+    int compact(long time) throws CommitFailedException {
+        NodeStoreBranch branch = store.branch();
+        NodeState journal = branch.getRoot().getChildNode(JOURNAL);
+        if (journal == null) {
+            return 0;
+        }
+        String cursor = EventJournal.getCursor(time);
+        List<String> expiredBuckets = new ArrayList<String>();
+        List<String> expired = new ArrayList<String>();
+        String partialBucket = null;
+        int count = 0;
+        List<String> buckets = EventJournal.getBuckets(journal);
+        for (int i = 0; i < buckets.size(); i++) {
+            String bucket = buckets.get(i);
+            if (bucket.compareTo(cursor) >= 0) {
+                // this and the following buckets only contain newer entries
+                break;
+            }
+            NodeState node = journal.getChildNode(bucket);
+            if (i + 1 < buckets.size()
+                    && buckets.get(i + 1).compareTo(cursor) <= 0) {
+                expiredBuckets.add(bucket);
+                count += node.getChildNodeCount();
+            } else {
+                partialBucket = bucket;
+                for (String name : node.getChildNodeNames()) {
+                    if (name.compareTo(cursor) < 0) {
+                        expired.add(name);
+                    }
+                }
+                count += expired.size();
+            }
+        }
+        if (count == 0 && expiredBuckets.isEmpty()) {
+            return 0;
+        }
+        NodeBuilder builder = branch.getRoot().builder();
+        NodeBuilder entries = builder.child(JOURNAL);
+        for (String bucket : expiredBuckets) {
+            entries.removeNode(bucket);
+        }
+        if (!expired.isEmpty()) {
+            NodeBuilder bucket = entries.child(partialBucket);
+            for (String name : expired) {
+                bucket.removeNode(name);
+            }
+        }
+        branch.setRoot(builder.getNodeState());
+        branch.merge();
+        return count;
+    }
+
+}
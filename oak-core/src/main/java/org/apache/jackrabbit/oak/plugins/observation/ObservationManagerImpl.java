@@ -34,7 +34,6 @@ import org.apache.jackrabbit.oak.api.Root;
 import org.apache.jackrabbit.oak.core.RootImpl;
 import org.apache.jackrabbit.oak.namepath.NamePathMapper;
 import org.apache.jackrabbit.oak.plugins.nodetype.ReadOnlyNodeTypeManager;
-import org.apache.jackrabbit.oak.spi.observation.ChangeExtractor;
 
 /**
  * TODO document
@@ -43,6 +42,7 @@ public class ObservationManagerImpl implements ObservationManager {
     private final RootImpl root;
     private final NamePathMapper namePathMapper;
     private final ScheduledExecutorService executor;
+    private final ChangeDispatcher dispatcher;
     private final Map<EventListener, ChangeProcessor> processors = new HashMap<EventListener, ChangeProcessor>();
     private final AtomicBoolean hasEvents = new AtomicBoolean(false);
     private final ReadOnlyNodeTypeManager ntMgr;
@@ -53,6 +53,8 @@ public class ObservationManagerImpl implements ObservationManager {
         this.namePathMapper = namePathMapper;
         this.executor = executor;
         this.ntMgr = ReadOnlyNodeTypeManager.getInstance(root, namePathMapper);
+        this.dispatcher = this.root.getChangeDispatcher();
+        dispatcher.start(executor);
     }
 
     public synchronized void dispose() {
@@ -60,6 +62,7 @@ public class ObservationManagerImpl implements ObservationManager {
             processor.stop();
         }
         processors.clear();
+        dispatcher.stop();
     }
 
     /**
@@ -122,8 +125,8 @@ public class ObservationManagerImpl implements ObservationManager {
         return namePathMapper;
     }
 
-    ChangeExtractor getChangeExtractor() {
-        return root.getChangeExtractor();
+    ChangeDispatcher getChangeDispatcher() {
+        return dispatcher;
     }
 
     void setHasEvents() {
@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.query;
+
+import org.apache.jackrabbit.oak.spi.query.QueryIndex;
+
+/**
+ * The index chosen for a filter, and its estimated cost.
+ */
+public class IndexPlan {
+
+    private final QueryIndex index;
+    private final double cost;
+
+    public IndexPlan(QueryIndex index, double cost) {
+        this.index = index;
+        this.cost = cost;
+    }
+
+    public QueryIndex getIndex() {
+        return index;
+    }
+
+    public double getCost() {
+        return cost;
+    }
+
+}
@@ -19,6 +19,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.jackrabbit.oak.api.PropertyValue;
 import org.apache.jackrabbit.oak.api.Root;
@@ -51,8 +52,8 @@ import org.apache.jackrabbit.oak.query.ast.SelectorImpl;
 import org.apache.jackrabbit.oak.query.ast.SourceImpl;
 import org.apache.jackrabbit.oak.query.ast.UpperCaseImpl;
 import org.apache.jackrabbit.oak.spi.query.Filter;
+import org.apache.jackrabbit.oak.spi.query.Filter.OrderEntry;
 import org.apache.jackrabbit.oak.spi.query.PropertyValues;
-import org.apache.jackrabbit.oak.spi.query.QueryIndex;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -88,6 +89,7 @@ public class Query {
     private final OrderingImpl[] orderings;
     private ColumnImpl[] columns;
     private boolean explain, measure;
+    private boolean eventualConsistencyAllowed;
     private long limit = Long.MAX_VALUE;
     private long offset;
     private long size = -1;
@@ -95,6 +97,7 @@ public class Query {
     private Root rootTree;
     private NodeState rootState;
     private NamePathMapper namePathMapper;
+    private Map<String, IndexPlan> plan;
 
     Query(String statement, SourceImpl source, ConstraintImpl constraint, OrderingImpl[] orderings,
           ColumnImpl[] columns) {
@@ -300,6 +303,20 @@ public class Query {
         this.measure = measure;
     }
 
+    /**
+     * Allow using asynchronously updated indexes, whose results may not
+     * reflect the most recent changes.
+     *
+     * @param eventualConsistencyAllowed whether asynchronous indexes may be used
+     */
+    public void setEventualConsistencyAllowed(boolean eventualConsistencyAllowed) {
+        this.eventualConsistencyAllowed = eventualConsistencyAllowed;
+    }
+
+    public boolean isEventualConsistencyAllowed() {
+        return eventualConsistencyAllowed;
+    }
+
     public ResultImpl executeQuery() {
         return new ResultImpl(this);
     }
@@ -319,7 +336,8 @@ public class Query {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("plan: " + getPlan());
             }
-            if (orderings == null) {
+            boolean sorted = orderings == null || isSortedByIndex();
+            if (sorted) {
                 // can apply limit and offset directly
                 it = new RowIterator(rootState, limit, offset);
             } else {
@@ -327,39 +345,20 @@ public class Query {
                 it = new RowIterator(rootState, Long.MAX_VALUE, 0);
             }
             long readCount = 0;
-            if (orderings != null) {
-                // TODO "order by" is not necessary if the used index returns
-                // rows in the same order
-                    
-                // avoid overflow (both offset and limit could be Long.MAX_VALUE)
-                int keep = (int) Math.min(Integer.MAX_VALUE, 
-                        Math.min(Integer.MAX_VALUE, offset) + 
-                        Math.min(Integer.MAX_VALUE, limit));
-                
-                ArrayList<ResultRowImpl> list = new ArrayList<ResultRowImpl>();
-                while (it.hasNext()) {
-                    readCount++;
-                    ResultRowImpl r = it.next();
-                    list.add(r);
-                    // from time to time, sort and truncate
-                    // this should results in O(n*log(2*keep)) operations,
-                    // which is close to the optimum O(n*log(keep))
-                    if (list.size() > keep * 2) {
-                        // remove tail entries right now, to save memory
-                        Collections.sort(list);
-                        keepFirst(list, keep);
+            if (!sorted) {
+                RowSorter sorter = new RowSorter(this, offset, limit);
+                try {
+                    while (it.hasNext()) {
+                        readCount++;
+                        sorter.add(it.next());
                     }
+                } catch (RuntimeException e) {
+                    // delete the temporary files
+                    sorter.close();
+                    throw e;
                 }
-                Collections.sort(list);
-                keepFirst(list, keep);
-                
-                it = list.iterator();
-                // skip the head (this is more efficient than removing
-                // if there are many entries)
-                for (int i = 0; i < offset && it.hasNext(); i++) {
-                    it.next();
-                }
-                size = list.size() - offset;
+                it = sorter.getRows();
+                size = sorter.getSize();
             } else if (measure) {
                 while (it.hasNext()) {
                     readCount++;
@@ -397,17 +396,36 @@ public class Query {
     }
     
     /**
-     * Truncate a list.
-     * 
-     * @param list the list
-     * @param keep the maximum number of entries to keep
+     * Whether the index returns the rows in the sort order of the query, so
+     * that the rows do not need to be sorted.
+     *
+     * @return true if the index returns the rows in order
      */
-    private static void keepFirst(ArrayList<ResultRowImpl> list, int keep) {
-        while (list.size() > keep) {
-            // remove the entries starting at the end, 
-            // to avoid n^2 performance
-            list.remove(list.size() - 1);
-        }        
+    private boolean isSortedByIndex() {
+        return source instanceof SelectorImpl && ((SelectorImpl) source).isSorted();
+    }
+
+    /**
+     * Get the sort order for the filter of a selector. The sort order is
+     * only set if the query has one selector, and if all orderings are on
+     * properties (or the path) of this selector.
+     *
+     * @param s the selector
+     * @return the sort order, or an empty list
+     */
+    public List<OrderEntry> getSortOrder(SelectorImpl s) {
+        if (orderings == null || selectors.size() != 1) {
+            return Collections.emptyList();
+        }
+        ArrayList<OrderEntry> list = new ArrayList<OrderEntry>();
+        for (OrderingImpl o : orderings) {
+            OrderEntry e = o.getOrderEntry(s);
+            if (e == null) {
+                return Collections.emptyList();
+            }
+            list.add(e);
+        }
+        return list;
     }
 
     public int compareRows(PropertyValue[] orderValues,
@@ -598,8 +616,34 @@ public class Query {
         this.queryEngine = queryEngine;
     }
 
-    public QueryIndex getBestIndex(Filter filter) {
-        return queryEngine.getBestIndex(this, rootState, filter);
+    /**
+     * Get the index to use for a selector. If the plan of the query was
+     * cached, the index of the cached plan is used, otherwise the index with
+     * the lowest cost is used and added to the plan.
+     *
+     * @param key the selector name, or a key derived from it
+     * @param filter the filter of the selector
+     * @return the index and its cost
+     */
+    public IndexPlan getBestIndex(String key, Filter filter) {
+        IndexPlan p = plan == null ? null : plan.get(key);
+        if (p == null) {
+            p = queryEngine.getBestIndex(this, rootState, filter);
+            if (plan != null) {
+                plan.put(key, p);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Set the index plan of each selector. The map is filled in when the
+     * query is prepared, for the selectors that are missing.
+     *
+     * @param plan the index plan by selector name
+     */
+    public void setPlan(Map<String, IndexPlan> plan) {
+        this.plan = plan;
     }
 
     public void setRootTree(Root rootTree) {
@@ -610,6 +654,10 @@ public class Query {
         this.rootState = rootState;
     }
 
+    public NodeState getRootState() {
+        return rootState;
+    }
+
     public void setNamePathMapper(NamePathMapper namePathMapper) {
         this.namePathMapper = namePathMapper;
     }
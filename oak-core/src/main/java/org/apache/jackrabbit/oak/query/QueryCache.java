@@ -0,0 +1,276 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.query;
+
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_CHECKPOINT_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NAME;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.PropertyValue;
+import org.apache.jackrabbit.oak.spi.query.QueryIndexProvider;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * The caches of a query engine: the XPath statements converted to SQL-2,
+ * keyed by statement and language, and the query plans (the index used for
+ * each selector, and its cost), keyed by statement, language and the types
+ * of the bind variable values. A new query engine is created for each root,
+ * so the caches are shared by all query engines using the same index
+ * provider.
+ * <p/>
+ * The query plans are kept per version of the index definitions (the node
+ * "/oak:index", without the content of the hidden nodes that contain the
+ * index data), so that sessions on different revisions don't discard each
+ * other's plans. The version of a definitions node state is only looked up
+ * once; the definitions are compared with the latest ones otherwise.
+ */
+public class QueryCache {
+
+    /**
+     * System property for the maximum number of converted XPath statements.
+     */
+    public static final String PARSE_CACHE_SIZE = "oak.queryParseCacheSize";
+
+    /**
+     * System property for the maximum number of query plans.
+     */
+    public static final String PLAN_CACHE_SIZE = "oak.queryPlanCacheSize";
+
+    private static final Map<QueryIndexProvider, QueryCache> CACHES =
+            new WeakHashMap<QueryIndexProvider, QueryCache>();
+
+    private final Cache<String, ParsedStatement> statements;
+    private final Cache<String, Map<String, IndexPlan>> plans;
+
+    /**
+     * The version of each known index definitions node state, by identity.
+     */
+    private final Cache<NodeState, Long> versions;
+
+    /**
+     * The latest index definitions, and their version.
+     */
+    private NodeState latestDefinitions;
+    private long latestVersion;
+
+    public QueryCache(int parseCacheSize, int planCacheSize) {
+        statements = CacheBuilder.newBuilder().
+                maximumSize(parseCacheSize).recordStats().build();
+        plans = CacheBuilder.newBuilder().
+                maximumSize(planCacheSize).recordStats().build();
+        versions = CacheBuilder.newBuilder().weakKeys().build();
+    }
+
+    /**
+     * Get the cache shared by the query engines of the given index provider.
+     *
+     * @param indexProvider the index provider
+     * @return the cache
+     */
+    static QueryCache getInstance(QueryIndexProvider indexProvider) {
+        synchronized (CACHES) {
+            QueryCache cache = CACHES.get(indexProvider);
+            if (cache == null) {
+                cache = new QueryCache(
+                        Integer.getInteger(PARSE_CACHE_SIZE, 1024),
+                        Integer.getInteger(PLAN_CACHE_SIZE, 1024));
+                CACHES.put(indexProvider, cache);
+            }
+            return cache;
+        }
+    }
+
+    ParsedStatement getStatement(String statement, String language) {
+        return statements.getIfPresent(getStatementKey(statement, language));
+    }
+
+    void putStatement(String statement, String language, ParsedStatement parsed) {
+        statements.put(getStatementKey(statement, language), parsed);
+    }
+
+    /**
+     * Get the cached plan of a query.
+     *
+     * @param key the plan key
+     * @param rootState the root state the query is run against
+     * @return the index plan of each selector, or null if not cached
+     */
+    Map<String, IndexPlan> getPlan(String key, NodeState rootState) {
+        return plans.getIfPresent(getVersion(rootState) + "\n" + key);
+    }
+
+    /**
+     * Cache the plan of a query.
+     *
+     * @param key the plan key
+     * @param rootState the root state the plan was made with
+     * @param plan the index plan of each selector
+     */
+    void putPlan(String key, NodeState rootState, Map<String, IndexPlan> plan) {
+        plans.put(getVersion(rootState) + "\n" + key, plan);
+    }
+
+    /**
+     * Get the key of the plan of a query.
+     *
+     * @param statement the statement
+     * @param language the language
+     * @param bindings the bind variable values, or null
+     * @return the key
+     */
+    static String getPlanKey(String statement, String language,
+            Map<String, ? extends PropertyValue> bindings) {
+        StringBuilder buff = new StringBuilder(getStatementKey(statement, language));
+        if (bindings != null) {
+            // the values may change the cost of an index, but only the
+            // types are used, so that the plan can be re-used
+            for (Entry<String, ? extends PropertyValue> e :
+                    new TreeMap<String, PropertyValue>(bindings).entrySet()) {
+                PropertyValue v = e.getValue();
+                buff.append('\n').append(e.getKey()).append('=');
+                buff.append(v == null ? "null" : v.getType().toString());
+            }
+        }
+        return buff.toString();
+    }
+
+    private static String getStatementKey(String statement, String language) {
+        return language + '\n' + statement;
+    }
+
+    /**
+     * Get the version of the index definitions of a root state.
+     *
+     * @param rootState the root state
+     * @return the version, 0 if there are no index definitions
+     */
+    private long getVersion(NodeState rootState) {
+        NodeState definitions = rootState.getChildNode(INDEX_DEFINITIONS_NAME);
+        if (definitions == null) {
+            // no index definitions; the other versions start at 1
+            return 0;
+        }
+        Long version = versions.getIfPresent(definitions);
+        if (version == null) {
+            synchronized (this) {
+                if (!sameDefinitions(latestDefinitions, definitions)) {
+                    latestVersion++;
+                }
+                latestDefinitions = definitions;
+                version = latestVersion;
+            }
+            versions.put(definitions, version);
+        }
+        return version;
+    }
+
+    /**
+     * Compare two index definition trees. Hidden child nodes contain the
+     * index data; only whether they exist is compared. The checkpoint of the
+     * asynchronous indexes is ignored, as it changes with each update.
+     */
+    static boolean sameDefinitions(NodeState a, NodeState b) {
+        if (a == b) {
+            return true;
+        } else if (a == null || b == null) {
+            return false;
+        }
+        long count = a.getPropertyCount();
+        for (PropertyState p : a.getProperties()) {
+            if (ASYNC_CHECKPOINT_PROPERTY_NAME.equals(p.getName())) {
+                count--;
+            } else if (!p.equals(b.getProperty(p.getName()))) {
+                return false;
+            }
+        }
+        if (b.getProperty(ASYNC_CHECKPOINT_PROPERTY_NAME) != null) {
+            count++;
+        }
+        if (count != b.getPropertyCount()) {
+            return false;
+        }
+        if (a.getChildNodeCount() != b.getChildNodeCount()) {
+            return false;
+        }
+        for (ChildNodeEntry e : a.getChildNodeEntries()) {
+            String name = e.getName();
+            if (name.startsWith(":")) {
+                // whether there is index data may change the cost
+                if (!b.hasChildNode(name)) {
+                    return false;
+                }
+            } else if (!sameDefinitions(e.getNodeState(), b.getChildNode(name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the hit and miss counts of the converted statements.
+     *
+     * @return the statistics
+     */
+    public CacheStats getParseCacheStats() {
+        return statements.stats();
+    }
+
+    /**
+     * Get the hit and miss counts of the query plans.
+     *
+     * @return the statistics
+     */
+    public CacheStats getPlanCacheStats() {
+        return plans.stats();
+    }
+
+    /**
+     * An XPath statement that was converted to SQL-2 and parsed successfully.
+     * The parsed query itself is not kept, as it holds the state of one
+     * execution; it is parsed again from the SQL-2 statement, which saves
+     * the conversion. SQL and SQL-2 statements are not cached, as there
+     * would be nothing to save.
+     */
+    static class ParsedStatement {
+
+        final String sql2;
+        final boolean noLiterals;
+        final boolean eventual;
+        final List<String> bindVariableNames;
+
+        ParsedStatement(String sql2, boolean noLiterals,
+                boolean eventual, List<String> bindVariableNames) {
+            this.sql2 = sql2;
+            this.noLiterals = noLiterals;
+            this.eventual = eventual;
+            this.bindVariableNames = bindVariableNames;
+        }
+
+    }
+
+}
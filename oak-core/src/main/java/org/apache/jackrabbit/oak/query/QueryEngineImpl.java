@@ -17,6 +17,8 @@
 package org.apache.jackrabbit.oak.query;
 
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -27,6 +29,7 @@ import org.apache.jackrabbit.oak.api.QueryEngine;
 import org.apache.jackrabbit.oak.api.Result;
 import org.apache.jackrabbit.oak.api.Root;
 import org.apache.jackrabbit.oak.namepath.NamePathMapper;
+import org.apache.jackrabbit.oak.query.QueryCache.ParsedStatement;
 import org.apache.jackrabbit.oak.query.index.TraversingIndex;
 import org.apache.jackrabbit.oak.spi.query.Filter;
 import org.apache.jackrabbit.oak.spi.query.QueryIndex;
@@ -35,6 +38,7 @@ import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableSet;
 
 /**
@@ -49,10 +53,18 @@ public abstract class QueryEngineImpl implements QueryEngine {
     
     static final String NO_LITERALS = "-noLiterals";
 
+    /**
+     * The suffix of the query language for queries that may use the
+     * asynchronous indexes, and therefore may not see the most recent changes.
+     */
+    static final String EVENTUAL = "-eventual";
+
     static final Logger LOG = LoggerFactory.getLogger(QueryEngineImpl.class);
 
     private final QueryIndexProvider indexProvider;
 
+    private final QueryCache cache;
+
     // TODO: Turn into a standalone class
     private final QueryParser parser = new QueryParser() {
         @Override
@@ -61,40 +73,54 @@ public abstract class QueryEngineImpl implements QueryEngine {
                     SQL2, SQL, XPATH, JQOM,
                     SQL2 + NO_LITERALS,
                     SQL + NO_LITERALS,
-                    XPATH + NO_LITERALS);
+                    XPATH + NO_LITERALS,
+                    SQL2 + EVENTUAL,
+                    SQL + EVENTUAL,
+                    XPATH + EVENTUAL);
         }
         @Override
         public Query parse(String statement, String language)
                 throws ParseException {
             LOG.debug("Parsing {} statement: {}", language, statement);
-            SQL2Parser parser = new SQL2Parser();
-            if (language.endsWith(NO_LITERALS)) {
-                language = language.substring(0, language.length() - NO_LITERALS.length());
-                parser.setAllowNumberLiterals(false);
-                parser.setAllowTextLiterals(false);
+            String lang = language;
+            boolean eventual = lang.endsWith(EVENTUAL);
+            if (eventual) {
+                lang = lang.substring(0, lang.length() - EVENTUAL.length());
             }
-            if (SQL2.equals(language) || JQOM.equals(language)) {
-                return parser.parse(statement);
-            } else if (SQL.equals(language)) {
-                parser.setSupportSQL1(true);
-                return parser.parse(statement);
-            } else if (XPATH.equals(language)) {
+            boolean noLiterals = lang.endsWith(NO_LITERALS);
+            if (noLiterals) {
+                lang = lang.substring(0, lang.length() - NO_LITERALS.length());
+            }
+            String sql2;
+            Query q;
+            if (SQL2.equals(lang) || JQOM.equals(lang)) {
+                sql2 = statement;
+                q = newParser(false, noLiterals).parse(sql2);
+            } else if (SQL.equals(lang)) {
+                sql2 = statement;
+                q = newParser(true, noLiterals).parse(sql2);
+            } else if (XPATH.equals(lang)) {
                 XPathToSQL2Converter converter = new XPathToSQL2Converter();
-                String sql2 = converter.convert(statement);
+                sql2 = converter.convert(statement);
                 LOG.debug("XPath > SQL2: {}", sql2);
                 try {
-                    return parser.parse(sql2);
+                    q = newParser(false, noLiterals).parse(sql2);
                 } catch (ParseException e) {
                     throw new ParseException(statement + " converted to SQL-2 " + e.getMessage(), 0);
                 }
+                cache.putStatement(statement, language, new ParsedStatement(
+                        sql2, noLiterals, eventual, q.getBindVariableNames()));
             } else {
                 throw new ParseException("Unsupported language: " + language, 0);
             }
+            q.setEventualConsistencyAllowed(eventual);
+            return q;
         }
     };
 
     public QueryEngineImpl(QueryIndexProvider indexProvider) {
         this.indexProvider = indexProvider;
+        this.cache = QueryCache.getInstance(indexProvider);
     }
     
     /**
@@ -126,13 +152,48 @@ public abstract class QueryEngineImpl implements QueryEngine {
      */
     @Override
     public List<String> getBindVariableNames(String statement, String language) throws ParseException {
-        Query q = parseQuery(statement, language);
+        ParsedStatement parsed = getConverted(statement, language);
+        if (parsed != null) {
+            return new ArrayList<String>(parsed.bindVariableNames);
+        }
+        Query q = parser.parse(statement, language);
         return q.getBindVariableNames();
     }
 
     private Query parseQuery(String statement, String language) throws ParseException {
+        ParsedStatement parsed = getConverted(statement, language);
+        if (parsed != null) {
+            // the statement is known to be valid
+            Query q = newParser(false, parsed.noLiterals).parse(parsed.sql2);
+            q.setEventualConsistencyAllowed(parsed.eventual);
+            return q;
+        }
         return parser.parse(statement, language);
     }
+
+    /**
+     * Get the cached SQL-2 conversion of an XPath statement.
+     *
+     * @param statement the statement
+     * @param language the language
+     * @return the converted statement, or null if not cached or not XPath
+     */
+    private ParsedStatement getConverted(String statement, String language) {
+        if (!language.startsWith(XPATH)) {
+            return null;
+        }
+        return cache.getStatement(statement, language);
+    }
+
+    private static SQL2Parser newParser(boolean sql1, boolean noLiterals) {
+        SQL2Parser parser = new SQL2Parser();
+        if (noLiterals) {
+            parser.setAllowNumberLiterals(false);
+            parser.setAllowTextLiterals(false);
+        }
+        parser.setSupportSQL1(sql1);
+        return parser;
+    }
     
     @Override
     public Result executeQuery(String statement, String language, long limit,
@@ -156,11 +217,23 @@ public abstract class QueryEngineImpl implements QueryEngine {
             }
         }
         q.setQueryEngine(this);
-        q.prepare();
+        NodeState rootState = q.getRootState();
+        String planKey = QueryCache.getPlanKey(statement, language, bindings);
+        Map<String, IndexPlan> plan = cache.getPlan(planKey, rootState);
+        if (plan != null) {
+            // copied, as selectors missing in the plan would be added
+            q.setPlan(new HashMap<String, IndexPlan>(plan));
+            q.prepare();
+        } else {
+            plan = new HashMap<String, IndexPlan>();
+            q.setPlan(plan);
+            q.prepare();
+            cache.putPlan(planKey, rootState, plan);
+        }
         return q.executeQuery();
     }
 
-    public QueryIndex getBestIndex(Query query, NodeState rootState, Filter filter) {
+    public IndexPlan getBestIndex(Query query, NodeState rootState, Filter filter) {
         QueryIndex best = null;
         if (LOG.isDebugEnabled()) {
             LOG.debug("cost using filter " + filter);
@@ -185,7 +258,25 @@ public abstract class QueryEngineImpl implements QueryEngine {
             bestCost = cost;
             best = index;
         }
-        return best;
+        return new IndexPlan(best, bestCost);
+    }
+
+    /**
+     * Get the hit and miss counts of the converted XPath statement cache.
+     *
+     * @return the statistics
+     */
+    public CacheStats getParseCacheStats() {
+        return cache.getParseCacheStats();
+    }
+
+    /**
+     * Get the hit and miss counts of the query plan cache.
+     *
+     * @return the statistics
+     */
+    public CacheStats getPlanCacheStats() {
+        return cache.getPlanCacheStats();
     }
 
     private List<? extends QueryIndex> getIndexes(NodeState rootState) {
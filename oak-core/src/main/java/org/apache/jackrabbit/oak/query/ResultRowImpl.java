@@ -38,6 +38,18 @@ public class ResultRowImpl implements ResultRow, Comparable<ResultRowImpl> {
         this.orderValues = orderValues;
     }
 
+    String[] getPathArray() {
+        return paths;
+    }
+
+    PropertyValue[] getValueArray() {
+        return values;
+    }
+
+    PropertyValue[] getOrderValueArray() {
+        return orderValues;
+    }
+
     @Override
     public String getPath() {
         if (paths.length > 1) {
@@ -0,0 +1,613 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.query;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.PropertyType;
+
+import com.google.common.io.ByteStreams;
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.api.PropertyValue;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.ArrayBasedBlob;
+import org.apache.jackrabbit.oak.plugins.memory.PropertyStates;
+import org.apache.jackrabbit.oak.plugins.value.Conversions;
+import org.apache.jackrabbit.oak.spi.query.PropertyValues;
+
+/**
+ * Sorts the result rows of a query with "order by".
+ * <p/>
+ * If the query has a limit, and offset plus limit rows fit in memory, only
+ * that many rows are kept in a heap (top-N). Otherwise, the rows are
+ * buffered in memory; when the buffer is full, it is sorted and written to
+ * a temporary file (a run). At the end, the runs are merged. The sort is
+ * stable: rows that compare equal are returned in the order they were
+ * added.
+ * <p/>
+ * The temporary files are deleted when the last row was read. If the rows
+ * are not read to the end, they are deleted once the iterator over the rows
+ * was garbage collected.
+ */
+public class RowSorter {
+
+    /**
+     * System property for the maximum number of rows a sort keeps in
+     * memory before it writes them to a temporary file.
+     */
+    public static final String SORT_MEMORY_ROWS = "oak.querySortMemoryRows";
+
+    private static final int DEFAULT_SORT_MEMORY_ROWS = 50000;
+
+    private static final AtomicLong SPILL_COUNT = new AtomicLong();
+    private static final AtomicLong SPILLED_ROW_COUNT = new AtomicLong();
+
+    /**
+     * The queue of the temporary files whose iterator was garbage collected.
+     */
+    private static final ReferenceQueue<Object> ABANDONED = new ReferenceQueue<Object>();
+
+    /**
+     * The temporary files of the iterators that were not read to the end.
+     * The references need to be kept until they are enqueued.
+     */
+    private static final Set<TempFiles> OPEN =
+            Collections.synchronizedSet(new HashSet<TempFiles>());
+
+    private static final int NULL_VALUE = 0;
+    private static final int STORED_VALUE = 1;
+
+    private final Query query;
+    private final long offset;
+    private final int keep;
+    private final int maxMemoryRows;
+
+    /**
+     * The heap of the top-N rows (the last row first), or null if the rows
+     * are buffered instead.
+     */
+    private final PriorityQueue<SortRow> heap;
+
+    private final ArrayList<SortRow> buffer = new ArrayList<SortRow>();
+    private final ArrayList<File> runs = new ArrayList<File>();
+
+    /**
+     * The temporary files, once the iterator over the merged runs exists.
+     */
+    private TempFiles tempFiles;
+
+    private long rowCount;
+    private long size;
+
+    RowSorter(Query query, long offset, long limit) {
+        this(query, offset, limit,
+                Integer.getInteger(SORT_MEMORY_ROWS, DEFAULT_SORT_MEMORY_ROWS));
+    }
+
+    RowSorter(Query query, long offset, long limit, int maxMemoryRows) {
+        this.query = query;
+        this.offset = offset;
+        // avoid overflow (both offset and limit could be Long.MAX_VALUE)
+        this.keep = (int) Math.min(Integer.MAX_VALUE,
+                Math.min(Integer.MAX_VALUE, offset) +
+                Math.min(Integer.MAX_VALUE, limit));
+        this.maxMemoryRows = Math.max(1, maxMemoryRows);
+        if (keep <= this.maxMemoryRows) {
+            heap = new PriorityQueue<SortRow>(Math.max(1, keep + 1),
+                    Collections.reverseOrder());
+        } else {
+            heap = null;
+        }
+    }
+
+    /**
+     * Get the number of temporary files written by all sorts so far.
+     *
+     * @return the number of temporary files
+     */
+    public static long getSpillCount() {
+        return SPILL_COUNT.get();
+    }
+
+    /**
+     * Get the number of rows written to temporary files by all sorts so far.
+     *
+     * @return the number of rows
+     */
+    public static long getSpilledRowCount() {
+        return SPILLED_ROW_COUNT.get();
+    }
+
+    /**
+     * Add a row.
+     *
+     * @param row the row
+     */
+    void add(ResultRowImpl row) {
+        SortRow r = new SortRow(row, rowCount++);
+        if (heap != null) {
+            if (keep == 0) {
+                return;
+            }
+            heap.add(r);
+            if (heap.size() > keep) {
+                heap.poll();
+            }
+            return;
+        }
+        buffer.add(r);
+        if (buffer.size() >= maxMemoryRows) {
+            spill();
+        }
+    }
+
+    /**
+     * Get the sorted rows, without the first offset rows. For a sort that
+     * spilled, the temporary files are deleted when the last row was read.
+     *
+     * @return the rows
+     */
+    Iterator<ResultRowImpl> getRows() {
+        Iterator<ResultRowImpl> it;
+        long count;
+        if (heap != null) {
+            ArrayList<SortRow> list = new ArrayList<SortRow>(heap);
+            heap.clear();
+            Collections.sort(list);
+            count = list.size();
+            it = new RowIterator(list.iterator());
+        } else if (runs.isEmpty()) {
+            Collections.sort(buffer);
+            count = Math.min(keep, buffer.size());
+            it = new RowIterator(buffer.subList(0, (int) count).iterator());
+        } else {
+            Collections.sort(buffer);
+            count = Math.min(keep, rowCount);
+            it = new MergeIterator(count);
+            tempFiles = new TempFiles(it, runs);
+        }
+        // skip the head (this is more efficient than removing
+        // if there are many entries)
+        for (long i = 0; i < offset && it.hasNext(); i++) {
+            it.next();
+        }
+        size = Math.max(0, count - offset);
+        return it;
+    }
+
+    /**
+     * Get the number of rows returned by {@link #getRows()}.
+     *
+     * @return the number of rows
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Sort the buffer and write it to a temporary file.
+     */
+    private void spill() {
+        Collections.sort(buffer);
+        int count = Math.min(keep, buffer.size());
+        deleteAbandoned();
+        try {
+            File file = File.createTempFile("oak-sort-", ".tmp");
+            runs.add(file);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+            try {
+                for (int i = 0; i < count; i++) {
+                    SortRow r = buffer.get(i);
+                    out.writeLong(r.index);
+                    writeRow(out, r.row);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Could not write a temporary file to sort the result", e);
+        }
+        buffer.clear();
+        SPILL_COUNT.incrementAndGet();
+        SPILLED_ROW_COUNT.addAndGet(count);
+    }
+
+    /**
+     * Delete the temporary files.
+     */
+    void close() {
+        if (tempFiles != null) {
+            tempFiles.delete();
+            tempFiles = null;
+        }
+        for (File f : runs) {
+            f.delete();
+        }
+        runs.clear();
+    }
+
+    /**
+     * Delete the temporary files of the sorts whose rows were not read to
+     * the end, and whose iterator was garbage collected.
+     */
+    private static void deleteAbandoned() {
+        Reference<?> ref;
+        while ((ref = ABANDONED.poll()) != null) {
+            ((TempFiles) ref).delete();
+        }
+    }
+
+    private void writeRow(DataOutputStream out, ResultRowImpl row) throws IOException {
+        String[] paths = row.getPathArray();
+        out.writeInt(paths.length);
+        for (String p : paths) {
+            writeString(out, p);
+        }
+        writeValues(out, row.getValueArray());
+        writeValues(out, row.getOrderValueArray());
+    }
+
+    private ResultRowImpl readRow(DataInputStream in) throws IOException {
+        String[] paths = new String[in.readInt()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = readString(in);
+        }
+        PropertyValue[] values = readValues(in);
+        PropertyValue[] orderValues = readValues(in);
+        return new ResultRowImpl(query, paths, values, orderValues);
+    }
+
+    private void writeValues(DataOutputStream out, PropertyValue[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(values.length);
+        for (PropertyValue v : values) {
+            if (v == null) {
+                out.writeByte(NULL_VALUE);
+            } else {
+                int tag = v.getType().tag();
+                out.writeByte(STORED_VALUE);
+                out.writeInt(tag);
+                out.writeBoolean(v.isArray());
+                int count = v.count();
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    if (tag == PropertyType.BINARY) {
+                        writeBlob(out, v.getValue(Type.BINARY, i));
+                    } else {
+                        writeString(out, v.getValue(Type.STRING, i));
+                    }
+                }
+            }
+        }
+    }
+
+    private PropertyValue[] readValues(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        PropertyValue[] values = new PropertyValue[len];
+        for (int i = 0; i < len; i++) {
+            switch (in.readByte()) {
+            case NULL_VALUE:
+                break;
+            default:
+                int tag = in.readInt();
+                boolean array = in.readBoolean();
+                int count = in.readInt();
+                List<Object> list = new ArrayList<Object>(count);
+                for (int j = 0; j < count; j++) {
+                    if (tag == PropertyType.BINARY) {
+                        list.add(readBlob(in));
+                    } else {
+                        list.add(convert(readString(in), tag));
+                    }
+                }
+                Object value = array ? list : list.get(0);
+                values[i] = PropertyValues.create(PropertyStates.createProperty(
+                        "", value, Type.fromTag(tag, array)));
+            }
+        }
+        return values;
+    }
+
+    private static Object convert(String s, int tag) {
+        switch (tag) {
+        case PropertyType.LONG:
+            return Conversions.convert(s).toLong();
+        case PropertyType.DOUBLE:
+            return Conversions.convert(s).toDouble();
+        case PropertyType.BOOLEAN:
+            return Conversions.convert(s).toBoolean();
+        case PropertyType.DECIMAL:
+            return Conversions.convert(s).toDecimal();
+        default:
+            return s;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * Write the content of a binary, so that it is not kept in memory
+     * while the rows are sorted.
+     */
+    private static void writeBlob(DataOutputStream out, Blob blob) throws IOException {
+        out.writeLong(blob.length());
+        InputStream in = blob.getNewStream();
+        try {
+            ByteStreams.copy(in, out);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Blob readBlob(DataInputStream in) throws IOException {
+        long len = in.readLong();
+        if (len > Integer.MAX_VALUE) {
+            throw new IOException("Binary too large to sort: " + len);
+        }
+        byte[] b = new byte[(int) len];
+        in.readFully(b);
+        return new ArrayBasedBlob(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * A row, and the position at which it was added (to keep the sort
+     * stable).
+     */
+    private static class SortRow implements Comparable<SortRow> {
+
+        final ResultRowImpl row;
+        final long index;
+
+        SortRow(ResultRowImpl row, long index) {
+            this.row = row;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(SortRow o) {
+            int comp = row.compareTo(o.row);
+            if (comp == 0) {
+                comp = index < o.index ? -1 : index > o.index ? 1 : 0;
+            }
+            return comp;
+        }
+
+    }
+
+    /**
+     * An iterator over sorted rows in memory.
+     */
+    private static class RowIterator implements Iterator<ResultRowImpl> {
+
+        private final Iterator<SortRow> it;
+
+        RowIterator(Iterator<SortRow> it) {
+            this.it = it;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public ResultRowImpl next() {
+            return it.next().row;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * The next row of a run: either a temporary file, or the buffer.
+     */
+    private class Run implements Comparable<Run> {
+
+        private final DataInputStream in;
+        private final Iterator<SortRow> it;
+        SortRow current;
+
+        Run(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            it = null;
+        }
+
+        Run(Iterator<SortRow> it) {
+            in = null;
+            this.it = it;
+        }
+
+        boolean fetch() throws IOException {
+            if (it != null) {
+                current = it.hasNext() ? it.next() : null;
+                return current != null;
+            }
+            long index;
+            try {
+                index = in.readLong();
+            } catch (EOFException e) {
+                current = null;
+                in.close();
+                return false;
+            }
+            current = new SortRow(readRow(in), index);
+            return true;
+        }
+
+        void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        @Override
+        public int compareTo(Run o) {
+            return current.compareTo(o.current);
+        }
+
+    }
+
+    /**
+     * Merges the runs.
+     */
+    private class MergeIterator implements Iterator<ResultRowImpl> {
+
+        private final PriorityQueue<Run> queue = new PriorityQueue<Run>();
+        private long remaining;
+
+        MergeIterator(long count) {
+            remaining = count;
+            try {
+                for (File f : runs) {
+                    add(new Run(f));
+                }
+                add(new Run(buffer.iterator()));
+            } catch (IOException e) {
+                end();
+                throw new RuntimeException("Could not read a temporary file to sort the result", e);
+            }
+        }
+
+        private void add(Run r) throws IOException {
+            if (r.fetch()) {
+                queue.add(r);
+            }
+        }
+
+        private void end() {
+            for (Run r : queue) {
+                try {
+                    r.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            queue.clear();
+            buffer.clear();
+            close();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (remaining > 0 && !queue.isEmpty()) {
+                return true;
+            }
+            end();
+            return false;
+        }
+
+        @Override
+        public ResultRowImpl next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Run r = queue.poll();
+            ResultRowImpl row = r.current.row;
+            remaining--;
+            try {
+                add(r);
+            } catch (IOException e) {
+                end();
+                throw new RuntimeException("Could not read a temporary file to sort the result", e);
+            }
+            return row;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * The temporary files of a sort, which are deleted once the iterator over
+     * the rows was garbage collected, unless they were deleted before.
+     */
+    private static class TempFiles extends PhantomReference<Object> {
+
+        private final List<File> files;
+
+        TempFiles(Object iterator, List<File> files) {
+            super(iterator, ABANDONED);
+            this.files = new ArrayList<File>(files);
+            OPEN.add(this);
+        }
+
+        void delete() {
+            OPEN.remove(this);
+            clear();
+            for (File f : files) {
+                f.delete();
+            }
+        }
+
+    }
+
+}
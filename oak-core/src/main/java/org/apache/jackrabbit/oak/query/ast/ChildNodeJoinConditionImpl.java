@@ -18,9 +18,12 @@
  */
 package org.apache.jackrabbit.oak.query.ast;
 
+import java.util.Collection;
+
 import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.query.index.FilterImpl;
 import org.apache.jackrabbit.oak.spi.query.Filter;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
 
 /**
  * The "ischildnode(...)" join condition.
@@ -93,4 +96,38 @@ public class ChildNodeJoinConditionImpl extends JoinConditionImpl {
         // nothing to do
     }
 
-}
\ No newline at end of file
+    @Override
+    String getKeyJoinMethod(SelectorImpl s) {
+        if (childSelector == parentSelector) {
+            return null;
+        }
+        return s == childSelector || s == parentSelector ? MERGE_JOIN : null;
+    }
+
+    @Override
+    void getKeys(SelectorImpl s, Collection<String> keys) {
+        String path = s.currentPath();
+        if (s == parentSelector) {
+            keys.add(path);
+        } else if (!PathUtils.denotesRoot(path)) {
+            // a child is stored with the path of its parent
+            keys.add(PathUtils.getParentPath(path));
+        }
+    }
+
+    @Override
+    void getMatchingRows(SelectorImpl s, JoinTable table, Collection<IndexRow> target) {
+        if (s == parentSelector) {
+            String c = childSelector.currentPath();
+            if (c != null && !PathUtils.denotesRoot(c)) {
+                table.get(PathUtils.getParentPath(c), target);
+            }
+        } else {
+            String p = parentSelector.currentPath();
+            if (p != null) {
+                table.get(p, target);
+            }
+        }
+    }
+
+}
@@ -18,9 +18,12 @@
  */
 package org.apache.jackrabbit.oak.query.ast;
 
+import java.util.Collection;
+
 import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.query.index.FilterImpl;
 import org.apache.jackrabbit.oak.spi.query.Filter;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
 
 /**
  * The "isdescendantnode(...)" join condition.
@@ -64,17 +67,8 @@ public class DescendantNodeJoinConditionImpl extends JoinConditionImpl {
 
     @Override
     public void restrict(FilterImpl f) {
-        if (f.getSelector() == ancestorSelector) {
-            String d = descendantSelector.currentPath();
-            if (d == null && f.isPreparing() && descendantSelector.isPrepared()) {
-                // during the prepare phase, if the selector is already
-                // prepared, then we would know the value
-                d = KNOWN_PATH;
-            }
-            if (d != null) {
-                f.restrictPath(PathUtils.getParentPath(d), Filter.PathRestriction.PARENT);
-            }
-        }
+        // the ancestor selector is not restricted: the path restriction
+        // PARENT only reads the parent node, but any ancestor may match
         if (f.getSelector() == descendantSelector) {
             String a = ancestorSelector.currentPath();
             if (a == null && f.isPreparing() && ancestorSelector.isPrepared()) {
@@ -83,7 +77,7 @@ public class DescendantNodeJoinConditionImpl extends JoinConditionImpl {
                 a = KNOWN_PATH;
             }
             if (a != null) {
-                f.restrictPath(a, Filter.PathRestriction.DIRECT_CHILDREN);
+                f.restrictPath(a, Filter.PathRestriction.ALL_CHILDREN);
             }
         }
     }
@@ -93,4 +87,33 @@ public class DescendantNodeJoinConditionImpl extends JoinConditionImpl {
         // nothing to do
     }
 
+    @Override
+    String getKeyJoinMethod(SelectorImpl s) {
+        if (descendantSelector == ancestorSelector) {
+            return null;
+        }
+        return s == descendantSelector || s == ancestorSelector ? MERGE_JOIN : null;
+    }
+
+    @Override
+    void getKeys(SelectorImpl s, Collection<String> keys) {
+        keys.add(s.currentPath());
+    }
+
+    @Override
+    void getMatchingRows(SelectorImpl s, JoinTable table, Collection<IndexRow> target) {
+        if (s == descendantSelector) {
+            String a = ancestorSelector.currentPath();
+            if (a != null) {
+                table.getDescendants(a, target);
+            }
+        } else {
+            String d = descendantSelector.currentPath();
+            while (d != null && !PathUtils.denotesRoot(d)) {
+                d = PathUtils.getParentPath(d);
+                table.get(d, target);
+            }
+        }
+    }
+
 }
@@ -18,9 +18,19 @@
  */
 package org.apache.jackrabbit.oak.query.ast;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+
+import javax.jcr.PropertyType;
+
 import org.apache.jackrabbit.oak.api.PropertyValue;
+import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.query.index.FilterImpl;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
 import org.apache.jackrabbit.oak.spi.query.PropertyValues;
+import org.apache.jackrabbit.util.ISO8601;
 
 /**
  * The "a.x = b.y" join condition.
@@ -143,4 +153,115 @@ public class EquiJoinConditionImpl extends JoinConditionImpl {
         }
     }
 
+    @Override
+    String getKeyJoinMethod(SelectorImpl s) {
+        if (selector1 == selector2) {
+            return null;
+        }
+        return s == selector1 || s == selector2 ? HASH_JOIN : null;
+    }
+
+    @Override
+    void getKeys(SelectorImpl s, Collection<String> keys) {
+        if (s == selector1) {
+            addKeys(selector1.currentProperty(property1Name), keys);
+        } else {
+            addKeys(selector2.currentProperty(property2Name), keys);
+        }
+    }
+
+    @Override
+    void getMatchingRows(SelectorImpl s, JoinTable table, Collection<IndexRow> target) {
+        ArrayList<String> keys = new ArrayList<String>();
+        if (s == selector1) {
+            addKeys(selector2.currentProperty(property2Name), keys);
+        } else {
+            addKeys(selector1.currentProperty(property1Name), keys);
+        }
+        for (String k : keys) {
+            table.get(k, target);
+        }
+    }
+
+    /**
+     * Add the hash keys of a property value: one key per value. The keys are
+     * only used to find the candidates, which are then checked with
+     * {@link #evaluate()}. As {@link #evaluate()} converts the values of one
+     * side to the type of the other side if needed, the keys don't depend on
+     * the type: numbers, dates, and strings that can be converted to numbers
+     * or dates get the key of the converted value.
+     */
+    private static void addKeys(PropertyValue p, Collection<String> keys) {
+        if (p == null) {
+            return;
+        }
+        int type = p.getType().tag();
+        if (type == PropertyType.BINARY) {
+            // not read, all binaries have the same key
+            keys.add("");
+            return;
+        }
+        for (String v : p.getValue(Type.STRINGS)) {
+            keys.add(getKey(type, v));
+        }
+    }
+
+    private static String getKey(int type, String value) {
+        String key = null;
+        switch (type) {
+        case PropertyType.LONG:
+        case PropertyType.DOUBLE:
+        case PropertyType.DECIMAL:
+            key = getNumberKey(value);
+            break;
+        case PropertyType.DATE:
+            key = getDateKey(value);
+            break;
+        case PropertyType.STRING:
+            if (value.isEmpty()) {
+                break;
+            }
+            char first = value.charAt(0);
+            if (first != '-' && first != '+' && first != '.'
+                    && (first < '0' || first > '9')) {
+                // neither a number nor a date
+                break;
+            }
+            key = getNumberKey(value);
+            if (key == null) {
+                key = getDateKey(value);
+            }
+            break;
+        }
+        return key == null ? value : key;
+    }
+
+    /**
+     * Get the key of a number, which is the same for all representations.
+     *
+     * @param value the string representation
+     * @return the key, or null if it is not a number
+     */
+    private static String getNumberKey(String value) {
+        try {
+            BigDecimal d = new BigDecimal(value);
+            return d.signum() == 0 ? "0" : d.stripTrailingZeros().toPlainString();
+        } catch (NumberFormatException e) {
+            // NaN, infinity, or not a number
+            return null;
+        }
+    }
+
+    /**
+     * Get the key of a date, which is the number of milliseconds since 1970,
+     * as for a date that is converted to a number.
+     *
+     * @param value the string representation
+     * @return the key, or null if it is not a date
+     */
+    private static String getDateKey(String value) {
+        Calendar c = ISO8601.parse(value);
+        return c == null ? null : Long.toString(c.getTimeInMillis());
+    }
+
 }
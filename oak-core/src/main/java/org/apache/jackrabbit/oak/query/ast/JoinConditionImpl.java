@@ -13,7 +13,10 @@
  */
 package org.apache.jackrabbit.oak.query.ast;
 
+import java.util.Collection;
+
 import org.apache.jackrabbit.oak.query.index.FilterImpl;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
 
 /**
  * The base class for join conditions.
@@ -27,6 +30,10 @@ public abstract class JoinConditionImpl extends AstElement {
 
     protected static final String KNOWN_VALUE = "valueFromTheJoinSelector";
 
+    protected static final String HASH_JOIN = "hash join";
+
+    protected static final String MERGE_JOIN = "merge join";
+
     /**
      * Evaluate the result using the currently set values.
      * 
@@ -51,4 +58,39 @@ public abstract class JoinConditionImpl extends AstElement {
      */
     public abstract void restrictPushDown(SelectorImpl s);
 
+    /**
+     * Get the join method that reads the rows of the given selector only once,
+     * and then matches them with the rows of the other selector by key.
+     * 
+     * @param s the right hand side selector of the join
+     * @return "hash join" or "merge join", or null if the rows can only be
+     *         matched by a nested loop join
+     */
+    String getKeyJoinMethod(SelectorImpl s) {
+        return null;
+    }
+
+    /**
+     * Get the keys the current row of the given selector is stored with.
+     * 
+     * @param s the right hand side selector of the join
+     * @param keys the collection the keys are added to
+     */
+    void getKeys(SelectorImpl s, Collection<String> keys) {
+        // not supported
+    }
+
+    /**
+     * Get the rows of the given selector that may match the current row of
+     * the other selector. The join condition still needs to be evaluated for
+     * each of them.
+     * 
+     * @param s the right hand side selector of the join
+     * @param table the rows of the selector
+     * @param target the collection the rows are added to
+     */
+    void getMatchingRows(SelectorImpl s, JoinTable table, Collection<IndexRow> target) {
+        // not supported
+    }
+
 }
@@ -13,7 +13,12 @@
  */
 package org.apache.jackrabbit.oak.query.ast;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
 import org.apache.jackrabbit.oak.query.Query;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 
 /**
@@ -22,6 +27,16 @@ import org.apache.jackrabbit.oak.spi.state.NodeState;
  */
 public class JoinImpl extends SourceImpl {
 
+    /**
+     * System property to force the join method: "nested" for a nested loop
+     * join, or "keyed" for a hash join or merge join if the join condition
+     * supports it. By default, the method with the lower estimated cost is
+     * used.
+     */
+    public static final String JOIN_METHOD = "oak.queryJoinMethod";
+
+    private static final String NESTED_LOOP_JOIN = "nested loop join";
+
     private final JoinConditionImpl joinCondition;
     private JoinType joinType;
     private SourceImpl left;
@@ -33,6 +48,18 @@ public class JoinImpl extends SourceImpl {
     private boolean end;
     private NodeState rootState;
 
+    /**
+     * The join method: a nested loop join, hash join, or merge join.
+     */
+    private String method = NESTED_LOOP_JOIN;
+
+    /**
+     * For a hash join or merge join, the rows of the right hand side selector,
+     * which are read only once per execution.
+     */
+    private JoinTable table;
+    private Iterator<IndexRow> matches;
+
     public JoinImpl(SourceImpl left, SourceImpl right, JoinType joinType,
             JoinConditionImpl joinCondition) {
         this.left = left;
@@ -67,7 +94,8 @@ public class JoinImpl extends SourceImpl {
             append(' ').
             append(right.getPlan(rootState)).
             append(" on ").
-            append(joinCondition);
+            append(joinCondition).
+            append(" /* ").append(method).append(" */");
         return buff.toString();
     }
 
@@ -114,6 +142,41 @@ public class JoinImpl extends SourceImpl {
     public void prepare() {
         left.prepare();
         right.prepare();
+        method = NESTED_LOOP_JOIN;
+        if (!(right instanceof SelectorImpl)) {
+            return;
+        }
+        SelectorImpl r = (SelectorImpl) right;
+        String keyed = joinCondition.getKeyJoinMethod(r);
+        if (keyed == null) {
+            return;
+        }
+        r.prepareIndependent();
+        String forced = System.getProperty(JOIN_METHOD);
+        boolean useKeyed;
+        if ("nested".equals(forced)) {
+            useKeyed = false;
+        } else if ("keyed".equals(forced)) {
+            useKeyed = true;
+        } else {
+            // the right hand side is executed once for each row of the left
+            // hand side for a nested loop join, but only once for a hash
+            // join or merge join (plus one lookup per row of the left side)
+            double leftRows = left.getEstimatedRowCount();
+            double nestedCost = leftRows * r.getCost();
+            double keyedCost = r.getIndependentCost() + leftRows;
+            useKeyed = keyedCost < nestedCost;
+        }
+        if (useKeyed) {
+            method = keyed;
+            r.setIndependent(true);
+        }
+    }
+
+    @Override
+    public double getEstimatedRowCount() {
+        // assume each row of the left hand side matches about one row
+        return left.getEstimatedRowCount();
     }
 
     @Override
@@ -130,10 +193,14 @@ public class JoinImpl extends SourceImpl {
         this.rootState = rootState;
         leftNeedExecute = true;
         end = false;
+        table = null;
     }
 
     @Override
     public boolean next() {
+        if (!NESTED_LOOP_JOIN.equals(method)) {
+            return nextKeyed();
+        }
         if (end) {
             return false;
         }
@@ -172,4 +239,66 @@ public class JoinImpl extends SourceImpl {
         }
     }
 
+    /**
+     * Go to the next row of a hash join or merge join. The rows of the right
+     * hand side are read once and kept in a table; for each row of the left
+     * hand side, the matching rows are looked up in this table.
+     *
+     * @return true if there is a next row
+     */
+    private boolean nextKeyed() {
+        if (end) {
+            return false;
+        }
+        SelectorImpl r = (SelectorImpl) right;
+        if (table == null) {
+            table = new JoinTable(JoinConditionImpl.MERGE_JOIN.equals(method));
+            ArrayList<String> keys = new ArrayList<String>();
+            r.execute(rootState);
+            while (r.next()) {
+                keys.clear();
+                joinCondition.getKeys(r, keys);
+                IndexRow row = r.getCurrentRow();
+                for (String k : keys) {
+                    table.add(k, row);
+                }
+            }
+            table.close();
+        }
+        if (leftNeedExecute) {
+            left.execute(rootState);
+            leftNeedExecute = false;
+            leftNeedNext = true;
+        }
+        while (true) {
+            if (leftNeedNext) {
+                if (!left.next()) {
+                    end = true;
+                    r.setCurrentRow(null);
+                    return false;
+                }
+                leftNeedNext = false;
+                LinkedHashSet<IndexRow> rows = new LinkedHashSet<IndexRow>();
+                joinCondition.getMatchingRows(r, table, rows);
+                matches = rows.iterator();
+                foundJoinedRow = false;
+            }
+            while (matches.hasNext()) {
+                r.setCurrentRow(matches.next());
+                // the keys are only used to find the candidates
+                if (joinCondition.evaluate()) {
+                    foundJoinedRow = true;
+                    return true;
+                }
+            }
+            leftNeedNext = true;
+            // for an outer join, if no matching result was found,
+            // one row returned (with all values set to null)
+            if (r.outerJoinRightHandSide && !foundJoinedRow) {
+                r.setCurrentRow(null);
+                return true;
+            }
+        }
+    }
+
 }
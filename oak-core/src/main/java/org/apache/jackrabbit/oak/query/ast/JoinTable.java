@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.oak.query.ast;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
+
+/**
+ * The rows of the right hand side selector of a hash join or merge join. The
+ * rows are read once, and are stored by key: a property value for a hash join,
+ * or a path for a merge join. For a merge join, the rows are sorted by path,
+ * so that the descendants of a node can be found as well.
+ */
+class JoinTable {
+
+    private final boolean sorted;
+    private final HashMap<String, ArrayList<IndexRow>> map =
+            new HashMap<String, ArrayList<IndexRow>>();
+    private ArrayList<String> keys;
+    private int size;
+
+    /**
+     * Create a table.
+     *
+     * @param sorted whether the keys are paths that are sorted (merge join)
+     */
+    JoinTable(boolean sorted) {
+        this.sorted = sorted;
+    }
+
+    void add(String key, IndexRow row) {
+        ArrayList<IndexRow> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<IndexRow>(1);
+            map.put(key, list);
+        }
+        list.add(row);
+        size++;
+    }
+
+    /**
+     * Sort the keys. Must be called after the last row was added.
+     */
+    void close() {
+        if (sorted) {
+            keys = new ArrayList<String>(map.keySet());
+            Collections.sort(keys);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Add the rows with the given key.
+     *
+     * @param key the key
+     * @param target the collection the rows are added to
+     */
+    void get(String key, Collection<IndexRow> target) {
+        ArrayList<IndexRow> list = map.get(key);
+        if (list != null) {
+            target.addAll(list);
+        }
+    }
+
+    /**
+     * Add the rows whose key is a descendant of the given path. Only
+     * supported for a merge join.
+     *
+     * @param path the path
+     * @param target the collection the rows are added to
+     */
+    void getDescendants(String path, Collection<IndexRow> target) {
+        String prefix = PathUtils.denotesRoot(path) ? "/" : path + "/";
+        int i = Collections.binarySearch(keys, prefix);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (; i < keys.size(); i++) {
+            String k = keys.get(i);
+            if (!k.startsWith(prefix)) {
+                break;
+            }
+            target.addAll(map.get(k));
+        }
+    }
+
+}
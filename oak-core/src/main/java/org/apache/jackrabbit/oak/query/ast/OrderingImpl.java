@@ -18,6 +18,9 @@
  */
 package org.apache.jackrabbit.oak.query.ast;
 
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.query.Filter.OrderEntry;
+
 /**
  * An element of an "order by" list. This includes whether this element should
  * be sorted in ascending or descending order.
@@ -50,4 +53,27 @@ public class OrderingImpl extends AstElement {
         return order == Order.DESCENDING;
     }
 
+    /**
+     * Get the sort order entry for an index, if this ordering is on a
+     * property (or the path) of the given selector.
+     *
+     * @param s the selector
+     * @return the order entry, or null if an index can not sort by it
+     */
+    public OrderEntry getOrderEntry(SelectorImpl s) {
+        if (!(operand instanceof PropertyValueImpl)) {
+            return null;
+        }
+        PropertyValueImpl p = (PropertyValueImpl) operand;
+        if (!s.getSelectorName().equals(p.getSelectorName())
+                || PathUtils.getName(p.getPropertyName()).equals("*")) {
+            return null;
+        }
+        OrderEntry e = new OrderEntry();
+        e.propertyName = p.getPropertyName();
+        e.descending = isDescending();
+        e.propertyType = p.getPropertyType();
+        return e;
+    }
+
 }
@@ -18,9 +18,12 @@
  */
 package org.apache.jackrabbit.oak.query.ast;
 
+import java.util.Collection;
+
 import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.query.index.FilterImpl;
 import org.apache.jackrabbit.oak.spi.query.Filter;
+import org.apache.jackrabbit.oak.spi.query.IndexRow;
 
 /**
  * The "issamenode(...)" join condition.
@@ -118,4 +121,39 @@ public class SameNodeJoinConditionImpl extends JoinConditionImpl {
         // nothing to do
     }
 
+    @Override
+    String getKeyJoinMethod(SelectorImpl s) {
+        if (selector1 == selector2) {
+            return null;
+        }
+        return s == selector1 || s == selector2 ? MERGE_JOIN : null;
+    }
+
+    @Override
+    void getKeys(SelectorImpl s, Collection<String> keys) {
+        String path = s.currentPath();
+        if (s == selector2 && !selector2Path.equals(".")) {
+            path = PathUtils.concat(path, selector2Path);
+        }
+        keys.add(path);
+    }
+
+    @Override
+    void getMatchingRows(SelectorImpl s, JoinTable table, Collection<IndexRow> target) {
+        if (s == selector1) {
+            String p2 = selector2.currentPath();
+            if (p2 != null) {
+                if (!selector2Path.equals(".")) {
+                    p2 = PathUtils.concat(p2, selector2Path);
+                }
+                table.get(p2, target);
+            }
+        } else {
+            String p1 = selector1.currentPath();
+            if (p1 != null) {
+                table.get(p1, target);
+            }
+        }
+    }
+
 }
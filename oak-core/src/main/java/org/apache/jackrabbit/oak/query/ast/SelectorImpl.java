@@ -38,6 +38,7 @@ import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.plugins.nodetype.NodeTypeConstants;
 import org.apache.jackrabbit.oak.plugins.nodetype.ReadOnlyNodeTypeManager;
+import org.apache.jackrabbit.oak.query.IndexPlan;
 import org.apache.jackrabbit.oak.query.Query;
 import org.apache.jackrabbit.oak.query.index.FilterImpl;
 import org.apache.jackrabbit.oak.spi.query.Cursor;
@@ -45,6 +46,7 @@ import org.apache.jackrabbit.oak.spi.query.Filter;
 import org.apache.jackrabbit.oak.spi.query.IndexRow;
 import org.apache.jackrabbit.oak.spi.query.PropertyValues;
 import org.apache.jackrabbit.oak.spi.query.QueryIndex;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.OrderedQueryIndex;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 
 import com.google.common.collect.ImmutableSet;
@@ -55,10 +57,31 @@ import com.google.common.collect.Iterables;
  */
 public class SelectorImpl extends SourceImpl {
 
+    /**
+     * The suffix of the plan key for the index used when reading the rows
+     * independently of the other selectors.
+     */
+    private static final String INDEPENDENT_PLAN = " (independent)";
+
     // TODO possibly support using multiple indexes (using index intersection / index merge)
     protected QueryIndex index;
 
     private final String nodeTypeName, selectorName;
+    private double cost;
+
+    /**
+     * Whether the index returns the rows in the sort order of the query.
+     */
+    private boolean sorted;
+
+    /**
+     * Whether the rows are read only once, independently of the other
+     * selectors (without the join condition), for a hash or merge join.
+     */
+    private boolean independent;
+    private QueryIndex independentIndex;
+    private double independentCost;
+
     private Cursor cursor;
     private IndexRow currentRow;
     private int scanCount;
@@ -109,22 +132,87 @@ public class SelectorImpl extends SourceImpl {
                 c.restrictPushDown(this);
             }
         }
-        index = query.getBestIndex(createFilter(true));
+        Filter f = createFilter(true, true);
+        IndexPlan p = query.getBestIndex(selectorName, f);
+        index = p.getIndex();
+        cost = p.getCost();
+        sorted = !f.getSortOrder().isEmpty()
+                && index instanceof OrderedQueryIndex
+                && ((OrderedQueryIndex) index).isSorted(f, query.getRootState());
+    }
+
+    /**
+     * Whether the index returns the rows in the sort order of the query.
+     *
+     * @return true if the rows do not need to be sorted
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * Prepare reading the rows independently of the other selectors, that is
+     * without the join condition.
+     */
+    void prepareIndependent() {
+        IndexPlan p = query.getBestIndex(selectorName + INDEPENDENT_PLAN,
+                createFilter(true, false));
+        independentIndex = p.getIndex();
+        independentCost = p.getCost();
+    }
+
+    /**
+     * Set whether the rows are read independently of the other selectors.
+     * The join condition is then not evaluated by this selector.
+     *
+     * @param independent whether the rows are read independently
+     */
+    void setIndependent(boolean independent) {
+        this.independent = independent;
+    }
+
+    /**
+     * Get the estimated cost of one execution of this selector.
+     *
+     * @return the cost
+     */
+    double getCost() {
+        return cost;
+    }
+
+    /**
+     * Get the estimated cost of reading the rows independently of the other
+     * selectors.
+     *
+     * @return the cost
+     */
+    double getIndependentCost() {
+        return independentCost;
+    }
+
+    @Override
+    public double getEstimatedRowCount() {
+        return independent ? independentCost : cost;
     }
 
     @Override
     public void execute(NodeState rootState) {
-        cursor = index.query(createFilter(false), rootState);
+        QueryIndex i = independent ? independentIndex : index;
+        cursor = i.query(createFilter(false, !independent), rootState);
     }
 
     @Override
     public String getPlan(NodeState rootState) {
         StringBuilder buff = new StringBuilder();
         buff.append(toString());
-        buff.append(" /* ").append(index.getPlan(createFilter(true), rootState));
+        QueryIndex i = independent ? independentIndex : index;
+        buff.append(" /* ").append(i.getPlan(createFilter(true, !independent), rootState));
         if (selectorCondition != null) {
             buff.append(" where ").append(selectorCondition);
         }
+        if (sorted) {
+            buff.append(" (sorted by index)");
+        }
         buff.append(" */");
         return buff.toString();
     }
@@ -133,14 +221,16 @@ public class SelectorImpl extends SourceImpl {
      * Create the filter condition for planning or execution.
      * 
      * @param preparing whether a filter for the prepare phase should be made 
+     * @param join whether to restrict the filter with the join condition
      * @return the filter
      */
-    private Filter createFilter(boolean preparing) {
+    private Filter createFilter(boolean preparing, boolean join) {
         FilterImpl f = new FilterImpl(this, query.getStatement());
         f.setPreparing(preparing);
+        f.setEventualConsistencyAllowed(query.isEventualConsistencyAllowed());
         validateNodeType(nodeTypeName);
         f.setNodeType(nodeTypeName);
-        if (joinCondition != null) {
+        if (joinCondition != null && join) {
             joinCondition.restrict(f);
         }
         
@@ -156,6 +246,7 @@ public class SelectorImpl extends SourceImpl {
         if (queryConstraint != null) {
             queryConstraint.restrict(f);
         }
+        f.setSortOrder(query.getSortOrder(this));
 
         return f;
     }
@@ -184,7 +275,7 @@ public class SelectorImpl extends SourceImpl {
             if (selectorCondition != null && !selectorCondition.evaluate()) {
                 continue;
             }
-            if (joinCondition != null && !joinCondition.evaluate()) {
+            if (joinCondition != null && !independent && !joinCondition.evaluate()) {
                 continue;
             }
             return true;
@@ -241,14 +332,24 @@ public class SelectorImpl extends SourceImpl {
      * @return the path
      */
     public String currentPath() {
-        return cursor == null ? null : currentRow.getPath();
+        return currentRow == null ? null : currentRow.getPath();
+    }
+
+    IndexRow getCurrentRow() {
+        return currentRow;
+    }
+
+    /**
+     * Set the current row, for a row that was read before.
+     *
+     * @param row the row, or null
+     */
+    void setCurrentRow(IndexRow row) {
+        currentRow = row;
     }
 
     public PropertyValue currentProperty(String propertyName) {
         boolean relative = propertyName.indexOf('/') >= 0;
-        if (cursor == null) {
-            return null;
-        }
         IndexRow r = currentRow;
         if (r == null) {
             return null;
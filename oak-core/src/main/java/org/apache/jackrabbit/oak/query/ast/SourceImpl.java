@@ -146,6 +146,14 @@ public abstract class SourceImpl extends AstElement {
      */
     public abstract void prepare();
 
+    /**
+     * Get the estimated number of rows of this source, after it was prepared.
+     * This is used to choose the join method.
+     *
+     * @return the estimated number of rows
+     */
+    public abstract double getEstimatedRowCount();
+
     /**
      * Execute the query. The current node is set to before the first row.
      *
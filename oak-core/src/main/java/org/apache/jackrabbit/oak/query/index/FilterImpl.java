@@ -20,6 +20,7 @@ package org.apache.jackrabbit.oak.query.index;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
@@ -81,7 +82,15 @@ public class FilterImpl implements Filter {
      */
     private boolean preparing;
 
-    // TODO support "order by"
+    /**
+     * The sort order, if the rows of this filter are the rows of the query.
+     */
+    private List<OrderEntry> sortOrder = Collections.emptyList();
+
+    /**
+     * Whether asynchronous indexes may be used.
+     */
+    private boolean eventualConsistencyAllowed;
 
     public FilterImpl(SelectorImpl selector, String queryStatement) {
         this.selector = selector;
@@ -403,4 +412,22 @@ public class FilterImpl implements Filter {
         return queryStatement;
     }
 
+    public void setSortOrder(List<OrderEntry> sortOrder) {
+        this.sortOrder = sortOrder;
+    }
+
+    @Override
+    public List<OrderEntry> getSortOrder() {
+        return sortOrder;
+    }
+
+    public void setEventualConsistencyAllowed(boolean eventualConsistencyAllowed) {
+        this.eventualConsistencyAllowed = eventualConsistencyAllowed;
+    }
+
+    @Override
+    public boolean isEventualConsistencyAllowed() {
+        return eventualConsistencyAllowed;
+    }
+
 }
@@ -38,6 +38,14 @@ public class TraversingIndex implements QueryIndex {
     @Override
     public double getCost(Filter filter, NodeState rootState) {
         String path = filter.getPath();
+        switch (filter.getPathRestriction()) {
+        case EXACT:
+        case PARENT:
+            // at most one node is read
+            return 1;
+        default:
+            break;
+        }
         // TODO estimate or read the node count
         double nodeCount = 10000000;
         if (!PathUtils.denotesRoot(path)) {
@@ -19,6 +19,7 @@
 package org.apache.jackrabbit.oak.spi.query;
 
 import java.util.Collection;
+import java.util.List;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
@@ -92,6 +93,24 @@ public interface Filter {
     @Nullable
     String getQueryStatement();
 
+    /**
+     * Get the sort order of the query. The sort order is only set if the
+     * rows of this filter are the rows of the query, that is, if the query
+     * has only one selector, and if all orderings are on properties of this
+     * selector. Otherwise, the list is empty.
+     *
+     * @return the sort order (never null)
+     */
+    List<OrderEntry> getSortOrder();
+
+    /**
+     * Whether the query accepts results that may not reflect the most recent
+     * changes, so that asynchronously updated indexes may be used.
+     *
+     * @return true if asynchronous indexes may be used
+     */
+    boolean isEventualConsistencyAllowed();
+
     /**
      * A restriction for a property.
      */
@@ -142,6 +161,35 @@ public interface Filter {
 
     }
 
+    /**
+     * An entry of the sort order.
+     */
+    class OrderEntry {
+
+        /**
+         * The name of the property, or "jcr:path" for the path.
+         */
+        public String propertyName;
+
+        /**
+         * Whether the rows are sorted in descending order.
+         */
+        public boolean descending;
+
+        /**
+         * The property type, if only values of this type are sorted (values
+         * of other types are sorted as null).
+         * If not restricted, this field is set to PropertyType.UNDEFINED.
+         */
+        public int propertyType = PropertyType.UNDEFINED;
+
+        @Override
+        public String toString() {
+            return propertyName + (descending ? " DESCENDING" : " ASCENDING");
+        }
+
+    }
+
     /**
      * The path restriction type.
      */
@@ -77,4 +77,24 @@ public interface QueryIndex {
      */
     String getIndexName();
 
+    /**
+     * An index that can return the rows in the sort order of the filter, so
+     * that the query engine does not need to sort the result.
+     */
+    public interface OrderedQueryIndex extends QueryIndex {
+
+        /**
+         * Whether the cursor returned for the given filter returns the rows
+         * in the sort order of the filter (see {@link Filter#getSortOrder()}).
+         * Rows that are equal according to the sort order may be returned
+         * in any order. A missing value sorts before all other values.
+         *
+         * @param filter the filter
+         * @param rootState root state of the current repository snapshot
+         * @return true if the rows are returned in the sort order
+         */
+        boolean isSorted(Filter filter, NodeState rootState);
+
+    }
+
 }
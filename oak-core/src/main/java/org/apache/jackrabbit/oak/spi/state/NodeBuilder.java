@@ -16,9 +16,13 @@
  */
 package org.apache.jackrabbit.oak.spi.state;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
+import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Type;
 
@@ -214,4 +218,18 @@ public interface NodeBuilder {
     @Nonnull
     NodeBuilder child(String name);
 
+    /**
+     * Create a {@link Blob} from the given input stream. Depending on the
+     * underlying node store, the content is written to the store right
+     * away, so that large binaries don't need to be kept in memory until
+     * they are committed. The input stream is closed after this method
+     * returns.
+     *
+     * @param inputStream  The input stream for the {@code Blob}
+     * @return  The {@code Blob} representing {@code inputStream}
+     * @throws IOException  If an error occurs while reading from the stream
+     */
+    @Nonnull
+    Blob createBlob(InputStream inputStream) throws IOException;
+
 }
@@ -19,6 +19,7 @@ package org.apache.jackrabbit.oak.spi.state;
 import java.io.IOException;
 import java.io.InputStream;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.apache.jackrabbit.oak.api.Blob;
@@ -57,4 +58,26 @@ public interface NodeStore {
      * @throws IOException  If an error occurs while reading from the stream
      */
     Blob createBlob(InputStream inputStream) throws IOException;
+
+    /**
+     * Get a checkpoint for the given root node state of this store, with
+     * which the state can be retrieved later on, also after a restart, as
+     * long as the store keeps it.
+     *
+     * @param root a root node state of this store
+     * @return the checkpoint, or {@code null} if the store does not support
+     *         checkpoints for this state
+     */
+    @CheckForNull
+    String checkpoint(@Nonnull NodeState root);
+
+    /**
+     * Retrieve the root node state of a checkpoint.
+     *
+     * @param checkpoint the checkpoint
+     * @return the root node state, or {@code null} if it is not available
+     *         (anymore)
+     */
+    @CheckForNull
+    NodeState retrieve(@Nonnull String checkpoint);
 }
@@ -16,8 +16,11 @@
  */
 package org.apache.jackrabbit.oak.spi.state;
 
+import java.io.InputStream;
+
 import javax.annotation.Nonnull;
 
+import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.api.Type;
 
@@ -127,6 +130,11 @@ public class ReadOnlyBuilder implements NodeBuilder {
         throw unsupported();
     }
 
+    @Override
+    public Blob createBlob(InputStream inputStream) {
+        throw unsupported();
+    }
+
     @Override
     public ReadOnlyBuilder child(String name) {
         NodeState child = state.getChildNode(name);
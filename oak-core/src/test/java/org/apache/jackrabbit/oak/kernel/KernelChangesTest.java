@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.kernel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jackrabbit.mk.api.MicroKernel;
+import org.apache.jackrabbit.mk.core.MicroKernelImpl;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KernelChangesTest {
+
+    private final AtomicInteger diffs = new AtomicInteger();
+
+    private KernelNodeStore store;
+
+    private NodeState base;
+
+    @Before
+    public void setUp() throws CommitFailedException {
+        final MicroKernel mk = new MicroKernelImpl();
+        MicroKernel kernel = (MicroKernel) Proxy.newProxyInstance(
+                MicroKernel.class.getClassLoader(),
+                new Class<?>[] { MicroKernel.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if ("diff".equals(method.getName())) {
+                            diffs.incrementAndGet();
+                        } else if ("equals".equals(method.getName())) {
+                            return proxy == args[0];
+                        }
+                        try {
+                            return method.invoke(mk, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        store = new KernelNodeStore(kernel);
+
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("a").child("b").child("c").child("d").child("e")
+                .setProperty("p", 1);
+        builder.child("m").child("n").setProperty("old", "x");
+        builder.child("r").child("s");
+        for (int i = 0; i < 100; i++) {
+            builder.child("wide").child("n" + i).setProperty("id", i);
+        }
+        base = commit(builder);
+    }
+
+    @Test
+    public void singleCommit() throws CommitFailedException {
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("a").child("b").child("c").child("d").child("e")
+                .setProperty("p", 2);
+        builder.child("m").child("n").removeProperty("old");
+        builder.child("m").setProperty("added", true);
+        builder.removeNode("r");
+        builder.child("new").child("child");
+        builder.child("wide").child("n50").setProperty("id", -1);
+        NodeState head = commit(builder);
+
+        diffs.set(0);
+        assertEquals(ImmutableSet.of(
+                "^/a/b/c/d/e/p", "-/m/n/old", "+/m/added",
+                "-/r", "+/new", "^/wide/n50/id"), compare(base, head));
+        assertEquals(1, diffs.get());
+
+        // the same result from the cache
+        assertEquals(6, compare(base, head).size());
+        assertEquals(1, diffs.get());
+    }
+
+    @Test
+    public void multipleCommits() throws CommitFailedException {
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("a").child("b").child("c").child("d").child("e")
+                .setProperty("p", 2);
+        builder.child("m").child("n").setProperty("tmp", 1);
+        commit(builder);
+        builder = store.getRoot().builder();
+        builder.child("m").child("n").removeProperty("tmp");
+        builder.child("a").child("b").child("x");
+        NodeState head = commit(builder);
+
+        diffs.set(0);
+        assertEquals(ImmutableSet.of("^/a/b/c/d/e/p", "+/a/b/x"),
+                compare(base, head));
+        // one more call for the changes below the depth limit
+        assertEquals(2, diffs.get());
+    }
+
+    @Test
+    public void cancelledOut() throws CommitFailedException {
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("m").child("n").setProperty("old", "y");
+        NodeState head = commit(builder);
+        builder = head.builder();
+        builder.child("m").child("n").setProperty("old", "x");
+        builder.child("a").setProperty("q", 1);
+        head = commit(builder);
+
+        assertEquals(ImmutableSet.of("+/a/q"), compare(base, head));
+    }
+
+    @Test
+    public void parse() {
+        KernelChanges changes = KernelChanges.parse("/a", ""
+                + "^\"/a/p\":1\n"
+                + "+\"/a/b\":{\"x\":{}}\n"
+                + "^\"/a/b/q\":null\n"
+                + "-\"/a/c\"\n"
+                + "^\"/a/d/e\":{}\n"
+                + "^\"/a/d/f/g\":[1,2]\n"
+                + ">\"/a/h\":\"/a/i/j\"\n"
+                + "^\"/x/y\":1\n");
+        assertFalse(changes.isPartial());
+        assertEquals(ImmutableSet.of("p"), changes.getProperties());
+        assertEquals(ImmutableSet.of("b", "c", "d", "h", "i"),
+                changes.getChildren().keySet());
+        KernelChanges b = changes.getChildren().get("b");
+        assertTrue(b.isPartial());
+        assertTrue(b.getProperties().isEmpty());
+        KernelChanges d = changes.getChildren().get("d");
+        assertFalse(d.isPartial());
+        assertTrue(d.getChildren().get("e").isPartial());
+        assertEquals(ImmutableSet.of("g"),
+                d.getChildren().get("f").getProperties());
+        assertTrue(changes.getChildren().get("i").getChildren().get("j").isPartial());
+    }
+
+    private NodeState commit(NodeBuilder builder) throws CommitFailedException {
+        NodeStoreBranch branch = store.branch();
+        branch.setRoot(builder.getNodeState());
+        return branch.merge();
+    }
+
+    private static Set<String> compare(NodeState before, NodeState after) {
+        Set<String> events = new TreeSet<String>();
+        after.compareAgainstBaseState(before, new Recorder("/", events));
+        return events;
+    }
+
+    private static class Recorder implements NodeStateDiff {
+
+        private final String path;
+
+        private final Set<String> events;
+
+        Recorder(String path, Set<String> events) {
+            this.path = path;
+            this.events = events;
+        }
+
+        @Override
+        public void propertyAdded(PropertyState after) {
+            events.add("+" + PathUtils.concat(path, after.getName()));
+        }
+
+        @Override
+        public void propertyChanged(PropertyState before, PropertyState after) {
+            events.add("^" + PathUtils.concat(path, after.getName()));
+        }
+
+        @Override
+        public void propertyDeleted(PropertyState before) {
+            events.add("-" + PathUtils.concat(path, before.getName()));
+        }
+
+        @Override
+        public void childNodeAdded(String name, NodeState after) {
+            events.add("+" + PathUtils.concat(path, name));
+        }
+
+        @Override
+        public void childNodeChanged(String name, NodeState before, NodeState after) {
+            after.compareAgainstBaseState(
+                    before, new Recorder(PathUtils.concat(path, name), events));
+        }
+
+        @Override
+        public void childNodeDeleted(String name, NodeState before) {
+            events.add("-" + PathUtils.concat(path, name));
+        }
+
+    }
+
+}
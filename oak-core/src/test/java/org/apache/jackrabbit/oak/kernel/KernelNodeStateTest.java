@@ -23,6 +23,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import com.google.common.collect.Lists;
 import org.apache.jackrabbit.mk.core.MicroKernelImpl;
 import org.apache.jackrabbit.oak.api.CommitFailedException;
 import org.apache.jackrabbit.oak.api.PropertyState;
@@ -38,7 +39,10 @@ import org.junit.Test;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static org.apache.jackrabbit.oak.api.Type.DOUBLE;
 import static org.apache.jackrabbit.oak.api.Type.LONG;
+import static org.apache.jackrabbit.oak.api.Type.STRING;
+import static org.apache.jackrabbit.oak.api.Type.STRINGS;
 
 public class KernelNodeStateTest {
 
@@ -119,4 +123,22 @@ public class KernelNodeStateTest {
         assertEquals(Arrays.asList("x", "y", "z"), names);
     }
 
+    @Test
+    public void testGetTypedProperty() throws CommitFailedException {
+        NodeStore store = new KernelNodeStore(new MicroKernelImpl());
+        NodeStoreBranch branch = store.branch();
+        NodeBuilder builder = branch.getRoot().builder();
+        builder.setProperty("s", "text");
+        builder.setProperty("d", 1.5d);
+        builder.setProperty("m", Arrays.asList("x", "y"), STRINGS);
+        branch.setRoot(builder.getNodeState());
+        NodeState typed = branch.merge();
+
+        assertEquals(3, typed.getPropertyCount());
+        assertEquals("text", typed.getProperty("s").getValue(STRING));
+        assertEquals(1.5d, typed.getProperty("d").getValue(DOUBLE));
+        assertEquals(Arrays.asList("x", "y"),
+                Lists.newArrayList(typed.getProperty("m").getValue(STRINGS)));
+    }
+
 }
@@ -33,6 +33,7 @@ import static org.apache.jackrabbit.oak.api.Type.LONG;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class KernelNodeStoreTest {
 
@@ -184,4 +185,28 @@ public class KernelNodeStoreTest {
         assertEquals(test, store.getRoot().getChildNode("test"));
     }
 
+    @Test
+    public void cache() throws CommitFailedException {
+        NodeState x = root.getChildNode("test").getChildNode("x");
+        assertNotNull(x);
+        assertEquals(x, store.getRoot().getChildNode("test").getChildNode("x"));
+        assertTrue(store.getCacheStats().loadCount() > 0);
+        assertTrue(store.getCacheStats().hitCount() > 0);
+
+        // unchanged nodes are copied from the previous revision
+        NodeStoreBranch branch = store.branch();
+        NodeBuilder rootBuilder = branch.getRoot().builder();
+        rootBuilder.child("other");
+        branch.setRoot(rootBuilder.getNodeState());
+        branch.merge();
+        long reused = store.getCacheReuseCount();
+        NodeState newRoot = store.getRoot();
+        assertNotNull(newRoot.getChildNode("other"));
+        NodeState newX = newRoot.getChildNode("test").getChildNode("x");
+        assertEquals(reused + 1, store.getCacheReuseCount());
+        assertEquals(x, newX);
+        assertEquals(3, newRoot.getChildNode("test").getChildNodeCount());
+        assertEquals(2, (long) newRoot.getChildNode("test").getProperty("b").getValue(LONG));
+    }
+
 }
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.kernel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jackrabbit.mk.api.MicroKernel;
+import org.apache.jackrabbit.mk.core.MicroKernelImpl;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.apache.jackrabbit.oak.api.Type.STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubtreePrefetcherTest {
+
+    private final AtomicInteger getNodes = new AtomicInteger();
+
+    private MicroKernel kernel;
+
+    @Before
+    public void setUp() {
+        final MicroKernel mk = new MicroKernelImpl();
+        StringBuilder jsop = new StringBuilder("+\"content\":{");
+        for (int i = 0; i < 10; i++) {
+            jsop.append(i == 0 ? "" : ",").append("\"p" + i + "\":{\"id\":\"p" + i + "\"");
+            for (int j = 0; j < 5; j++) {
+                jsop.append(",\"c" + j + "\":{\"id\":\"c" + j + "\"}");
+            }
+            jsop.append("}");
+        }
+        jsop.append("}");
+        mk.commit("/", jsop.toString(), null, "test data");
+        jsop = new StringBuilder("+\"big\":{\"q0\":{},\"q1\":{},\"q2\":{\"id\":\"q2\"");
+        for (int i = 0; i < 15; i++) {
+            jsop.append(",\"n" + i + "\":{}");
+        }
+        jsop.append("}}");
+        mk.commit("/", jsop.toString(), null, "test data");
+
+        // not a MicroKernelImpl, so the nodes are read as JSON
+        kernel = (MicroKernel) Proxy.newProxyInstance(
+                MicroKernel.class.getClassLoader(),
+                new Class<?>[] { MicroKernel.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if ("getNodes".equals(method.getName())) {
+                            getNodes.incrementAndGet();
+                        }
+                        try {
+                            return method.invoke(mk, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    @Test
+    public void prefetch() {
+        KernelNodeStore store = new KernelNodeStore(kernel);
+        int count = getNodes.get();
+        int nodes = traverse(store.getRoot().getChildNode("content"));
+        assertEquals(61, nodes);
+        // one call for "content", and one per child node (instead of one
+        // per node)
+        assertEquals(11, getNodes.get() - count);
+
+        // the prefetched nodes are complete
+        NodeState c = store.getRoot().getChildNode("content")
+                .getChildNode("p1").getChildNode("c2");
+        assertEquals("c2", c.getProperty("id").getValue(STRING));
+        assertEquals(0, c.getChildNodeCount());
+    }
+
+    @Test
+    public void childNodeLimit() {
+        KernelNodeStore store = new KernelNodeStore(kernel);
+        NodeState big = store.getRoot().getChildNode("big");
+        traverse(big);
+        NodeState q2 = big.getChildNode("q2");
+        assertEquals("q2", q2.getProperty("id").getValue(STRING));
+        assertEquals(15, q2.getChildNodeCount());
+        int n = 0;
+        for (ChildNodeEntry entry : q2.getChildNodeEntries()) {
+            assertTrue(entry.getName().startsWith("n"));
+            n++;
+        }
+        assertEquals(15, n);
+    }
+
+    @Test
+    public void depth() {
+        SubtreePrefetcher prefetcher = new SubtreePrefetcher(3, 1000);
+        assertEquals(0, prefetcher.getDepth("/a/b"));
+        prefetcher.loaded("/a", 10);
+        assertEquals(0, prefetcher.getDepth("/a/b"));
+        prefetcher.traversed("/a");
+        // 1 + 10 + 100 nodes
+        assertEquals(2, prefetcher.getDepth("/a/b"));
+        assertEquals(10, prefetcher.getChildNodeLimit("/a/b"));
+
+        // too many child nodes
+        prefetcher.loaded("/a/b", 2000);
+        assertEquals(0, prefetcher.getDepth("/a/c"));
+
+        // detected by loading child nodes one by one
+        prefetcher.loaded("/x/1", 0);
+        prefetcher.loaded("/x/2", 0);
+        assertEquals(0, prefetcher.getDepth("/x/4"));
+        prefetcher.loaded("/x/3", 0);
+        assertEquals(2, prefetcher.getDepth("/x/4"));
+
+        // disabled
+        assertEquals(0, new SubtreePrefetcher(0, 1000).getDepth("/x/4"));
+    }
+
+    private static int traverse(NodeState node) {
+        int count = 1;
+        node.getProperties().iterator().hasNext();
+        for (ChildNodeEntry entry : node.getChildNodeEntries()) {
+            count += traverse(entry.getNodeState());
+        }
+        return count;
+    }
+
+}
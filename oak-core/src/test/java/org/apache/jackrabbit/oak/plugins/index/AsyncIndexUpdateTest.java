@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_CHECKPOINT_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.ASYNC_STATE_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NODE_TYPE;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROPERTY_NAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.apache.jackrabbit.mk.core.MicroKernelImpl;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.kernel.KernelNodeStore;
+import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexHookProvider;
+import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexLookup;
+import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexProvider;
+import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeStore;
+import org.apache.jackrabbit.oak.query.ast.Operator;
+import org.apache.jackrabbit.oak.query.index.FilterImpl;
+import org.apache.jackrabbit.oak.spi.query.PropertyValues;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+/**
+ * Tests the asynchronous index updates.
+ */
+public class AsyncIndexUpdateTest {
+
+    private final NodeStore store = new MemoryNodeStore();
+
+    private final IndexHookProvider provider = new Property2IndexHookProvider();
+
+    private final IndexHookManager hook = IndexHookManager.of(provider);
+
+    @Test
+    public void async() throws Exception {
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("oak:index").child("foo")
+                .setProperty(JCR_PRIMARYTYPE, INDEX_DEFINITIONS_NODE_TYPE, Type.NAME)
+                .setProperty("type", "p2")
+                .setProperty("propertyNames", "foo")
+                .setProperty(REINDEX_PROPERTY_NAME, true)
+                .setProperty(ASYNC_PROPERTY_NAME, true);
+        builder.child("a").setProperty("foo", "abc");
+        commit(builder);
+
+        // not updated within the commit
+        NodeState root = store.getRoot();
+        assertTrue(IndexUtils.isAsyncType(root, "p2"));
+        NodeState definition = root.getChildNode("oak:index").getChildNode("foo");
+        assertFalse(definition.hasChildNode(":index"));
+        assertEquals(-1, AsyncIndexUpdate.getLag(definition));
+
+        AsyncIndexUpdate async = new AsyncIndexUpdate(store, provider);
+        assertEquals(-1, async.getLag());
+        async.run();
+        assertTrue(async.getLag() >= 0);
+        root = store.getRoot();
+        definition = root.getChildNode("oak:index").getChildNode("foo");
+        assertNotNull(definition.getProperty(ASYNC_CHECKPOINT_PROPERTY_NAME));
+        assertTrue(AsyncIndexUpdate.getLag(definition) >= 0);
+        assertEquals(ImmutableSet.of("a"), find(root, "abc"));
+
+        builder = store.getRoot().builder();
+        builder.child("b").setProperty("foo", "abc");
+        builder.child("a").removeProperty("foo");
+        commit(builder);
+        assertEquals(ImmutableSet.of("a"), find(store.getRoot(), "abc"));
+
+        async.run();
+        root = store.getRoot();
+        assertEquals(ImmutableSet.of("b"), find(root, "abc"));
+
+        // only used by queries that allow eventual consistency
+        FilterImpl filter = new FilterImpl(null, null);
+        filter.restrictProperty("foo", Operator.EQUAL,
+                PropertyValues.newString("abc"));
+        QueryIndex index = new Property2IndexProvider().getQueryIndexes(root).get(0);
+        assertTrue(Double.isInfinite(index.getCost(filter, root)));
+        filter.setEventualConsistencyAllowed(true);
+        assertEquals(1, index.getCost(filter, root), 0);
+
+        // nothing changed, so nothing is written
+        async.run();
+        assertSame(root, store.getRoot());
+
+        // if not all indexes of the type are async, all are synchronous
+        builder = store.getRoot().builder();
+        builder.child("oak:index").child("bar")
+                .setProperty(JCR_PRIMARYTYPE, INDEX_DEFINITIONS_NODE_TYPE, Type.NAME)
+                .setProperty("type", "p2")
+                .setProperty("propertyNames", "bar");
+        builder.child("c").setProperty("foo", "abc");
+        commit(builder);
+        root = store.getRoot();
+        assertFalse(IndexUtils.isAsyncType(root, "p2"));
+        assertEquals(ImmutableSet.of("b", "c"), find(root, "abc"));
+    }
+
+    @Test
+    public void restart() throws Exception {
+        NodeStore store = new KernelNodeStore(new MicroKernelImpl());
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("oak:index").child("foo")
+                .setProperty(JCR_PRIMARYTYPE, INDEX_DEFINITIONS_NODE_TYPE, Type.NAME)
+                .setProperty("type", "p2")
+                .setProperty("propertyNames", "foo")
+                .setProperty(REINDEX_PROPERTY_NAME, true)
+                .setProperty(ASYNC_PROPERTY_NAME, true);
+        builder.child("a").setProperty("foo", "abc");
+        commit(store, builder);
+        new AsyncIndexUpdate(store, provider).run();
+        NodeState root = store.getRoot();
+        NodeState definition = root.getChildNode("oak:index").getChildNode("foo");
+        assertNotNull(definition.getProperty(ASYNC_STATE_PROPERTY_NAME));
+        assertEquals(ImmutableSet.of("a"), find(root, "abc"));
+
+        // after a restart, only the changes since the indexed state are
+        // indexed, so nothing is written if there are none
+        new AsyncIndexUpdate(store, provider).run();
+        assertSame(root, store.getRoot());
+
+        builder = store.getRoot().builder();
+        builder.child("b").setProperty("foo", "abc");
+        commit(store, builder);
+        new AsyncIndexUpdate(store, provider).run();
+        assertEquals(ImmutableSet.of("a", "b"), find(store.getRoot(), "abc"));
+
+        // re-index if the indexed state is not available
+        builder = store.getRoot().builder();
+        builder.child("oak:index").child("foo").setProperty(
+                ASYNC_STATE_PROPERTY_NAME, "00000000");
+        builder.child("oak:index").child("foo").removeNode(":index");
+        builder.child("c").setProperty("foo", "abc");
+        commit(store, builder);
+        new AsyncIndexUpdate(store, provider).run();
+        root = store.getRoot();
+        assertEquals(ImmutableSet.of("a", "b", "c"), find(root, "abc"));
+        assertFalse("00000000".equals(root.getChildNode("oak:index").getChildNode("foo")
+                .getProperty(ASYNC_STATE_PROPERTY_NAME).getValue(Type.STRING)));
+    }
+
+    private void commit(NodeBuilder builder) throws CommitFailedException {
+        commit(store, builder);
+    }
+
+    private void commit(NodeStore store, NodeBuilder builder)
+            throws CommitFailedException {
+        NodeStoreBranch branch = store.branch();
+        branch.setRoot(hook.processCommit(
+                branch.getBase(), builder.getNodeState()));
+        branch.merge();
+    }
+
+    private static Set<String> find(NodeState root, String value) {
+        Property2IndexLookup lookup = new Property2IndexLookup(root);
+        return Sets.newHashSet(lookup.query(
+                null, "foo", PropertyValues.newString(value)));
+    }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index;
+
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.INDEX_DEFINITIONS_NODE_TYPE;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PARALLEL_PROPERTY_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PROGRESS_NAME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexHookProvider;
+import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexLookup;
+import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexMerger;
+import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeStore;
+import org.apache.jackrabbit.oak.spi.query.PropertyValues;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+/**
+ * Tests re-indexing in parallel.
+ */
+public class ParallelReindexTest {
+
+    private final NodeStore store = new MemoryNodeStore();
+
+    private final IndexHookProvider provider = new Property2IndexHookProvider();
+
+    private final IndexHookManager hook = IndexHookManager.of(provider);
+
+    @Test
+    public void reindex() throws Exception {
+        NodeBuilder builder = store.getRoot().builder();
+        builder.setProperty("foo", "abc");
+        builder.child("a").setProperty("foo", "abc");
+        builder.child("a").child("b").setProperty("foo", "xyz");
+        builder.child("a").child("b").child("c").setProperty("foo", "abc");
+        builder.child("a").child("b").child("c").child("d").setProperty("foo", "abc");
+        builder.child("e").child("f").setProperty("foo", "abc");
+        for (int i = 0; i < 10; i++) {
+            builder.child("g").child("n" + i).child("x").setProperty("foo", "abc");
+        }
+        commit(builder);
+
+        builder = store.getRoot().builder();
+        builder.child("oak:index").child("foo")
+                .setProperty(JCR_PRIMARYTYPE, INDEX_DEFINITIONS_NODE_TYPE, Type.NAME)
+                .setProperty("type", "p2")
+                .setProperty("propertyNames", "foo")
+                .setProperty(REINDEX_PARALLEL_PROPERTY_NAME, true);
+        commit(builder);
+
+        // not indexed within the commit
+        NodeState root = store.getRoot();
+        assertFalse(new Property2IndexLookup(root).isIndexed("foo", "/"));
+
+        ParallelReindex reindex = new ParallelReindex(store, provider,
+                Collections.<IndexMerger> singletonList(new Property2IndexMerger()), 2, 2);
+        reindex.run();
+        assertEquals(reindex.getPartitionCount(), reindex.getCompletedCount());
+        assertTrue(reindex.getPartitionCount() > 10);
+
+        root = store.getRoot();
+        NodeState definition = root.getChildNode("oak:index").getChildNode("foo");
+        assertNull(definition.getChildNode(REINDEX_PROGRESS_NAME));
+        assertNull(definition.getProperty(REINDEX_PARALLEL_PROPERTY_NAME));
+        Set<String> expected = Sets.newHashSet("", "a", "a/b/c", "a/b/c/d", "e/f");
+        for (int i = 0; i < 10; i++) {
+            expected.add("g/n" + i + "/x");
+        }
+        assertEquals(expected, find(root, "abc"));
+        assertEquals(ImmutableSet.of("a/b"), find(root, "xyz"));
+
+        // nothing left to do
+        reindex.run();
+        assertSame(root, store.getRoot());
+
+        // the index is updated by the commits as usual
+        builder = store.getRoot().builder();
+        builder.child("a").child("b").setProperty("foo", "abc");
+        commit(builder);
+        assertTrue(find(store.getRoot(), "xyz").isEmpty());
+        assertTrue(find(store.getRoot(), "abc").contains("a/b"));
+    }
+
+    @Test
+    public void otherIndexesOfSameType() throws Exception {
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("a").setProperty("foo", "abc");
+        builder.child("oak:index").child("bar")
+                .setProperty(JCR_PRIMARYTYPE, INDEX_DEFINITIONS_NODE_TYPE, Type.NAME)
+                .setProperty("type", "p2")
+                .setProperty("propertyNames", "bar");
+        commit(builder);
+
+        builder = store.getRoot().builder();
+        builder.child("oak:index").child("foo")
+                .setProperty(JCR_PRIMARYTYPE, INDEX_DEFINITIONS_NODE_TYPE, Type.NAME)
+                .setProperty("type", "p2")
+                .setProperty("propertyNames", "foo")
+                .setProperty(REINDEX_PARALLEL_PROPERTY_NAME, true);
+        commit(builder);
+
+        // the hooks must only see the index that is re-indexed
+        final Set<String> seen = Sets.newHashSet();
+        IndexHookProvider recording = new IndexHookProvider() {
+            @Override
+            public List<? extends IndexHook> getIndexHooks(
+                    String type, NodeBuilder builder) {
+                Iterables.addAll(seen,
+                        builder.child("oak:index").getChildNodeNames());
+                return provider.getIndexHooks(type, builder);
+            }
+        };
+        ParallelReindex reindex = new ParallelReindex(store, recording,
+                Collections.<IndexMerger> singletonList(new Property2IndexMerger()), 2, 2);
+        reindex.run();
+        assertEquals(ImmutableSet.of("foo"), seen);
+        assertEquals(ImmutableSet.of("a"), find(store.getRoot(), "abc"));
+    }
+
+    @Test(expected = CommitFailedException.class)
+    public void unsupportedType() throws Exception {
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("oak:index").child("foo")
+                .setProperty(JCR_PRIMARYTYPE, INDEX_DEFINITIONS_NODE_TYPE, Type.NAME)
+                .setProperty("type", "p2")
+                .setProperty("propertyNames", "foo")
+                .setProperty(REINDEX_PARALLEL_PROPERTY_NAME, true);
+        commit(builder);
+        new ParallelReindex(store, provider,
+                Collections.<IndexMerger> emptyList()).reindex("foo");
+    }
+
+    private void commit(NodeBuilder builder) throws CommitFailedException {
+        NodeStoreBranch branch = store.branch();
+        branch.setRoot(hook.processCommit(
+                branch.getBase(), builder.getNodeState()));
+        branch.merge();
+    }
+
+    private static Set<String> find(NodeState root, String value) {
+        Property2IndexLookup lookup = new Property2IndexLookup(root);
+        return Sets.newHashSet(lookup.query(
+                null, "foo", PropertyValues.newString(value)));
+    }
+
+}
@@ -17,18 +17,23 @@
 package org.apache.jackrabbit.oak.plugins.index.p2;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.Arrays;
 import java.util.Set;
 
+import org.apache.jackrabbit.mk.core.MicroKernelImpl;
 import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.kernel.KernelNodeStore;
 import org.apache.jackrabbit.oak.plugins.index.IndexHook;
+import org.apache.jackrabbit.oak.plugins.index.IndexHookManager;
 import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeState;
 import org.apache.jackrabbit.oak.spi.query.PropertyValues;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
 import org.junit.Test;
 
 import com.google.common.collect.ImmutableSet;
@@ -84,6 +89,98 @@ public class Property2IndexTest {
         assertTrue("cost: " + cost, cost >= MANY);
     }
     
+    @Test
+    public void testStatistics() throws Exception {
+        NodeState root = MemoryNodeState.EMPTY_NODE;
+
+        NodeBuilder builder = root.builder();
+        builder.child("oak:index").child("foo")
+                .setProperty("jcr:primaryType", "oak:queryIndexDefinition", Type.NAME)
+                .setProperty("type", "p2")
+                .setProperty("propertyNames", "foo");
+        NodeState before = builder.getNodeState();
+
+        builder = before.builder();
+        builder.child("a").setProperty("foo", "abc");
+        builder.child("b").setProperty("foo", Arrays.asList("abc", "def"), Type.STRINGS);
+        for (int i = 0; i < MANY; i++) {
+            builder.child("n" + i).setProperty("foo", "xyz");
+        }
+        NodeState after = builder.getNodeState();
+
+        IndexHook p = new Property2IndexDiff(builder);
+        after.compareAgainstBaseState(before, p);
+        p.apply();
+        p.close();
+
+        // the statistics are calculated in the background
+        Property2IndexStatistics statistics = new Property2IndexStatistics(null);
+        assertTrue(statistics.refresh(builder));
+        assertFalse(statistics.refresh(builder));
+        Property2IndexLookup lookup = new Property2IndexLookup(builder.getNodeState());
+        assertEquals(MANY, lookup.getCost("foo", PropertyValues.newString("xyz")), 0);
+        assertEquals(2, lookup.getCost("foo", PropertyValues.newString("abc")), 0);
+        assertEquals(0, lookup.getCost("foo", PropertyValues.newString("ghi")), 0);
+        assertEquals(MANY + 3, lookup.getCost("foo", null), 0);
+
+        // and updated with the changes
+        before = builder.getNodeState();
+        builder = before.builder();
+        builder.removeNode("a");
+        builder.child("n0").setProperty("foo", "abc");
+        builder.child("c").setProperty("foo", "xyz");
+        builder.child("d").setProperty("foo", "xyz");
+        after = builder.getNodeState();
+        p = new Property2IndexDiff(builder);
+        after.compareAgainstBaseState(before, p);
+        p.apply();
+        p.close();
+        assertTrue(statistics.refresh(builder));
+        lookup = new Property2IndexLookup(builder.getNodeState());
+        assertEquals(MANY + 1, lookup.getCost("foo", PropertyValues.newString("xyz")), 0);
+        assertEquals(2, lookup.getCost("foo", PropertyValues.newString("abc")), 0);
+        assertEquals(MANY + 4, lookup.getCost("foo", null), 0);
+    }
+
+    @Test
+    public void concurrentCommits() throws Exception {
+        KernelNodeStore store = new KernelNodeStore(new MicroKernelImpl());
+        store.setHook(IndexHookManager.of(new Property2IndexHookProvider()));
+        NodeStoreBranch branch = store.branch();
+        NodeBuilder builder = branch.getRoot().builder();
+        builder.child("oak:index").child("foo")
+                .setProperty("jcr:primaryType", "oak:queryIndexDefinition", Type.NAME)
+                .setProperty("type", "p2")
+                .setProperty("propertyNames", "foo");
+        builder.child("x").setProperty("foo", "x");
+        branch.setRoot(builder.getNodeState());
+        branch.merge();
+
+        // two sessions change the same index, by a different number of
+        // entries, and commit at the same time
+        NodeStoreBranch b1 = store.branch();
+        NodeStoreBranch b2 = store.branch();
+        builder = b1.getRoot().builder();
+        builder.child("a").setProperty("foo", "a");
+        builder.child("b").setProperty("foo", "b");
+        b1.setRoot(builder.getNodeState());
+        builder = b2.getRoot().builder();
+        builder.child("c").setProperty("foo", "c");
+        b2.setRoot(builder.getNodeState());
+        b1.merge();
+        b2.merge();
+
+        NodeState root = store.getRoot();
+        Property2IndexLookup lookup = new Property2IndexLookup(root);
+        assertEquals(ImmutableSet.of("a"), find(lookup, "foo", "a"));
+        assertEquals(ImmutableSet.of("c"), find(lookup, "foo", "c"));
+        builder = root.builder();
+        Property2IndexStatistics statistics = new Property2IndexStatistics(store);
+        assertTrue(statistics.refresh(builder));
+        assertEquals(4, new Property2IndexLookup(builder.getNodeState())
+                .getCost("foo", null), 0);
+    }
+
     private static Set<String> find(Property2IndexLookup lookup, String name, String value) {
         return Sets.newHashSet(lookup.query(null, name, value == null ? null : PropertyValues.newString(value)));
     }
@@ -16,6 +16,13 @@
  */
 package org.apache.jackrabbit.oak.plugins.index.p2.strategy;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeState;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
@@ -83,6 +90,81 @@ public class ContentMirrorStoreStrategyTest {
         Assert.assertEquals(0, index.getChildNodeCount());
     }
 
+    /**
+     * Tests that the statistics (the number of matches of the keys with many
+     * matches, and the total number of entries) are calculated from the
+     * changes, and are not changed by adding or removing entries.
+     */
+    @Test
+    public void testStatistics() throws Exception {
+        IndexStoreStrategy store = new ContentMirrorStoreStrategy();
+
+        NodeState root = MemoryNodeState.EMPTY_NODE;
+        NodeBuilder index = root.builder();
+
+        store.insert(index, "x", false, Sets.newHashSet("/", "a/b", "c"));
+        store.insert(index, "y", false, Sets.newHashSet("a"));
+        Assert.assertFalse(index.hasChildNode(ContentMirrorStoreStrategy.STATISTICS));
+
+        // missing statistics are calculated
+        Assert.assertTrue(store.updateStatistics(index, null));
+        Assert.assertEquals(4, store.count(index.getNodeState(), null, 1));
+        Assert.assertFalse(store.updateStatistics(index, null));
+        NodeState before = index.getNodeState();
+
+        // only the changes are counted
+        Set<String> paths = Sets.newHashSet();
+        for (int i = 0; i < ContentMirrorStoreStrategy.MIN_KEY_COUNT; i++) {
+            paths.add("n" + i + "/m");
+        }
+        store.insert(index, "z", false, paths);
+        store.insert(index, "x", false, Sets.newHashSet("c", "d"));
+        store.remove(index, "x", Sets.newHashSet("a/b", "e"));
+        store.remove(index, "y", Sets.newHashSet("a"));
+        Assert.assertEquals(4, store.count(index.getNodeState(), null, 1));
+        Assert.assertTrue(store.updateStatistics(index, before));
+        Assert.assertEquals(103, store.count(index.getNodeState(), null, 1));
+        checkCount(index, "z", ContentMirrorStoreStrategy.MIN_KEY_COUNT);
+        Assert.assertEquals(100, store.count(index.getNodeState(),
+                Collections.singletonList("z"), 1));
+        Assert.assertEquals(3, store.count(index.getNodeState(),
+                Arrays.asList("x", "y"), 10));
+        Assert.assertFalse(store.updateStatistics(index, index.getNodeState()));
+        before = index.getNodeState();
+
+        // keys with few matches are no longer counted
+        store.remove(index, "z", Sets.newHashSet("n0/m"));
+        store.remove(index, "x", Sets.newHashSet("/"));
+        Assert.assertTrue(store.updateStatistics(index, before));
+        Assert.assertEquals(101, store.count(index.getNodeState(), null, 1));
+        Assert.assertNull(index.child(ContentMirrorStoreStrategy.STATISTICS)
+                .child(ContentMirrorStoreStrategy.KEY_COUNTS).getProperty("z"));
+    }
+
+    @Test
+    public void testUnique() throws Exception {
+        IndexStoreStrategy store = new ContentMirrorStoreStrategy();
+
+        NodeState root = MemoryNodeState.EMPTY_NODE;
+        NodeBuilder index = root.builder();
+
+        store.insert(index, "x", true, Sets.newHashSet("a"));
+        store.insert(index, "x", true, Sets.newHashSet("a"));
+        try {
+            store.insert(index, "x", true, Sets.newHashSet("b"));
+            Assert.fail();
+        } catch (CommitFailedException e) {
+            // expected
+        }
+    }
+
+    private static void checkCount(NodeBuilder index, String key, long count) {
+        PropertyState p = index.child(ContentMirrorStoreStrategy.STATISTICS)
+                .child(ContentMirrorStoreStrategy.KEY_COUNTS).getProperty(key);
+        Assert.assertNotNull(p);
+        Assert.assertEquals(count, p.getValue(Type.LONG).longValue());
+    }
+
     private void checkPath(NodeBuilder node, String key, String path,
             boolean checkMatch) {
         path = PathUtils.concat(key, path);
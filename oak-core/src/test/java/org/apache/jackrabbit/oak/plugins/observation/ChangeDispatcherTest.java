@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.observation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.apache.jackrabbit.mk.core.MicroKernelImpl;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.namepath.NamePathMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests the {@link ChangeDispatcher}.
+ */
+public class ChangeDispatcherTest {
+
+    private static final int ALL_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED
+            | Event.PROPERTY_ADDED | Event.PROPERTY_REMOVED
+            | Event.PROPERTY_CHANGED;
+
+    // like the repository, the dispatcher and the listeners share one thread
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private ContentSession session;
+
+    @Before
+    public void setUp() {
+        session = new Oak(new MicroKernelImpl()).createContentSession();
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty(ChangeProcessor.QUEUE_SIZE);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void dispatch() throws Exception {
+        ObservationManagerImpl m1 = newObservationManager();
+        ObservationManagerImpl m2 = newObservationManager();
+        assertSame(m1.getChangeDispatcher(), m2.getChangeDispatcher());
+        ChangeDispatcher dispatcher = m1.getChangeDispatcher();
+
+        Listener all = new Listener();
+        Listener a = new Listener();
+        Listener b = new Listener();
+        Listener shallow = new Listener();
+        m1.addEventListener(all, ALL_TYPES, "/", true, null, null, false);
+        m1.addEventListener(a, ALL_TYPES, "/a", true, null, null, false);
+        m2.addEventListener(b, ALL_TYPES, "/b", true, null, null, false);
+        m2.addEventListener(shallow, ALL_TYPES, "/a", false, null, null, false);
+        assertEquals(4, dispatcher.getListenerCount());
+
+        Root root = session.getLatestRoot();
+        root.getTree("/").addChild("a").addChild("x").setProperty("p", 1);
+        root.getTree("/").addChild("b");
+        root.commit();
+        root.getTree("/b").setProperty("q", 1);
+        root.commit();
+
+        all.await(ImmutableSet.of("/a", "/a/x", "/a/x/p", "/b", "/b/q"));
+        a.await(ImmutableSet.of("/a/x", "/a/x/p"));
+        b.await(ImmutableSet.of("/b/q"));
+        shallow.await(ImmutableSet.of("/a/x"));
+
+        m1.dispose();
+        assertEquals(2, dispatcher.getListenerCount());
+        m2.dispose();
+        assertEquals(0, dispatcher.getListenerCount());
+    }
+
+    @Test
+    public void fullQueue() throws Exception {
+        System.setProperty(ChangeProcessor.QUEUE_SIZE, "2");
+        ObservationManagerImpl manager = newObservationManager();
+        ChangeDispatcher dispatcher = manager.getChangeDispatcher();
+        Listener listener = new Listener();
+        manager.addEventListener(listener, ALL_TYPES, "/", true, null, null, false);
+
+        // the commits are dispatched once the executor is released
+        CountDownLatch release = block();
+        Root root = session.getLatestRoot();
+        for (int i = 0; i <= 5; i++) {
+            root.getTree("/").setProperty("p" + i, i);
+            root.commit();
+        }
+        // the events are delivered after this, on the same thread
+        CountDownLatch deliver = block();
+        release.countDown();
+        long end = System.currentTimeMillis() + 2000;
+        while (dispatcher.getMergeCount() < 4
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        // the dispatcher did not wait for the blocked listener
+        assertEquals(2, dispatcher.getQueueLength());
+        assertEquals(2, dispatcher.getMaxQueueLength());
+        assertEquals(4, dispatcher.getMergeCount());
+
+        // no events are lost
+        deliver.countDown();
+        listener.await(ImmutableSet.of("/p0", "/p1", "/p2", "/p3", "/p4", "/p5"));
+        assertEquals(0, dispatcher.getQueueLength());
+        manager.dispose();
+    }
+
+    /**
+     * Block the executor until the returned latch is released.
+     *
+     * @return the latch
+     */
+    private CountDownLatch block() {
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return release;
+    }
+
+    private ObservationManagerImpl newObservationManager() {
+        return new ObservationManagerImpl(
+                session.getLatestRoot(), NamePathMapper.DEFAULT, executor);
+    }
+
+    private static class Listener implements EventListener {
+
+        private final Set<String> paths = new HashSet<String>();
+
+        @Override
+        public void onEvent(EventIterator events) {
+            synchronized (paths) {
+                while (events.hasNext()) {
+                    try {
+                        paths.add(events.nextEvent().getPath());
+                    } catch (RepositoryException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                paths.notifyAll();
+            }
+        }
+
+        /**
+         * Wait until the events of the given paths are received, and check
+         * that there are no others.
+         */
+        void await(Set<String> expected) throws InterruptedException {
+            long end = System.currentTimeMillis() + 2000;
+            synchronized (paths) {
+                while (!paths.containsAll(expected)) {
+                    long wait = end - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    paths.wait(wait);
+                }
+                assertEquals(expected, paths);
+            }
+        }
+
+    }
+
+}
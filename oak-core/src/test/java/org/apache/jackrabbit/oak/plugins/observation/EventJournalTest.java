@@ -0,0 +1,222 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.observation;
+
+import static org.apache.jackrabbit.oak.plugins.observation.EventJournal.BUCKET_SIZE;
+import static org.apache.jackrabbit.oak.plugins.observation.EventJournal.EVENTS;
+import static org.apache.jackrabbit.oak.plugins.observation.EventJournal.JOURNAL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jackrabbit.mk.api.MicroKernel;
+import org.apache.jackrabbit.mk.core.MicroKernelImpl;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.kernel.KernelNodeStore;
+import org.apache.jackrabbit.oak.plugins.observation.EventJournal.Entry;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link EventJournal}.
+ */
+public class EventJournalTest {
+
+    private final MicroKernel kernel = new MicroKernelImpl();
+
+    private KernelNodeStore store;
+
+    @Before
+    public void setUp() {
+        store = new KernelNodeStore(kernel);
+        store.setHook(new EventJournal());
+    }
+
+    @Test
+    public void record() throws CommitFailedException {
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("a").child("b").child("c");
+        builder.setProperty("p", 1);
+        builder.child(":hidden").setProperty("x", 1);
+        commit(builder);
+        builder = store.getRoot().builder();
+        builder.child("a").child("b").setProperty("q", "x");
+        builder.removeProperty("p");
+        builder.child("a").removeNode("b");
+        commit(builder);
+        builder = store.getRoot().builder();
+        builder.child(":hidden").setProperty("x", 2);
+        commit(builder);
+
+        List<Entry> entries = EventJournal.read(store.getRoot(), null, 10);
+        assertEquals(2, entries.size());
+        assertEquals("[4 /p, 1 /a]",
+                entries.get(0).getEvents().toString());
+        assertEquals("[8 /p, 2 /a/b]",
+                entries.get(1).getEvents().toString());
+        assertTrue(entries.get(0).getCursor().compareTo(
+                entries.get(1).getCursor()) < 0);
+    }
+
+    @Test
+    public void readFromCursor() throws CommitFailedException {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            NodeBuilder builder = store.getRoot().builder();
+            builder.setProperty("p", i);
+            commit(builder);
+        }
+
+        // read in batches, as after a restart
+        store = new KernelNodeStore(kernel);
+        List<Entry> entries = EventJournal.read(
+                store.getRoot(), EventJournal.getCursor(start), 3);
+        assertEquals(3, entries.size());
+        assertEquals("[4 /p]", entries.get(0).getEvents().toString());
+        assertTrue(entries.get(0).getTime() >= start);
+        entries = EventJournal.read(
+                store.getRoot(), entries.get(2).getCursor(), 3);
+        assertEquals(2, entries.size());
+        assertEquals("[16 /p]", entries.get(1).getEvents().toString());
+        entries = EventJournal.read(
+                store.getRoot(), entries.get(1).getCursor(), 3);
+        assertTrue(entries.isEmpty());
+    }
+
+    @Test
+    public void compact() throws Exception {
+        NodeBuilder builder = store.getRoot().builder();
+        builder.setProperty("p", 1);
+        commit(builder);
+        Thread.sleep(10);
+        long time = System.currentTimeMillis();
+        builder = store.getRoot().builder();
+        builder.setProperty("p", 2);
+        commit(builder);
+
+        EventJournalCompaction compaction = new EventJournalCompaction(store);
+        assertEquals(1, compaction.compact(time));
+        assertEquals(0, compaction.compact(time));
+        List<Entry> entries = EventJournal.read(store.getRoot(), null, 10);
+        assertEquals(1, entries.size());
+        assertTrue(entries.get(0).getTime() >= time);
+    }
+
+    @Test
+    public void buckets() throws CommitFailedException {
+        // entries of the last three hours
+        long now = System.currentTimeMillis();
+        NodeBuilder builder = store.getRoot().builder();
+        NodeBuilder journal = builder.child(JOURNAL);
+        for (int i = 3; i > 0; i--) {
+            long time = now - i * BUCKET_SIZE;
+            journal.child(EventJournal.getBucket(time))
+                    .child(EventJournal.getCursor(time) + "-0000-00000000")
+                    .setProperty(EVENTS, Collections.singletonList("1 /n" + i),
+                            Type.STRINGS);
+        }
+        commit(builder);
+        assertEquals(3, store.getRoot().getChildNode(JOURNAL).getChildNodeCount());
+
+        List<Entry> entries = EventJournal.read(store.getRoot(), null, 10);
+        assertEquals(3, entries.size());
+        assertEquals("[1 /n3]", entries.get(0).getEvents().toString());
+        assertEquals("[1 /n1]", entries.get(2).getEvents().toString());
+        entries = EventJournal.read(
+                store.getRoot(), entries.get(0).getCursor(), 1);
+        assertEquals(1, entries.size());
+        assertEquals("[1 /n2]", entries.get(0).getEvents().toString());
+
+        // the oldest bucket is removed, and the entry of the second one
+        EventJournalCompaction compaction = new EventJournalCompaction(store);
+        assertEquals(2, compaction.compact(now - 2 * BUCKET_SIZE + 1));
+        assertEquals(0, compaction.compact(now - 2 * BUCKET_SIZE + 1));
+        assertEquals(2, store.getRoot().getChildNode(JOURNAL).getChildNodeCount());
+        entries = EventJournal.read(store.getRoot(), null, 10);
+        assertEquals(1, entries.size());
+        assertEquals("[1 /n1]", entries.get(0).getEvents().toString());
+    }
+
+    @Test
+    public void concurrentCommitsAcrossBuckets() throws CommitFailedException {
+        final long[] time = { 10 * BUCKET_SIZE - 10 };
+        EventJournal journal = new EventJournal() {
+            @Override
+            long now() {
+                return time[0];
+            }
+        };
+        store.setHook(journal);
+        journal.initialize(store);
+
+        // the first commits of the next hour
+        time[0] = 10 * BUCKET_SIZE + 10;
+        concurrentCommits("a", "b");
+
+        // the bucket of the hour after was not created in time
+        time[0] = 11 * BUCKET_SIZE + 10;
+        concurrentCommits("c", "d");
+
+        List<Entry> entries = EventJournal.read(store.getRoot(), null, 10);
+        assertEquals(4, entries.size());
+        assertEquals("[1 /a]", entries.get(0).getEvents().toString());
+        assertEquals("[1 /d]", entries.get(3).getEvents().toString());
+        entries = EventJournal.read(
+                store.getRoot(), entries.get(1).getCursor(), 10);
+        assertEquals(2, entries.size());
+        assertEquals("[1 /c]", entries.get(0).getEvents().toString());
+
+        // only the bucket of the next hour is created
+        new EventJournalCompaction(store).createBuckets(time[0]);
+        assertEquals(Arrays.asList(EventJournal.getBucket(9 * BUCKET_SIZE),
+                EventJournal.getBucket(10 * BUCKET_SIZE),
+                EventJournal.getBucket(12 * BUCKET_SIZE)),
+                EventJournal.getBuckets(store.getRoot().getChildNode(JOURNAL)));
+    }
+
+    /**
+     * Commit the given added nodes in separate branches of the same base
+     * revision, as concurrent sessions do.
+     */
+    private void concurrentCommits(String... names) throws CommitFailedException {
+        List<NodeStoreBranch> branches = new ArrayList<NodeStoreBranch>();
+        for (String name : names) {
+            NodeStoreBranch branch = store.branch();
+            NodeBuilder builder = branch.getRoot().builder();
+            builder.child(name);
+            branch.setRoot(builder.getNodeState());
+            branches.add(branch);
+        }
+        for (NodeStoreBranch branch : branches) {
+            branch.merge();
+        }
+    }
+
+    private void commit(NodeBuilder builder) throws CommitFailedException {
+        NodeStoreBranch branch = store.branch();
+        branch.setRoot(builder.getNodeState());
+        branch.merge();
+    }
+
+}
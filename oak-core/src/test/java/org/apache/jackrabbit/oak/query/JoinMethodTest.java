@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.PropertyValue;
+import org.apache.jackrabbit.oak.api.ResultRow;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.nodetype.write.InitialContent;
+import org.apache.jackrabbit.oak.query.ast.JoinImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the hash join and merge join return the same rows as the nested
+ * loop join.
+ */
+public class JoinMethodTest {
+
+    private ContentSession session;
+
+    @Before
+    public void before() throws Exception {
+        session = new Oak().with(new InitialContent())
+                .createContentRepository().login(null, null);
+        Root root = session.getLatestRoot();
+        JsopUtil.apply(root, "/ + \"test\": { " +
+                "\"parents\": { \"p0\": {\"id\": \"0\"}, \"p1\": {\"id\": \"1\"}, " +
+                "\"p2\": {\"id\": 2, \"c5\": {\"p\": \"0\"}}}, " +
+                "\"children\": { \"c1\": {\"p\": \"1\"}, \"c2\": {\"p\": 1}, " +
+                "\"c3\": {\"p\": \"2\", \"x\": {\"p\": \"1\"}}, \"c4\": {\"p\": \"3\"}}}");
+        root.commit();
+    }
+
+    @After
+    public void after() {
+        System.clearProperty(JoinImpl.JOIN_METHOD);
+    }
+
+    @Test
+    public void equiJoin() throws Exception {
+        test("select [p].[jcr:path], [c].[jcr:path] from [nt:base] as p " +
+                "inner join [nt:base] as c on p.id = c.p " +
+                "where isdescendantnode(p, '/test') and isdescendantnode(c, '/test')",
+                "hash join");
+        test("select [p].[jcr:path], [c].[jcr:path] from [nt:base] as p " +
+                "left outer join [nt:base] as c on p.id = c.p " +
+                "where isdescendantnode(p, '/test')",
+                "hash join");
+    }
+
+    @Test
+    public void equiJoinConvertedType() throws Exception {
+        // the strings are converted to the type of the multi-valued property
+        Root root = session.getLatestRoot();
+        JsopUtil.apply(root, "/ + \"test2\": { " +
+                "\"a\": {\"ids\": [15, 30]}, \"b\": {\"ids\": [\"x\"]}, " +
+                "\"c1\": {\"id\": \"015\"}, \"c2\": {\"id\": \"30\"}, " +
+                "\"c3\": {\"id\": \"2\"}}");
+        root.commit();
+        test("select [a].[jcr:path], [c].[jcr:path] from [nt:base] as c " +
+                "inner join [nt:base] as a on c.id = a.ids " +
+                "where isdescendantnode(c, '/test2')",
+                "hash join");
+    }
+
+    @Test
+    public void childNodeJoin() throws Exception {
+        test("select [p].[jcr:path], [c].[jcr:path] from [nt:base] as p " +
+                "inner join [nt:base] as c on ischildnode(c, p) " +
+                "where isdescendantnode(p, '/test')",
+                "merge join");
+        test("select [p].[jcr:path], [c].[jcr:path] from [nt:base] as c " +
+                "inner join [nt:base] as p on ischildnode(c, p) " +
+                "where isdescendantnode(c, '/test')",
+                "merge join");
+    }
+
+    @Test
+    public void descendantNodeJoin() throws Exception {
+        test("select [a].[jcr:path], [d].[jcr:path] from [nt:base] as a " +
+                "inner join [nt:base] as d on isdescendantnode(d, a) " +
+                "where isdescendantnode(a, '/test')",
+                "merge join");
+        test("select [a].[jcr:path], [d].[jcr:path] from [nt:base] as d " +
+                "left outer join [nt:base] as a on isdescendantnode(d, a) " +
+                "where isdescendantnode(d, '/test/children')",
+                "merge join");
+    }
+
+    @Test
+    public void sameNodeJoin() throws Exception {
+        test("select [a].[jcr:path], [b].[jcr:path] from [nt:base] as a " +
+                "inner join [nt:base] as b on issamenode(a, b) " +
+                "where isdescendantnode(a, '/test')",
+                "merge join");
+        test("select [a].[jcr:path], [b].[jcr:path] from [nt:base] as a " +
+                "inner join [nt:base] as b on issamenode(b, a, [x]) " +
+                "where isdescendantnode(a, '/test')",
+                "merge join");
+    }
+
+    private void test(String query, String keyedMethod) throws Exception {
+        System.setProperty(JoinImpl.JOIN_METHOD, "nested");
+        assertTrue(explain(query).contains("/* nested loop join */"));
+        List<String> nested = execute(query);
+        System.setProperty(JoinImpl.JOIN_METHOD, "keyed");
+        assertTrue(explain(query).contains("/* " + keyedMethod + " */"));
+        List<String> keyed = execute(query);
+        assertTrue(nested.size() > 0);
+        assertEquals(nested, keyed);
+    }
+
+    private String explain(String query) throws Exception {
+        ResultRow row = session.getLatestRoot().getQueryEngine().executeQuery(
+                "explain " + query, QueryEngineImpl.SQL2, Long.MAX_VALUE, 0,
+                null, null).getRows().iterator().next();
+        return row.getValue("plan").getValue(Type.STRING);
+    }
+
+    private List<String> execute(String query) throws Exception {
+        List<String> list = new ArrayList<String>();
+        for (ResultRow row : session.getLatestRoot().getQueryEngine().executeQuery(
+                query, QueryEngineImpl.SQL2, Long.MAX_VALUE, 0,
+                null, null).getRows()) {
+            StringBuilder buff = new StringBuilder();
+            for (PropertyValue v : row.getValues()) {
+                if (buff.length() > 0) {
+                    buff.append(", ");
+                }
+                buff.append(v == null ? "null" : v.getValue(Type.STRING));
+            }
+            list.add(buff.toString());
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+}
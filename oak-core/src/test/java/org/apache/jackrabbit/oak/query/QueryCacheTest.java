@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.PropertyValue;
+import org.apache.jackrabbit.oak.api.ResultRow;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.api.Tree;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.index.IndexConstants;
+import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexHookProvider;
+import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexProvider;
+import org.apache.jackrabbit.oak.plugins.nodetype.write.InitialContent;
+import org.apache.jackrabbit.oak.spi.query.PropertyValues;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Tests the parsed statement and query plan caches.
+ */
+public class QueryCacheTest {
+
+    private static final String QUERY = "select * from [nt:base] where id = $id";
+
+    private ContentSession session;
+
+    @Before
+    public void before() throws Exception {
+        session = new Oak().with(new InitialContent())
+                .with(new Property2IndexProvider())
+                .with(new Property2IndexHookProvider())
+                .createContentRepository().login(null, null);
+        Root root = session.getLatestRoot();
+        JsopUtil.apply(root,
+                "/ + \"test\": { \"hello\": {\"id\": \"1\"}, \"world\": {\"id\": \"2\"}}");
+        root.commit();
+    }
+
+    @Test
+    public void statementCache() throws Exception {
+        QueryEngineImpl qe = (QueryEngineImpl) session.getLatestRoot().getQueryEngine();
+        String xpath = "/jcr:root/test//*[@id = '2']";
+        String sql = "select * from [nt:base] where id = $id";
+        CacheStats before = qe.getParseCacheStats();
+        assertEquals("/test/world", execute(qe, xpath, QueryEngineImpl.XPATH, null));
+        assertEquals("/test/world", execute(qe, xpath, QueryEngineImpl.XPATH, null));
+        assertEquals(Arrays.asList("id"), qe.getBindVariableNames(sql, QueryEngineImpl.SQL));
+        assertEquals("/test/hello", execute(qe, sql, QueryEngineImpl.SQL,
+                PropertyValues.newString("1")));
+        // only the XPath statements are cached
+        CacheStats stats = qe.getParseCacheStats().minus(before);
+        assertEquals(1, stats.missCount());
+        assertEquals(1, stats.hitCount());
+    }
+
+    @Test
+    public void planCache() throws Exception {
+        QueryEngineImpl qe = (QueryEngineImpl) session.getLatestRoot().getQueryEngine();
+        CacheStats before = qe.getPlanCacheStats();
+        assertTrue(explain(qe).contains("traverse"));
+        assertTrue(explain(qe).contains("traverse"));
+        CacheStats stats = qe.getPlanCacheStats().minus(before);
+        assertEquals(1, stats.missCount());
+        assertEquals(1, stats.hitCount());
+
+        // a different type of bind variable value is a different plan
+        execute(qe, QUERY, QueryEngineImpl.SQL2, PropertyValues.newLong(1L));
+        stats = qe.getPlanCacheStats().minus(before);
+        assertEquals(2, stats.missCount());
+
+        // a new index definition needs new plans
+        QueryEngineImpl old = qe;
+        Root root = session.getLatestRoot();
+        Tree index = root.getTree("/oak:index").addChild("id");
+        index.setProperty(JcrConstants.JCR_PRIMARYTYPE,
+                IndexConstants.INDEX_DEFINITIONS_NODE_TYPE, Type.NAME);
+        index.setProperty(IndexConstants.TYPE_PROPERTY_NAME, "p2");
+        index.setProperty("propertyNames", "id");
+        index.setProperty(IndexConstants.REINDEX_PROPERTY_NAME, true);
+        root.commit();
+        qe = (QueryEngineImpl) session.getLatestRoot().getQueryEngine();
+        assertTrue(explain(qe).contains("p2 id=1"));
+        stats = qe.getPlanCacheStats().minus(before);
+        assertEquals(3, stats.missCount());
+
+        // changes of the index data keep the plans
+        root = session.getLatestRoot();
+        JsopUtil.apply(root, "/test + \"other\": {\"id\": \"3\"}");
+        root.commit();
+        qe = (QueryEngineImpl) session.getLatestRoot().getQueryEngine();
+        assertTrue(explain(qe).contains("p2 id=1"));
+        stats = qe.getPlanCacheStats().minus(before);
+        assertEquals(3, stats.missCount());
+        assertEquals(2, stats.hitCount());
+        assertEquals("/test/other", execute(qe, QUERY, QueryEngineImpl.SQL2,
+                PropertyValues.newString("3")));
+
+        // the plans of an older revision are kept as well
+        assertTrue(explain(old).contains("traverse"));
+        assertTrue(explain(qe).contains("p2 id=1"));
+        stats = qe.getPlanCacheStats().minus(before);
+        assertEquals(4, stats.missCount());
+        assertEquals(4, stats.hitCount());
+    }
+
+    private static String explain(QueryEngineImpl qe) throws Exception {
+        Map<String, PropertyValue> sv = new HashMap<String, PropertyValue>();
+        sv.put("id", PropertyValues.newString("1"));
+        ResultRow row = qe.executeQuery("explain " + QUERY, QueryEngineImpl.SQL2,
+                Long.MAX_VALUE, 0, sv, null).getRows().iterator().next();
+        return row.getValue("plan").getValue(Type.STRING);
+    }
+
+    private static String execute(QueryEngineImpl qe, String statement,
+            String language, PropertyValue id) throws Exception {
+        Map<String, PropertyValue> sv = new HashMap<String, PropertyValue>();
+        if (id != null) {
+            sv.put("id", id);
+        }
+        StringBuilder buff = new StringBuilder();
+        for (ResultRow row : qe.executeQuery(statement, language,
+                Long.MAX_VALUE, 0, sv, null).getRows()) {
+            if (buff.length() > 0) {
+                buff.append(", ");
+            }
+            buff.append(row.getPath());
+        }
+        return buff.toString();
+    }
+
+}
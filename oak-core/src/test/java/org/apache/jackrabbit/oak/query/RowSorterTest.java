@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.PropertyValue;
+import org.apache.jackrabbit.oak.api.ResultRow;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.plugins.memory.ArrayBasedBlob;
+import org.apache.jackrabbit.oak.plugins.nodetype.write.InitialContent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the top-N and external sort of ordered queries.
+ */
+public class RowSorterTest {
+
+    private static final String QUERY =
+            "select [jcr:path], [x], [y] from [nt:base] " +
+            "where isdescendantnode('/test') order by [x] desc, [y]";
+
+    private ContentSession session;
+
+    @Before
+    public void before() throws Exception {
+        session = new Oak().with(new InitialContent())
+                .createContentRepository().login(null, null);
+        Root root = session.getLatestRoot();
+        StringBuilder buff = new StringBuilder("/ + \"test\": {");
+        for (int i = 0; i < 50; i++) {
+            if (i > 0) {
+                buff.append(", ");
+            }
+            buff.append("\"n").append(i).append("\": {");
+            // a few nodes without x, and many with the same x
+            if (i % 7 != 0) {
+                buff.append("\"x\": ").append(i % 5).append(", ");
+            }
+            buff.append("\"y\": \"").append((char) ('a' + i % 11)).append("\"}");
+        }
+        buff.append("}");
+        JsopUtil.apply(root, buff.toString());
+        root.commit();
+    }
+
+    @After
+    public void after() {
+        System.clearProperty(RowSorter.SORT_MEMORY_ROWS);
+    }
+
+    @Test
+    public void sort() throws Exception {
+        List<String> expected = execute(Long.MAX_VALUE, 0);
+        assertEquals(50, expected.size());
+        long spills = RowSorter.getSpillCount();
+
+        System.setProperty(RowSorter.SORT_MEMORY_ROWS, "7");
+        assertEquals(expected, execute(Long.MAX_VALUE, 0));
+        assertTrue(RowSorter.getSpillCount() - spills >= 7);
+        assertEquals(expected.subList(10, 50), execute(Long.MAX_VALUE, 10));
+
+        // more rows than fit in memory: the runs are truncated
+        spills = RowSorter.getSpillCount();
+        long rows = RowSorter.getSpilledRowCount();
+        assertEquals(expected.subList(3, 13), execute(10, 3));
+        assertTrue(RowSorter.getSpillCount() > spills);
+        assertTrue(RowSorter.getSpilledRowCount() - rows
+                <= 7 * (RowSorter.getSpillCount() - spills));
+    }
+
+    @Test
+    public void topN() throws Exception {
+        List<String> expected = execute(Long.MAX_VALUE, 0);
+        System.setProperty(RowSorter.SORT_MEMORY_ROWS, "20");
+        long spills = RowSorter.getSpillCount();
+        assertEquals(expected.subList(0, 5), execute(5, 0));
+        assertEquals(expected.subList(12, 20), execute(8, 12));
+        assertEquals(0, execute(0, 0).size());
+        assertEquals(spills, RowSorter.getSpillCount());
+
+        // offset and limit do not fit in memory
+        assertEquals(expected.subList(45, 50), execute(10, 45));
+        assertTrue(RowSorter.getSpillCount() > spills);
+    }
+
+    @Test
+    public void binary() throws Exception {
+        Root root = session.getLatestRoot();
+        for (int i = 0; i < 50; i += 3) {
+            root.getTree("/test/n" + i).setProperty("b",
+                    new ArrayBasedBlob(("binary " + i).getBytes("UTF-8")),
+                    Type.BINARY);
+        }
+        root.commit();
+        String query = "select [jcr:path], [b] from [nt:base] " +
+                "where isdescendantnode('/test') order by [y]";
+        List<String> expected = execute(query, Long.MAX_VALUE, 0);
+        assertTrue(expected.contains("/test/n3, binary 3"));
+        long spills = RowSorter.getSpillCount();
+        System.setProperty(RowSorter.SORT_MEMORY_ROWS, "7");
+        assertEquals(expected, execute(query, Long.MAX_VALUE, 0));
+        assertTrue(RowSorter.getSpillCount() > spills);
+    }
+
+    @Test
+    public void abandoned() throws Exception {
+        System.setProperty(RowSorter.SORT_MEMORY_ROWS, "7");
+        int files = countTempFiles();
+        Iterator<? extends ResultRow> it = session.getLatestRoot().getQueryEngine().executeQuery(
+                QUERY, QueryEngineImpl.SQL2, Long.MAX_VALUE, 0,
+                null, null).getRows().iterator();
+        it.next();
+        assertTrue(countTempFiles() > files);
+
+        // the files are deleted once the iterator was garbage collected,
+        // when the next sort writes a temporary file
+        it = null;
+        for (int i = 0; i < 100 && countTempFiles() > files; i++) {
+            System.gc();
+            Thread.sleep(10);
+            execute(Long.MAX_VALUE, 0);
+        }
+        assertEquals(files, countTempFiles());
+    }
+
+    private static int countTempFiles() {
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(
+                new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String name) {
+                        return name.startsWith("oak-sort-");
+                    }
+                });
+        return names == null ? 0 : names.length;
+    }
+
+    private List<String> execute(long limit, long offset) throws Exception {
+        return execute(QUERY, limit, offset);
+    }
+
+    private List<String> execute(String query, long limit, long offset)
+            throws Exception {
+        List<String> list = new ArrayList<String>();
+        for (ResultRow row : session.getLatestRoot().getQueryEngine().executeQuery(
+                query, QueryEngineImpl.SQL2, limit, offset,
+                null, null).getRows()) {
+            StringBuilder buff = new StringBuilder();
+            for (PropertyValue v : row.getValues()) {
+                if (buff.length() > 0) {
+                    buff.append(", ");
+                }
+                buff.append(v == null ? "null" : v.getValue(Type.STRING));
+            }
+            list.add(buff.toString());
+        }
+        return list;
+    }
+
+}
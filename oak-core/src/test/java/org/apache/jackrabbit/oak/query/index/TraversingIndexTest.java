@@ -26,14 +26,10 @@ import java.util.Collections;
 import java.util.List;
 import org.apache.jackrabbit.mk.api.MicroKernel;
 import org.apache.jackrabbit.mk.core.MicroKernelImpl;
-import org.apache.jackrabbit.oak.kernel.KernelNodeState;
+import org.apache.jackrabbit.oak.kernel.KernelNodeStore;
 import org.apache.jackrabbit.oak.spi.query.Cursor;
 import org.junit.Test;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-
 /**
  * Tests the TraversingCursor.
  */
@@ -41,27 +37,6 @@ public class TraversingIndexTest {
 
     private final MicroKernel mk = new MicroKernelImpl();
 
-    private final LoadingCache<String, KernelNodeState> cache =
-            CacheBuilder.newBuilder().build(new CacheLoader<String, KernelNodeState>() {
-                @Override
-                public KernelNodeState load(String key) throws Exception {
-                    int slash = key.indexOf('/');
-                    String revision = key.substring(0, slash);
-                    String path = key.substring(slash);
-                    // this method is strictly called _after_ the cache is initialized,
-                    // when the fields are set
-                    return new KernelNodeState(getMicroKernel(), path, revision, getCache());
-                }
-            });
-    
-    MicroKernel getMicroKernel() {
-        return mk;
-    }
-    
-    LoadingCache<String, KernelNodeState> getCache() {
-        return cache;
-    }
-
     @Test
     public void traverse() throws Exception {
         TraversingIndex t = new TraversingIndex();
@@ -73,7 +48,8 @@ public class TraversingIndexTest {
 
         f.setPath("/");
         List<String> paths = new ArrayList<String>();
-        Cursor c = t.query(f, new KernelNodeState(mk, "/", head, cache));
+        KernelNodeStore store = new KernelNodeStore(mk);
+        Cursor c = t.query(f, store.getRoot());
         while (c.hasNext()) {
             paths.add(c.next().getPath());
         }
@@ -88,7 +64,7 @@ public class TraversingIndexTest {
         assertFalse(c.hasNext());
 
         f.setPath("/nowhere");
-        c = t.query(f, new KernelNodeState(mk, "/", head, cache));
+        c = t.query(f, store.getRoot());
         assertFalse(c.hasNext());
         // endure it stays false
         assertFalse(c.hasNext());
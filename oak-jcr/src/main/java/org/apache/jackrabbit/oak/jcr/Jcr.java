@@ -26,8 +26,10 @@ import org.apache.jackrabbit.oak.Oak;
 import org.apache.jackrabbit.oak.plugins.commit.AnnotatingConflictHandler;
 import org.apache.jackrabbit.oak.plugins.commit.ConflictValidatorProvider;
 import org.apache.jackrabbit.oak.plugins.index.IndexHookProvider;
+import org.apache.jackrabbit.oak.plugins.index.IndexMerger;
 import org.apache.jackrabbit.oak.plugins.index.nodetype.NodeTypeIndexProvider;
 import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexHookProvider;
+import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexMerger;
 import org.apache.jackrabbit.oak.plugins.index.p2.Property2IndexProvider;
 import org.apache.jackrabbit.oak.plugins.name.NameValidatorProvider;
 import org.apache.jackrabbit.oak.plugins.name.NamespaceValidatorProvider;
@@ -73,6 +75,7 @@ public class Jcr {
         with(new ConflictValidatorProvider());
 
         with(new Property2IndexHookProvider());
+        with(new Property2IndexMerger());
         with(new AnnotatingConflictHandler());
 
         with(new Property2IndexProvider());
@@ -105,6 +108,12 @@ public class Jcr {
         return this;
     }
 
+    @Nonnull
+    public Jcr with(@Nonnull IndexMerger indexMerger) {
+        oak.with(checkNotNull(indexMerger));
+        return this;
+    }
+
     @Nonnull
     public Jcr with(@Nonnull CommitHook hook) {
         oak.with(checkNotNull(hook));
@@ -139,6 +148,7 @@ public class Jcr {
     @Nonnull
     public Jcr with(@Nonnull ScheduledExecutorService executor) {
         this.executor = checkNotNull(executor);
+        oak.with(executor);
         return this;
     }
 
@@ -0,0 +1,269 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shares the open index readers of the Lucene indexes across queries and
+ * sessions. The readers are kept by index path and revision of the index
+ * data node: a reader is re-used as long as the index data is unchanged
+ * (the node states are equal, which is the case for the same revision, or
+ * the same content hash). If it changed, the reader of the most recent
+ * revision is refreshed, which only opens the new segments.
+ * <p>
+ * A reader is closed when it is no longer the most recent one, and its
+ * reference count drops to zero. The readers of an index that was removed
+ * are closed once the index is evicted.
+ */
+class IndexSearcherManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexSearcherManager.class);
+
+    private final Map<String, SharedIndex> indexes = new HashMap<String, SharedIndex>();
+
+    private long openCount;
+
+    private long refreshCount;
+
+    /**
+     * Get a searcher for the given revision of the index data. The searcher
+     * must be released after use.
+     * <p>
+     * The reader is opened or refreshed while only holding the lock of the
+     * index, so that the queries of other indexes, and of the revisions that
+     * are already open, are not blocked.
+     *
+     * @param path the path of the index definition
+     * @param data the index data node
+     * @return the searcher
+     */
+    SharedSearcher acquire(String path, NodeState data) throws IOException {
+        SharedIndex index;
+        synchronized (this) {
+            index = indexes.get(path);
+            if (index == null) {
+                index = new SharedIndex();
+                indexes.put(path, index);
+            }
+            SharedSearcher s = index.acquire(data);
+            if (s != null) {
+                return s;
+            }
+        }
+        synchronized (index) {
+            synchronized (this) {
+                // opened by another thread in the meantime
+                SharedSearcher s = index.acquire(data);
+                if (s != null) {
+                    return s;
+                }
+            }
+            // the latest reader is only replaced while holding the index lock
+            SharedSearcher latest = index.latest;
+            DirectoryReader reader = null;
+            boolean refreshable = index.directory.setState(data);
+            boolean refreshed = false;
+            if (latest != null && refreshable) {
+                reader = DirectoryReader.openIfChanged(latest.reader);
+                if (reader == null) {
+                    // the same index content, in a different revision
+                    synchronized (this) {
+                        latest.data = data;
+                        latest.refCount++;
+                    }
+                    return latest;
+                }
+                refreshed = true;
+            } else {
+                reader = DirectoryReader.open(index.directory);
+            }
+            SharedSearcher s = new SharedSearcher(index, data, reader);
+            synchronized (this) {
+                if (refreshed) {
+                    refreshCount++;
+                } else {
+                    openCount++;
+                }
+                index.searchers.add(s);
+                s.refCount++;
+                if (indexes.get(path) == index) {
+                    // unless the index was evicted in the meantime
+                    s.refCount++;
+                    index.latest = s;
+                }
+            }
+            if (latest != null) {
+                // no longer the most recent reader
+                release(latest);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Release a searcher. If it is not the most recent one, and no longer
+     * used, the reader is closed.
+     *
+     * @param s the searcher
+     */
+    void release(SharedSearcher s) {
+        synchronized (this) {
+            if (--s.refCount > 0) {
+                return;
+            }
+            s.index.searchers.remove(s);
+        }
+        try {
+            s.reader.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close the index reader", e);
+        }
+    }
+
+    /**
+     * Forget an index, for example because its definition was removed. The
+     * most recent reader is closed once it is no longer used.
+     *
+     * @param path the path of the index definition
+     */
+    void evict(String path) {
+        SharedIndex index;
+        synchronized (this) {
+            index = indexes.remove(path);
+        }
+        if (index == null) {
+            return;
+        }
+        SharedSearcher latest;
+        synchronized (index) {
+            synchronized (this) {
+                latest = index.latest;
+                index.latest = null;
+            }
+        }
+        if (latest != null) {
+            release(latest);
+        }
+    }
+
+    /**
+     * Evict all indexes except the given ones.
+     *
+     * @param paths the paths of the index definitions to keep
+     */
+    void retain(Collection<String> paths) {
+        List<String> removed = new ArrayList<String>();
+        synchronized (this) {
+            for (String path : indexes.keySet()) {
+                if (!paths.contains(path)) {
+                    removed.add(path);
+                }
+            }
+        }
+        for (String path : removed) {
+            evict(path);
+        }
+    }
+
+    /**
+     * Get the number of open indexes.
+     *
+     * @return the number of indexes
+     */
+    synchronized int getIndexCount() {
+        return indexes.size();
+    }
+
+    /**
+     * Get the number of readers that were opened from scratch.
+     *
+     * @return the number of opened readers
+     */
+    synchronized long getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Get the number of readers that were refreshed incrementally.
+     *
+     * @return the number of refreshed readers
+     */
+    synchronized long getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * The directory and the open searchers of an index.
+     */
+    private static class SharedIndex {
+
+        final SharedOakDirectory directory = new SharedOakDirectory();
+        final List<SharedSearcher> searchers = new ArrayList<SharedSearcher>();
+        SharedSearcher latest;
+
+        /**
+         * Get the open searcher of the given revision, and increment its
+         * reference count. The caller must hold the lock of the manager.
+         *
+         * @param data the index data node
+         * @return the searcher, or null if none is open
+         */
+        SharedSearcher acquire(NodeState data) {
+            for (SharedSearcher s : searchers) {
+                if (s.data.equals(data)) {
+                    s.refCount++;
+                    return s;
+                }
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * A searcher of one revision of an index, with its reference count.
+     */
+    static class SharedSearcher {
+
+        final SharedIndex index;
+        final DirectoryReader reader;
+        final IndexSearcher searcher;
+        NodeState data;
+        int refCount;
+
+        SharedSearcher(SharedIndex index, NodeState data, DirectoryReader reader) {
+            this.index = index;
+            this.data = data;
+            this.reader = reader;
+            this.searcher = new IndexSearcher(reader);
+        }
+
+    }
+
+}
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import javax.annotation.CheckForNull;
 import javax.jcr.RepositoryException;
@@ -32,20 +33,22 @@ import org.apache.jackrabbit.oak.api.Type;
 import org.apache.jackrabbit.oak.commons.PathUtils;
 import org.apache.jackrabbit.oak.core.ReadOnlyTree;
 import org.apache.jackrabbit.oak.plugins.index.IndexDefinition;
+import org.apache.jackrabbit.oak.plugins.index.IndexUtils;
+import org.apache.jackrabbit.oak.plugins.index.lucene.IndexSearcherManager.SharedSearcher;
 import org.apache.jackrabbit.oak.plugins.nodetype.NodeTypeConstants;
 import org.apache.jackrabbit.oak.plugins.nodetype.ReadOnlyNodeTypeManager;
 import org.apache.jackrabbit.oak.spi.query.Cursor;
 import org.apache.jackrabbit.oak.spi.query.Cursors;
 import org.apache.jackrabbit.oak.spi.query.Filter;
 import org.apache.jackrabbit.oak.spi.query.Filter.PropertyRestriction;
+import org.apache.jackrabbit.oak.spi.query.Filter.OrderEntry;
 import org.apache.jackrabbit.oak.spi.query.QueryIndex;
-import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.query.QueryIndex.OrderedQueryIndex;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
-import org.apache.jackrabbit.oak.spi.state.ReadOnlyBuilder;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
@@ -53,14 +56,18 @@ import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TermRangeQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.WildcardQuery;
-import org.apache.lucene.store.Directory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+
 import static org.apache.jackrabbit.oak.commons.PathUtils.elements;
 import static org.apache.jackrabbit.oak.plugins.index.lucene.FieldNames.PATH;
 import static org.apache.jackrabbit.oak.plugins.index.lucene.FieldNames.PATH_SELECTOR;
@@ -99,15 +106,36 @@ import static org.apache.jackrabbit.oak.query.Query.JCR_PATH;
  * @see QueryIndex
  * 
  */
-public class LuceneIndex implements QueryIndex, LuceneIndexConstants {
+public class LuceneIndex implements OrderedQueryIndex, LuceneIndexConstants {
 
     private static final Logger LOG = LoggerFactory
             .getLogger(LuceneIndex.class);
 
+    /**
+     * The number of documents read in the first batch. Each following batch
+     * is twice as large, up to the maximum.
+     */
+    private static final int MIN_BATCH_SIZE = 50;
+
+    private static final int MAX_BATCH_SIZE = 10000;
+
+    /**
+     * The index readers of the indexes that are not created by a provider.
+     */
+    private static final IndexSearcherManager SHARED_SEARCHERS =
+            new IndexSearcherManager();
+
     private final IndexDefinition index;
 
+    private final IndexSearcherManager searchers;
+
     public LuceneIndex(IndexDefinition indexDefinition) {
+        this(indexDefinition, SHARED_SEARCHERS);
+    }
+
+    LuceneIndex(IndexDefinition indexDefinition, IndexSearcherManager searchers) {
         this.index = indexDefinition;
+        this.searchers = searchers;
     }
 
     @Override
@@ -117,8 +145,106 @@ public class LuceneIndex implements QueryIndex, LuceneIndexConstants {
 
     @Override
     public double getCost(Filter filter, NodeState root) {
-        // TODO: proper cost calculation
-        return 1.0;
+        if (!filter.isEventualConsistencyAllowed()
+                && IndexUtils.isAsyncType(root, index.getType())) {
+            // the index may not reflect the most recent changes
+            return Double.POSITIVE_INFINITY;
+        }
+        NodeState definition = getIndexDefinition(root);
+        if (definition != null && IndexUtils.isParallelReindex(definition)) {
+            // the index content is incomplete
+            return Double.POSITIVE_INFINITY;
+        }
+        NodeState data = getIndexData(root);
+        if (data == null) {
+            // index not initialized yet, or removed
+            searchers.evict(index.getPath());
+            return 1.0;
+        }
+        try {
+            SharedSearcher s = searchers.acquire(index.getPath(), data);
+            try {
+                Query query = getQuery(filter, root, s.reader);
+                return query == null ? 0 : getEstimatedCount(query, s.reader);
+            } finally {
+                searchers.release(s);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not estimate the cost of " + this, e);
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Estimate the number of documents that match a query, using the number
+     * of documents that contain a term. For other queries, and for optional
+     * clauses, the number of documents is used.
+     *
+     * @param query the query
+     * @param reader the reader
+     * @return the estimated number of matching documents
+     */
+    private static int getEstimatedCount(Query query, IndexReader reader)
+            throws IOException {
+        if (query instanceof TermQuery) {
+            return reader.docFreq(((TermQuery) query).getTerm());
+        } else if (query instanceof BooleanQuery) {
+            int count = reader.numDocs();
+            for (BooleanClause c : ((BooleanQuery) query).getClauses()) {
+                if (c.isRequired()) {
+                    count = Math.min(count, getEstimatedCount(c.getQuery(), reader));
+                }
+            }
+            return count;
+        }
+        return reader.numDocs();
+    }
+
+    /**
+     * Get the node with the index data.
+     *
+     * @param root the root node
+     * @return the index data node, or null if the index is not initialized
+     */
+    private NodeState getIndexDefinition(NodeState root) {
+        NodeState node = root;
+        for (String name : elements(index.getPath())) {
+            node = node.getChildNode(name);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private NodeState getIndexData(NodeState root) {
+        NodeState node = getIndexDefinition(root);
+        return node == null ? null : node.getChildNode(INDEX_DATA_CHILD_NAME);
+    }
+
+    @Override
+    public boolean isSorted(Filter filter, NodeState root) {
+        return getSort(filter) != null;
+    }
+
+    /**
+     * Get the sort order of the filter, if it can be provided by this index.
+     * Only sorting by path is supported, because the property values are
+     * indexed as strings, which sort differently than for example numbers.
+     *
+     * @param filter the filter
+     * @return the sort, or null
+     */
+    private static Sort getSort(Filter filter) {
+        List<OrderEntry> order = filter.getSortOrder();
+        if (order.size() != 1) {
+            return null;
+        }
+        OrderEntry e = order.get(0);
+        if (!JCR_PATH.equals(e.propertyName)) {
+            return null;
+        }
+        return new Sort(new SortField(PATH, SortField.Type.STRING, e.descending));
     }
 
     @Override
@@ -127,55 +253,110 @@ public class LuceneIndex implements QueryIndex, LuceneIndexConstants {
     }
 
     @Override
-    public Cursor query(Filter filter, NodeState root) {
-
-        NodeBuilder builder = new ReadOnlyBuilder(root);
-        for (String name : elements(index.getPath())) {
-            builder = builder.child(name);
-        }
-        if (!builder.hasChildNode(INDEX_DATA_CHILD_NAME)) {
-            // index not initialized yet
+    public Cursor query(final Filter filter, final NodeState root) {
+        final NodeState data = getIndexData(root);
+        if (data == null) {
+            // index not initialized yet, or removed
+            searchers.evict(index.getPath());
             return Cursors.newPathCursor(Collections.<String> emptySet());
         }
-        builder = builder.child(INDEX_DATA_CHILD_NAME);
+        return Cursors.newPathCursor(new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new PathIterator(filter, root, data);
+            }
+        });
+    }
+
+    /**
+     * An iterator over the paths of the matching documents. The documents are
+     * read in batches of growing size, so that the first rows are available
+     * quickly, and only the rows that are actually read are loaded. Each batch
+     * uses the shared searcher for the given revision of the index data.
+     */
+    private class PathIterator extends AbstractIterator<String> {
+
+        private final Filter filter;
+        private final NodeState root;
+        private final NodeState data;
+        private final Sort sort;
+        private Query query;
+        private boolean initialized;
+        private boolean finished;
+        private ScoreDoc lastDoc;
+        private int batchSize = MIN_BATCH_SIZE;
+        private Iterator<String> batch = Iterators.emptyIterator();
+
+        PathIterator(Filter filter, NodeState root, NodeState data) {
+            this.filter = filter;
+            this.root = root;
+            this.data = data;
+            this.sort = getSort(filter);
+        }
 
-        Directory directory = new ReadOnlyOakDirectory(builder);
-        long s = System.currentTimeMillis();
+        @Override
+        protected String computeNext() {
+            while (!batch.hasNext()) {
+                if (finished) {
+                    return endOfData();
+                }
+                batch = loadBatch().iterator();
+            }
+            return batch.next();
+        }
 
-        try {
+        private List<String> loadBatch() {
+            List<String> paths = new ArrayList<String>();
+            long s = System.currentTimeMillis();
             try {
-                IndexReader reader = DirectoryReader.open(directory);
+                SharedSearcher shared = searchers.acquire(index.getPath(), data);
                 try {
-                    IndexSearcher searcher = new IndexSearcher(reader);
-                    Collection<String> paths = new ArrayList<String>();
-
-                    Query query = getQuery(filter, root, reader);
-                    if (query != null) {
-                        TopDocs docs = searcher
-                                .search(query, Integer.MAX_VALUE);
-                        for (ScoreDoc doc : docs.scoreDocs) {
-                            String path = reader.document(doc.doc,
-                                    PATH_SELECTOR).get(PATH);
-                            if ("".equals(path)) {
-                                paths.add("/");
-                            } else if (path != null) {
-                                paths.add(path);
-                            }
+                    IndexReader reader = shared.reader;
+                    IndexSearcher searcher = shared.searcher;
+                    if (!initialized) {
+                        query = getQuery(filter, root, reader);
+                        initialized = true;
+                    }
+                    if (query == null) {
+                        finished = true;
+                        return paths;
+                    }
+                    TopDocs docs;
+                    if (lastDoc == null) {
+                        docs = sort == null
+                                ? searcher.search(query, batchSize)
+                                : searcher.search(query, batchSize, sort);
+                    } else {
+                        docs = sort == null
+                                ? searcher.searchAfter(lastDoc, query, batchSize)
+                                : searcher.searchAfter(lastDoc, query, batchSize, sort);
+                    }
+                    for (ScoreDoc doc : docs.scoreDocs) {
+                        String path = reader.document(doc.doc,
+                                PATH_SELECTOR).get(PATH);
+                        if ("".equals(path)) {
+                            paths.add("/");
+                        } else if (path != null) {
+                            paths.add(path);
                         }
+                        lastDoc = doc;
                     }
-                    LOG.debug("query via {} took {} ms.", this,
-                            System.currentTimeMillis() - s);
-                    return Cursors.newPathCursor(paths);
+                    if (docs.scoreDocs.length < batchSize) {
+                        finished = true;
+                    }
+                    batchSize = Math.min(2 * batchSize, MAX_BATCH_SIZE);
                 } finally {
-                    reader.close();
+                    searchers.release(shared);
                 }
-            } finally {
-                directory.close();
+            } catch (IOException e) {
+                LOG.warn("Could not read the index " + index.getName(), e);
+                finished = true;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            return Cursors.newPathCursor(Collections.<String> emptySet());
+            LOG.debug("reading {} rows via {} took {} ms.", new Object[] {
+                    paths.size(), LuceneIndex.this, System.currentTimeMillis() - s });
+            return paths;
         }
+
     }
 
     private static Query getQuery(Filter filter, NodeState root, IndexReader reader) {
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index.lucene;
+
+import static org.apache.jackrabbit.oak.commons.PathUtils.isAncestor;
+import static org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexConstants.INDEX_DATA_CHILD_NAME;
+import static org.apache.jackrabbit.oak.plugins.index.lucene.LuceneIndexConstants.TYPE_LUCENE;
+import static org.apache.jackrabbit.oak.plugins.index.lucene.TermFactory.newPathTerm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.plugins.index.IndexMerger;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Merges the content of a Lucene index that was built for a part of the
+ * repository, using {@link IndexWriter#addIndexes}. The documents of the
+ * ancestors of the partition are removed from the partial index first, and
+ * the documents of the partition from the target index, so that no document
+ * is added twice.
+ *
+ * @see IndexMerger
+ */
+@Component
+@Service(IndexMerger.class)
+public class LuceneIndexMerger implements IndexMerger {
+
+    @Override
+    public boolean canMerge(String type) {
+        return TYPE_LUCENE.equals(type);
+    }
+
+    @Override
+    public void merge(NodeBuilder definition, NodeState partial, String path)
+            throws CommitFailedException {
+        if (partial.getChildNode(INDEX_DATA_CHILD_NAME) == null) {
+            return;
+        }
+        NodeBuilder source = partial.builder().child(INDEX_DATA_CHILD_NAME);
+        try {
+            List<String> ancestors = new ArrayList<String>();
+            List<String> paths = new ArrayList<String>();
+            DirectoryReader reader = DirectoryReader.open(
+                    new ReadOnlyOakDirectory(source));
+            try {
+                Terms terms = MultiFields.getTerms(reader, FieldNames.PATH);
+                if (terms != null) {
+                    TermsEnum it = terms.iterator(null);
+                    BytesRef term;
+                    while ((term = it.next()) != null) {
+                        String p = term.utf8ToString();
+                        if (isAncestor(p, path)) {
+                            ancestors.add(p);
+                        } else {
+                            paths.add(p);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            if (paths.isEmpty()) {
+                return;
+            }
+            if (!ancestors.isEmpty()) {
+                IndexWriter writer = new IndexWriter(
+                        new ReadWriteOakDirectory(source), LuceneIndexUpdate.config);
+                try {
+                    for (String p : ancestors) {
+                        writer.deleteDocuments(newPathTerm(p));
+                    }
+                } finally {
+                    writer.close();
+                }
+            }
+            reader = DirectoryReader.open(new ReadOnlyOakDirectory(source));
+            try {
+                IndexWriter writer = new IndexWriter(new ReadWriteOakDirectory(
+                        definition.child(INDEX_DATA_CHILD_NAME)),
+                        LuceneIndexUpdate.config);
+                try {
+                    for (String p : paths) {
+                        writer.deleteDocuments(newPathTerm(p));
+                    }
+                    writer.addIndexes(reader);
+                } finally {
+                    writer.close();
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new CommitFailedException(
+                    "Failed to merge the full text search index", e);
+        }
+    }
+
+}
@@ -19,7 +19,9 @@ package org.apache.jackrabbit.oak.plugins.index.lucene;
 import static org.apache.jackrabbit.oak.plugins.index.IndexUtils.buildIndexDefinitions;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nonnull;
 
@@ -46,18 +48,27 @@ public class LuceneIndexProvider implements QueryIndexProvider,
     private static final Logger LOG = LoggerFactory
             .getLogger(LuceneIndexProvider.class);
 
+    /**
+     * The index readers, shared by all queries. The readers of removed
+     * index definitions are closed when the indexes are looked up.
+     */
+    final IndexSearcherManager searchers = new IndexSearcherManager();
+
     @Override @Nonnull
     public List<QueryIndex> getQueryIndexes(NodeState nodeState) {
         List<QueryIndex> tempIndexes = new ArrayList<QueryIndex>();
+        Set<String> paths = new HashSet<String>();
         for (IndexDefinition child : buildIndexDefinitions(nodeState, "/",
                 TYPE_LUCENE)) {
             LOG.debug("found a lucene index definition {}", child);
             tempIndexes.add(newLuceneIndex(child));
+            paths.add(child.getPath());
         }
+        searchers.retain(paths);
         return tempIndexes;
     }
 
     protected LuceneIndex newLuceneIndex(IndexDefinition child) {
-        return new LuceneIndex(child);
+        return new LuceneIndex(child, searchers);
     }
 }
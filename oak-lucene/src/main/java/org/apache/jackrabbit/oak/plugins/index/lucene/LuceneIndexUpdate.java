@@ -60,7 +60,7 @@ class LuceneIndexUpdate implements Closeable, LuceneIndexConstants {
         }
     }
 
-    private static final IndexWriterConfig config = getIndexWriterConfig();
+    static final IndexWriterConfig config = getIndexWriterConfig();
 
     private final String path;
 
@@ -19,11 +19,20 @@ package org.apache.jackrabbit.oak.plugins.index.lucene;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import javax.jcr.UnsupportedRepositoryOperationException;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.kernel.KernelBlob;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IOContext;
@@ -31,15 +40,36 @@ import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.NoLockFactory;
 
-import static org.apache.jackrabbit.oak.api.Type.BINARY;
+import static org.apache.jackrabbit.oak.api.Type.BINARIES;
 
 /**
  * A read-only implementation of the Lucene {@link Directory} (a flat list of
  * files) that only allows reading of the Lucene index content stored in an Oak
  * repository.
+ * <p>
+ * The content of a file is stored in the multi-valued binary property
+ * "jcr:data", as a list of chunks. All chunks except the last one have the
+ * same size. An index file is read chunk by chunk, when needed, using a
+ * cache of recently read chunks that is shared by all directories. The
+ * cache is keyed by the binary id of the chunks that are stored in the
+ * MicroKernel; other chunks are kept in memory anyway, and are not cached.
  */
 class ReadOnlyOakDirectory extends Directory {
 
+    /**
+     * The system property for the maximum size of the chunk cache, in bytes.
+     */
+    static final String CHUNK_CACHE_SIZE = "oak.luceneChunkCacheSize";
+
+    private static final Cache<String, byte[]> CHUNKS = CacheBuilder.newBuilder()
+            .maximumWeight(Long.getLong(CHUNK_CACHE_SIZE, 16 * 1024 * 1024))
+            .weigher(new Weigher<String, byte[]>() {
+                @Override
+                public int weigh(String key, byte[] value) {
+                    return value.length;
+                }
+            }).build();
+
     protected final NodeBuilder directoryBuilder;
 
     public ReadOnlyOakDirectory(NodeBuilder directoryBuilder) {
@@ -70,12 +100,7 @@ class ReadOnlyOakDirectory extends Directory {
         }
 
         NodeBuilder fileBuilder = directoryBuilder.child(name);
-        PropertyState property = fileBuilder.getProperty("jcr:data");
-        if (property == null || property.isArray()) {
-            return 0;
-        }
-
-        return property.size();
+        return getLength(fileBuilder.getProperty("jcr:data"));
     }
 
     @Override
@@ -87,7 +112,11 @@ class ReadOnlyOakDirectory extends Directory {
     @Override
     public IndexInput openInput(String name, IOContext context)
             throws IOException {
-        return new OakIndexInput(name);
+        PropertyState property = null;
+        if (fileExists(name)) {
+            property = directoryBuilder.child(name).getProperty("jcr:data");
+        }
+        return new OakIndexInput(name, property);
     }
 
     @Override
@@ -100,30 +129,61 @@ class ReadOnlyOakDirectory extends Directory {
         // do nothing
     }
 
-    protected byte[] readFile(String name) throws IOException {
-        if (!fileExists(name)) {
-            return new byte[0];
+    /**
+     * Get the length of an index file. Index files that were written by an
+     * older version consist of a single chunk.
+     *
+     * @param property the "jcr:data" property of the file, or null
+     * @return the length
+     */
+    static long getLength(PropertyState property) {
+        if (property == null || property.count() == 0) {
+            return 0;
         }
+        // the size of a multi-valued binary property is not its length
+        List<Blob> chunks = Lists.newArrayList(property.getValue(BINARIES));
+        int last = chunks.size() - 1;
+        return last * chunks.get(0).length() + chunks.get(last).length();
+    }
 
-        NodeBuilder fileBuilder = directoryBuilder.child(name);
-        PropertyState property = fileBuilder.getProperty("jcr:data");
-        if (property == null || property.isArray()) {
-            return new byte[0];
+    /**
+     * Read a chunk, or get it from the cache.
+     *
+     * @param name the file name
+     * @param blob the chunk
+     * @return the content of the chunk
+     */
+    static byte[] readChunk(final String name, final Blob blob)
+            throws IOException {
+        if (!(blob instanceof KernelBlob)) {
+            return readBlob(name, blob);
         }
+        try {
+            return CHUNKS.get(((KernelBlob) blob).getBinaryID(), new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return readBlob(name, blob);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IOException("Could not read index file: " + name, e.getCause());
+        }
+    }
 
-        InputStream stream = property.getValue(BINARY).getNewStream();
+    private static byte[] readBlob(String name, Blob blob) throws IOException {
+        InputStream stream = blob.getNewStream();
         try {
-            byte[] buffer = new byte[(int) property.size()];
+            byte[] buffer = new byte[(int) blob.length()];
 
             int size = 0;
-            do {
+            while (size < buffer.length) {
                 int n = stream.read(buffer, size, buffer.length - size);
                 if (n == -1) {
                     throw new IOException(
                             "Unexpected end of index file: " + name);
                 }
                 size += n;
-            } while (size < buffer.length);
+            }
 
             return buffer;
         } finally {
@@ -131,52 +191,92 @@ class ReadOnlyOakDirectory extends Directory {
         }
     }
 
-    private final class OakIndexInput extends IndexInput {
+    /**
+     * An input that reads the chunks of a file when needed. Clones share the
+     * chunks, but have their own position.
+     */
+    static final class OakIndexInput extends IndexInput {
+
+        private final String name;
+
+        private final List<Blob> chunks;
+
+        private final long chunkSize;
 
-        private final byte[] data;
+        private final long length;
 
-        private int position;
+        private long position;
 
-        public OakIndexInput(String name) throws IOException {
+        private byte[] chunk;
+
+        private long chunkStart;
+
+        public OakIndexInput(String name, PropertyState property) {
             super(name);
-            this.data = readFile(name);
+            this.name = name;
+            if (property == null) {
+                this.chunks = Lists.newArrayList();
+            } else {
+                this.chunks = Lists.newArrayList(property.getValue(BINARIES));
+            }
+            this.chunkSize = chunks.isEmpty() ? 1 : Math.max(1, chunks.get(0).length());
+            this.length = getLength(property);
             this.position = 0;
         }
 
+        /**
+         * Make the chunk that contains the current position available.
+         */
+        private void loadChunk() throws IOException {
+            if (chunk != null && position >= chunkStart
+                    && position < chunkStart + chunk.length) {
+                return;
+            }
+            int index = (int) (position / chunkSize);
+            chunk = readChunk(name, chunks.get(index));
+            chunkStart = index * chunkSize;
+        }
+
         @Override
         public void readBytes(byte[] b, int offset, int len)
                 throws IOException {
-            if (len < 0 || position + len > data.length) {
+            if (len < 0 || position + len > length) {
                 throw new IOException("Invalid byte range request");
-            } else {
-                System.arraycopy(data, position, b, offset, len);
-                position += len;
+            }
+            while (len > 0) {
+                loadChunk();
+                int pos = (int) (position - chunkStart);
+                int n = Math.min(len, chunk.length - pos);
+                System.arraycopy(chunk, pos, b, offset, n);
+                position += n;
+                offset += n;
+                len -= n;
             }
         }
 
         @Override
         public byte readByte() throws IOException {
-            if (position >= data.length) {
+            if (position >= length) {
                 throw new IOException("Invalid byte range request");
-            } else {
-                return data[position++];
             }
+            loadChunk();
+            return chunk[(int) (position++ - chunkStart)];
         }
 
         @Override
         public void seek(long pos) throws IOException {
-            //seek() may be called with pos == data.length
+            //seek() may be called with pos == length
             //see https://issues.apache.org/jira/browse/LUCENE-1196
-            if (pos < 0 || pos > data.length) {
+            if (pos < 0 || pos > length) {
                 throw new IOException("Invalid seek request");
             } else {
-                position = (int) pos;
+                position = pos;
             }
         }
 
         @Override
         public long length() {
-            return data.length;
+            return length;
         }
 
         @Override
@@ -16,8 +16,14 @@
  */
 package org.apache.jackrabbit.oak.plugins.index.lucene;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 
+import com.google.common.collect.Lists;
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.plugins.memory.MultiBinaryPropertyState;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IOContext;
@@ -29,6 +35,11 @@ import org.apache.lucene.store.IndexOutput;
  */
 public class ReadWriteOakDirectory extends ReadOnlyOakDirectory {
 
+    /**
+     * The size of a chunk of an index file.
+     */
+    static final int CHUNK_SIZE = 32 * 1024;
+
     public ReadWriteOakDirectory(NodeBuilder directoryBuilder) {
         super(directoryBuilder);
     }
@@ -39,21 +50,37 @@ public class ReadWriteOakDirectory extends ReadOnlyOakDirectory {
         return new OakIndexOutput(name);
     }
 
+    /**
+     * An output that keeps only the current chunk in memory. Completed
+     * chunks are written with {@link NodeBuilder#createBlob(InputStream)},
+     * which stores them in the MicroKernel right away (unless the index is
+     * updated in a builder that is kept in memory), and are read again if
+     * the output seeks back.
+     */
     private final class OakIndexOutput extends IndexOutput {
 
         private final String name;
 
-        private byte[] buffer;
+        private final List<Blob> chunks = Lists.newArrayList();
+
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+
+        /**
+         * The index of the current chunk.
+         */
+        private int chunkIndex;
+
+        /**
+         * Whether the current chunk was changed since it was stored.
+         */
+        private boolean modified;
 
-        private int size;
+        private long size;
 
-        private int position;
+        private long position;
 
         public OakIndexOutput(String name) throws IOException {
             this.name = name;
-            this.buffer = readFile(name);
-            this.size = buffer.length;
-            this.position = 0;
         }
 
         @Override
@@ -68,44 +95,81 @@ public class ReadWriteOakDirectory extends ReadOnlyOakDirectory {
 
         @Override
         public void seek(long pos) throws IOException {
-            if (pos < 0 || pos > Integer.MAX_VALUE) {
+            if (pos < 0 || pos > size) {
                 throw new IOException("Invalid file position: " + pos);
             }
-            this.position = (int) pos;
+            this.position = pos;
         }
 
-        @Override
-        public void writeBytes(byte[] b, int offset, int length) {
-            while (position + length > buffer.length) {
-                byte[] tmp = new byte[Math.max(4096, buffer.length * 2)];
-                System.arraycopy(buffer, 0, tmp, 0, size);
-                buffer = tmp;
+        /**
+         * Make the chunk that contains the current position the current
+         * chunk.
+         */
+        private void switchChunk() throws IOException {
+            int index = (int) (position / CHUNK_SIZE);
+            if (index == chunkIndex) {
+                return;
+            }
+            storeChunk();
+            chunkIndex = index;
+            if (index < chunks.size()) {
+                byte[] data = readChunk(name, chunks.get(index));
+                System.arraycopy(data, 0, chunk, 0, data.length);
             }
+        }
 
-            System.arraycopy(b, offset, buffer, position, length);
+        /**
+         * Store the current chunk, if it was changed.
+         */
+        private void storeChunk() throws IOException {
+            if (!modified) {
+                return;
+            }
+            long start = (long) chunkIndex * CHUNK_SIZE;
+            int length = (int) Math.min(CHUNK_SIZE, size - start);
+            byte[] data = new byte[length];
+            System.arraycopy(chunk, 0, data, 0, length);
+            Blob blob = directoryBuilder.createBlob(
+                    new ByteArrayInputStream(data));
+            if (chunkIndex < chunks.size()) {
+                chunks.set(chunkIndex, blob);
+            } else {
+                chunks.add(blob);
+            }
+            modified = false;
+        }
 
-            position += length;
-            if (position > size) {
-                size = position;
+        @Override
+        public void writeBytes(byte[] b, int offset, int length)
+                throws IOException {
+            while (length > 0) {
+                switchChunk();
+                int pos = (int) (position - (long) chunkIndex * CHUNK_SIZE);
+                int n = Math.min(length, CHUNK_SIZE - pos);
+                System.arraycopy(b, offset, chunk, pos, n);
+                modified = true;
+                position += n;
+                offset += n;
+                length -= n;
+                if (position > size) {
+                    size = position;
+                }
             }
         }
 
         @Override
-        public void writeByte(byte b) {
+        public void writeByte(byte b) throws IOException {
             writeBytes(new byte[] { b }, 0, 1);
         }
 
         @Override
         public void flush() throws IOException {
-            byte[] data = buffer;
-            if (data.length > size) {
-                data = new byte[size];
-                System.arraycopy(buffer, 0, data, 0, size);
-            }
-
+            storeChunk();
+            // the current chunk is stored, but remains the current chunk
             NodeBuilder fileBuilder = directoryBuilder.child(name);
             fileBuilder.setProperty("jcr:lastModified", System.currentTimeMillis());
-            fileBuilder.setProperty("jcr:data", data);
+            fileBuilder.setProperty(MultiBinaryPropertyState.binaryPropertyFromBlob(
+                    "jcr:data", chunks));
         }
 
         @Override
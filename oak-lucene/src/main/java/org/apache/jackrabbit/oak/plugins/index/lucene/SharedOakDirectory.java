@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index.lucene;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.UnsupportedRepositoryOperationException;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.plugins.index.lucene.ReadOnlyOakDirectory.OakIndexInput;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.NoLockFactory;
+
+/**
+ * A read-only Lucene {@link Directory} over the index content stored in an Oak
+ * repository, that can be moved to a newer revision of the index content.
+ * <p>
+ * Lucene never changes a file once it is written, so a reader of an older
+ * revision can be refreshed with {@code DirectoryReader.openIfChanged}, which
+ * only reads the new segments. The files that were opened are remembered, to
+ * detect whether the index was created again, in which case the old readers
+ * can not be refreshed.
+ */
+class SharedOakDirectory extends Directory {
+
+    /**
+     * The file that is re-written on each commit.
+     */
+    private static final String SEGMENTS_GEN = "segments.gen";
+
+    private NodeState state;
+
+    private final Map<String, PropertyState> files = new HashMap<String, PropertyState>();
+
+    SharedOakDirectory() {
+        this.lockFactory = NoLockFactory.getNoLockFactory();
+    }
+
+    /**
+     * Move the directory to the given revision of the index content. The
+     * files that no longer exist are forgotten.
+     *
+     * @param state the index data node
+     * @return false if a file was changed, which means the index was created
+     *         again, so that readers of the old revision can not be refreshed
+     */
+    synchronized boolean setState(NodeState state) {
+        this.state = state;
+        boolean unchanged = true;
+        Iterator<Map.Entry<String, PropertyState>> it = files.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, PropertyState> e = it.next();
+            String name = e.getKey();
+            PropertyState data = getData(name);
+            if (data == null) {
+                it.remove();
+            } else if (!data.equals(e.getValue())) {
+                it.remove();
+                if (!SEGMENTS_GEN.equals(name)) {
+                    unchanged = false;
+                }
+            }
+        }
+        return unchanged;
+    }
+
+    private PropertyState getData(String name) {
+        NodeState file = state.getChildNode(name);
+        return file == null ? null : file.getProperty("jcr:data");
+    }
+
+    @Override
+    public synchronized String[] listAll() throws IOException {
+        List<String> names = new ArrayList<String>();
+        for (ChildNodeEntry e : state.getChildNodeEntries()) {
+            names.add(e.getName());
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    @Override
+    public synchronized boolean fileExists(String name) throws IOException {
+        return state.getChildNode(name) != null;
+    }
+
+    @Override
+    public void deleteFile(String name) throws IOException {
+        throw new IOException(new UnsupportedRepositoryOperationException());
+    }
+
+    @Override
+    public synchronized long fileLength(String name) throws IOException {
+        return ReadOnlyOakDirectory.getLength(getData(name));
+    }
+
+    @Override
+    public IndexOutput createOutput(String name, IOContext context)
+            throws IOException {
+        throw new IOException(new UnsupportedRepositoryOperationException());
+    }
+
+    @Override
+    public synchronized IndexInput openInput(String name, IOContext context)
+            throws IOException {
+        PropertyState data = getData(name);
+        if (data != null) {
+            files.put(name, data);
+        }
+        return new OakIndexInput(name, data);
+    }
+
+    @Override
+    public void sync(Collection<String> names) throws IOException {
+        // read-only
+    }
+
+    @Override
+    public void close() throws IOException {
+        // do nothing
+    }
+
+}
@@ -29,13 +29,14 @@ public class LowCostLuceneIndexProvider extends LuceneIndexProvider {
 
     @Override
     protected LuceneIndex newLuceneIndex(IndexDefinition child) {
-        return new LowCostLuceneIndex(child);
+        return new LowCostLuceneIndex(child, searchers);
     }
 
     private static class LowCostLuceneIndex extends LuceneIndex {
 
-        public LowCostLuceneIndex(IndexDefinition indexDefinition) {
-            super(indexDefinition);
+        public LowCostLuceneIndex(IndexDefinition indexDefinition,
+                IndexSearcherManager searchers) {
+            super(indexDefinition, searchers);
         }
 
         @Override
@@ -20,10 +20,14 @@ import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.jackrabbit.oak.Oak;
 import org.apache.jackrabbit.oak.api.ContentRepository;
+import org.apache.jackrabbit.oak.api.ResultRow;
 import org.apache.jackrabbit.oak.api.Tree;
 import org.apache.jackrabbit.oak.plugins.nodetype.write.InitialContent;
 import org.apache.jackrabbit.oak.query.AbstractQueryTest;
@@ -93,6 +97,28 @@ public class LuceneIndexQueryTest extends AbstractQueryTest {
         assertFalse(result.hasNext());
     }
 
+    @Test
+    public void orderByPath() throws Exception {
+        JsopUtil.apply(root, "/ + \"test\": { \"c\": {}, \"a\": { \"x\": {} }, \"b\": {} }");
+        root.commit();
+
+        String query = "select [jcr:path] from [nt:base] " +
+                "where isdescendantnode('/test') order by [jcr:path] desc";
+        assertTrue(executeQuery("explain " + query, "JCR-SQL2").get(0)
+                .contains("(sorted by index)"));
+        assertEquals(Arrays.asList("/test/c", "/test/b", "/test/a/x", "/test/a"),
+                executeQuery(query, "JCR-SQL2"));
+
+        // the rows are not sorted by the query engine,
+        // limit and offset are applied while reading
+        List<String> paths = new ArrayList<String>();
+        for (ResultRow row : qe.executeQuery(query, "JCR-SQL2", 2, 1,
+                null, null).getRows()) {
+            paths.add(row.getPath());
+        }
+        assertEquals(Arrays.asList("/test/b", "/test/a/x"), paths);
+    }
+
     @Test
     @Ignore("OAK-420")
     public void ischildnodeTest() throws Exception {
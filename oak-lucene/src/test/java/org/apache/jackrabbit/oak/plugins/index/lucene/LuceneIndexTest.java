@@ -20,19 +20,32 @@ import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.oak.plugins.index.IndexConstants.REINDEX_PARALLEL_PROPERTY_NAME;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.jackrabbit.oak.plugins.index.IndexDefinition;
 import org.apache.jackrabbit.oak.plugins.index.IndexDefinitionImpl;
 import org.apache.jackrabbit.oak.plugins.index.IndexHook;
+import org.apache.jackrabbit.oak.plugins.index.IndexHookManager;
+import org.apache.jackrabbit.oak.plugins.index.IndexHookProvider;
+import org.apache.jackrabbit.oak.plugins.index.IndexMerger;
+import org.apache.jackrabbit.oak.plugins.index.ParallelReindex;
 import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeState;
+import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeStore;
 import org.apache.jackrabbit.oak.query.ast.Operator;
 import org.apache.jackrabbit.oak.query.index.FilterImpl;
 import org.apache.jackrabbit.oak.spi.query.Cursor;
 import org.apache.jackrabbit.oak.spi.query.Filter;
+import org.apache.jackrabbit.oak.spi.query.Filter.OrderEntry;
 import org.apache.jackrabbit.oak.spi.query.PropertyValues;
 import org.apache.jackrabbit.oak.spi.query.QueryIndex;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.apache.jackrabbit.oak.spi.state.NodeStoreBranch;
 import org.junit.Test;
 
 public class LuceneIndexTest implements LuceneIndexConstants {
@@ -107,4 +120,170 @@ public class LuceneIndexTest implements LuceneIndexConstants {
         assertFalse(cursor.hasNext());
     }
 
+    @Test
+    public void testSharedSearcher() throws Exception {
+        NodeState root = MemoryNodeState.EMPTY_NODE;
+
+        NodeBuilder builder = root.builder();
+        builder.child("oak:index").child("lucene")
+                .setProperty(JCR_PRIMARYTYPE, INDEX_DEFINITIONS_NODE_TYPE)
+                .setProperty("type", TYPE_LUCENE);
+
+        NodeState before = builder.getNodeState();
+        builder.child("a").setProperty("foo", "bar");
+        NodeState after = builder.getNodeState();
+
+        IndexHook l = new LuceneIndexDiff(builder);
+        after.compareAgainstBaseState(before, l);
+        l.apply();
+        l.close();
+        NodeState first = builder.getNodeState();
+
+        IndexDefinition testDef = new IndexDefinitionImpl("lucene",
+                TYPE_LUCENE, "/oak:index/lucene");
+        IndexSearcherManager searchers = new IndexSearcherManager();
+        QueryIndex queryIndex = new LuceneIndex(testDef, searchers);
+        FilterImpl filter = new FilterImpl(null, null);
+        filter.restrictProperty("foo", Operator.EQUAL,
+                PropertyValues.newString("bar"));
+
+        // the reader is opened once
+        assertEquals(1, count(queryIndex.query(filter, first)));
+        assertEquals(1.0, queryIndex.getCost(filter, first));
+        assertEquals(1, count(queryIndex.query(filter, first)));
+        assertEquals(1, searchers.getOpenCount());
+        assertEquals(0, searchers.getRefreshCount());
+
+        // after a change, the reader is refreshed
+        before = first;
+        builder = first.builder();
+        builder.child("b").setProperty("foo", "bar");
+        after = builder.getNodeState();
+        l = new LuceneIndexDiff(builder);
+        after.compareAgainstBaseState(before, l);
+        l.apply();
+        l.close();
+        NodeState second = builder.getNodeState();
+        assertEquals(2, count(queryIndex.query(filter, second)));
+        assertEquals(1, searchers.getOpenCount());
+        assertEquals(1, searchers.getRefreshCount());
+
+        // the old revision can still be read
+        assertEquals(1, count(queryIndex.query(filter, first)));
+        assertEquals(2, count(queryIndex.query(filter, second)));
+
+        // the readers of a removed index are closed
+        builder = second.builder();
+        builder.child("oak:index").removeNode("lucene");
+        NodeState removed = builder.getNodeState();
+        assertEquals(1, searchers.getIndexCount());
+        assertEquals(0, count(queryIndex.query(filter, removed)));
+        assertEquals(0, searchers.getIndexCount());
+
+        // also by the provider, which does not create the removed index
+        LuceneIndexProvider provider = new LuceneIndexProvider();
+        queryIndex = provider.getQueryIndexes(second).get(0);
+        assertEquals(2, count(queryIndex.query(filter, second)));
+        assertEquals(1, provider.searchers.getIndexCount());
+        assertEquals(0, provider.getQueryIndexes(removed).size());
+        assertEquals(0, provider.searchers.getIndexCount());
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        NodeState root = MemoryNodeState.EMPTY_NODE;
+
+        NodeBuilder builder = root.builder();
+        builder.child("oak:index").child("lucene")
+                .setProperty(JCR_PRIMARYTYPE, INDEX_DEFINITIONS_NODE_TYPE)
+                .setProperty("type", TYPE_LUCENE);
+
+        NodeState before = builder.getNodeState();
+        for (int i = 0; i < 500; i++) {
+            builder.child("n" + i).setProperty("foo", "bar");
+        }
+        NodeState after = builder.getNodeState();
+
+        IndexHook l = new LuceneIndexDiff(builder);
+        after.compareAgainstBaseState(before, l);
+        l.apply();
+        l.close();
+
+        IndexDefinition testDef = new IndexDefinitionImpl("lucene",
+                TYPE_LUCENE, "/oak:index/lucene");
+        QueryIndex queryIndex = new LuceneIndex(testDef);
+        FilterImpl filter = new FilterImpl(null, null);
+        filter.restrictProperty("foo", Operator.EQUAL,
+                PropertyValues.newString("bar"));
+        Set<String> paths = new HashSet<String>();
+        Cursor cursor = queryIndex.query(filter, builder.getNodeState());
+        while (cursor.hasNext()) {
+            paths.add(cursor.next().getPath());
+        }
+        assertEquals(500, paths.size());
+
+        // sorted by path, in descending order
+        OrderEntry order = new OrderEntry();
+        order.propertyName = "jcr:path";
+        order.descending = true;
+        filter.setSortOrder(Collections.singletonList(order));
+        cursor = queryIndex.query(filter, builder.getNodeState());
+        String last = null;
+        int count = 0;
+        while (cursor.hasNext()) {
+            String path = cursor.next().getPath();
+            if (last != null) {
+                assertTrue(path.compareTo(last) < 0);
+            }
+            last = path;
+            count++;
+        }
+        assertEquals(500, count);
+    }
+
+    @Test
+    public void testParallelReindex() throws Exception {
+        NodeStore store = new MemoryNodeStore();
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("a").setProperty("foo", "bar");
+        builder.child("a").child("b").setProperty("foo", "bar");
+        builder.child("a").child("b").child("c").setProperty("foo", "bar");
+        builder.child("a").child("b").child("c").child("d").setProperty("foo", "bar");
+        builder.child("e").setProperty("foo", "bar");
+        builder.child("oak:index").child("lucene")
+                .setProperty(JCR_PRIMARYTYPE, INDEX_DEFINITIONS_NODE_TYPE)
+                .setProperty("type", TYPE_LUCENE)
+                .setProperty(REINDEX_PARALLEL_PROPERTY_NAME, true);
+        IndexHookProvider provider = new LuceneIndexHookProvider();
+        NodeStoreBranch branch = store.branch();
+        branch.setRoot(IndexHookManager.of(provider).processCommit(
+                branch.getBase(), builder.getNodeState()));
+        branch.merge();
+
+        IndexDefinition testDef = new IndexDefinitionImpl("lucene",
+                TYPE_LUCENE, "/oak:index/lucene");
+        QueryIndex queryIndex = new LuceneIndex(testDef);
+        FilterImpl filter = new FilterImpl(null, null);
+        filter.restrictProperty("foo", Operator.EQUAL,
+                PropertyValues.newString("bar"));
+        assertTrue(Double.isInfinite(queryIndex.getCost(filter, store.getRoot())));
+
+        new ParallelReindex(store, provider,
+                Collections.<IndexMerger> singletonList(new LuceneIndexMerger())).run();
+
+        // each node is indexed once
+        NodeState indexed = store.getRoot();
+        assertFalse(Double.isInfinite(queryIndex.getCost(filter, indexed)));
+        assertEquals(5, count(queryIndex.query(filter, indexed)));
+    }
+
+    private static int count(Cursor cursor) {
+        int count = 0;
+        while (cursor.hasNext()) {
+            cursor.next();
+            count++;
+        }
+        return count;
+    }
+
 }
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.index.lucene;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.apache.jackrabbit.oak.api.Type.BINARIES;
+import static org.apache.jackrabbit.oak.api.Type.BINARY;
+import static org.apache.jackrabbit.oak.plugins.index.lucene.ReadWriteOakDirectory.CHUNK_SIZE;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.jackrabbit.mk.core.MicroKernelImpl;
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.kernel.KernelBlob;
+import org.apache.jackrabbit.oak.kernel.KernelNodeStore;
+import org.apache.jackrabbit.oak.plugins.memory.ArrayBasedBlob;
+import org.apache.jackrabbit.oak.plugins.memory.MemoryNodeState;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.junit.Test;
+
+/**
+ * Tests the chunked storage of index files.
+ */
+public class OakDirectoryTest {
+
+    @Test
+    public void chunks() throws Exception {
+        NodeBuilder builder = MemoryNodeState.EMPTY_NODE.builder();
+        Directory dir = new ReadWriteOakDirectory(builder);
+
+        int length = 3 * CHUNK_SIZE + 100;
+        byte[] data = new byte[length];
+        new Random(1).nextBytes(data);
+
+        IndexOutput out = dir.createOutput("test", IOContext.DEFAULT);
+        out.writeLong(0);
+        out.writeBytes(data, 8, CHUNK_SIZE);
+        for (int i = CHUNK_SIZE + 8; i < length; i++) {
+            out.writeByte(data[i]);
+        }
+        // seek back to the first chunk, as Lucene does to write a header
+        out.seek(0);
+        out.writeBytes(data, 0, 8);
+        out.close();
+
+        assertEquals(length, dir.fileLength("test"));
+        assertEquals(4, builder.child("test").getProperty("jcr:data").count());
+
+        dir = new ReadOnlyOakDirectory(builder);
+        IndexInput in = dir.openInput("test", IOContext.DEFAULT);
+        assertEquals(length, in.length());
+        byte[] read = new byte[length];
+        in.readBytes(read, 0, length);
+        assertEquals(length, in.getFilePointer());
+        for (int i = 0; i < length; i++) {
+            assertEquals(data[i], read[i]);
+        }
+
+        // random access across the chunk boundaries
+        Random r = new Random(2);
+        IndexInput clone = (IndexInput) in.clone();
+        for (int i = 0; i < 100; i++) {
+            int pos = r.nextInt(length - 10);
+            in.seek(pos);
+            assertEquals(data[pos], in.readByte());
+            in.readBytes(read, 0, 9);
+            for (int j = 0; j < 9; j++) {
+                assertEquals(data[pos + 1 + j], read[j]);
+            }
+        }
+        clone.seek(CHUNK_SIZE - 1);
+        assertEquals(data[CHUNK_SIZE - 1], clone.readByte());
+        assertEquals(data[CHUNK_SIZE], clone.readByte());
+    }
+
+    @Test
+    public void chunksInKernel() throws Exception {
+        KernelNodeStore store = new KernelNodeStore(new MicroKernelImpl());
+        NodeBuilder builder = store.getRoot().builder();
+        Directory dir = new ReadWriteOakDirectory(builder.child("index"));
+
+        byte[] data = new byte[2 * CHUNK_SIZE + 100];
+        new Random(1).nextBytes(data);
+        IndexOutput out = dir.createOutput("test", IOContext.DEFAULT);
+        out.writeBytes(data, 0, data.length);
+        out.close();
+
+        // the chunks are written to the kernel before the commit
+        PropertyState property =
+                builder.child("index").child("test").getProperty("jcr:data");
+        assertEquals(3, property.count());
+        for (Blob blob : property.getValue(BINARIES)) {
+            assertTrue(blob instanceof KernelBlob);
+        }
+        IndexInput in = dir.openInput("test", IOContext.DEFAULT);
+        byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        assertTrue(Arrays.equals(data, read));
+    }
+
+    @Test
+    public void legacySingleValue() throws Exception {
+        // index files written by older versions are a single binary
+        byte[] data = new byte[CHUNK_SIZE + 100];
+        new Random(1).nextBytes(data);
+        NodeBuilder builder = MemoryNodeState.EMPTY_NODE.builder();
+        builder.child("test").setProperty(
+                "jcr:data", new ArrayBasedBlob(data), BINARY);
+
+        Directory dir = new ReadOnlyOakDirectory(builder);
+        assertEquals(data.length, dir.fileLength("test"));
+        IndexInput in = dir.openInput("test", IOContext.DEFAULT);
+        assertEquals(data.length, in.length());
+        byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        assertTrue(Arrays.equals(data, read));
+        in.seek(CHUNK_SIZE + 1);
+        assertEquals(data[CHUNK_SIZE + 1], in.readByte());
+    }
+
+}
@@ -20,11 +20,13 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.jackrabbit.mk.api.MicroKernel;
 import org.apache.jackrabbit.mk.api.MicroKernelException;
+import org.apache.jackrabbit.mk.core.MicroKernelImpl;
 import org.apache.jackrabbit.mk.json.JsopBuilder;
 import org.apache.jackrabbit.mk.util.MicroKernelInputStream;
 import org.apache.jackrabbit.mk.util.IOUtils;
@@ -329,7 +331,10 @@ class MicroKernelServlet {
             }
             
             OutputStream out = response.getOutputStream();
-            if (pos == 0L && length == -1) {
+            if (mk instanceof MicroKernelImpl) {
+                /* transfer the range without copying whole blocks to the heap */
+                ((MicroKernelImpl) mk).read(blobId, pos, length, Channels.newChannel(out));
+            } else if (pos == 0L && length == -1) {
                 /* return the complete binary */
                 InputStream in = new MicroKernelInputStream(mk, blobId);
                 IOUtils.copy(in, out);
@@ -27,13 +27,25 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An abstract data store that splits the binaries in relatively small blocks,
@@ -72,6 +84,30 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
     
     protected static final int BLOCK_SIZE_LIMIT = 48;
 
+    /**
+     * System property for the number of threads digesting and storing the
+     * blocks of a blob. The default is {@code 1}, which stores the blocks on
+     * the calling thread.
+     */
+    public static final String WRITE_THREADS = "mk.blobWriteThreads";
+
+    /**
+     * System property for the number of blocks a sweep deletes before it
+     * pauses. The default is {@code 0}, which deletes all blocks in one go.
+     */
+    public static final String SWEEP_BATCH_SIZE = "mk.blobSweepBatchSize";
+
+    /**
+     * System property for the time in milliseconds a sweep pauses after each
+     * batch of deleted blocks.
+     */
+    public static final String SWEEP_BATCH_DELAY = "mk.blobSweepBatchDelay";
+
+    /**
+     * Number of locks serializing the storage of blocks with the same digest.
+     */
+    private static final int BLOCK_LOCK_COUNT = 64;
+
     protected Map<String, WeakReference<String>> inUse =
         Collections.synchronizedMap(new WeakHashMap<String, WeakReference<String>>());
 
@@ -89,6 +125,22 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
 
     private Cache<AbstractBlobStore.BlockId, Data> cache = Cache.newInstance(this, 8 * 1024 * 1024);
 
+    private final Object[] blockLocks = new Object[BLOCK_LOCK_COUNT];
+
+    private int writeThreads = Integer.getInteger(WRITE_THREADS, 1);
+
+    private ExecutorService writeExecutor;
+
+    private volatile int sweepBatchSize = Integer.getInteger(SWEEP_BATCH_SIZE, 0);
+
+    private volatile long sweepBatchDelay = Long.getLong(SWEEP_BATCH_DELAY, 0);
+
+    protected AbstractBlobStore() {
+        for (int i = 0; i < blockLocks.length; i++) {
+            blockLocks[i] = new Object();
+        }
+    }
+
     public void setBlockSizeMin(int x) {
         validateBlockSize(x);
         this.blockSizeMin = x;
@@ -115,6 +167,103 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
         return blockSize;
     }
 
+    /**
+     * Set the number of threads digesting and storing the blocks of a blob.
+     * With more than one thread, the calling thread only reads the blob while
+     * up to this number of blocks are stored in parallel.
+     *
+     * @param x the number of threads, at least {@code 1}
+     */
+    public synchronized void setWriteThreads(int x) {
+        if (x < 1) {
+            throw new IllegalArgumentException("writeThreads: " + x);
+        }
+        if (writeExecutor != null) {
+            writeExecutor.shutdown();
+            writeExecutor = null;
+        }
+        this.writeThreads = x;
+    }
+
+    public synchronized int getWriteThreads() {
+        return writeThreads;
+    }
+
+    /**
+     * Limit the throughput of a sweep: after deleting the given number of
+     * blocks, the sweep pauses for the given time, so that garbage collection
+     * does not saturate the storage.
+     *
+     * @param batchSize the number of blocks per batch, {@code 0} for no limit
+     * @param delay the pause after each batch in milliseconds
+     */
+    public void setSweepThrottle(int batchSize, long delay) {
+        if (batchSize < 0 || delay < 0) {
+            throw new IllegalArgumentException("batchSize: " + batchSize + " delay: " + delay);
+        }
+        this.sweepBatchSize = batchSize;
+        this.sweepBatchDelay = delay;
+    }
+
+    public int getSweepBatchSize() {
+        return sweepBatchSize;
+    }
+
+    public long getSweepBatchDelay() {
+        return sweepBatchDelay;
+    }
+
+    /**
+     * Called by a sweep after each deleted block. Pauses at the end of each
+     * batch, see {@link #setSweepThrottle(int, long)}.
+     *
+     * @param count the number of blocks deleted so far
+     */
+    protected void sweepProgress(int count) {
+        int batchSize = sweepBatchSize;
+        long delay = sweepBatchDelay;
+        if (batchSize > 0 && delay > 0 && count % batchSize == 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized ExecutorService getWriteExecutor() {
+        if (writeThreads <= 1) {
+            return null;
+        }
+        if (writeExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(writeThreads, writeThreads,
+                    60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "BlobStore-Writer-" + threadCount.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            writeExecutor = executor;
+        }
+        return writeExecutor;
+    }
+
+    /**
+     * Get the lock that serializes storing the block with the given digest.
+     * Blocks with different digests are usually stored in parallel.
+     *
+     * @param digest the content hash
+     * @return the lock
+     */
+    protected Object getBlockLock(byte[] digest) {
+        return blockLocks[digest[0] & (BLOCK_LOCK_COUNT - 1)];
+    }
+
     /**
      * Write a blob from a temporary file. The temporary file is removed
      * afterwards. A file based blob stores might simply rename the file, so
@@ -140,7 +289,12 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
     public String writeBlob(InputStream in) throws Exception {
         try {
             ByteArrayOutputStream idStream = new ByteArrayOutputStream();
-            convertBlobToId(in, idStream, 0, 0);
+            ExecutorService executor = getWriteExecutor();
+            if (executor == null) {
+                convertBlobToId(in, idStream, 0, 0);
+            } else {
+                convertBlobToId(in, idStream, executor);
+            }
             byte[] id = idStream.toByteArray();
             // System.out.println("    write blob " +  StringUtils.convertBytesToHex(id));
             String blobId = StringUtils.convertBytesToHex(id);
@@ -219,7 +373,101 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
     }
 
     /**
-     * Store a block of data.
+     * Convert a blob to an id like {@code convertBlobToId(in, idStream, 0, 0)},
+     * but digest and store the blocks of user data in parallel. The entries
+     * are written to the id in the order the blocks were read, so the result
+     * is the same.
+     */
+    private void convertBlobToId(InputStream in, ByteArrayOutputStream idStream,
+            ExecutorService executor) throws Exception {
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        LinkedList<Integer> pendingLengths = new LinkedList<Integer>();
+        long totalLength = 0;
+        try {
+            while (true) {
+                final byte[] block = new byte[blockSize];
+                int blockLen = IOUtils.readFully(in, block, 0, block.length);
+                if (blockLen == 0) {
+                    break;
+                } else if (blockLen < blockSizeMin) {
+                    while (!pending.isEmpty()) {
+                        totalLength = writeHashEntry(idStream, pending.removeFirst(),
+                                pendingLengths.removeFirst(), totalLength);
+                    }
+                    idStream.write(TYPE_DATA);
+                    IOUtils.writeVarInt(idStream, blockLen);
+                    idStream.write(block, 0, blockLen);
+                    totalLength += blockLen;
+                    totalLength = convertLargeId(idStream, totalLength);
+                } else {
+                    final byte[] data = blockLen == block.length ? block : Arrays.copyOf(block, blockLen);
+                    pending.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws Exception {
+                            MessageDigest messageDigest = MessageDigest.getInstance(HASH_ALGORITHM);
+                            byte[] digest = messageDigest.digest(data);
+                            storeBlock(digest, 0, data);
+                            return digest;
+                        }
+                    }));
+                    pendingLengths.add(blockLen);
+                    if (pending.size() > writeThreads) {
+                        totalLength = writeHashEntry(idStream, pending.removeFirst(),
+                                pendingLengths.removeFirst(), totalLength);
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                totalLength = writeHashEntry(idStream, pending.removeFirst(),
+                        pendingLengths.removeFirst(), totalLength);
+            }
+        } finally {
+            for (Future<byte[]> f : pending) {
+                f.cancel(false);
+            }
+        }
+        if (idStream.size() > blockSizeMin) {
+            byte[] idBlock = idStream.toByteArray();
+            idStream.reset();
+            convertBlobToId(new ByteArrayInputStream(idBlock), idStream, 1, totalLength);
+        }
+        in.close();
+    }
+
+    private long writeHashEntry(ByteArrayOutputStream idStream, Future<byte[]> future,
+            int blockLen, long totalLength) throws Exception {
+        byte[] digest;
+        try {
+            digest = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+        idStream.write(TYPE_HASH);
+        IOUtils.writeVarInt(idStream, 0);
+        IOUtils.writeVarLong(idStream, blockLen);
+        totalLength += blockLen;
+        IOUtils.writeVarInt(idStream, digest.length);
+        idStream.write(digest);
+        return convertLargeId(idStream, totalLength);
+    }
+
+    private long convertLargeId(ByteArrayOutputStream idStream, long totalLength) throws Exception {
+        if (idStream.size() > blockSize / 2) {
+            // same as in convertBlobToId(in, idStream, level, totalLength)
+            byte[] idBlock = idStream.toByteArray();
+            idStream.reset();
+            convertBlobToId(new ByteArrayInputStream(idBlock), idStream, 1, totalLength);
+        }
+        return totalLength;
+    }
+
+    /**
+     * Store a block of data. Blocks may be stored concurrently; implementations
+     * can serialize storing the same block using {@link #getBlockLock(byte[])}.
      * 
      * @param digest the content hash
      * @param level the indirection level (0 is for user data, 1 is a list of
@@ -233,6 +481,16 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
 
     public abstract void startMark() throws Exception;
 
+    /**
+     * Continue a mark phase started with {@link #startMark()}, for example
+     * after a restart. Blocks stored or marked since the given time are kept
+     * by the next {@link #sweep()}.
+     *
+     * @param markStart the time the mark phase was started, not later than
+     *            the call to {@link #startMark()}
+     */
+    public abstract void resumeMark(long markStart) throws Exception;
+
     public abstract int sweep() throws Exception;
 
     protected abstract boolean isMarkEnabled();
@@ -245,11 +503,67 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
         }
     }
 
-    public int readBlob(String blobId, long pos, byte[] buff, int off, int length) throws Exception {
+    public int readBlob(String blobId, long pos, final byte[] buff, final int off, int length) throws Exception {
+        return readBlob(blobId, pos, length, new RangeTarget() {
+            @Override
+            public int writeData(byte[] data, int dataOff, int len) {
+                System.arraycopy(data, dataOff, buff, off, len);
+                return len;
+            }
+            @Override
+            public int writeBlock(byte[] digest, long blockPos, int len) throws Exception {
+                return readBlock(digest, blockPos, buff, off, len);
+            }
+        });
+    }
+
+    /**
+     * Transfer a range of a blob to a channel. Stores that support it (see
+     * {@link FileBlobStore#setMemoryMapped(boolean)}) write the blocks to the
+     * channel directly, without copying them to the heap.
+     *
+     * @param blobId the blob id
+     * @param pos the position within the blob
+     * @param length the number of bytes to transfer, or -1 for the rest of
+     *            the blob
+     * @param target the target channel
+     * @return the number of bytes transferred
+     */
+    public long readBlob(String blobId, long pos, long length, final WritableByteChannel target) throws Exception {
+        if (length < 0) {
+            length = Math.max(0, getBlobLength(blobId) - pos);
+        }
+        long count = 0;
+        while (count < length) {
+            int len = readBlob(blobId, pos + count, (int) Math.min(length - count, blockSize), new RangeTarget() {
+                @Override
+                public int writeData(byte[] data, int dataOff, int len) throws IOException {
+                    writeFully(target, ByteBuffer.wrap(data, dataOff, len));
+                    return len;
+                }
+                @Override
+                public int writeBlock(byte[] digest, long blockPos, int len) throws Exception {
+                    return transferBlock(digest, blockPos, len, target);
+                }
+            });
+            if (len <= 0) {
+                break;
+            }
+            count += len;
+        }
+        return count;
+    }
+
+    /**
+     * Locate the given position of a blob and read from the inline data or
+     * the block of user data found there.
+     */
+    private int readBlob(String blobId, long pos, int length, RangeTarget target) throws Exception {
         if (isMarkEnabled()) {
             mark(blobId);
         }
         byte[] id = StringUtils.convertHexToBytes(blobId);
+        byte[] source = id;
         ByteArrayInputStream idStream = new ByteArrayInputStream(id);
         while (true) {
             int type = idStream.read();
@@ -263,8 +577,7 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
                     if (length < len) {
                         len = length;
                     }
-                    IOUtils.readFully(idStream, buff, off, len);
-                    return len;
+                    return target.writeData(source, source.length - idStream.available(), len);
                 }
                 IOUtils.skipFully(idStream, len);
                 pos -= len;
@@ -281,14 +594,10 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
                     pos -= totalLength;
                 } else {
                     if (level > 0) {
-                        byte[] block = readBlock(digest, 0);
-                        idStream = new ByteArrayInputStream(block);
+                        source = readBlock(digest, 0);
+                        idStream = new ByteArrayInputStream(source);
                     } else {
-                        long readPos = pos - pos % blockSize;
-                        byte[] block = readBlock(digest, readPos);
-                        ByteArrayInputStream in = new ByteArrayInputStream(block);
-                        IOUtils.skipFully(in, pos - readPos);
-                        return IOUtils.readFully(in, buff, off, length);
+                        return target.writeBlock(digest, pos, length);
                     }
                 }
             } else {
@@ -297,6 +606,67 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
         }
     }
 
+    /**
+     * Read from a block of user data. The default implementation reads
+     * through the block cache.
+     *
+     * @param digest the content hash
+     * @param pos the position within the block
+     * @param buff the target byte array
+     * @param off the offset within the target array
+     * @param length the maximum number of bytes to read
+     * @return the number of bytes read
+     */
+    protected int readBlock(byte[] digest, long pos, byte[] buff, int off, int length) throws Exception {
+        long readPos = pos - pos % blockSize;
+        byte[] block = readBlock(digest, readPos);
+        ByteArrayInputStream in = new ByteArrayInputStream(block);
+        IOUtils.skipFully(in, pos - readPos);
+        return IOUtils.readFully(in, buff, off, length);
+    }
+
+    /**
+     * Transfer a range of a block of user data to a channel. The default
+     * implementation reads through the block cache.
+     *
+     * @param digest the content hash
+     * @param pos the position within the block
+     * @param length the maximum number of bytes to transfer
+     * @param target the target channel
+     * @return the number of bytes transferred
+     */
+    protected int transferBlock(byte[] digest, long pos, int length, WritableByteChannel target) throws Exception {
+        byte[] buff = new byte[length];
+        int len = readBlock(digest, pos, buff, 0, length);
+        if (len > 0) {
+            writeFully(target, ByteBuffer.wrap(buff, 0, len));
+        }
+        return len;
+    }
+
+    protected static void writeFully(WritableByteChannel target, ByteBuffer buff) throws IOException {
+        while (buff.hasRemaining()) {
+            target.write(buff);
+        }
+    }
+
+    /**
+     * The target of a blob read.
+     */
+    private interface RangeTarget {
+
+        /**
+         * Read inline data.
+         */
+        int writeData(byte[] data, int off, int length) throws Exception;
+
+        /**
+         * Read from a block of user data.
+         */
+        int writeBlock(byte[] digest, long pos, int length) throws Exception;
+
+    }
+
     private byte[] readBlock(byte[] digest, long pos) throws Exception {
         BlockId id = new BlockId(digest, pos);
         return cache.get(id).data;
@@ -384,13 +754,13 @@ public abstract class AbstractBlobStore implements BlobStore, Cache.Backend<Abst
                 }
                 byte[] digest = new byte[IOUtils.readVarInt(idStream)];
                 IOUtils.readFully(idStream, digest, 0, digest.length);
+                BlockId id = new BlockId(digest, 0);
+                mark(id);
                 if (level > 0) {
+                    // the indirection block is kept, and so are the blocks it points to
                     byte[] block = readBlock(digest, 0);
                     idStream = new ByteArrayInputStream(block);
                     mark(idStream);
-                } else {
-                    BlockId id = new BlockId(digest, 0);
-                    mark(id);
                 }
             } else {
                 throw new IOException("Unknown blobs id type " + type);
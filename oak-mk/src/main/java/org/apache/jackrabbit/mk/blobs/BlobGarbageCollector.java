@@ -0,0 +1,390 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.mk.blobs;
+
+import org.apache.jackrabbit.mk.model.ChildNodeEntry;
+import org.apache.jackrabbit.mk.model.Id;
+import org.apache.jackrabbit.mk.model.StoredNode;
+import org.apache.jackrabbit.mk.store.RevisionProvider;
+import org.apache.jackrabbit.mk.util.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Garbage collector for the blobs referenced by the nodes of a revision store.
+ * The node trees of the retained revisions are scanned for binary references
+ * (property values of the form {@code ":blobId:<id>"}, also within arrays),
+ * the blocks of the referenced blobs are marked, and the blocks that were not
+ * marked are swept. Blobs that are written while the collector runs are kept,
+ * as are the blobs still in use by this process.
+ * <p/>
+ * The mark phase of the blob store is started before the references are
+ * collected, so that blobs that are written while the node trees are scanned
+ * are kept even if they are referenced by a revision that is not scanned.
+ * <p/>
+ * The progress is checkpointed to a working directory: the revisions that
+ * were scanned, the nodes visited while scanning them, the ids of the
+ * referenced blobs, and how many of them were marked. A collection that was
+ * interrupted, for example by a restart, resumes from the last checkpoint
+ * when run again with the same directory. Only a bounded number of the
+ * visited nodes are kept in memory (see {@link #VISITED_CACHE_SIZE}); a
+ * subtree that is no longer known as visited is scanned again.
+ */
+public class BlobGarbageCollector {
+
+    /**
+     * System property for the maximum number of visited node ids kept in
+     * memory while scanning.
+     */
+    public static final String VISITED_CACHE_SIZE = "mk.blobGcVisitedCacheSize";
+
+    /**
+     * Start of a binary reference in a JSON encoded property value.
+     */
+    private static final String BLOB_REFERENCE = "\":blobId:";
+
+    /**
+     * The scanned revisions, one id per line.
+     */
+    private static final String REVISIONS_FILE = "revisions.txt";
+
+    /**
+     * The nodes visited while scanning the revisions, one id per line.
+     */
+    private static final String VISITED_FILE = "visited.txt";
+
+    /**
+     * The referenced blobs, one id per line, in the order they were found.
+     */
+    private static final String REFERENCES_FILE = "references.txt";
+
+    /**
+     * The number of referenced blobs that were marked.
+     */
+    private static final String MARKED_FILE = "marked.txt";
+
+    /**
+     * The time the mark phase was started.
+     */
+    private static final String MARK_START_FILE = "markStart.txt";
+
+    /**
+     * The number of blobs marked between two checkpoints.
+     */
+    private static final int MARK_CHECKPOINT_INTERVAL = 1000;
+
+    private final RevisionProvider provider;
+    private final AbstractBlobStore store;
+    private final File dir;
+    private final int visitedCacheSize = Integer.getInteger(VISITED_CACHE_SIZE, 100000);
+
+    /**
+     * Create a garbage collector.
+     *
+     * @param provider the revision store
+     * @param store the blob store of the revision store
+     * @param dir the working directory for the checkpoints
+     */
+    public BlobGarbageCollector(RevisionProvider provider, AbstractBlobStore store, File dir) {
+        this.provider = provider;
+        this.store = store;
+        this.dir = dir;
+    }
+
+    /**
+     * Run a garbage collection, or resume an interrupted one.
+     *
+     * @param revisionIds the revisions whose blobs are kept
+     * @return the number of deleted blocks
+     * @throws Exception if an error occurs
+     */
+    public int collect(Iterable<Id> revisionIds) throws Exception {
+        startMark();
+        collectReferences(revisionIds);
+        mark();
+        int count = store.sweep();
+        // completed, the next collection starts from scratch
+        for (String name : new String[] { REVISIONS_FILE, VISITED_FILE, REFERENCES_FILE,
+                MARKED_FILE, MARK_START_FILE }) {
+            new File(dir, name).delete();
+        }
+        return count;
+    }
+
+    /**
+     * Scan the node trees of the given revisions for binary references.
+     * Revisions that were scanned by an earlier, interrupted run are skipped.
+     *
+     * @param revisionIds the revisions whose blobs are kept
+     * @throws Exception if an error occurs
+     */
+    public void collectReferences(Iterable<Id> revisionIds) throws Exception {
+        dir.mkdirs();
+        Set<String> scanned = new HashSet<String>(readLines(REVISIONS_FILE));
+        Set<String> blobIds = new HashSet<String>(readLines(REFERENCES_FILE));
+        // nodes are content addressed: a subtree that did not change between
+        // two revisions is only scanned once, as long as it is remembered
+        Set<Id> visited = newVisitedCache();
+        File visitedFile = new File(dir, VISITED_FILE);
+        if (truncatePartialLine(visitedFile)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(visitedFile), "UTF-8"));
+            try {
+                for (String id; (id = reader.readLine()) != null; ) {
+                    visited.add(Id.fromString(id));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        Writer visitedNodes = openAppend(VISITED_FILE);
+        try {
+            Writer references = openAppend(REFERENCES_FILE);
+            try {
+                Writer revisions = openAppend(REVISIONS_FILE);
+                try {
+                    for (Id revId : revisionIds) {
+                        if (!scanned.add(revId.toString())) {
+                            continue;
+                        }
+                        ArrayList<Id> nodes = new ArrayList<Id>();
+                        ArrayList<String> found = new ArrayList<String>();
+                        scan(provider.getCommit(revId).getRootNodeId(), visited, nodes, blobIds, found);
+                        for (String blobId : found) {
+                            references.write(blobId);
+                            references.write('\n');
+                        }
+                        references.flush();
+                        // the subtrees of the visited nodes are complete now
+                        for (Id id : nodes) {
+                            visitedNodes.write(id.toString());
+                            visitedNodes.write('\n');
+                        }
+                        visitedNodes.flush();
+                        // only record the revision once its references are written
+                        revisions.write(revId.toString());
+                        revisions.write('\n');
+                        revisions.flush();
+                    }
+                } finally {
+                    IOUtils.closeQuietly(revisions);
+                }
+            } finally {
+                IOUtils.closeQuietly(references);
+            }
+        } finally {
+            IOUtils.closeQuietly(visitedNodes);
+        }
+    }
+
+    /**
+     * Create the set of visited node ids, which only keeps the most recently
+     * added ones.
+     */
+    private Set<Id> newVisitedCache() {
+        return Collections.newSetFromMap(new LinkedHashMap<Id, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Id, Boolean> eldest) {
+                return size() > visitedCacheSize;
+            }
+        });
+    }
+
+    private void scan(Id rootNodeId, Set<Id> visited, List<Id> nodes, Set<String> blobIds,
+            List<String> found) throws Exception {
+        ArrayList<Id> stack = new ArrayList<Id>();
+        stack.add(rootNodeId);
+        ArrayList<String> values = new ArrayList<String>();
+        while (!stack.isEmpty()) {
+            Id id = stack.remove(stack.size() - 1);
+            if (!visited.add(id)) {
+                continue;
+            }
+            nodes.add(id);
+            StoredNode node = provider.getNode(id);
+            for (String value : node.getProperties().values()) {
+                values.clear();
+                getBlobIds(value, values);
+                for (String blobId : values) {
+                    if (blobIds.add(blobId)) {
+                        found.add(blobId);
+                    }
+                }
+            }
+            for (Iterator<ChildNodeEntry> it = node.getChildNodeEntries(0, -1); it.hasNext(); ) {
+                stack.add(it.next().getId());
+            }
+        }
+    }
+
+    /**
+     * Start (or resume) the mark phase of the blob store.
+     */
+    private void startMark() throws Exception {
+        dir.mkdirs();
+        List<String> markStart = readLines(MARK_START_FILE);
+        if (markStart.isEmpty()) {
+            // recorded first: resuming with an earlier time keeps more blocks
+            writeLine(MARK_START_FILE, Long.toString(System.currentTimeMillis()));
+            store.startMark();
+        } else {
+            store.resumeMark(Long.parseLong(markStart.get(0)));
+        }
+    }
+
+    /**
+     * Mark the blocks of the referenced blobs that were not marked yet.
+     */
+    private void mark() throws Exception {
+        List<String> marked = readLines(MARKED_FILE);
+        int done = marked.isEmpty() ? 0 : Integer.parseInt(marked.get(0));
+        int count = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(new File(dir, REFERENCES_FILE)), "UTF-8"));
+        try {
+            for (String blobId; (blobId = reader.readLine()) != null; ) {
+                if (count++ < done) {
+                    continue;
+                }
+                store.mark(blobId);
+                if (count % MARK_CHECKPOINT_INTERVAL == 0) {
+                    writeLine(MARKED_FILE, Integer.toString(count));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        writeLine(MARKED_FILE, Integer.toString(count));
+    }
+
+    /**
+     * Get the blob ids referenced by a JSON encoded property value.
+     *
+     * @param value the property value, a single value or an array
+     * @param target the collection the blob ids are added to
+     */
+    static void getBlobIds(String value, Collection<String> target) {
+        int pos = value.indexOf(BLOB_REFERENCE);
+        while (pos >= 0) {
+            int start = pos + BLOB_REFERENCE.length();
+            int end = value.indexOf('"', start);
+            if (end < 0) {
+                return;
+            }
+            // the quote must start a string, and not be escaped within one
+            char before = pos == 0 ? ',' : value.charAt(pos - 1);
+            if ((before == ',' || before == '[' || Character.isWhitespace(before)) && end > start) {
+                target.add(value.substring(start, end));
+            }
+            pos = value.indexOf(BLOB_REFERENCE, end + 1);
+        }
+    }
+
+    /**
+     * Read the complete lines of a checkpoint file. A line that was only
+     * partially written when the process stopped is removed from the file.
+     */
+    private List<String> readLines(String name) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        File file = new File(dir, name);
+        if (!truncatePartialLine(file)) {
+            return lines;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Remove a line that was only partially written when the process
+     * stopped from the end of a checkpoint file.
+     *
+     * @return whether the file exists
+     */
+    private static boolean truncatePartialLine(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            long end = f.length();
+            while (end > 0) {
+                f.seek(end - 1);
+                if (f.read() == '\n') {
+                    break;
+                }
+                end--;
+            }
+            if (end < f.length()) {
+                f.setLength(end);
+            }
+        } finally {
+            f.close();
+        }
+        return true;
+    }
+
+    private Writer openAppend(String name) throws IOException {
+        return new OutputStreamWriter(new FileOutputStream(new File(dir, name), true), "UTF-8");
+    }
+
+    /**
+     * Replace the content of a checkpoint file with a single line.
+     */
+    private void writeLine(String name, String line) throws IOException {
+        File file = new File(dir, name);
+        File temp = new File(dir, name + ".temp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            writer.write(line);
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+        file.delete();
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+}
@@ -32,6 +32,12 @@ import java.util.ArrayList;
  */
 public class DbBlobStore extends AbstractBlobStore {
 
+    /**
+     * The number of blocks selected and deleted at once by a sweep, unless
+     * a sweep batch size is set.
+     */
+    private static final int DEFAULT_SWEEP_BATCH_SIZE = 1000;
+
     private JdbcConnectionPool cp;
     private long minLastModified;
 
@@ -48,7 +54,13 @@ public class DbBlobStore extends AbstractBlobStore {
     }
 
     @Override
-    protected synchronized void storeBlock(byte[] digest, int level, byte[] data) throws SQLException {
+    protected void storeBlock(byte[] digest, int level, byte[] data) throws SQLException {
+        synchronized (getBlockLock(digest)) {
+            storeBlockUnlocked(digest, level, data);
+        }
+    }
+
+    private void storeBlockUnlocked(byte[] digest, int level, byte[] data) throws SQLException {
         Connection conn = cp.getConnection();
         try {
             String id = StringUtils.convertBytesToHex(digest);
@@ -136,6 +148,12 @@ public class DbBlobStore extends AbstractBlobStore {
         markInUse();
     }
 
+    @Override
+    public void resumeMark(long markStart) throws Exception {
+        minLastModified = markStart;
+        markInUse();
+    }
+
     @Override
     protected boolean isMarkEnabled() {
         return minLastModified != 0;
@@ -161,32 +179,57 @@ public class DbBlobStore extends AbstractBlobStore {
         }
     }
 
+    /**
+     * Delete the unmarked blocks. The blocks are selected and deleted in
+     * batches, so that the ids of all unmarked blocks are never held in memory
+     * at once, see also {@link #setSweepThrottle(int, long)}.
+     */
     @Override
     public int sweep() throws Exception {
+        int batchSize = getSweepBatchSize();
+        if (batchSize <= 0) {
+            batchSize = DEFAULT_SWEEP_BATCH_SIZE;
+        }
         int count = 0;
         Connection conn = cp.getConnection();
         try {
+            PreparedStatement prepSelect = conn.prepareStatement(
+                    "select id from datastore_meta where lastMod < ? limit ?");
             PreparedStatement prep = conn.prepareStatement(
-                    "select id from datastore_meta where lastMod < ?");
-            prep.setLong(1, minLastModified);
-            ResultSet rs = prep.executeQuery();
-            ArrayList<String> ids = new ArrayList<String>();
-            while (rs.next()) {
-                ids.add(rs.getString(1));
-            }
-            prep = conn.prepareStatement(
                 "delete from datastore_meta where id = ?");
             PreparedStatement prepData = conn.prepareStatement(
                 "delete from datastore_data where id = ?");
-            for (String id : ids) {
-                prep.setString(1, id);
-                prep.execute();
-                prepData.setString(1, id);
-                prepData.execute();
-                count++;
+            try {
+                while (true) {
+                    prepSelect.setLong(1, minLastModified);
+                    prepSelect.setInt(2, batchSize);
+                    ResultSet rs = prepSelect.executeQuery();
+                    ArrayList<String> ids = new ArrayList<String>();
+                    while (rs.next()) {
+                        ids.add(rs.getString(1));
+                    }
+                    rs.close();
+                    if (ids.isEmpty()) {
+                        break;
+                    }
+                    for (String id : ids) {
+                        prep.setString(1, id);
+                        prep.addBatch();
+                        prepData.setString(1, id);
+                        prepData.addBatch();
+                    }
+                    prep.executeBatch();
+                    prepData.executeBatch();
+                    for (int i = 0; i < ids.size(); i++) {
+                        count++;
+                        sweepProgress(count);
+                    }
+                }
+            } finally {
+                prepData.close();
+                prep.close();
+                prepSelect.close();
             }
-            prepData.close();
-            prep.close();
         } finally {
             conn.close();
         }
@@ -26,20 +26,62 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A file blob store.
+ * <p>
+ * In memory mapped mode, blocks of user data are read from mapped block files
+ * instead of through the block cache, and ranges are transferred to channels
+ * without being copied to the heap. As long as a block file is mapped, it can
+ * not be removed on some platforms (Windows), so this mode is disabled by
+ * default.
  */
 public class FileBlobStore extends AbstractBlobStore {
 
+    /**
+     * System property enabling the memory mapped mode.
+     */
+    public static final String MEMORY_MAPPED = "mk.blobMemoryMapped";
+
     private static final String OLD_SUFFIX = "_old";
 
+    /**
+     * Maximum number of block files kept mapped.
+     */
+    private static final int MAX_MAPPED_FILES = 256;
+
     private final File baseDir;
     private final byte[] buffer = new byte[16 * 1024];
     private boolean mark;
 
+    /**
+     * The time the mark phase was started. Blocks stored since then are kept
+     * by the sweep, even if they were moved to an "old" directory.
+     */
+    private long markStart;
+
+    private volatile boolean memoryMapped = Boolean.getBoolean(MEMORY_MAPPED);
+
+    /**
+     * Recently mapped block files (Key: hex digest, Value: mapped file).
+     */
+    private final Map<String, ByteBuffer> mappedFiles = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ByteBuffer> eldest) {
+            return size() > MAX_MAPPED_FILES;
+        }
+    };
+
     // TODO file operations are not secure (return values not checked, no retry,...)
 
     public FileBlobStore(String dir) throws IOException {
@@ -88,20 +130,112 @@ public class FileBlobStore extends AbstractBlobStore {
     }
 
     @Override
-    protected synchronized void storeBlock(byte[] digest, int level, byte[] data) throws IOException {
+    protected void storeBlock(byte[] digest, int level, byte[] data) throws IOException {
         File f = getFile(digest, false);
-        if (f.exists()) {
-            return;
+        synchronized (getBlockLock(digest)) {
+            if (f.exists()) {
+                return;
+            }
+            File parent = f.getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            File temp = new File(parent, f.getName() + ".temp");
+            OutputStream out = new FileOutputStream(temp, false);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            temp.renameTo(f);
+        }
+    }
+
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            synchronized (mappedFiles) {
+                mappedFiles.clear();
+            }
+        }
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    @Override
+    protected int readBlock(byte[] digest, long pos, byte[] buff, int off, int length) throws Exception {
+        ByteBuffer block = memoryMapped ? getMappedFile(digest) : null;
+        if (block == null) {
+            return super.readBlock(digest, pos, buff, off, length);
+        }
+        int len = getRangeLength(block, pos, length);
+        if (len > 0) {
+            block.position((int) pos);
+            block.get(buff, off, len);
         }
-        File parent = f.getParentFile();
-        if (!parent.exists()) {
-            parent.mkdirs();
+        return len;
+    }
+
+    @Override
+    protected int transferBlock(byte[] digest, long pos, int length, WritableByteChannel target) throws Exception {
+        ByteBuffer block = memoryMapped ? getMappedFile(digest) : null;
+        if (block == null) {
+            return super.transferBlock(digest, pos, length, target);
+        }
+        int len = getRangeLength(block, pos, length);
+        if (len > 0) {
+            block.position((int) pos);
+            block.limit((int) pos + len);
+            writeFully(target, block);
+        }
+        return len;
+    }
+
+    private static int getRangeLength(ByteBuffer block, long pos, int length) {
+        if (pos >= block.capacity()) {
+            return -1;
         }
-        File temp = new File(parent, f.getName() + ".temp");
-        OutputStream out = new FileOutputStream(temp, false);
-        out.write(data);
-        out.close();
-        temp.renameTo(f);
+        return (int) Math.min(length, block.capacity() - pos);
+    }
+
+    /**
+     * Get the mapped block file.
+     *
+     * @param digest the content hash
+     * @return a new buffer sharing the content of the mapped file, or
+     *         {@code null} if the file is too large to be mapped
+     */
+    private ByteBuffer getMappedFile(byte[] digest) throws IOException {
+        String id = StringUtils.convertBytesToHex(digest);
+        ByteBuffer block;
+        synchronized (mappedFiles) {
+            block = mappedFiles.get(id);
+        }
+        if (block == null) {
+            File f = getFile(digest, false);
+            if (!f.exists()) {
+                File old = getFile(digest, true);
+                f.getParentFile().mkdir();
+                old.renameTo(f);
+            }
+            RandomAccessFile file = new RandomAccessFile(f, "r");
+            try {
+                if (file.length() > Integer.MAX_VALUE) {
+                    // stored by writeBlob(String), too large to be mapped at once
+                    return null;
+                }
+                // the mapping stays valid after the file is closed
+                block = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+            synchronized (mappedFiles) {
+                mappedFiles.put(id, block);
+            }
+        }
+        return block.duplicate();
     }
 
     private File getFile(byte[] digest, boolean old) {
@@ -137,6 +271,7 @@ public class FileBlobStore extends AbstractBlobStore {
 
     @Override
     public void startMark() throws Exception {
+        markStart = System.currentTimeMillis();
         mark = true;
         for (int j = 0; j < 256; j++) {
             String sub1 = StringUtils.convertBytesToHex(new byte[] { (byte) j });
@@ -161,6 +296,14 @@ public class FileBlobStore extends AbstractBlobStore {
         markInUse();
     }
 
+    @Override
+    public void resumeMark(long markStart) throws Exception {
+        // the unmarked blocks are still in the "old" directories
+        this.markStart = markStart;
+        mark = true;
+        markInUse();
+    }
+
     @Override
     protected boolean isMarkEnabled() {
         return mark;
@@ -187,11 +330,17 @@ public class FileBlobStore extends AbstractBlobStore {
                 String sub = StringUtils.convertBytesToHex(new byte[] { (byte) i });
                 File old = new File(x, sub + OLD_SUFFIX);
                 if (old.exists()) {
+                    File d = new File(x, sub);
                     for (File p : old.listFiles()) {
-                        String name = p.getName();
-                        File file = new File(old, name);
-                        file.delete();
+                        if (isStoredSince(p, markStart)) {
+                            // stored while the mark phase was being started
+                            d.mkdir();
+                            p.renameTo(new File(d, p.getName()));
+                            continue;
+                        }
+                        p.delete();
                         count++;
+                        sweepProgress(count);
                     }
                     old.delete();
                 }
@@ -201,4 +350,17 @@ public class FileBlobStore extends AbstractBlobStore {
         return count;
     }
 
+    /**
+     * Check whether a block file was stored at or after the given time.
+     * File systems that store the modification time in (even) seconds round
+     * it down, so in that case the time is rounded down as well.
+     */
+    private static boolean isStoredSince(File file, long time) {
+        long modified = file.lastModified();
+        if (modified % 1000 == 0) {
+            time -= time % 2000;
+        }
+        return modified >= time;
+    }
+
 }
\ No newline at end of file
@@ -49,6 +49,16 @@ public class MemoryBlobStore extends AbstractBlobStore {
         markInUse();
     }
 
+    @Override
+    public void resumeMark(long markStart) throws Exception {
+        // the blocks do not survive a restart
+        if (mark) {
+            markInUse();
+        } else {
+            startMark();
+        }
+    }
+
     @Override
     protected boolean isMarkEnabled() {
         return mark;
@@ -18,6 +18,8 @@ package org.apache.jackrabbit.mk.core;
 
 import org.apache.jackrabbit.mk.api.MicroKernel;
 import org.apache.jackrabbit.mk.api.MicroKernelException;
+import org.apache.jackrabbit.mk.blobs.AbstractBlobStore;
+import org.apache.jackrabbit.mk.blobs.BlobStore;
 import org.apache.jackrabbit.mk.json.JsopBuilder;
 import org.apache.jackrabbit.mk.json.JsopReader;
 import org.apache.jackrabbit.mk.json.JsopTokenizer;
@@ -39,6 +41,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -385,6 +389,44 @@ public class MicroKernelImpl implements MicroKernel {
         }
     }
 
+    /**
+     * Returns the state of the node at the given path and revision. This is
+     * an alternative to {@link #getNodes} for callers in the same JVM, which
+     * avoids rendering the node to JSON and parsing it again. Property values
+     * are returned in their JSON encoded form.
+     *
+     * @param path path denoting the node
+     * @param revisionId revision, or {@code null} for the head revision
+     * @return node state, or {@code null} if no such node exists
+     * @throws MicroKernelException if an error occurs
+     */
+    public NodeState getNodeState(String path, String revisionId) throws MicroKernelException {
+        if (rep == null) {
+            throw new IllegalStateException("this instance has already been disposed");
+        }
+
+        Id revId = revisionId == null ? getHeadRevisionId() : Id.fromString(revisionId);
+        try {
+            return rep.getNodeState(revId, path);
+        } catch (Exception e) {
+            throw new MicroKernelException(e);
+        }
+    }
+
+    /**
+     * Returns the content hash of a node state, as it would be reported in
+     * the {@code :hash} property by {@link #getNodes}.
+     *
+     * @param node node state obtained through {@link #getNodeState}
+     * @return content hash
+     */
+    public String getHash(NodeState node) {
+        if (rep == null) {
+            throw new IllegalStateException("this instance has already been disposed");
+        }
+        return rep.getRevisionStore().getId(node).toString();
+    }
+
     public String commit(String path, String jsonDiff, String revisionId, String message) throws MicroKernelException {
         if (rep == null) {
             throw new IllegalStateException("this instance has already been disposed");
@@ -562,6 +604,50 @@ public class MicroKernelImpl implements MicroKernel {
         }
     }
 
+    /**
+     * Transfer a range of a binary to a channel. If the blob store supports
+     * it, the data is written to the channel without being copied to the heap.
+     *
+     * @param blobId blob identifier
+     * @param pos the position within the binary
+     * @param length the number of bytes to transfer, or -1 for the rest of
+     *            the binary
+     * @param target the target channel
+     * @return the number of bytes transferred
+     * @throws MicroKernelException if an error occurs
+     */
+    public long read(String blobId, long pos, long length, WritableByteChannel target) throws MicroKernelException {
+        if (rep == null) {
+            throw new IllegalStateException("this instance has already been disposed");
+        }
+        try {
+            BlobStore blobStore = rep.getBlobStore();
+            if (blobStore instanceof AbstractBlobStore) {
+                return ((AbstractBlobStore) blobStore).readBlob(blobId, pos, length, target);
+            }
+            if (length < 0) {
+                length = Math.max(0, blobStore.getBlobLength(blobId) - pos);
+            }
+            byte[] buff = new byte[(int) Math.min(length, 64 * 1024)];
+            long count = 0;
+            while (count < length) {
+                int len = blobStore.readBlob(blobId, pos + count, buff, 0,
+                        (int) Math.min(length - count, buff.length));
+                if (len <= 0) {
+                    break;
+                }
+                ByteBuffer bb = ByteBuffer.wrap(buff, 0, len);
+                while (bb.hasRemaining()) {
+                    target.write(bb);
+                }
+                count += len;
+            }
+            return count;
+        } catch (Exception e) {
+            throw new MicroKernelException(e);
+        }
+    }
+
     public String write(InputStream in) throws MicroKernelException {
         if (rep == null) {
             throw new IllegalStateException("this instance has already been disposed");
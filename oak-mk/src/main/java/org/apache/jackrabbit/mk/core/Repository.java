@@ -20,11 +20,14 @@ import org.apache.jackrabbit.mk.blobs.BlobStore;
 import org.apache.jackrabbit.mk.blobs.FileBlobStore;
 import org.apache.jackrabbit.mk.blobs.MemoryBlobStore;
 import org.apache.jackrabbit.mk.model.CommitBuilder;
+import org.apache.jackrabbit.mk.model.CommitQueue;
 import org.apache.jackrabbit.mk.model.Id;
 import org.apache.jackrabbit.mk.model.StoredCommit;
 import org.apache.jackrabbit.mk.model.tree.NodeState;
+import org.apache.jackrabbit.mk.persistence.GCPersistence;
 import org.apache.jackrabbit.mk.persistence.H2Persistence;
 import org.apache.jackrabbit.mk.persistence.InMemPersistence;
+import org.apache.jackrabbit.mk.persistence.SegmentPersistence;
 import org.apache.jackrabbit.mk.store.DefaultRevisionStore;
 import org.apache.jackrabbit.mk.store.NotFoundException;
 import org.apache.jackrabbit.mk.store.RevisionStore;
@@ -39,12 +42,24 @@ import java.io.File;
  */
 public class Repository {
 
+    /**
+     * System property selecting the persistence, either {@code "h2"}
+     * (the default) or {@code "segment"}.
+     */
+    public static final String PERSISTENCE = "mk.persistence";
+
     private final File homeDir;
     private boolean initialized;
     private RevisionStore rs;
     private BlobStore bs;
     private boolean blobStoreNeedsClose;
 
+    /**
+     * Queue grouping concurrent head commits, or {@code null} if group
+     * commit is disabled.
+     */
+    private CommitQueue commitQueue;
+
     public Repository(String homeDir) throws Exception {
         File home = new File(homeDir == null ? "." : homeDir, ".mk");
         this.homeDir = home.getCanonicalFile();
@@ -60,6 +75,7 @@ public class Repository {
         this.homeDir = null;
         this.rs = rs;
         this.bs = bs;
+        commitQueue = createCommitQueue(rs);
 
         initialized = true;
     }
@@ -81,6 +97,7 @@ public class Repository {
         }
         this.rs = rs;
         this.bs = new MemoryBlobStore();
+        commitQueue = createCommitQueue(rs);
         
         initialized = true;
     }
@@ -90,13 +107,19 @@ public class Repository {
             return;
         }
 
-        H2Persistence pm = new H2Persistence();
+        GCPersistence pm;
+        if ("segment".equals(System.getProperty(PERSISTENCE))) {
+            pm = new SegmentPersistence();
+        } else {
+            pm = new H2Persistence();
+        }
         pm.initialize(homeDir);
         
         DefaultRevisionStore rs = new DefaultRevisionStore(pm);
         rs.initialize();
         
         this.rs = rs;
+        commitQueue = createCommitQueue(rs);
         
         if (pm instanceof BlobStore) {
             bs = (BlobStore) pm;
@@ -193,7 +216,11 @@ public class Repository {
     }
 
     public CommitBuilder getCommitBuilder(Id revId, String msg) throws Exception {
-        return new CommitBuilder(revId, msg, rs);
+        return new CommitBuilder(revId, msg, rs, commitQueue);
+    }
+
+    private static CommitQueue createCommitQueue(RevisionStore rs) {
+        return Boolean.getBoolean(CommitQueue.GROUP_COMMIT) ? new CommitQueue(rs) : null;
     }
 
 }
@@ -53,7 +53,7 @@ public abstract class AbstractNode implements Node, CacheObject {
             if (other.getChildNodeCount() <= ChildNodeEntries.CAPACITY_THRESHOLD) {
                 this.childEntries = new ChildNodeEntriesMap();
             } else {
-                this.childEntries = new ChildNodeEntriesTree(provider);
+                this.childEntries = createLargeChildNodeEntries();
             }
             for (Iterator<ChildNodeEntry> it = other.getChildNodeEntries(0, -1); it.hasNext(); ) {
                 ChildNodeEntry cne = it.next();
@@ -62,6 +62,18 @@ public abstract class AbstractNode implements Node, CacheObject {
         }
     }
 
+    /**
+     * Create the child node entries of a node with many child nodes.
+     *
+     * @return sorted entries, or hashed entries if sorted entries are disabled
+     */
+    protected ChildNodeEntries createLargeChildNodeEntries() {
+        if (ChildNodeEntriesBTree.isEnabled()) {
+            return new ChildNodeEntriesBTree(provider);
+        }
+        return new ChildNodeEntriesTree(provider);
+    }
+
     public Map<String, String> getProperties() {
         return properties;
     }
@@ -165,7 +177,13 @@ public abstract class AbstractNode implements Node, CacheObject {
                         throw new UnsupportedOperationException();
                     }
                 });
-        binding.write(":inlined", childEntries.inlined() ? 1 : 0);
+        int type;
+        if (childEntries instanceof ChildNodeEntriesBTree) {
+            type = ChildNodeEntriesBTree.SERIALIZED_TYPE;
+        } else {
+            type = childEntries.inlined() ? 1 : 0;
+        }
+        binding.write(":inlined", type);
         childEntries.serialize(binding);
     }
 
@@ -0,0 +1,905 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.mk.model;
+
+import org.apache.jackrabbit.mk.store.Binding;
+import org.apache.jackrabbit.mk.store.CacheObject;
+import org.apache.jackrabbit.mk.store.RevisionProvider;
+import org.apache.jackrabbit.mk.store.RevisionStore;
+import org.apache.jackrabbit.mk.util.AbstractFilteringIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Child node entries sorted by name, for nodes with many child nodes. The
+ * entries are kept in a B+-tree: leaf pages contain the child node entries,
+ * inner pages the lowest name and the number of entries of each child page.
+ * Pages are immutable, so a clone shares all pages with the original, and a
+ * modification only copies the pages on the path to the modified leaf.
+ * <p/>
+ * The root page is serialized with the node. The other pages are stored as
+ * child node entry maps; as they are content addressed, revisions share the
+ * pages that did not change. The entries of an inner page are named after
+ * the lowest name of the child page, followed by {@code '\u0000'} and the
+ * number of entries of the child page, so they sort like the names.
+ * <p/>
+ * Entries are accessed by position in O(log n) page reads, and the diff of
+ * two instances only reads the pages that are not shared.
+ */
+public class ChildNodeEntriesBTree implements ChildNodeEntries, CacheObject {
+
+    /**
+     * System property to disable sorted child node entries: if set to
+     * {@code false}, nodes with many child nodes use the hashed
+     * {@link ChildNodeEntriesTree} instead.
+     */
+    public static final String SORTED_CHILD_NODES = "mk.sortedChildNodes";
+
+    /**
+     * The value of the {@code :inlined} property of serialized nodes that
+     * use this implementation.
+     */
+    static final int SERIALIZED_TYPE = 2;
+
+    /**
+     * System property for the maximum number of entries of a page. Pages
+     * with less than a quarter of that are merged with a neighbour.
+     */
+    public static final String PAGE_SIZE = "mk.childNodePageSize";
+
+    public static final int DEFAULT_PAGE_SIZE = 512;
+
+    private static final char COUNT_SEPARATOR = '\u0000';
+
+    private static final List<ChildNodeEntry> EMPTY = Collections.emptyList();
+
+    private static final Page EMPTY_LEAF = new Page(new String[0], new Object[0], null);
+
+    protected RevisionProvider revProvider;
+
+    private final int maxPageSize = Math.max(4, Integer.getInteger(PAGE_SIZE, DEFAULT_PAGE_SIZE));
+
+    private Page root = EMPTY_LEAF;
+
+    /**
+     * The number of inner page levels: {@code 0} if the root is a leaf.
+     */
+    private int height;
+
+    ChildNodeEntriesBTree(RevisionProvider revProvider) {
+        this.revProvider = revProvider;
+    }
+
+    /**
+     * Whether nodes with many child nodes use this implementation.
+     *
+     * @return {@code true} unless disabled by {@link #SORTED_CHILD_NODES}
+     */
+    static boolean isEnabled() {
+        return !"false".equals(System.getProperty(SORTED_CHILD_NODES));
+    }
+
+    @Override
+    public boolean inlined() {
+        return false;
+    }
+
+    //------------------------------------------------------------< overrides >
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof ChildNodeEntriesBTree) {
+            ChildNodeEntriesBTree other = (ChildNodeEntriesBTree) obj;
+            return height == other.height && root.contentEquals(other.root);
+        }
+        return false;
+    }
+
+    @Override
+    public Object clone() {
+        ChildNodeEntriesBTree clone = null;
+        try {
+            clone = (ChildNodeEntriesBTree) super.clone();
+        } catch (CloneNotSupportedException e) {
+            // can't possibly get here
+        }
+        // pages are immutable and can be shared
+        return clone;
+    }
+
+    //-------------------------------------------------------------< read ops >
+
+    @Override
+    public int getCount() {
+        return root.count;
+    }
+
+    @Override
+    public ChildNodeEntry get(String name) {
+        Page page = root;
+        for (int h = height; h > 0; h--) {
+            page = getChild(page, page.route(name), h == 1);
+        }
+        int i = Arrays.binarySearch(page.keys, name);
+        return i < 0 ? null : (ChildNodeEntry) page.values[i];
+    }
+
+    @Override
+    public Iterator<String> getNames(int offset, int cnt) {
+        final Iterator<ChildNodeEntry> it = getEntries(offset, cnt);
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+            @Override
+            public String next() {
+                return it.next().getName();
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Iterator<ChildNodeEntry> getEntries(int offset, int cnt) {
+        if (offset < 0 || cnt < -1) {
+            throw new IllegalArgumentException();
+        }
+        int count = getCount();
+        if (offset >= count || cnt == 0) {
+            return EMPTY.iterator();
+        }
+        if (cnt == -1 || (offset + cnt) > count) {
+            cnt = count - offset;
+        }
+        return new EntryIterator(offset, cnt);
+    }
+
+    //------------------------------------------------------------< write ops >
+
+    @Override
+    public ChildNodeEntry add(ChildNodeEntry entry) {
+        ChildNodeEntry[] existing = new ChildNodeEntry[1];
+        Page[] pages = insert(root, height, entry, existing);
+        if (pages != null) {
+            if (pages.length == 1) {
+                root = pages[0];
+            } else {
+                root = new Page(
+                        new String[] { pages[0].keys[0], pages[1].keys[0] },
+                        new Object[] { pages[0], pages[1] },
+                        new int[] { pages[0].count, pages[1].count });
+                height++;
+            }
+        }
+        return existing[0];
+    }
+
+    @Override
+    public ChildNodeEntry remove(String name) {
+        ChildNodeEntry[] removed = new ChildNodeEntry[1];
+        Page page = delete(root, height, name, removed);
+        if (page == null) {
+            return null;
+        }
+        root = page;
+        while (height > 0 && root.size() <= 1) {
+            root = root.size() == 0 ? EMPTY_LEAF : getChild(root, 0, height == 1);
+            height = root == EMPTY_LEAF ? 0 : height - 1;
+        }
+        return removed[0];
+    }
+
+    @Override
+    public ChildNodeEntry rename(String oldName, String newName) {
+        if (oldName.equals(newName)) {
+            return get(oldName);
+        }
+        ChildNodeEntry old = remove(oldName);
+        if (old == null) {
+            return null;
+        }
+        add(new ChildNodeEntry(newName, old.getId()));
+        return old;
+    }
+
+    /**
+     * Add or replace an entry in the subtree of a page.
+     *
+     * @param page the page
+     * @param h the height of the page
+     * @param entry the entry
+     * @param existing receives the replaced entry
+     * @return the new page, or two pages if it was split, or {@code null}
+     *         if nothing changed
+     */
+    private Page[] insert(Page page, int h, ChildNodeEntry entry, ChildNodeEntry[] existing) {
+        String name = entry.getName();
+        if (h == 0) {
+            int i = Arrays.binarySearch(page.keys, name);
+            if (i >= 0) {
+                ChildNodeEntry old = (ChildNodeEntry) page.values[i];
+                existing[0] = old;
+                // staged child nodes are added without id
+                Id oldId = old.getId();
+                if (oldId == null ? entry.getId() == null : oldId.equals(entry.getId())) {
+                    return null;
+                }
+                return page.splice(i, 1, new String[] { name }, new Object[] { entry }, null, maxPageSize);
+            }
+            return page.splice(-i - 1, 0, new String[] { name }, new Object[] { entry }, null, maxPageSize);
+        }
+        int i = page.route(name);
+        Page[] children = insert(getChild(page, i, h == 1), h - 1, entry, existing);
+        if (children == null) {
+            return null;
+        }
+        String[] keys;
+        if (children.length == 1) {
+            keys = new String[] { min(page.keys[i], name) };
+        } else {
+            keys = new String[] { min(page.keys[i], name), children[1].keys[0] };
+        }
+        return page.splice(i, 1, keys, children, counts(children), maxPageSize);
+    }
+
+    /**
+     * Remove an entry from the subtree of a page. Pages that get too small
+     * are merged with a neighbour.
+     *
+     * @param page the page
+     * @param h the height of the page
+     * @param name the name of the entry
+     * @param removed receives the removed entry
+     * @return the new page, or {@code null} if there is no such entry
+     */
+    private Page delete(Page page, int h, String name, ChildNodeEntry[] removed) {
+        if (h == 0) {
+            int i = Arrays.binarySearch(page.keys, name);
+            if (i < 0) {
+                return null;
+            }
+            removed[0] = (ChildNodeEntry) page.values[i];
+            return page.splice(i, 1, new String[0], new Object[0], null, maxPageSize)[0];
+        }
+        int i = page.route(name);
+        Page child = delete(getChild(page, i, h == 1), h - 1, name, removed);
+        if (child == null) {
+            return null;
+        }
+        if (child.size() == 0) {
+            return page.splice(i, 1, new String[0], new Object[0], new int[0], maxPageSize)[0];
+        }
+        if (child.size() >= maxPageSize / 4 || page.size() == 1) {
+            return page.splice(i, 1, new String[] { page.keys[i] },
+                    new Object[] { child }, new int[] { child.count }, maxPageSize)[0];
+        }
+        // merge with the left neighbour, or the right one for the first page
+        int left = i > 0 ? i - 1 : i;
+        Page a = left == i ? child : getChild(page, left, h == 1);
+        Page b = left == i ? getChild(page, i + 1, h == 1) : child;
+        Page[] merged = a.splice(a.size(), 0, b.keys, b.values, b.counts, maxPageSize);
+        String[] keys;
+        if (merged.length == 1) {
+            keys = new String[] { page.keys[left] };
+        } else {
+            keys = new String[] { page.keys[left], merged[1].keys[0] };
+        }
+        return page.splice(left, 2, keys, merged, counts(merged), maxPageSize)[0];
+    }
+
+    private static String min(String a, String b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static int[] counts(Page[] pages) {
+        int[] counts = new int[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            counts[i] = pages[i].count;
+        }
+        return counts;
+    }
+
+    //-------------------------------------------------------------< diff ops >
+
+    @Override
+    public Iterator<ChildNodeEntry> getAdded(final ChildNodeEntries other) {
+        if (other instanceof ChildNodeEntriesBTree) {
+            List<ChildNodeEntry> added = new ArrayList<ChildNodeEntry>();
+            diff((ChildNodeEntriesBTree) other, added, null, null);
+            return added.iterator();
+        }
+        return new AbstractFilteringIterator<ChildNodeEntry>(other.getEntries(0, -1)) {
+            @Override
+            protected boolean include(ChildNodeEntry entry) {
+                return get(entry.getName()) == null;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<ChildNodeEntry> getRemoved(final ChildNodeEntries other) {
+        if (other instanceof ChildNodeEntriesBTree) {
+            List<ChildNodeEntry> removed = new ArrayList<ChildNodeEntry>();
+            diff((ChildNodeEntriesBTree) other, null, removed, null);
+            return removed.iterator();
+        }
+        return new AbstractFilteringIterator<ChildNodeEntry>(getEntries(0, -1)) {
+            @Override
+            protected boolean include(ChildNodeEntry entry) {
+                return other.get(entry.getName()) == null;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<ChildNodeEntry> getModified(final ChildNodeEntries other) {
+        if (other instanceof ChildNodeEntriesBTree) {
+            List<ChildNodeEntry> modified = new ArrayList<ChildNodeEntry>();
+            diff((ChildNodeEntriesBTree) other, null, null, modified);
+            return modified.iterator();
+        }
+        return new AbstractFilteringIterator<ChildNodeEntry>(getEntries(0, -1)) {
+            @Override
+            protected boolean include(ChildNodeEntry entry) {
+                ChildNodeEntry namesake = other.get(entry.getName());
+                return (namesake != null && !namesake.getId().equals(entry.getId()));
+            }
+        };
+    }
+
+    /**
+     * Compare the entries with those of another instance. Subtrees that both
+     * instances share are skipped, the others are expanded level by level
+     * until only leaf pages remain, which are then merged.
+     *
+     * @param other the other instance
+     * @param added receives the entries only in {@code other}, or {@code null}
+     * @param removed receives the entries only in {@code this}, or {@code null}
+     * @param modified receives the entries of {@code this} with a namesake
+     *            with a different id in {@code other}, or {@code null}
+     */
+    private void diff(ChildNodeEntriesBTree other, List<ChildNodeEntry> added,
+                      List<ChildNodeEntry> removed, List<ChildNodeEntry> modified) {
+        List<Object> pages1 = new ArrayList<Object>();
+        pages1.add(root);
+        List<Object> pages2 = new ArrayList<Object>();
+        pages2.add(other.root);
+        int h1 = height;
+        int h2 = other.height;
+        while (true) {
+            removeShared(pages1, pages2);
+            if (pages1.isEmpty() && pages2.isEmpty()) {
+                return;
+            }
+            if (h1 == 0 && h2 == 0) {
+                break;
+            }
+            int h = Math.max(h1, h2);
+            if (h1 == h) {
+                pages1 = expand(pages1);
+                h1--;
+            }
+            if (h2 == h) {
+                pages2 = other.expand(pages2);
+                h2--;
+            }
+        }
+        Iterator<ChildNodeEntry> it1 = entries(pages1);
+        Iterator<ChildNodeEntry> it2 = other.entries(pages2);
+        ChildNodeEntry e1 = it1.hasNext() ? it1.next() : null;
+        ChildNodeEntry e2 = it2.hasNext() ? it2.next() : null;
+        while (e1 != null || e2 != null) {
+            int comp = e1 == null ? 1 : e2 == null ? -1 : e1.getName().compareTo(e2.getName());
+            if (comp < 0) {
+                if (removed != null) {
+                    removed.add(e1);
+                }
+                e1 = it1.hasNext() ? it1.next() : null;
+            } else if (comp > 0) {
+                if (added != null) {
+                    added.add(e2);
+                }
+                e2 = it2.hasNext() ? it2.next() : null;
+            } else {
+                if (modified != null && !e1.getId().equals(e2.getId())) {
+                    modified.add(e1);
+                }
+                e1 = it1.hasNext() ? it1.next() : null;
+                e2 = it2.hasNext() ? it2.next() : null;
+            }
+        }
+    }
+
+    /**
+     * Remove the pages that are in both lists. Pages are identified by their
+     * id, or by identity if they are not stored yet.
+     */
+    private static void removeShared(List<Object> pages1, List<Object> pages2) {
+        Set<Object> keys1 = new HashSet<Object>();
+        for (Object p : pages1) {
+            keys1.add(pageKey(p));
+        }
+        Set<Object> shared = new HashSet<Object>();
+        for (Object p : pages2) {
+            Object key = pageKey(p);
+            if (keys1.contains(key)) {
+                shared.add(key);
+            }
+        }
+        if (!shared.isEmpty()) {
+            for (Iterator<Object> it = pages1.iterator(); it.hasNext(); ) {
+                if (shared.contains(pageKey(it.next()))) {
+                    it.remove();
+                }
+            }
+            for (Iterator<Object> it = pages2.iterator(); it.hasNext(); ) {
+                if (shared.contains(pageKey(it.next()))) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static Object pageKey(Object page) {
+        if (page instanceof Page && ((Page) page).id != null) {
+            return ((Page) page).id;
+        }
+        return page;
+    }
+
+    /**
+     * Replace a list of inner pages with the list of their children.
+     *
+     * @param pages the pages (page objects or ids of stored pages)
+     * @return the children
+     */
+    private List<Object> expand(List<Object> pages) {
+        List<Object> children = new ArrayList<Object>();
+        for (Object p : pages) {
+            children.addAll(Arrays.asList(toPage(p, false).values));
+        }
+        return children;
+    }
+
+    private Iterator<ChildNodeEntry> entries(final List<Object> leaves) {
+        final Iterator<Object> pages = leaves.iterator();
+        return new Iterator<ChildNodeEntry>() {
+            Page page;
+            int pos;
+            @Override
+            public boolean hasNext() {
+                while (page == null || pos >= page.size()) {
+                    if (!pages.hasNext()) {
+                        return false;
+                    }
+                    page = toPage(pages.next(), true);
+                    pos = 0;
+                }
+                return true;
+            }
+            @Override
+            public ChildNodeEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return (ChildNodeEntry) page.values[pos++];
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    //-------------------------------------------------------< implementation >
+
+    private Page getChild(Page page, int i, boolean leaf) {
+        return toPage(page.values[i], leaf);
+    }
+
+    private Page toPage(Object page, boolean leaf) {
+        if (page instanceof Page) {
+            return (Page) page;
+        }
+        Id id = (Id) page;
+        ChildNodeEntriesMap map;
+        try {
+            map = revProvider.getCNEMap(id);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to read child node entries page " + id, e);
+        }
+        Page p = Page.fromEntries(map.getSortedEntries(), leaf);
+        p.id = id;
+        return p;
+    }
+
+    /**
+     * Store the pages that were modified. The root page is serialized with
+     * the node.
+     *
+     * @param store the revision store
+     * @param token the put token
+     * @throws Exception if an error occurs
+     */
+    protected void persistDirtyPages(RevisionStore store, RevisionStore.PutToken token) throws Exception {
+        if (height > 0) {
+            persistChildren(root, store, token);
+        }
+    }
+
+    private static void persistChildren(Page page, RevisionStore store, RevisionStore.PutToken token)
+            throws Exception {
+        for (Object v : page.values) {
+            if (v instanceof Page) {
+                Page child = (Page) v;
+                if (child.id == null) {
+                    if (!child.isLeaf()) {
+                        persistChildren(child, store, token);
+                    }
+                    child.id = store.putCNEMap(token, child.toMap());
+                }
+            }
+        }
+    }
+
+    /**
+     * Visit the stored pages, top down. The children of a page are only
+     * visited if the visitor returns {@code true} for the page.
+     *
+     * @param visitor the visitor
+     * @throws Exception if an error occurs
+     */
+    public void visitPages(PageVisitor visitor) throws Exception {
+        if (height > 0) {
+            visitChildren(root, height, visitor);
+        }
+    }
+
+    private void visitChildren(Page page, int h, PageVisitor visitor) throws Exception {
+        for (Object v : page.values) {
+            Id id = v instanceof Page ? ((Page) v).id : (Id) v;
+            if (id != null && visitor.visit(id) && h > 1) {
+                visitChildren(toPage(v, false), h - 1, visitor);
+            }
+        }
+    }
+
+    //------------------------------------------------< serialization support >
+
+    public void serialize(Binding binding) throws Exception {
+        final Page page = root;
+        binding.write(":count", page.count);
+        binding.write(":height", height);
+        binding.writeMap(":root", page.size(), new Binding.BytesEntryIterator() {
+            int pos;
+
+            @Override
+            public boolean hasNext() {
+                return pos < page.size();
+            }
+
+            @Override
+            public Binding.BytesEntry next() {
+                if (pos >= page.size()) {
+                    throw new NoSuchElementException();
+                }
+                ChildNodeEntry entry = page.getEntry(pos++);
+                return new Binding.BytesEntry(entry.getName(), entry.getId().getBytes());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    static ChildNodeEntriesBTree deserialize(RevisionProvider provider, Binding binding) throws Exception {
+        ChildNodeEntriesBTree newInstance = new ChildNodeEntriesBTree(provider);
+        // the count is also the sum of the page counts
+        binding.readIntValue(":count");
+        newInstance.height = binding.readIntValue(":height");
+        ArrayList<ChildNodeEntry> entries = new ArrayList<ChildNodeEntry>();
+        Binding.BytesEntryIterator iter = binding.readBytesMap(":root");
+        while (iter.hasNext()) {
+            Binding.BytesEntry entry = iter.next();
+            entries.add(new ChildNodeEntry(entry.getKey(), new Id(entry.getValue())));
+        }
+        newInstance.root = Page.fromEntries(
+                entries.toArray(new ChildNodeEntry[entries.size()]), newInstance.height == 0);
+        return newInstance;
+    }
+
+    @Override
+    public int getMemory() {
+        // only the root page is kept with the node, assuming 100 bytes per entry
+        return 100 + root.size() * 100;
+    }
+
+    //--------------------------------------------------------< inner classes >
+
+    /**
+     * Visitor of the stored pages.
+     */
+    public static interface PageVisitor {
+
+        /**
+         * Visit a stored page.
+         *
+         * @param id the page id
+         * @return whether to visit the children of the page
+         * @throws Exception if an error occurs
+         */
+        boolean visit(Id id) throws Exception;
+
+    }
+
+    /**
+     * An immutable page. Leaf pages contain child node entries, inner pages
+     * the pages below them.
+     */
+    private static class Page {
+
+        /**
+         * The names of the entries of a leaf page. For an inner page, the
+         * lowest name of each child page (a lower bound, the child page may
+         * no longer contain an entry with that name).
+         */
+        final String[] keys;
+
+        /**
+         * The entries of a leaf page, or the children of an inner page: the
+         * page if it was modified, or the id of the stored page.
+         */
+        final Object[] values;
+
+        /**
+         * The number of entries of each child page, {@code null} for a leaf.
+         */
+        final int[] counts;
+
+        /**
+         * The number of entries in this subtree.
+         */
+        final int count;
+
+        /**
+         * The id of the stored page, {@code null} if not stored.
+         */
+        volatile Id id;
+
+        Page(String[] keys, Object[] values, int[] counts) {
+            this.keys = keys;
+            this.values = values;
+            this.counts = counts;
+            if (counts == null) {
+                count = keys.length;
+            } else {
+                int c = 0;
+                for (int x : counts) {
+                    c += x;
+                }
+                count = c;
+            }
+        }
+
+        static Page fromEntries(ChildNodeEntry[] entries, boolean leaf) {
+            String[] keys = new String[entries.length];
+            if (leaf) {
+                for (int i = 0; i < entries.length; i++) {
+                    keys[i] = entries[i].getName();
+                }
+                return new Page(keys, entries.clone(), null);
+            }
+            Object[] values = new Object[entries.length];
+            int[] counts = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                String name = entries[i].getName();
+                int sep = name.lastIndexOf(COUNT_SEPARATOR);
+                keys[i] = name.substring(0, sep);
+                counts[i] = Integer.parseInt(name.substring(sep + 1));
+                values[i] = entries[i].getId();
+            }
+            return new Page(keys, values, counts);
+        }
+
+        boolean isLeaf() {
+            return counts == null;
+        }
+
+        int size() {
+            return keys.length;
+        }
+
+        /**
+         * Get the index of the child page that contains the given name, if
+         * the page is an inner page.
+         */
+        int route(String name) {
+            int i = Arrays.binarySearch(keys, name);
+            return i >= 0 ? i : Math.max(-i - 2, 0);
+        }
+
+        /**
+         * Get an entry as it is stored: the child node entry of a leaf page,
+         * or the name, count and id of a child page of an inner page.
+         */
+        ChildNodeEntry getEntry(int i) {
+            if (isLeaf()) {
+                return (ChildNodeEntry) values[i];
+            }
+            Object v = values[i];
+            Id childId = v instanceof Page ? ((Page) v).id : (Id) v;
+            if (childId == null) {
+                throw new IllegalStateException("Child node entries page not persisted");
+            }
+            return new ChildNodeEntry(keys[i] + COUNT_SEPARATOR + counts[i], childId);
+        }
+
+        ChildNodeEntriesMap toMap() {
+            ChildNodeEntriesMap map = new ChildNodeEntriesMap();
+            for (int i = 0; i < size(); i++) {
+                map.add(getEntry(i));
+            }
+            return map;
+        }
+
+        /**
+         * Replace a range of entries, and split the result if it is too large.
+         *
+         * @param index the index of the first entry to replace
+         * @param removeCount the number of entries to replace
+         * @param newKeys the keys of the new entries
+         * @param newValues the new entries
+         * @param newCounts the counts of the new entries, {@code null} for a leaf
+         * @param maxPageSize the maximum number of entries of a page
+         * @return the new page, or two pages
+         */
+        Page[] splice(int index, int removeCount, String[] newKeys, Object[] newValues, int[] newCounts,
+                      int maxPageSize) {
+            int size = size() - removeCount + newKeys.length;
+            int tail = size() - index - removeCount;
+            String[] k = new String[size];
+            Object[] v = new Object[size];
+            int[] c = isLeaf() ? null : new int[size];
+            System.arraycopy(keys, 0, k, 0, index);
+            System.arraycopy(newKeys, 0, k, index, newKeys.length);
+            System.arraycopy(keys, index + removeCount, k, index + newKeys.length, tail);
+            System.arraycopy(values, 0, v, 0, index);
+            System.arraycopy(newValues, 0, v, index, newValues.length);
+            System.arraycopy(values, index + removeCount, v, index + newKeys.length, tail);
+            if (c != null) {
+                System.arraycopy(counts, 0, c, 0, index);
+                System.arraycopy(newCounts, 0, c, index, newCounts.length);
+                System.arraycopy(counts, index + removeCount, c, index + newKeys.length, tail);
+            }
+            if (size <= maxPageSize) {
+                return new Page[] { new Page(k, v, c) };
+            }
+            int half = size / 2;
+            return new Page[] {
+                    new Page(Arrays.copyOfRange(k, 0, half), Arrays.copyOfRange(v, 0, half),
+                            c == null ? null : Arrays.copyOfRange(c, 0, half)),
+                    new Page(Arrays.copyOfRange(k, half, size), Arrays.copyOfRange(v, half, size),
+                            c == null ? null : Arrays.copyOfRange(c, half, size))
+            };
+        }
+
+        boolean contentEquals(Page other) {
+            if (this == other) {
+                return true;
+            }
+            if (id != null && id.equals(other.id)) {
+                return true;
+            }
+            if (!Arrays.equals(keys, other.keys) || !Arrays.equals(counts, other.counts)) {
+                return false;
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (!pageKey(values[i]).equals(pageKey(other.values[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Iterates over the entries in order, starting at a given position.
+     */
+    private class EntryIterator implements Iterator<ChildNodeEntry> {
+
+        /**
+         * The current page of each level, the leaf at index 0.
+         */
+        private final Page[] pages;
+
+        /**
+         * The position within the current page of each level.
+         */
+        private final int[] positions;
+
+        private int remaining;
+
+        EntryIterator(int offset, int count) {
+            int h = height;
+            pages = new Page[h + 1];
+            positions = new int[h + 1];
+            remaining = count;
+            Page page = root;
+            for (; h > 0; h--) {
+                int i = 0;
+                while (offset >= page.counts[i]) {
+                    offset -= page.counts[i++];
+                }
+                pages[h] = page;
+                positions[h] = i;
+                page = getChild(page, i, h == 1);
+            }
+            pages[0] = page;
+            positions[0] = offset;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public ChildNodeEntry next() {
+            if (remaining <= 0) {
+                throw new NoSuchElementException();
+            }
+            if (positions[0] >= pages[0].size()) {
+                nextLeaf();
+            }
+            remaining--;
+            return (ChildNodeEntry) pages[0].values[positions[0]++];
+        }
+
+        private void nextLeaf() {
+            int h = 1;
+            while (++positions[h] >= pages[h].size()) {
+                h++;
+            }
+            for (; h > 0; h--) {
+                pages[h - 1] = getChild(pages[h], positions[h], h == 1);
+                positions[h - 1] = 0;
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
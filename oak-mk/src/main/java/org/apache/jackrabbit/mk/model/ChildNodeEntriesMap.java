@@ -21,7 +21,9 @@ import org.apache.jackrabbit.mk.store.CacheObject;
 import org.apache.jackrabbit.mk.util.AbstractFilteringIterator;
 import org.apache.jackrabbit.mk.util.RangeIterator;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -36,6 +38,11 @@ public class ChildNodeEntriesMap implements ChildNodeEntries, CacheObject {
     
     protected HashMap<String, ChildNodeEntry> entries = new HashMap<String, ChildNodeEntry>();
 
+    /**
+     * The entries sorted by name, computed on demand.
+     */
+    private volatile ChildNodeEntry[] sorted;
+
     public ChildNodeEntriesMap() {
     }
 
@@ -120,15 +127,38 @@ public class ChildNodeEntriesMap implements ChildNodeEntries, CacheObject {
         }
     }
 
+    /**
+     * Get the entries sorted by name. The sorted array is kept until the map
+     * is modified, so it is only computed once for maps read from the store.
+     *
+     * @return the sorted entries, which must not be modified
+     */
+    public ChildNodeEntry[] getSortedEntries() {
+        ChildNodeEntry[] result = sorted;
+        if (result == null) {
+            result = entries.values().toArray(new ChildNodeEntry[entries.size()]);
+            Arrays.sort(result, new Comparator<ChildNodeEntry>() {
+                @Override
+                public int compare(ChildNodeEntry o1, ChildNodeEntry o2) {
+                    return o1.getName().compareTo(o2.getName());
+                }
+            });
+            sorted = result;
+        }
+        return result;
+    }
+
     //------------------------------------------------------------< write ops >
 
     @Override
     public ChildNodeEntry add(ChildNodeEntry entry) {
+        sorted = null;
         return entries.put(entry.getName(), entry);
     }
 
     @Override
     public ChildNodeEntry remove(String name) {
+        sorted = null;
         return entries.remove(name);
     }
 
@@ -140,6 +170,7 @@ public class ChildNodeEntriesMap implements ChildNodeEntries, CacheObject {
         if (entries.get(oldName) == null) {
             return null;
         }
+        sorted = null;
         HashMap<String, ChildNodeEntry> clone =
                 (HashMap<String, ChildNodeEntry>) entries.clone();
         entries.clear();
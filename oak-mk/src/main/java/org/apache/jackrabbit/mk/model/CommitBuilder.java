@@ -48,10 +48,28 @@ public class CommitBuilder {
     // change log
     private final List<Change> changeLog = new ArrayList<Change>();
 
+    // group commit queue, or null
+    private final CommitQueue commitQueue;
+
     public CommitBuilder(Id baseRevId, String msg, RevisionStore store) throws Exception {
+        this(baseRevId, msg, store, null);
+    }
+
+    /**
+     * Create a commit builder.
+     *
+     * @param baseRevId revision the changes are based upon
+     * @param msg commit message
+     * @param store revision store
+     * @param commitQueue queue grouping head commits, or {@code null} to
+     *                    put each head commit on its own
+     * @throws Exception if an error occurs
+     */
+    public CommitBuilder(Id baseRevId, String msg, RevisionStore store, CommitQueue commitQueue) throws Exception {
         this.baseRevId = baseRevId;
         this.msg = msg;
         this.store = store;
+        this.commitQueue = commitQueue;
         stagedTree = new StagedNodeTree(store, baseRevId);
     }
 
@@ -129,40 +147,19 @@ public class CommitBuilder {
         Id newRevId;
 
         if (!privateCommit) {
-            store.lockHead();
-            try {
-                Id currentHead = store.getHeadCommitId();
-                if (!currentHead.equals(baseRevId)) {
-                    // there's a more recent head revision
-                    // perform a three-way merge
-                    rootNodeId = stagedTree.merge(store.getNode(rootNodeId), currentHead, baseRevId, token);
-                    // update base revision to more recent current head
-                    baseRevId = currentHead;
-                }
-
-                if (store.getCommit(currentHead).getRootNodeId().equals(rootNodeId)) {
-                    // the commit didn't cause any changes,
-                    // no need to create new commit object/update head revision
-                    return currentHead;
-                }
-                // persist new commit
-                MutableCommit newCommit = new MutableCommit();
-                newCommit.setParentId(baseRevId);
-                newCommit.setCommitTS(System.currentTimeMillis());
-                newCommit.setMsg(msg);
-                StringBuilder diff = new StringBuilder();
-                for (Change change : changeLog) {
-                    if (diff.length() > 0) {
-                        diff.append('\n');
-                    }
-                    diff.append(change.asDiff());
+            if (commitQueue != null) {
+                newRevId = commitQueue.commit(this, token, rootNodeId);
+            } else {
+                store.lockHead();
+                try {
+                    newRevId = putHeadCommit(token, rootNodeId, true);
+                } finally {
+                    store.unlockHead();
                 }
-                newCommit.setChanges(diff.toString());
-                newCommit.setRootNodeId(rootNodeId);
-                newCommit.setBranchRootId(null);
-                newRevId = store.putHeadCommit(token, newCommit, null, null);
-            } finally {
-                store.unlockHead();
+            }
+            if (newRevId.equals(baseRevId)) {
+                // the commit didn't cause any changes
+                return newRevId;
             }
         } else {
             // private commit/branch
@@ -194,6 +191,52 @@ public class CommitBuilder {
         return newRevId;
     }
 
+    /**
+     * Put the head commit for the persisted staged tree, merging it with
+     * a more recent head revision if necessary. Must be called while holding
+     * the head lock.
+     *
+     * @param token put token
+     * @param rootNodeId id of the persisted root node
+     * @param persistHead whether to persist the new head immediately
+     * @return the new head revision, or the current head revision if the
+     *         commit didn't cause any changes
+     * @throws Exception if an error occurs
+     */
+    Id /* new revId */ putHeadCommit(RevisionStore.PutToken token, Id rootNodeId, boolean persistHead)
+            throws Exception {
+        Id currentHead = store.getHeadCommitId();
+        if (!currentHead.equals(baseRevId)) {
+            // there's a more recent head revision
+            // perform a three-way merge
+            rootNodeId = stagedTree.merge(store.getNode(rootNodeId), currentHead, baseRevId, token);
+            // update base revision to more recent current head
+            baseRevId = currentHead;
+        }
+
+        if (store.getCommit(currentHead).getRootNodeId().equals(rootNodeId)) {
+            // the commit didn't cause any changes,
+            // no need to create new commit object/update head revision
+            return currentHead;
+        }
+        // persist new commit
+        MutableCommit newCommit = new MutableCommit();
+        newCommit.setParentId(baseRevId);
+        newCommit.setCommitTS(System.currentTimeMillis());
+        newCommit.setMsg(msg);
+        StringBuilder diff = new StringBuilder();
+        for (Change change : changeLog) {
+            if (diff.length() > 0) {
+                diff.append('\n');
+            }
+            diff.append(change.asDiff());
+        }
+        newCommit.setChanges(diff.toString());
+        newCommit.setRootNodeId(rootNodeId);
+        newCommit.setBranchRootId(null);
+        return store.putHeadCommit(token, newCommit, null, null, persistHead);
+    }
+
     public Id /* new revId */ doMerge() throws Exception {
         StoredCommit branchCommit = store.getCommit(baseRevId);
         Id branchRootId = branchCommit.getBranchRootId();
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.mk.model;
+
+import org.apache.jackrabbit.mk.store.RevisionStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups the head commits of concurrent committers. The first committer
+ * to arrive becomes the leader: it takes the head lock once, puts the head
+ * commits of all committers queued up to that point one after the other and
+ * persists the head only once. The other committers wait for the leader and
+ * still get their own revision id. A committer arriving while a leader is
+ * busy becomes the leader of the next group.
+ * <p/>
+ * Each commit of a group is merged with the commit before it, exactly like
+ * concurrent commits without grouping. If a commit fails to merge, only its
+ * committer gets the exception.
+ */
+public class CommitQueue {
+
+    /**
+     * System property enabling group commit.
+     */
+    public static final String GROUP_COMMIT = "mk.groupCommit";
+
+    /**
+     * System property for the time in milliseconds a leader waits for more
+     * committers to join its group. The default is {@code 0}, i.e. a group
+     * only contains the committers that arrived while the previous group was
+     * being persisted.
+     */
+    public static final String GROUP_COMMIT_DELAY = "mk.groupCommitDelay";
+
+    private final RevisionStore store;
+    private final long delay;
+
+    /**
+     * Commits waiting for a leader.
+     */
+    private final List<Entry> queue = new ArrayList<Entry>();
+
+    /**
+     * Whether a leader is currently persisting a group.
+     */
+    private boolean leaderActive;
+
+    private final AtomicLong groupCount = new AtomicLong();
+    private final AtomicLong commitCount = new AtomicLong();
+
+    public CommitQueue(RevisionStore store) {
+        this(store, Long.getLong(GROUP_COMMIT_DELAY, 0));
+    }
+
+    /**
+     * Create a commit queue.
+     *
+     * @param store revision store
+     * @param delay time in milliseconds the leader waits for more committers
+     */
+    public CommitQueue(RevisionStore store, long delay) {
+        this.store = store;
+        this.delay = delay;
+    }
+
+    /**
+     * Put the head commit of a commit builder, possibly together with the
+     * head commits of other builders.
+     *
+     * @param builder commit builder whose staged tree is persisted
+     * @param token put token used to persist the staged tree
+     * @param rootNodeId id of the persisted root node
+     * @return the new head revision, or the current head revision if the
+     *         commit didn't cause any changes
+     * @throws Exception if an error occurs
+     */
+    Id /* new revId */ commit(CommitBuilder builder, RevisionStore.PutToken token, Id rootNodeId)
+            throws Exception {
+        Entry entry = new Entry(builder, token, rootNodeId);
+        boolean interrupted = false;
+        synchronized (this) {
+            queue.add(entry);
+            while (!entry.done && leaderActive) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (!entry.done) {
+                leaderActive = true;
+            }
+        }
+        if (!entry.done) {
+            lead();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return entry.getResult();
+    }
+
+    private void lead() {
+        List<Entry> group = null;
+        try {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                group = new ArrayList<Entry>(queue);
+                queue.clear();
+            }
+            store.lockHead();
+            try {
+                for (Entry e : group) {
+                    try {
+                        e.revId = e.builder.putHeadCommit(e.token, e.rootNodeId, false);
+                    } catch (Exception ex) {
+                        e.error = ex;
+                    }
+                }
+                store.persistHead();
+            } finally {
+                store.unlockHead();
+            }
+            groupCount.incrementAndGet();
+            commitCount.addAndGet(group.size());
+        } catch (Exception ex) {
+            // the head was not persisted, fail the whole group
+            for (Entry e : group) {
+                if (e.error == null) {
+                    e.error = ex;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                if (group != null) {
+                    for (Entry e : group) {
+                        e.done = true;
+                    }
+                }
+                leaderActive = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Get the number of groups persisted so far.
+     *
+     * @return the group count
+     */
+    public long getGroupCount() {
+        return groupCount.get();
+    }
+
+    /**
+     * Get the number of head commits put by the groups persisted so far.
+     *
+     * @return the commit count
+     */
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+
+    /**
+     * A queued head commit.
+     */
+    private static class Entry {
+
+        final CommitBuilder builder;
+        final RevisionStore.PutToken token;
+        final Id rootNodeId;
+
+        // guarded by the queue monitor once the entry is done
+        boolean done;
+        Id revId;
+        Exception error;
+
+        Entry(CommitBuilder builder, RevisionStore.PutToken token, Id rootNodeId) {
+            this.builder = builder;
+            this.token = token;
+            this.rootNodeId = rootNodeId;
+        }
+
+        Id getResult() throws Exception {
+            if (error != null) {
+                throw error;
+            }
+            if (revId == null) {
+                throw new Exception("group commit failed");
+            }
+            return revId;
+        }
+    }
+
+}
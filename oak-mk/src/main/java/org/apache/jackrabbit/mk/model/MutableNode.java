@@ -39,7 +39,7 @@ public class MutableNode extends AbstractNode implements PersistHook {
         ChildNodeEntry existing = childEntries.add(newEntry);
         if (childEntries.getCount() > ChildNodeEntries.CAPACITY_THRESHOLD
                 && childEntries.inlined()) {
-            ChildNodeEntries entries = new ChildNodeEntriesTree(provider);
+            ChildNodeEntries entries = createLargeChildNodeEntries();
             Iterator<ChildNodeEntry> iter = childEntries.getEntries(0, -1);
             while (iter.hasNext()) {
                 entries.add(iter.next());
@@ -61,7 +61,10 @@ public class MutableNode extends AbstractNode implements PersistHook {
 
     @Override
     public void prePersist(RevisionStore store, RevisionStore.PutToken token) throws Exception {
-        if (!childEntries.inlined()) {
+        if (childEntries instanceof ChildNodeEntriesBTree) {
+            // persist dirty pages
+            ((ChildNodeEntriesBTree) childEntries).persistDirtyPages(store, token);
+        } else if (!childEntries.inlined()) {
             // persist dirty buckets
             ((ChildNodeEntriesTree) childEntries).persistDirtyBuckets(store, token);
         }
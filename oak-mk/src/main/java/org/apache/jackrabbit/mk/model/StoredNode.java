@@ -57,14 +57,29 @@ public class StoredNode extends AbstractNode {
         return new UnmodifiableIterator<String>(super.getChildNodeNames(offset, count));
     }
 
+    /**
+     * Visit the stored pages of sorted child node entries, if the node has
+     * many child nodes.
+     *
+     * @param visitor the visitor
+     * @throws Exception if an error occurs
+     */
+    public void visitChildNodePages(ChildNodeEntriesBTree.PageVisitor visitor) throws Exception {
+        if (childEntries instanceof ChildNodeEntriesBTree) {
+            ((ChildNodeEntriesBTree) childEntries).visitPages(visitor);
+        }
+    }
+
     public void deserialize(Binding binding) throws Exception {
         Binding.StringEntryIterator iter = binding.readStringMap(":props");
         while (iter.hasNext()) {
             Binding.StringEntry entry = iter.next();
             properties.put(entry.getKey(), entry.getValue());
         }
-        boolean inlined = binding.readIntValue(":inlined") != 0;
-        if (inlined) {
+        int type = binding.readIntValue(":inlined");
+        if (type == ChildNodeEntriesBTree.SERIALIZED_TYPE) {
+            childEntries = ChildNodeEntriesBTree.deserialize(provider, binding);
+        } else if (type != 0) {
             childEntries = ChildNodeEntriesMap.deserialize(binding);
         } else {
             childEntries = ChildNodeEntriesTree.deserialize(provider, binding);
@@ -19,6 +19,8 @@ package org.apache.jackrabbit.mk.persistence;
 import org.apache.jackrabbit.mk.model.Commit;
 import org.apache.jackrabbit.mk.model.Id;
 
+import java.util.List;
+
 /**
  * Advanced persistence implementation offering GC support.
  * <p>
@@ -32,6 +34,21 @@ public interface GCPersistence extends Persistence {
      * marked implicitely, i.e. they must be retained on {@link #sweep()}.
      */
     void start();
+
+    /**
+     * Start an incremental GC cycle. Only objects written after the start of
+     * the last completed cycle are candidates for collection: older objects
+     * are never reported as unmarked by the mark methods and are not swept.
+     * Since stored objects only ever reference objects written before them,
+     * marking may stop at any object reported as already marked.
+     * <p/>
+     * Implementations not tracking the age of objects start a full cycle
+     * instead, as if {@link #start()} had been called.
+     *
+     * @return {@code true} if an incremental cycle was started;
+     *         {@code false} if a full cycle was started instead
+     */
+    boolean startIncremental();
     
     /**
      * Mark a commit.
@@ -71,6 +88,18 @@ public interface GCPersistence extends Persistence {
      */
     boolean markNode(Id id) throws Exception;
 
+    /**
+     * Mark a batch of nodes. Equivalent to calling {@link #markNode(Id)}
+     * for every id, but allows implementations to update all marks at once.
+     *
+     * @param ids
+     *            node ids
+     * @return ids of the nodes that were not marked before
+     *
+     * @throws Exception if an error occurs
+     */
+    List<Id> markNodes(List<Id> ids) throws Exception;
+
     /**
      * Mark a child node entry map.
      * 
@@ -37,6 +37,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -47,6 +49,23 @@ public class H2Persistence implements GCPersistence {
 
     private JdbcConnectionPool cp;
     private long gcStart;
+
+    /**
+     * Start of the last completed GC cycle, or {@code 0} if none completed yet.
+     */
+    private long lastGcStart;
+
+    /**
+     * Objects with a timestamp at or before this one belong to the old
+     * generation in an incremental GC cycle; {@code 0} in a full cycle.
+     */
+    private long youngSince;
+
+    /**
+     * The current time in milliseconds as set by {@link #setTime(long)}, or
+     * {@code 0} to use the system clock.
+     */
+    private volatile long time;
     
     // TODO: make this configurable
     private IdFactory idFactory = IdFactory.getDigestFactory();
@@ -167,7 +186,7 @@ public class H2Persistence implements GCPersistence {
         node.serialize(new BinaryBinding(out));
         byte[] bytes = out.toByteArray();
         byte[] rawId = idFactory.createContentId(bytes);
-        Timestamp ts = new Timestamp(System.currentTimeMillis());
+        Timestamp ts = new Timestamp(now());
         //String id = StringUtils.convertBytesToHex(rawId);
 
         Connection con = cp.getConnection();
@@ -215,7 +234,7 @@ public class H2Persistence implements GCPersistence {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         commit.serialize(new BinaryBinding(out));
         byte[] bytes = out.toByteArray();
-        Timestamp ts = new Timestamp(System.currentTimeMillis());
+        Timestamp ts = new Timestamp(now());
 
         Connection con = cp.getConnection();
         try {
@@ -263,7 +282,7 @@ public class H2Persistence implements GCPersistence {
         map.serialize(new BinaryBinding(out));
         byte[] bytes = out.toByteArray();
         byte[] rawId = idFactory.createContentId(bytes);
-        Timestamp ts = new Timestamp(System.currentTimeMillis());
+        Timestamp ts = new Timestamp(now());
 
         Connection con = cp.getConnection();
         try {
@@ -287,7 +306,19 @@ public class H2Persistence implements GCPersistence {
 
     @Override
     public void start() {
-        gcStart = System.currentTimeMillis();
+        gcStart = now();
+        youngSince = 0;
+    }
+
+    @Override
+    public boolean startIncremental() {
+        if (lastGcStart == 0) {
+            start();
+            return false;
+        }
+        gcStart = now();
+        youngSince = lastGcStart;
+        return true;
     }
     
     @Override
@@ -305,10 +336,11 @@ public class H2Persistence implements GCPersistence {
         try {
             PreparedStatement stmt = con
                     .prepareStatement(
-                            "update REVS set DATA = ?, TIME = CURRENT_TIMESTAMP() where ID = ?");
+                            "update REVS set DATA = ?, TIME = ? where ID = ?");
             try {
                 stmt.setBytes(1, bytes);
-                stmt.setBytes(2, id.getBytes());
+                stmt.setTimestamp(2, new Timestamp(now()));
+                stmt.setBytes(3, id.getBytes());
                 stmt.executeUpdate();
             } finally {
                 stmt.close();
@@ -323,6 +355,39 @@ public class H2Persistence implements GCPersistence {
         return touch("NODES", id, gcStart);
     }
 
+    @Override
+    public List<Id> markNodes(List<Id> ids) throws Exception {
+        Timestamp ts = new Timestamp(gcStart);
+        Timestamp since = new Timestamp(youngSince);
+        List<Id> newlyMarked = new ArrayList<Id>(ids.size());
+
+        Connection con = cp.getConnection();
+        try {
+            PreparedStatement stmt = con.prepareStatement(
+                    "update NODES set TIME = ? where ID = ? and TIME < ? and TIME > ?");
+            try {
+                for (Id id : ids) {
+                    stmt.setTimestamp(1, ts);
+                    stmt.setBytes(2, id.getBytes());
+                    stmt.setTimestamp(3, ts);
+                    stmt.setTimestamp(4, since);
+                    stmt.addBatch();
+                }
+                int[] counts = stmt.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 1) {
+                        newlyMarked.add(ids.get(i));
+                    }
+                }
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            con.close();
+        }
+        return newlyMarked;
+    }
+
     @Override
     public boolean markCNEMap(Id id) throws Exception {
         return touch("NODES", id, gcStart);
@@ -334,13 +399,14 @@ public class H2Persistence implements GCPersistence {
         Connection con = cp.getConnection();
         try {
             PreparedStatement stmt = con.prepareStatement(
-                    String.format("update %s set TIME = ? where ID = ? and TIME < ?",
+                    String.format("update %s set TIME = ? where ID = ? and TIME < ? and TIME > ?",
                             table));
                                     
             try {
                 stmt.setTimestamp(1, ts);
                 stmt.setBytes(2, id.getBytes());
                 stmt.setTimestamp(3, ts);
+                stmt.setTimestamp(4, new Timestamp(youngSince));
                 return stmt.executeUpdate() == 1;
             } finally {
                 stmt.close();
@@ -353,22 +419,25 @@ public class H2Persistence implements GCPersistence {
     @Override
     public int sweep() throws Exception {
         Timestamp ts = new Timestamp(gcStart);
+        Timestamp since = new Timestamp(youngSince);
         int swept = 0;
 
         Connection con = cp.getConnection();
         try {
-            PreparedStatement stmt = con.prepareStatement("delete REVS where TIME < ?");
+            PreparedStatement stmt = con.prepareStatement("delete REVS where TIME < ? and TIME > ?");
             try {
                 stmt.setTimestamp(1, ts);
+                stmt.setTimestamp(2, since);
                 swept += stmt.executeUpdate();
             } finally {
                 stmt.close();
             }
 
-            stmt = con.prepareStatement("delete NODES where TIME < ?");
+            stmt = con.prepareStatement("delete NODES where TIME < ? and TIME > ?");
             
             try {
                 stmt.setTimestamp(1, ts);
+                stmt.setTimestamp(2, since);
                 swept += stmt.executeUpdate();
             } finally {
                 stmt.close();
@@ -376,6 +445,22 @@ public class H2Persistence implements GCPersistence {
         } finally {
             con.close();
         }
+        lastGcStart = gcStart;
         return swept;
      }
-}
\ No newline at end of file
+
+    /**
+     * Set the current time used for the object timestamps and the GC
+     * cycles, instead of the system clock. Used in tests.
+     *
+     * @param time the time in milliseconds, or {@code 0} for the system clock
+     */
+    void setTime(long time) {
+        this.time = time;
+    }
+
+    private long now() {
+        long t = time;
+        return t != 0 ? t : System.currentTimeMillis();
+    }
+}
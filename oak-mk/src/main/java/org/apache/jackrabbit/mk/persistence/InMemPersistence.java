@@ -30,8 +30,10 @@ import org.apache.jackrabbit.mk.store.NotFoundException;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -141,6 +143,13 @@ public class InMemPersistence implements GCPersistence {
         marked.clear();
     }
 
+    @Override
+    public boolean startIncremental() {
+        // no object ages known, fall back to a full cycle
+        start();
+        return false;
+    }
+
     @Override
     public boolean markCommit(Id id) throws NotFoundException {
         return markObject(id);
@@ -151,6 +160,17 @@ public class InMemPersistence implements GCPersistence {
         return markObject(id);
     }
 
+    @Override
+    public List<Id> markNodes(List<Id> ids) throws NotFoundException {
+        List<Id> newlyMarked = new ArrayList<Id>(ids.size());
+        for (Id id : ids) {
+            if (markObject(id)) {
+                newlyMarked.add(id);
+            }
+        }
+        return newlyMarked;
+    }
+
     @Override
     public boolean markCNEMap(Id id) throws NotFoundException {
         return markObject(id);
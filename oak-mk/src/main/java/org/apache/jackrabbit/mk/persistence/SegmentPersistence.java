@@ -0,0 +1,581 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.mk.persistence;
+
+import org.apache.jackrabbit.mk.model.ChildNodeEntries;
+import org.apache.jackrabbit.mk.model.ChildNodeEntriesMap;
+import org.apache.jackrabbit.mk.model.Commit;
+import org.apache.jackrabbit.mk.model.Id;
+import org.apache.jackrabbit.mk.model.Node;
+import org.apache.jackrabbit.mk.model.StoredCommit;
+import org.apache.jackrabbit.mk.model.StoredNode;
+import org.apache.jackrabbit.mk.store.BinaryBinding;
+import org.apache.jackrabbit.mk.store.IdFactory;
+import org.apache.jackrabbit.mk.store.NotFoundException;
+import org.apache.jackrabbit.mk.util.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Persistence implementation appending all records to a sequence of large,
+ * append-only segment files. Nodes, child node entry maps and commits are
+ * content addressed, so there is no need for a general purpose index: an
+ * in-memory map from id to record location is rebuilt by scanning the
+ * segments on startup.
+ * <p/>
+ * Records are only forced to disk when the head is written, i.e. once per
+ * commit. Garbage collection drops unmarked records from the index and
+ * compacts every segment written before {@link #start()} that contains
+ * garbage by copying its live records to the current segment and deleting
+ * the old file.
+ */
+public class SegmentPersistence implements GCPersistence {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentPersistence.class);
+
+    /**
+     * System property for the maximum size of a segment file in bytes.
+     */
+    public static final String SEGMENT_SIZE = "mk.segmentSize";
+
+    /**
+     * Default maximum segment size is 256 MB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * System property for the class name of the {@link IdFactory} that
+     * creates the content ids. The default is the digest factory.
+     */
+    public static final String ID_FACTORY = "mk.idFactory";
+
+    private static final boolean FAST = Boolean.getBoolean("mk.fastDb");
+
+    private static final String SEGMENT_PREFIX = "data";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * Record types.
+     */
+    private static final byte NODE = 'N';
+    private static final byte COMMIT = 'C';
+    private static final byte HEAD = 'H';
+
+    /**
+     * Record header: type (1 byte), id length (1 byte) and data length (4 bytes).
+     */
+    private static final int HEADER_LENGTH = 6;
+
+    private static final NotFoundException NFE = new NotFoundException();
+
+    private final int maxSegmentSize;
+
+    private File dir;
+
+    /**
+     * Open segment files (Key: segment number, Value: file). Concurrent, as
+     * the rollover to a new segment happens while others read.
+     */
+    private final ConcurrentNavigableMap<Integer, RandomAccessFile> segments =
+            new ConcurrentSkipListMap<Integer, RandomAccessFile>();
+
+    /**
+     * Location of every live record.
+     */
+    private final Map<Id, Location> index = new ConcurrentHashMap<Id, Location>();
+
+    /**
+     * Ids of records marked in the current GC cycle.
+     */
+    private final Set<Id> marked = Collections.newSetFromMap(new ConcurrentHashMap<Id, Boolean>());
+
+    /**
+     * Guards the segment files: appends and reads hold the read lock,
+     * compaction and close hold the write lock.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Monitor serializing appends to the current segment.
+     */
+    private final Object writeMonitor = new Object();
+
+    private int writeSegment;
+    private FileChannel writeChannel;
+    private long writePosition;
+
+    private volatile Id head;
+    private volatile Id lastCommitId;
+
+    /**
+     * First segment written in the current GC cycle, or {@code -1} if
+     * no GC cycle is active.
+     */
+    private volatile int gcSegment = -1;
+
+    private final IdFactory idFactory = determineIdFactory();
+
+    public SegmentPersistence() {
+        this(determineSegmentSize());
+    }
+
+    public SegmentPersistence(int maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    protected static int determineSegmentSize() {
+        String val = System.getProperty(SEGMENT_SIZE);
+        return (val != null) ? Integer.parseInt(val) : DEFAULT_SEGMENT_SIZE;
+    }
+
+    protected static IdFactory determineIdFactory() {
+        String val = System.getProperty(ID_FACTORY);
+        if (val == null) {
+            return IdFactory.getDigestFactory();
+        }
+        try {
+            return (IdFactory) Class.forName(val).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid " + ID_FACTORY + ": " + val, e);
+        }
+    }
+
+    //---------------------------------------------------< Persistence >
+
+    public void initialize(File homeDir) throws Exception {
+        dir = new File(homeDir, "segments");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        List<Integer> numbers = new ArrayList<Integer>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    numbers.add(Integer.valueOf(name.substring(
+                            SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(numbers);
+        for (int number : numbers) {
+            RandomAccessFile file = new RandomAccessFile(getSegmentFile(number), "rw");
+            segments.put(number, file);
+            scan(number, file);
+        }
+        if (segments.isEmpty()) {
+            openSegment(0);
+        } else {
+            writeSegment = segments.lastKey();
+            writeChannel = segments.get(writeSegment).getChannel();
+            writePosition = writeChannel.size();
+        }
+    }
+
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            for (RandomAccessFile file : segments.values()) {
+                IOUtils.closeQuietly(file);
+            }
+            segments.clear();
+            index.clear();
+            marked.clear();
+            writeChannel = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Id[] readIds() throws Exception {
+        Id headId = head;
+        return new Id[] { headId, headId == null ? null : lastCommitId };
+    }
+
+    public void writeHead(Id id) throws Exception {
+        lock.readLock().lock();
+        try {
+            synchronized (writeMonitor) {
+                append(HEAD, id, new byte[0]);
+                if (!FAST) {
+                    // all records of this commit become durable together
+                    writeChannel.force(false);
+                }
+                head = id;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void readNode(StoredNode node) throws NotFoundException, Exception {
+        Id id = node.getId();
+        byte[] bytes = read(id);
+        if (bytes == null) {
+            throw new NotFoundException(id.toString());
+        }
+        node.deserialize(new BinaryBinding(new ByteArrayInputStream(bytes)));
+    }
+
+    public Id writeNode(Node node) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        node.serialize(new BinaryBinding(out));
+        byte[] bytes = out.toByteArray();
+        Id id = new Id(idFactory.createContentId(bytes));
+
+        write(NODE, id, bytes, false);
+        return id;
+    }
+
+    public ChildNodeEntriesMap readCNEMap(Id id) throws NotFoundException, Exception {
+        byte[] bytes = read(id);
+        if (bytes == null) {
+            throw NFE;
+        }
+        return ChildNodeEntriesMap.deserialize(new BinaryBinding(new ByteArrayInputStream(bytes)));
+    }
+
+    public Id writeCNEMap(ChildNodeEntries map) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        map.serialize(new BinaryBinding(out));
+        byte[] bytes = out.toByteArray();
+        Id id = new Id(idFactory.createContentId(bytes));
+
+        write(NODE, id, bytes, false);
+        return id;
+    }
+
+    public StoredCommit readCommit(Id id) throws NotFoundException, Exception {
+        byte[] bytes = read(id);
+        if (bytes == null) {
+            throw new NotFoundException(id.toString());
+        }
+        return StoredCommit.deserialize(id, new BinaryBinding(new ByteArrayInputStream(bytes)));
+    }
+
+    public void writeCommit(Id id, Commit commit) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        commit.serialize(new BinaryBinding(out));
+
+        write(COMMIT, id, out.toByteArray(), false);
+    }
+
+    //---------------------------------------------------< GCPersistence >
+
+    @Override
+    public void start() {
+        lock.readLock().lock();
+        try {
+            synchronized (writeMonitor) {
+                marked.clear();
+                // everything written from now on goes to new segments
+                openSegment(writeSegment + 1);
+                gcSegment = writeSegment;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open segment", e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean startIncremental() {
+        // compaction moves old records into new segments, so the segment
+        // number does not tell the age of a record: fall back to a full cycle
+        start();
+        return false;
+    }
+
+    @Override
+    public boolean markCommit(Id id) throws Exception {
+        return markObject(id);
+    }
+
+    @Override
+    public void replaceCommit(Id id, Commit commit) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        commit.serialize(new BinaryBinding(out));
+
+        write(COMMIT, id, out.toByteArray(), true);
+    }
+
+    @Override
+    public boolean markNode(Id id) throws Exception {
+        return markObject(id);
+    }
+
+    @Override
+    public List<Id> markNodes(List<Id> ids) throws Exception {
+        List<Id> newlyMarked = new ArrayList<Id>(ids.size());
+        for (Id id : ids) {
+            if (markObject(id)) {
+                newlyMarked.add(id);
+            }
+        }
+        return newlyMarked;
+    }
+
+    @Override
+    public boolean markCNEMap(Id id) throws Exception {
+        return markObject(id);
+    }
+
+    @Override
+    public int sweep() throws Exception {
+        lock.writeLock().lock();
+        try {
+            int firstRetained = gcSegment;
+            if (firstRetained < 0) {
+                return 0;
+            }
+            int swept = 0;
+
+            // determine live records per old segment, forget about the rest
+            Map<Integer, List<Id>> live = new TreeMap<Integer, List<Id>>();
+            for (Integer number : segments.headMap(firstRetained).keySet()) {
+                live.put(number, new ArrayList<Id>());
+            }
+            Set<Integer> dirty = new HashSet<Integer>();
+            for (Map.Entry<Id, Location> entry : index.entrySet()) {
+                Location loc = entry.getValue();
+                if (loc.segment >= firstRetained) {
+                    continue;
+                }
+                if (marked.contains(entry.getKey())) {
+                    live.get(loc.segment).add(entry.getKey());
+                } else {
+                    index.remove(entry.getKey());
+                    dirty.add(loc.segment);
+                    swept++;
+                }
+            }
+
+            // compact old segments holding garbage, drop the empty ones
+            List<Integer> obsolete = new ArrayList<Integer>();
+            for (Map.Entry<Integer, List<Id>> entry : live.entrySet()) {
+                int number = entry.getKey();
+                List<Id> ids = entry.getValue();
+                if (!ids.isEmpty() && !dirty.contains(number)) {
+                    continue;
+                }
+                for (Id id : ids) {
+                    Location loc = index.get(id);
+                    append(loc.type, id, read(loc));
+                }
+                obsolete.add(number);
+            }
+
+            if (!obsolete.isEmpty()) {
+                if (head != null) {
+                    append(HEAD, head, new byte[0]);
+                }
+                writeChannel.force(false);
+                for (int number : obsolete) {
+                    IOUtils.closeQuietly(segments.remove(number));
+                    if (!getSegmentFile(number).delete()) {
+                        LOG.warn("Unable to delete segment {}", number);
+                    }
+                }
+            }
+            LOG.debug("Compacted {} segments", obsolete.size());
+            return swept;
+        } finally {
+            gcSegment = -1;
+            marked.clear();
+            lock.writeLock().unlock();
+        }
+    }
+
+    //-------------------------------------------------------< implementation >
+
+    private boolean markObject(Id id) {
+        if (!index.containsKey(id)) {
+            return false;
+        }
+        return marked.add(id);
+    }
+
+    private void write(byte type, Id id, byte[] bytes, boolean replace) throws Exception {
+        lock.readLock().lock();
+        try {
+            synchronized (writeMonitor) {
+                if (replace || !index.containsKey(id)) {
+                    append(type, id, bytes);
+                }
+                if (gcSegment >= 0) {
+                    // written during GC, so implicitly marked
+                    marked.add(id);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Append a record to the current segment, rolling over to a new segment
+     * if the current one is full. Must be called with either the write monitor
+     * or the write lock held.
+     */
+    private void append(byte type, Id id, byte[] data) throws IOException {
+        byte[] raw = id.getBytes();
+        int length = HEADER_LENGTH + raw.length + data.length;
+        if (writePosition > 0 && writePosition + length > maxSegmentSize) {
+            openSegment(writeSegment + 1);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        buf.put(type);
+        buf.put((byte) raw.length);
+        buf.putInt(data.length);
+        buf.put(raw);
+        buf.put(data);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            writeChannel.write(buf, writePosition + buf.position());
+        }
+        int dataOffset = (int) writePosition + HEADER_LENGTH + raw.length;
+        writePosition += length;
+
+        if (type == HEAD) {
+            return;
+        }
+        index.put(id, new Location(type, writeSegment, dataOffset, data.length));
+        if (type == COMMIT && (lastCommitId == null || id.compareTo(lastCommitId) > 0)) {
+            lastCommitId = id;
+        }
+    }
+
+    private byte[] read(Id id) throws IOException {
+        lock.readLock().lock();
+        try {
+            Location loc = index.get(id);
+            return loc == null ? null : read(loc);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private byte[] read(Location loc) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(loc.length);
+        readFully(segments.get(loc.segment).getChannel(), buf, loc.offset);
+        return buf.array();
+    }
+
+    private void openSegment(int number) throws IOException {
+        if (writeChannel != null && !FAST) {
+            writeChannel.force(false);
+        }
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(number), "rw");
+        segments.put(number, file);
+        writeSegment = number;
+        writeChannel = file.getChannel();
+        writePosition = writeChannel.size();
+    }
+
+    /**
+     * Rebuild the index entries of a segment. A partially written record
+     * at the end of the segment, left over from a crash, is truncated.
+     */
+    private void scan(int number, RandomAccessFile file) throws IOException {
+        FileChannel channel = file.getChannel();
+        long size = channel.size();
+        long pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+
+        while (pos + HEADER_LENGTH <= size) {
+            header.clear();
+            readFully(channel, header, pos);
+            header.flip();
+            byte type = header.get();
+            int idLength = header.get() & 0xff;
+            int dataLength = header.getInt();
+            long end = pos + HEADER_LENGTH + idLength + dataLength;
+            if (dataLength < 0 || end > size) {
+                break;
+            }
+            ByteBuffer raw = ByteBuffer.allocate(idLength);
+            readFully(channel, raw, pos + HEADER_LENGTH);
+            Id id = new Id(raw.array());
+
+            if (type == HEAD) {
+                head = id;
+            } else {
+                index.put(id, new Location(type, number, (int) (pos + HEADER_LENGTH + idLength), dataLength));
+                if (type == COMMIT && (lastCommitId == null || id.compareTo(lastCommitId) > 0)) {
+                    lastCommitId = id;
+                }
+            }
+            pos = end;
+        }
+        if (pos < size) {
+            LOG.warn("Truncating incomplete record at offset {} of segment {}", pos, number);
+            channel.truncate(pos);
+        }
+    }
+
+    private File getSegmentFile(int number) {
+        return new File(dir, String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Location of a record's data within a segment.
+     */
+    private static class Location {
+
+        final byte type;
+        final int segment;
+        final int offset;
+        final int length;
+
+        Location(byte type, int segment, int offset, int length) {
+            this.type = type;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
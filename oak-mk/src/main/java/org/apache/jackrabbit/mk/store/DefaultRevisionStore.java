@@ -17,6 +17,7 @@
 package org.apache.jackrabbit.mk.store;
 
 import org.apache.jackrabbit.mk.model.ChildNodeEntries;
+import org.apache.jackrabbit.mk.model.ChildNodeEntriesBTree;
 import org.apache.jackrabbit.mk.model.ChildNodeEntriesMap;
 import org.apache.jackrabbit.mk.model.ChildNodeEntry;
 import org.apache.jackrabbit.mk.model.Id;
@@ -36,17 +37,27 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.cache.Weigher;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
@@ -68,9 +79,41 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
     // default cache size is 32 MB
     public static final int DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
 
+    public static final String OFF_HEAP_CACHE_SIZE = "mk.offHeapCacheSize";
+
+    // default is to not use a second level cache
+    public static final long DEFAULT_OFF_HEAP_CACHE_SIZE = 0;
+
+    public static final String OFF_HEAP_CACHE_FILE = "mk.offHeapCacheFile";
+
+    public static final String GC_THREADS = "mk.gcThreads";
+
+    // default is to mark on the GC thread only
+    public static final int DEFAULT_GC_THREADS = 1;
+
+    public static final String GC_INCREMENTAL = "mk.gcIncremental";
+
+    /**
+     * Number of node ids passed to the persistence in a single mark call.
+     */
+    private static final int MARK_BATCH_SIZE = 1000;
+
+    /**
+     * In incremental mode, every n-th cycle is a full cycle collecting
+     * the old generation as well.
+     */
+    private static final int FULL_GC_INTERVAL = 10;
+
     private boolean initialized;
     private Id head;
 
+    /**
+     * Head put but not persisted yet while a group of head commits is being
+     * put, or {@code null}. Only visible to the thread holding the head lock;
+     * it is published as {@link #head} once it is persisted.
+     */
+    private Id pendingHead;
+
     private final AtomicLong commitCounter = new AtomicLong();
 
     private final ReentrantReadWriteLock headLock = new ReentrantReadWriteLock();
@@ -80,6 +123,12 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
     /* avoid synthetic accessor */ int initialCacheSize;
     /* avoid synthetic accessor */ Cache<Id, CacheObject> cache;
 
+    /**
+     * Second level cache for nodes and child node entry maps evicted from
+     * {@link #cache}, or {@code null} if disabled.
+     */
+    /* avoid synthetic accessor */ OffHeapCache offHeapCache;
+
     /**
      * GC run state constants.
      */
@@ -93,12 +142,38 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
      */
     private final AtomicInteger gcState = new AtomicInteger();
     
-    private int markedNodes, markedCommits;
+    private final AtomicInteger markedNodes = new AtomicInteger();
+    private final AtomicInteger markedCommits = new AtomicInteger();
+
+    /**
+     * Root node ids of the commits marked in the current GC cycle, whose
+     * trees still need to be marked.
+     */
+    private final List<Id> markRoots = Collections.synchronizedList(new ArrayList<Id>());
 
     /**
      * GC executor.
      */
     private ScheduledExecutorService gcExecutor;
+
+    /**
+     * Number of threads marking nodes in a GC cycle.
+     */
+    private int gcThreads = determineGCThreads();
+
+    /**
+     * Whether GC cycles started by the GC executor are incremental.
+     */
+    private boolean gcIncremental = Boolean.getBoolean(GC_INCREMENTAL);
+
+    /**
+     * GC statistics.
+     */
+    private final AtomicInteger gcCycles = new AtomicInteger();
+    private volatile long lastGCDuration;
+    private volatile long lastGCPauseTime;
+    private volatile int lastGCSwept;
+    private volatile boolean lastGCIncremental;
     
     /**
      * Active put tokens (Key: token, Value: null).
@@ -137,15 +212,33 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
         }
 
         initialCacheSize = determineInitialCacheSize();
+
+        long offHeapCacheSize = determineOffHeapCacheSize();
+        if (offHeapCacheSize > 0) {
+            String fileName = System.getProperty(OFF_HEAP_CACHE_FILE);
+            offHeapCache = new OffHeapCache(offHeapCacheSize,
+                    OffHeapCache.DEFAULT_CHUNK_SIZE,
+                    fileName == null ? null : new File(fileName));
+        }
         
-        cache = CacheBuilder.newBuilder()
+        CacheBuilder<Id, CacheObject> builder = CacheBuilder.newBuilder()
                 .maximumWeight(initialCacheSize)
                 .weigher(new Weigher<Id, CacheObject>() {
                     public int weigh(Id id, CacheObject obj) {
                         return obj.getMemory();
                     }
-                })
-                .build();
+                });
+        if (offHeapCache != null) {
+            builder = builder.removalListener(new RemovalListener<Id, CacheObject>() {
+                @Override
+                public void onRemoval(RemovalNotification<Id, CacheObject> notification) {
+                    if (notification.wasEvicted()) {
+                        demote(notification.getKey(), notification.getValue());
+                    }
+                }
+            });
+        }
+        cache = builder.build();
 
         // make sure we've got a HEAD commit
         Id[] ids = pm.readIds();
@@ -182,7 +275,8 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
                 @Override
                 public void run() {
                     if (cache.size() >= initialCacheSize) {
-                        gc();
+                        gc(gcIncremental
+                                && gcCycles.get() % FULL_GC_INTERVAL != 0);
                     }
                 }
             }, 60, 1, TimeUnit.MINUTES); // TODO: Should start earlier
@@ -200,6 +294,11 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
 
         cache.invalidateAll();
 
+        if (offHeapCache != null) {
+            offHeapCache.close();
+            offHeapCache = null;
+        }
+
         IOUtils.closeQuietly(pm);
 
         initialized = false;
@@ -216,6 +315,37 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
         return (val != null) ? Integer.parseInt(val) : DEFAULT_CACHE_SIZE;
     }
 
+    protected static long determineOffHeapCacheSize() {
+        String val = System.getProperty(OFF_HEAP_CACHE_SIZE);
+        return (val != null) ? Long.parseLong(val) : DEFAULT_OFF_HEAP_CACHE_SIZE;
+    }
+
+    protected static int determineGCThreads() {
+        String val = System.getProperty(GC_THREADS);
+        return (val != null) ? Integer.parseInt(val) : DEFAULT_GC_THREADS;
+    }
+
+    /**
+     * Set the number of threads used for marking nodes in a GC cycle.
+     *
+     * @param gcThreads number of threads, at least {@code 1}
+     */
+    public void setGCThreads(int gcThreads) {
+        if (gcThreads < 1) {
+            throw new IllegalArgumentException("gcThreads: " + gcThreads);
+        }
+        this.gcThreads = gcThreads;
+    }
+
+    /**
+     * Set whether GC cycles started in the background are incremental.
+     *
+     * @param gcIncremental {@code true} for incremental cycles
+     */
+    public void setGCIncremental(boolean gcIncremental) {
+        this.gcIncremental = gcIncremental;
+    }
+
     // --------------------------------------------------------< RevisionStore >
 
     /**
@@ -319,6 +449,11 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
 
     public Id putHeadCommit(PutToken token, MutableCommit commit, Id branchRootId, Id branchRevId)
             throws Exception {
+        return putHeadCommit(token, commit, branchRootId, branchRevId, true);
+    }
+
+    public Id putHeadCommit(PutToken token, MutableCommit commit, Id branchRootId, Id branchRevId,
+            boolean persistHead) throws Exception {
         verifyInitialized();
         if (!headLock.writeLock().isHeldByCurrentThread()) {
             throw new IllegalStateException(
@@ -331,7 +466,11 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
         }
 
         Id id = writeCommit(token, commit);
-        setHeadCommitId(id);
+        if (persistHead) {
+            setHeadCommitId(id);
+        } else {
+            pendingHead = id;
+        }
         
         putTokens.remove(token);
         if (branchRevId != null) {
@@ -362,7 +501,25 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
         return commitId;
     }
 
+    public void persistHead() throws Exception {
+        verifyInitialized();
+        if (!headLock.writeLock().isHeldByCurrentThread()) {
+            throw new IllegalStateException(
+                    "persistHead called without holding write lock.");
+        }
+        if (pendingHead == null) {
+            return;
+        }
+        try {
+            setHeadCommitId(pendingHead);
+        } finally {
+            pendingHead = null;
+        }
+    }
+
     public void unlockHead() {
+        // a head that was not persisted is never published
+        pendingHead = null;
         headLock.writeLock().unlock();
     }
 
@@ -375,6 +532,18 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
                 new Callable<StoredNode>() {
                     @Override
                     public StoredNode call() throws Exception {
+                        byte[] bytes = getDemoted(id);
+                        if (bytes != null) {
+                            try {
+                                StoredNode node = new StoredNode(id,
+                                        DefaultRevisionStore.this);
+                                node.deserialize(new BinaryBinding(
+                                        new ByteArrayInputStream(bytes)));
+                                return node;
+                            } catch (Exception e) {
+                                LOG.warn("Unable to read node " + id + " from off-heap cache", e);
+                            }
+                        }
                         StoredNode node = new StoredNode(id,
                                 DefaultRevisionStore.this);
                         pm.readNode(node);
@@ -392,6 +561,15 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
                 new Callable<ChildNodeEntriesMap>() {
                     @Override
                     public ChildNodeEntriesMap call() throws Exception {
+                        byte[] bytes = getDemoted(id);
+                        if (bytes != null) {
+                            try {
+                                return ChildNodeEntriesMap.deserialize(new BinaryBinding(
+                                        new ByteArrayInputStream(bytes)));
+                            } catch (Exception e) {
+                                LOG.warn("Unable to read child node entries " + id + " from off-heap cache", e);
+                            }
+                        }
                         return pm.readCNEMap(id);
                     }
                 });
@@ -426,6 +604,9 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
 
         headLock.readLock().lock();
         try {
+            if (pendingHead != null && headLock.isWriteLockedByCurrentThread()) {
+                return pendingHead;
+            }
             return head;
         } finally {
             headLock.readLock().unlock();
@@ -434,6 +615,44 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
 
     // -------------------------------------------------------< implementation >
 
+    /**
+     * Move a node or child node entry map evicted from the cache to the
+     * off-heap cache. Commits are small and not content addressed, so they
+     * are simply dropped.
+     */
+    /* avoid synthetic accessor */ void demote(Id id, CacheObject obj) {
+        OffHeapCache l2 = offHeapCache;
+        if (l2 == null || !(obj instanceof Node || obj instanceof ChildNodeEntries)) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BinaryBinding binding = new BinaryBinding(out);
+            if (obj instanceof Node) {
+                ((Node) obj).serialize(binding);
+            } else {
+                ((ChildNodeEntries) obj).serialize(binding);
+            }
+            l2.put(id, out.toByteArray());
+        } catch (Exception e) {
+            LOG.debug("Unable to demote " + id + " to off-heap cache", e);
+        }
+    }
+
+    /* avoid synthetic accessor */ byte[] getDemoted(Id id) {
+        OffHeapCache l2 = offHeapCache;
+        return l2 == null ? null : l2.get(id);
+    }
+
+    /**
+     * Return the off-heap second level cache.
+     *
+     * @return the cache, or {@code null} if disabled
+     */
+    public OffHeapCache getOffHeapCache() {
+        return offHeapCache;
+    }
+
     private Id writeCommit(RevisionStore.PutToken token, MutableCommit commit)
             throws Exception {
         PersistHook callback = null;
@@ -519,21 +738,36 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
     // -----------------------------------------------------------------------
     // GC
 
+    /**
+     * Perform a full garbage collection. If a garbage collection cycle is
+     * already running, this method returns immediately.
+     */
+    public void gc() {
+        gc(false);
+    }
+
     /**
      * Perform a garbage collection. If a garbage collection cycle is already
      * running, this method returns immediately.
+     *
+     * @param incremental if {@code true}, only collect objects written since
+     *                    the last completed cycle, if supported by the
+     *                    persistence
      */
-    public void gc() {
+    public void gc(boolean incremental) {
         if (gcpm == null || !gcState.compareAndSet(NOT_ACTIVE, STARTING)) {
             // already running
             return;
         }
         
         LOG.debug("GC started.");
-        markedCommits = markedNodes = 0;
+        long start = System.currentTimeMillis();
+        markedCommits.set(0);
+        markedNodes.set(0);
+        markRoots.clear();
 
         try {
-            markUncommittedNodes();
+            markUncommittedNodes(incremental);
             Id firstBranchRootId = markBranches();
             if (firstBranchRootId != null) {
                 LOG.debug("First branch root to be preserved: {}", firstBranchRootId);
@@ -541,6 +775,7 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
             Id firstCommitId = markCommits();
             LOG.debug("First commit to be preserved: {}", firstCommitId);
 
+            markTrees();
             LOG.debug("Marked {} commits, {} nodes.", markedCommits, markedNodes);
 
             if (firstBranchRootId != null && firstBranchRootId.compareTo(firstCommitId) < 0) {
@@ -567,34 +802,124 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
             int swept = gcpm.sweep();
             LOG.debug("GC cycle swept {} items", swept);
             cache.invalidateAll();
+
+            lastGCSwept = swept;
+            lastGCDuration = System.currentTimeMillis() - start;
+            gcCycles.incrementAndGet();
+            LOG.info("GC cycle ({}) took {} ms, writers paused {} ms, marked {} commits, {} nodes, swept {} items",
+                    new Object[] { lastGCIncremental ? "incremental" : "full",
+                            lastGCDuration, lastGCPauseTime, markedCommits, markedNodes, swept });
         } catch (Exception e) {
             LOG.error("Exception occurred in GC cycle", e);
         } finally {
+            markRoots.clear();
             gcState.set(NOT_ACTIVE);
         }
         
         LOG.debug("GC stopped.");
     }
-    
+
+    /**
+     * Return whether a garbage collection cycle is currently running.
+     *
+     * @return {@code true} if a cycle is running
+     */
+    public boolean isGCActive() {
+        return gcState.get() != NOT_ACTIVE;
+    }
+
+    /**
+     * Return the number of commits marked so far in the current or last
+     * garbage collection cycle.
+     *
+     * @return number of marked commits
+     */
+    public int getMarkedCommitCount() {
+        return markedCommits.get();
+    }
+
+    /**
+     * Return the number of nodes marked so far in the current or last
+     * garbage collection cycle.
+     *
+     * @return number of marked nodes
+     */
+    public int getMarkedNodeCount() {
+        return markedNodes.get();
+    }
+
+    /**
+     * Return the number of completed garbage collection cycles.
+     *
+     * @return number of cycles
+     */
+    public int getGCCycleCount() {
+        return gcCycles.get();
+    }
+
+    /**
+     * Return the duration of the last completed garbage collection cycle.
+     *
+     * @return duration in milliseconds
+     */
+    public long getLastGCDuration() {
+        return lastGCDuration;
+    }
+
+    /**
+     * Return the time writers were blocked in the last garbage collection cycle.
+     *
+     * @return pause time in milliseconds
+     */
+    public long getLastGCPauseTime() {
+        return lastGCPauseTime;
+    }
+
     /**
-     * Mark nodes that have already been put but not committed yet.
+     * Return the number of items swept in the last garbage collection cycle.
+     *
+     * @return number of swept items
+     */
+    public int getLastGCSwept() {
+        return lastGCSwept;
+    }
+
+    /**
+     * Return whether the last garbage collection cycle was incremental.
+     *
+     * @return {@code true} if the last cycle was incremental
+     */
+    public boolean isLastGCIncremental() {
+        return lastGCIncremental;
+    }
+
+    /**
+     * Mark nodes that have already been put but not committed yet. Writers
+     * are only blocked while the cycle is started and the last modified nodes
+     * of their tokens are collected, the nodes themselves are marked later on.
      * 
+     * @param incremental whether to start an incremental cycle
      * @throws Exception
      *             if an error occurs
      */
-    private void markUncommittedNodes() throws Exception {
+    private void markUncommittedNodes(boolean incremental) throws Exception {
+        long start = System.currentTimeMillis();
         tokensLock.writeLock().lock();
 
         try {
-            gcpm.start();
+            lastGCIncremental = incremental && gcpm.startIncremental();
+            if (!incremental) {
+                gcpm.start();
+            }
             gcState.set(MARKING);
 
             PutTokenImpl[] tokens = putTokens.keySet().toArray(new PutTokenImpl[putTokens.size()]);
             for (PutTokenImpl token : tokens) {
-                markNode(token.getLastModified());
+                markRoots.add(token.getLastModified().getId());
             }
         } finally {
             tokensLock.writeLock().unlock();
+            lastGCPauseTime = System.currentTimeMillis() - start;
         }
     }
 
@@ -685,27 +1010,103 @@ public class DefaultRevisionStore extends AbstractRevisionStore implements
         if (!gcpm.markCommit(commit.getId())) {
             return;
         }
-        markedCommits++;
+        markedCommits.incrementAndGet();
 
-        markNode(getNode(commit.getRootNodeId()));
+        markRoots.add(commit.getRootNodeId());
     }
 
     /**
-     * Mark a node. This marks all children as well.
+     * Mark the trees of all commits marked so far, level by level. Node ids
+     * are passed to the persistence in batches, and if more than one GC
+     * thread is configured, the batches of a level are marked in parallel.
      * 
-     * @param node node
      * @throws Exception if an error occurs
      */
-    private void markNode(StoredNode node) throws Exception {
-        if (!gcpm.markNode(node.getId())) {
-            return;
+    private void markTrees() throws Exception {
+        List<Id> level;
+        synchronized (markRoots) {
+            level = new ArrayList<Id>(markRoots);
+            markRoots.clear();
         }
-        markedNodes++;
-        
-        Iterator<ChildNodeEntry> iter = node.getChildNodeEntries(0, -1);
-        while (iter.hasNext()) {
-            ChildNodeEntry c = iter.next();
-            markNode(getNode(c.getId()));
+        ExecutorService executor = null;
+        if (gcThreads > 1) {
+            executor = Executors.newFixedThreadPool(gcThreads,
+                    new ThreadFactory() {
+                        private final AtomicInteger counter = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "RevisionStore-GC-Mark-" + counter.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        try {
+            while (!level.isEmpty()) {
+                List<List<Id>> batches = new ArrayList<List<Id>>();
+                for (int i = 0; i < level.size(); i += MARK_BATCH_SIZE) {
+                    batches.add(level.subList(i, Math.min(level.size(), i + MARK_BATCH_SIZE)));
+                }
+                List<Id> next = new ArrayList<Id>();
+                if (executor == null || batches.size() == 1) {
+                    for (List<Id> batch : batches) {
+                        next.addAll(markBatch(batch));
+                    }
+                } else {
+                    List<Future<List<Id>>> futures = new ArrayList<Future<List<Id>>>();
+                    for (final List<Id> batch : batches) {
+                        futures.add(executor.submit(new Callable<List<Id>>() {
+                            @Override
+                            public List<Id> call() throws Exception {
+                                return markBatch(batch);
+                            }
+                        }));
+                    }
+                    for (Future<List<Id>> future : futures) {
+                        try {
+                            next.addAll(future.get());
+                        } catch (ExecutionException e) {
+                            Throwable cause = e.getCause();
+                            throw (cause instanceof Exception) ? (Exception) cause : e;
+                        }
+                    }
+                }
+                level = next;
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Mark a batch of nodes.
+     * 
+     * @param ids node ids
+     * @return ids of the children of the nodes that were newly marked
+     * @throws Exception if an error occurs
+     */
+    /* avoid synthetic accessor */ List<Id> markBatch(List<Id> ids) throws Exception {
+        List<Id> newlyMarked = gcpm.markNodes(ids);
+        markedNodes.addAndGet(newlyMarked.size());
+
+        List<Id> children = new ArrayList<Id>();
+        for (Id id : newlyMarked) {
+            StoredNode node = getNode(id);
+            // the pages of sorted child node entries are shared by revisions
+            node.visitChildNodePages(new ChildNodeEntriesBTree.PageVisitor() {
+                @Override
+                public boolean visit(Id pageId) throws Exception {
+                    return gcpm.markCNEMap(pageId);
+                }
+            });
+            Iterator<ChildNodeEntry> iter = node.getChildNodeEntries(0, -1);
+            while (iter.hasNext()) {
+                children.add(iter.next().getId());
+            }
         }
+        return children;
     }
 }
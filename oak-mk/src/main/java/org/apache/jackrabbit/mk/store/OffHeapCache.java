@@ -0,0 +1,338 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.mk.store;
+
+import org.apache.jackrabbit.mk.model.Id;
+import org.apache.jackrabbit.mk.util.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Second level cache keeping serialized objects outside of the Java heap,
+ * either in direct byte buffers or in a memory mapped file. The file is
+ * scanned when the cache is opened, so its content survives a restart.
+ * <p/>
+ * The storage is split into chunks of equal size that are filled in round
+ * robin order. Once all chunks are full, the oldest chunk is reused and the
+ * entries it contains are dropped. Entries are never updated, which is fine
+ * as nodes and child node entry maps are content addressed.
+ * <p/>
+ * Reads do not lock: a record is copied from its chunk and discarded if the
+ * chunk was reused in the meantime.
+ */
+public class OffHeapCache implements Closeable {
+
+    /**
+     * Default chunk size is 16 MB.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAGIC = 0x4f4b4c32;
+
+    /**
+     * Chunk header: magic (4 bytes), chunk size (4 bytes) and sequence
+     * number (8 bytes).
+     */
+    private static final int CHUNK_HEADER_LENGTH = 16;
+
+    /**
+     * Record header: record length (4 bytes) and id length (1 byte). A
+     * record length of {@code 0} marks the end of the chunk.
+     */
+    private static final int RECORD_HEADER_LENGTH = 5;
+
+    private final int chunkSize;
+    private final ByteBuffer[] chunks;
+
+    /**
+     * Sequence number of the data in each chunk, {@code 0} if unused.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Location of every entry: sequence number of its chunk (high 32 bits)
+     * and position within the chunk (low 32 bits).
+     */
+    private final ConcurrentMap<Id, Long> index = new ConcurrentHashMap<Id, Long>();
+
+    private final RandomAccessFile file;
+
+    private long writeSequence;
+    private int writeChunk = -1;
+    private int writePosition;
+
+    private volatile boolean closed;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Create a cache in direct byte buffers.
+     *
+     * @param maxMemoryBytes the maximum memory used
+     * @throws IOException never
+     */
+    public OffHeapCache(long maxMemoryBytes) throws IOException {
+        this(maxMemoryBytes, DEFAULT_CHUNK_SIZE, null);
+    }
+
+    /**
+     * Create a cache.
+     *
+     * @param maxMemoryBytes the maximum memory used
+     * @param chunkSize the maximum chunk size, reduced for small caches
+     * @param file the file to map, or {@code null} to use direct byte buffers
+     * @throws IOException if the file can not be mapped
+     */
+    public OffHeapCache(long maxMemoryBytes, int chunkSize, File file) throws IOException {
+        if (maxMemoryBytes / 2 < chunkSize) {
+            chunkSize = (int) (maxMemoryBytes / 2);
+        }
+        if (chunkSize <= CHUNK_HEADER_LENGTH + RECORD_HEADER_LENGTH + 4) {
+            throw new IllegalArgumentException("maxMemoryBytes: " + maxMemoryBytes);
+        }
+        this.chunkSize = chunkSize;
+        long count = maxMemoryBytes / chunkSize;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maxMemoryBytes: " + maxMemoryBytes);
+        }
+        chunks = new ByteBuffer[(int) count];
+        sequences = new AtomicLongArray(chunks.length);
+
+        if (file == null) {
+            this.file = null;
+        } else {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            this.file = new RandomAccessFile(file, "rw");
+            try {
+                open();
+            } catch (IOException e) {
+                IOUtils.closeQuietly(this.file);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Map the chunks of the file and rebuild the index from the chunks
+     * that were written before.
+     */
+    private void open() throws IOException {
+        file.setLength((long) chunks.length * chunkSize);
+        FileChannel channel = file.getChannel();
+        long maxSequence = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            ByteBuffer buff = channel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) i * chunkSize, chunkSize);
+            chunks[i] = buff;
+            if (buff.getInt(0) == MAGIC && buff.getInt(4) == chunkSize) {
+                long seq = buff.getLong(8);
+                if (seq > 0 && (seq - 1) % chunks.length == i) {
+                    sequences.set(i, seq);
+                    int end = scan(i, seq, true);
+                    if (seq > maxSequence) {
+                        maxSequence = seq;
+                        writeChunk = i;
+                        writePosition = end;
+                    }
+                }
+            }
+        }
+        writeSequence = maxSequence;
+    }
+
+    /**
+     * Get a cached object.
+     *
+     * @param id the id
+     * @return the serialized object, or {@code null} if not cached
+     */
+    public byte[] get(Id id) {
+        Long location = closed ? null : index.get(id);
+        if (location == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        long seq = location >>> 32;
+        int pos = (int) location.longValue();
+        int chunk = (int) ((seq - 1) % chunks.length);
+        byte[] data = null;
+        ByteBuffer buff = chunks[chunk].duplicate();
+        int length = buff.getInt(pos);
+        int idLength = buff.get(pos + 4) & 0xff;
+        int dataLength = length - RECORD_HEADER_LENGTH - idLength;
+        // the chunk might have been reused, so don't trust the header
+        if (dataLength >= 0 && length <= chunkSize - pos) {
+            data = new byte[dataLength];
+            buff.position(pos + RECORD_HEADER_LENGTH + idLength);
+            buff.get(data);
+        }
+        if (data == null || sequences.get(chunk) != seq) {
+            index.remove(id, location);
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return data;
+    }
+
+    /**
+     * Add an object to the cache, unless it is already cached or too large.
+     *
+     * @param id the id
+     * @param data the serialized object
+     */
+    public synchronized void put(Id id, byte[] data) {
+        if (closed || index.containsKey(id)) {
+            return;
+        }
+        byte[] raw = id.getBytes();
+        int length = RECORD_HEADER_LENGTH + raw.length + data.length;
+        // keep space for the terminating record length
+        if (length + 4 > chunkSize - CHUNK_HEADER_LENGTH) {
+            return;
+        }
+        if (writeChunk < 0 || writePosition + length + 4 > chunkSize) {
+            nextChunk();
+        }
+        ByteBuffer buff = chunks[writeChunk];
+        int pos = writePosition;
+        // terminate first, so that a partially written record is never read
+        buff.putInt(pos + length, 0);
+        buff.position(pos + 4);
+        buff.put((byte) raw.length);
+        buff.put(raw);
+        buff.put(data);
+        buff.putInt(pos, length);
+        writePosition = pos + length;
+        index.put(id, (writeSequence << 32) | pos);
+    }
+
+    private void nextChunk() {
+        writeChunk = (writeChunk + 1) % chunks.length;
+        writeSequence++;
+        long oldSequence = sequences.get(writeChunk);
+        // invalidate concurrent reads before the chunk is overwritten
+        sequences.set(writeChunk, writeSequence);
+        ByteBuffer buff = chunks[writeChunk];
+        if (buff == null) {
+            buff = ByteBuffer.allocateDirect(chunkSize);
+            chunks[writeChunk] = buff;
+        } else if (oldSequence != 0) {
+            scan(writeChunk, oldSequence, false);
+        }
+        buff.putInt(0, 0);
+        buff.putInt(CHUNK_HEADER_LENGTH, 0);
+        buff.putInt(4, chunkSize);
+        buff.putLong(8, writeSequence);
+        buff.putInt(0, MAGIC);
+        writePosition = CHUNK_HEADER_LENGTH;
+    }
+
+    /**
+     * Add the entries of a chunk to the index, or remove them.
+     *
+     * @param chunk the chunk
+     * @param seq the sequence number of the chunk data
+     * @param add whether to add or remove the entries
+     * @return the position after the last record
+     */
+    private int scan(int chunk, long seq, boolean add) {
+        ByteBuffer buff = chunks[chunk].duplicate();
+        int pos = CHUNK_HEADER_LENGTH;
+        while (pos + 4 <= chunkSize) {
+            int length = buff.getInt(pos);
+            if (length < RECORD_HEADER_LENGTH || length + 4 > chunkSize - pos) {
+                break;
+            }
+            int idLength = buff.get(pos + 4) & 0xff;
+            if (RECORD_HEADER_LENGTH + idLength > length) {
+                break;
+            }
+            byte[] raw = new byte[idLength];
+            buff.position(pos + RECORD_HEADER_LENGTH);
+            buff.get(raw);
+            Id id = new Id(raw);
+            Long location = (seq << 32) | pos;
+            if (add) {
+                index.put(id, location);
+            } else {
+                index.remove(id, location);
+            }
+            pos += length;
+        }
+        return pos;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear() {
+        index.clear();
+        for (int i = 0; i < chunks.length; i++) {
+            sequences.set(i, 0);
+            if (chunks[i] != null) {
+                chunks[i].putInt(0, 0);
+            }
+        }
+        writeChunk = -1;
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        index.clear();
+        if (file != null) {
+            for (ByteBuffer buff : chunks) {
+                ((MappedByteBuffer) buff).force();
+            }
+            IOUtils.closeQuietly(file);
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public long getMemoryMax() {
+        return (long) chunks.length * chunkSize;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+}
@@ -72,6 +72,45 @@ public interface RevisionStore extends RevisionProvider {
      * @see #lockHead()
      */
     Id /*id*/ putHeadCommit(PutToken token, MutableCommit commit, Id branchRootId, Id branchRevId) throws Exception;
+
+    /**
+     * Put a new head commit, optionally updating the head in memory only.
+     * This allows a group of head commits to be stored with a single update
+     * of the persisted head. Must be called while holding a lock on the head,
+     * and if the head is not persisted, {@link #persistHead()} must be called
+     * before releasing the lock.
+     *
+     * @param token
+     *            put token
+     * @param commit
+     *            commit
+     * @param branchRootId
+     *            former branch root id, if this is a merge; otherwise
+     *            {@code null}
+     * @param branchRevId
+     *            current branch head, if this is a merge; otherwise
+     *            {@code null}
+     * @param persistHead
+     *            whether to persist the new head immediately
+     * @return head commit id
+     * @throws Exception
+     *             if an error occurs
+     * @see #persistHead()
+     */
+    Id /*id*/ putHeadCommit(PutToken token, MutableCommit commit, Id branchRootId, Id branchRevId,
+            boolean persistHead) throws Exception;
+
+    /**
+     * Persist the head commit put with {@code persistHead == false}. Must be
+     * called while holding a lock on the head. Until then, the new head is
+     * only visible to the thread holding the lock; other readers see it only
+     * once it is persisted. If persisting fails, the head is unchanged.
+     *
+     * @throws Exception
+     *             if an error occurs
+     * @see #putHeadCommit(PutToken, MutableCommit, Id, Id, boolean)
+     */
+    void persistHead() throws Exception;
     
     /**
      * Unlock the head.
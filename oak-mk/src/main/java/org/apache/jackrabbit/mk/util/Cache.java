@@ -16,43 +16,83 @@
  */
 package org.apache.jackrabbit.mk.util;
 
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A memory weighted LRU cache. The cache is split into a number of segments,
+ * each with its own lock and LRU order, so that concurrent readers do not
+ * contend on a single monitor. The memory budget is shared by all segments:
+ * when it is exceeded, the least recently used objects of the segment that
+ * was written to are evicted first, then those of the other segments.
+ * <p>
+ * Objects not in the cache are loaded from the backend; concurrent requests
+ * for the same key wait for a single load, while different keys are loaded
+ * in parallel.
+ *
+ * @param <K> the key class
+ * @param <V> the value class
+ */
 public class Cache<K, V extends Cache.Value> {
 
+    /**
+     * Maximum number of segments.
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Minimum memory budget per segment in bytes. Smaller caches use fewer
+     * segments.
+     */
+    private static final int MIN_SEGMENT_MEMORY = 64 * 1024;
+
     int maxMemoryBytes;
     AtomicInteger memoryUsed = new AtomicInteger();
     private final Backend<K, V> backend;
 
-    private final Map<K, V> map = new LinkedHashMap<K, V>(1024, 0.75f, true) {
-
-        private static final long serialVersionUID = 1L;
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
 
-        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-            if (memoryUsed.get() < maxMemoryBytes) {
-                return false;
-            }
-            int memory = eldest.getValue().getMemory();
-            memoryUsed.addAndGet(-memory);
-            return true;
-        }
+    /**
+     * Loads in progress (Key: key, Value: load task).
+     */
+    private final ConcurrentMap<K, FutureTask<V>> loading = new ConcurrentHashMap<K, FutureTask<V>>();
 
-    };
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong totalLoadTime = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
 
-    private Cache(Backend<K, V> backend, int maxMemoryBytes) {
+    @SuppressWarnings("unchecked")
+    private Cache(Backend<K, V> backend, int maxMemoryBytes, int segmentCount) {
         this.backend = backend;
         this.maxMemoryBytes = maxMemoryBytes;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<K, V>(this);
+        }
+        segmentMask = segmentCount - 1;
     }
 
     public void put(K key, V value) {
         int memory = value.getMemory();
         // only add elements that are smaller than half the cache size
         if (memory < maxMemoryBytes / 2) {
-            memoryUsed.addAndGet(memory);
-            synchronized (map) {
-                map.put(key, value);
+            int index = getSegmentIndex(key);
+            segments[index].put(key, value);
+            for (int i = 0; i < segments.length && memoryUsed.get() > maxMemoryBytes;) {
+                if (!segments[(index + i) & segmentMask].evictEldest(key)) {
+                    i++;
+                }
             }
         }
     }
@@ -65,40 +105,93 @@ public class Cache<K, V extends Cache.Value> {
      * @return the cached element
      */
     public V replace(K key, V value) {
-        synchronized (map) {
-            if (map.containsKey(key)) {
-                return map.get(key);
-            }
+        V old = getSegment(key).get(key);
+        if (old != null) {
+            return old;
         }
         put(key, value);
         return value;
     }
 
-    public V get(K key) {
-        synchronized (map) {
-            V value = map.get(key);
-            if (value != null) {
-                // object was in the cache - good
-                return value;
+    public V get(final K key) {
+        V value = getSegment(key).get(key);
+        if (value != null) {
+            // object was in the cache - good
+            hitCount.incrementAndGet();
+            return value;
+        }
+        missCount.incrementAndGet();
+
+        // only one thread loads a given key, others wait for its result
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() {
+                return load(key);
+            }
+        });
+        FutureTask<V> existing = loading.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
             }
+        } else {
+            task = existing;
+        }
+        return getResult(task);
+    }
+
+    /* avoid synthetic accessor */ V load(K key) {
+        // another thread might have added it in the meantime
+        V value = getSegment(key).get(key);
+        if (value == null) {
+            long start = System.nanoTime();
+            value = backend.load(key);
+            totalLoadTime.addAndGet(System.nanoTime() - start);
+            loadCount.incrementAndGet();
+            put(key, value);
         }
-        // synchronize on the backend when not in the cache
-        // to ensure only one thread accessed the backend
-        // and loads the object
-        synchronized (backend) {
-            // another thread might have added it in the meantime
-            V value;
-            synchronized (map) {
-                value = map.get(key);
+        return value;
+    }
+
+    private V getResult(FutureTask<V> task) {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
             }
-            if (value == null) {
-                value = backend.load(key);
-                put(key, value);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
-            return value;
         }
     }
 
+    private Segment<K, V> getSegment(K key) {
+        return segments[getSegmentIndex(key)];
+    }
+
+    private int getSegmentIndex(K key) {
+        int hash = key.hashCode();
+        // spread the bits, see java.util.HashMap
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return hash & segmentMask;
+    }
+
     /**
      * A cacheable object.
      */
@@ -124,7 +217,7 @@ public class Cache<K, V extends Cache.Value> {
 
         /**
          * Load the object. The method does not need to be synchronized
-         * (it is synchronized in the cache)
+         * (the cache never loads the same key concurrently)
          *
          * @param key the key
          * @return the value
@@ -134,17 +227,43 @@ public class Cache<K, V extends Cache.Value> {
     }
 
     public static <K, V extends Cache.Value> Cache<K, V> newInstance(Backend<K, V> backend, int maxMemoryBytes) {
-        return new Cache<K, V>(backend, maxMemoryBytes);
+        // small caches are not split, so that the LRU order stays meaningful
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS
+                && maxMemoryBytes / (segmentCount * 2) >= MIN_SEGMENT_MEMORY) {
+            segmentCount *= 2;
+        }
+        return newInstance(backend, maxMemoryBytes, segmentCount);
+    }
+
+    /**
+     * Create a new cache with the given number of segments.
+     *
+     * @param backend the backend, or {@code null} if {@link #get} is not used
+     * @param maxMemoryBytes the maximum memory used by all segments
+     * @param segmentCount the number of segments, a power of two
+     * @return the cache
+     */
+    public static <K, V extends Cache.Value> Cache<K, V> newInstance(Backend<K, V> backend, int maxMemoryBytes,
+            int segmentCount) {
+        if (segmentCount < 1 || Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("segmentCount: " + segmentCount);
+        }
+        return new Cache<K, V>(backend, maxMemoryBytes, segmentCount);
     }
 
     public void clear() {
-        synchronized (map) {
-            map.clear();
+        for (Segment<K, V> segment : segments) {
+            segment.clear();
         }
     }
 
     public int size() {
-        return map.size();
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
     }
 
     public int getMemoryUsed() {
@@ -155,4 +274,119 @@ public class Cache<K, V extends Cache.Value> {
         return maxMemoryBytes;
     }
 
+    /**
+     * Get the number of lookups that found the object in the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Get the number of lookups that did not find the object in the cache.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Get the number of objects loaded from the backend.
+     *
+     * @return the load count
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * Get the total time spent loading objects from the backend.
+     *
+     * @return the load time in nanoseconds
+     */
+    public long getTotalLoadTime() {
+        return totalLoadTime.get();
+    }
+
+    /**
+     * Get the number of objects evicted from the cache.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Cache[hits=" + hitCount + ", misses=" + missCount
+                + ", loads=" + loadCount + ", loadTimeNanos=" + totalLoadTime
+                + ", evictions=" + evictionCount + ", memory=" + memoryUsed
+                + "/" + maxMemoryBytes + "]";
+    }
+
+    /**
+     * A segment of the cache, a map in LRU order.
+     */
+    private static class Segment<K, V extends Cache.Value> {
+
+        private final Cache<K, V> cache;
+        private int memoryUsed;
+
+        private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+        Segment(Cache<K, V> cache) {
+            this.cache = cache;
+        }
+
+        synchronized V get(K key) {
+            return map.get(key);
+        }
+
+        synchronized void put(K key, V value) {
+            int memory = value.getMemory();
+            V old = map.put(key, value);
+            if (old != null) {
+                memory -= old.getMemory();
+            }
+            memoryUsed += memory;
+            cache.memoryUsed.addAndGet(memory);
+        }
+
+        /**
+         * Evict the least recently used object, unless it is the given one.
+         *
+         * @param keep the key of the object that must not be evicted
+         * @return whether an object was evicted
+         */
+        synchronized boolean evictEldest(K keep) {
+            if (map.isEmpty()) {
+                return false;
+            }
+            Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+            Map.Entry<K, V> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                return false;
+            }
+            int memory = eldest.getValue().getMemory();
+            it.remove();
+            memoryUsed -= memory;
+            cache.memoryUsed.addAndGet(-memory);
+            cache.evictionCount.incrementAndGet();
+            return true;
+        }
+
+        synchronized void clear() {
+            map.clear();
+            cache.memoryUsed.addAndGet(-memoryUsed);
+            memoryUsed = 0;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+
 }
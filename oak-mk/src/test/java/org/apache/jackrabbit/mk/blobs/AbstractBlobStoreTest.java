@@ -17,12 +17,14 @@
 package org.apache.jackrabbit.mk.blobs;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -30,9 +32,17 @@ import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import junit.framework.TestCase;
+import org.apache.jackrabbit.mk.api.MicroKernel;
+import org.apache.jackrabbit.mk.core.MicroKernelImpl;
+import org.apache.jackrabbit.mk.core.Repository;
+import org.apache.jackrabbit.mk.model.Id;
+import org.apache.jackrabbit.mk.persistence.InMemPersistence;
+import org.apache.jackrabbit.mk.store.DefaultRevisionStore;
+import org.apache.jackrabbit.mk.store.RevisionProvider;
 import org.apache.jackrabbit.mk.json.JsopBuilder;
 import org.apache.jackrabbit.mk.json.JsopTokenizer;
 import org.apache.jackrabbit.mk.util.IOUtilsTest;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * Tests a BlobStore implementation.
@@ -158,6 +168,43 @@ public abstract class AbstractBlobStoreTest extends TestCase {
         doTest(1000, 10);
     }
 
+    public void testParallelWrite() throws Exception {
+        Random r = new Random(0);
+        int[] lengths = { 0, 10, 100, 1000, 10000, 100000, 1000000 };
+        for (int length : lengths) {
+            byte[] data = new byte[length + r.nextInt(100)];
+            r.nextBytes(data);
+            store.setWriteThreads(1);
+            String expected = store.writeBlob(new ByteArrayInputStream(data));
+            store.setWriteThreads(4);
+            String id = store.writeBlob(new ByteArrayInputStream(data));
+            // the blob id must not depend on the number of threads
+            assertEquals(expected, id);
+            store.clearCache();
+            doTestRead(data, data.length, id);
+        }
+        store.setWriteThreads(1);
+    }
+
+    public void testReadToChannel() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(0).nextBytes(data);
+        String id = store.writeBlob(new ByteArrayInputStream(data));
+        doTestReadToChannel(data, id);
+    }
+
+    protected void doTestReadToChannel(byte[] data, String id) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(data.length, store.readBlob(id, 0, -1, Channels.newChannel(out)));
+        IOUtilsTest.assertEquals(data, out.toByteArray());
+        for (int pos = 0; pos < data.length; pos += 777) {
+            int length = Math.min(1000, data.length - pos);
+            out.reset();
+            assertEquals(length, store.readBlob(id, pos, length, Channels.newChannel(out)));
+            IOUtilsTest.assertEquals(Arrays.copyOfRange(data, pos, pos + length), out.toByteArray());
+        }
+    }
+
     public void testGarbageCollection() throws Exception {
         HashMap<String, byte[]> map = new HashMap<String, byte[]>();
         ArrayList<String> mem = new ArrayList<String>();
@@ -223,6 +270,89 @@ public abstract class AbstractBlobStoreTest extends TestCase {
         assertTrue("failedCount: " + failedCount, failedCount > 0);
     }
 
+    public void testReferencedGarbageCollection() throws Exception {
+        DefaultRevisionStore rs = new DefaultRevisionStore(new InMemPersistence(), null);
+        rs.initialize();
+        MicroKernel mk = new MicroKernelImpl(new Repository(rs, store));
+        byte[][] data = new byte[3][];
+        String[] ids = new String[data.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = new byte[10000];
+            new Random(i).nextBytes(data[i]);
+            ids[i] = mk.write(new ByteArrayInputStream(data[i]));
+        }
+        // blob 0 is referenced by both revisions, blob 1 only by the first,
+        // and blob 2 is not referenced
+        String r1 = mk.commit("/", "+\"test\":{\"a\":\":blobId:" + ids[0] +
+                "\", \"list\":[\"x\", \":blobId:" + ids[1] + "\"]}", null, null);
+        String r2 = mk.commit("/", "^\"test/list\":null", null, null);
+        store.setSweepThrottle(2, 1);
+
+        TemporaryFolder folder = new TemporaryFolder();
+        folder.create();
+        try {
+            File dir = folder.newFolder("gc");
+            // the first run is interrupted after scanning the first revision
+            new BlobGarbageCollector(rs, store, dir).collectReferences(Arrays.asList(Id.fromString(r1)));
+            collect(rs, dir, r1, r2);
+            IOUtilsTest.assertEquals(data[0], readFully(ids[0]));
+            IOUtilsTest.assertEquals(data[1], readFully(ids[1]));
+            assertDeleted(ids[2]);
+            assertEquals(0, dir.list().length);
+
+            collect(rs, dir, r2);
+            IOUtilsTest.assertEquals(data[0], readFully(ids[0]));
+            assertDeleted(ids[1]);
+        } finally {
+            folder.delete();
+        }
+    }
+
+    public void testStoredDuringMark() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(0).nextBytes(data);
+        store.clearInUse();
+        store.startMark();
+        // a blob written while the references are scanned is not
+        // referenced yet, but must not be swept
+        String id = store.writeBlob(new ByteArrayInputStream(data));
+        store.clearInUse();
+        store.sweep();
+        store.clearCache();
+        IOUtilsTest.assertEquals(data, readFully(id));
+    }
+
+    private void collect(RevisionProvider rs, File dir, String... revisions) throws Exception {
+        ArrayList<Id> revIds = new ArrayList<Id>();
+        for (String r : revisions) {
+            revIds.add(Id.fromString(r));
+        }
+        store.clearInUse();
+        store.clearCache();
+        // blocks stored in the same millisecond as the mark are kept
+        Thread.sleep(2);
+        assertTrue(new BlobGarbageCollector(rs, store, dir).collect(revIds) > 0);
+    }
+
+    private void assertDeleted(String id) {
+        store.clearCache();
+        try {
+            readFully(id);
+            fail();
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    public void testGetBlobIds() {
+        ArrayList<String> ids = new ArrayList<String>();
+        BlobGarbageCollector.getBlobIds("\":blobId:01\"", ids);
+        BlobGarbageCollector.getBlobIds("[\":blobId:02\",\"x\", \":blobId:03\"]", ids);
+        BlobGarbageCollector.getBlobIds("\"text \\\":blobId:04\\\"\"", ids);
+        BlobGarbageCollector.getBlobIds("\"text\"", ids);
+        assertEquals(Arrays.asList("01", "02", "03"), ids);
+    }
+
     private void doTest(int maxLength, int count) throws Exception {
         String[] s = new String[count * 2];
         Random r = new Random(0);
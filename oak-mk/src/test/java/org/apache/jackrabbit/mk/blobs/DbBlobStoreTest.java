@@ -30,7 +30,7 @@ public class DbBlobStoreTest extends AbstractBlobStoreTest {
 
     public void setUp() throws Exception {
         Class.forName("org.h2.Driver");
-        cp = JdbcConnectionPool.create("jdbc:h2:mem:", "", "");
+        cp = JdbcConnectionPool.create("jdbc:h2:mem:DbBlobStoreTest", "", "");
         sentinel = cp.getConnection();
         DbBlobStore blobStore = new DbBlobStore();
         blobStore.setConnectionPool(cp);
@@ -16,6 +16,11 @@
  */
 package org.apache.jackrabbit.mk.blobs;
 
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import org.apache.jackrabbit.mk.util.IOUtilsTest;
+
 /**
  * Tests the FileBlobStore implementation.
  */
@@ -28,4 +33,18 @@ public class FileBlobStoreTest extends AbstractBlobStoreTest {
         this.store = store;
     }
 
+    public void testMemoryMapped() throws Exception {
+        FileBlobStore fileStore = (FileBlobStore) store;
+        byte[] data = new byte[10000];
+        new Random(1).nextBytes(data);
+        String id = store.writeBlob(new ByteArrayInputStream(data));
+        fileStore.setMemoryMapped(true);
+        try {
+            IOUtilsTest.assertEquals(data, readFully(id));
+            doTestReadToChannel(data, id);
+        } finally {
+            fileStore.setMemoryMapped(false);
+        }
+    }
+
 }
@@ -20,7 +20,9 @@ import junit.framework.Assert;
 import org.apache.jackrabbit.mk.util.Cache;
 import org.junit.Test;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Tests the cache implementation.
@@ -28,7 +30,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ConcurrentCacheTest implements Cache.Backend<Integer, ConcurrentCacheTest.Data> {
 
     Cache<Integer, Data> cache = Cache.newInstance(this, 5);
-    AtomicInteger counter = new AtomicInteger();
+    Set<Integer> loading = Collections.synchronizedSet(new HashSet<Integer>());
     volatile int value;
 
     @Test
@@ -43,16 +45,48 @@ public class ConcurrentCacheTest implements Cache.Backend<Integer, ConcurrentCac
         });
     }
 
+    @Test
+    public void testStatistics() {
+        Cache<Integer, Data> c = Cache.newInstance(this, 1024 * 1024, 4);
+        for (int i = 0; i < 10; i++) {
+            c.get(i);
+        }
+        for (int i = 0; i < 10; i++) {
+            c.get(i);
+        }
+        Assert.assertEquals(10, c.getMissCount());
+        Assert.assertEquals(10, c.getLoadCount());
+        Assert.assertEquals(10, c.getHitCount());
+        Assert.assertEquals(10, c.getMemoryUsed());
+        Assert.assertEquals(0, c.getEvictionCount());
+
+        c.clear();
+        Assert.assertEquals(0, c.size());
+        Assert.assertEquals(0, c.getMemoryUsed());
+    }
+
+    @Test
+    public void testEviction() {
+        Cache<Integer, Data> c = Cache.newInstance(this, 5);
+        for (int i = 0; i < 10; i++) {
+            c.get(i);
+        }
+        Assert.assertEquals(5, c.size());
+        Assert.assertEquals(5, c.getMemoryUsed());
+        Assert.assertEquals(5, c.getEvictionCount());
+    }
+
     @Override
     public Data load(Integer key) {
-        int start = counter.get();
+        if (!loading.add(key)) {
+            throw new AssertionError("Concurrent load of key " + key);
+        }
         try {
             Thread.sleep(1);
         } catch (InterruptedException e) {
             // ignore
-        }
-        if (counter.getAndIncrement() != start) {
-            throw new AssertionError("Concurrent load");
+        } finally {
+            loading.remove(key);
         }
         return new Data(key);
     }
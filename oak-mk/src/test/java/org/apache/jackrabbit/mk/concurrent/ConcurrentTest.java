@@ -18,7 +18,12 @@ import java.util.concurrent.atomic.AtomicInteger;
 import junit.framework.Assert;
 import org.apache.jackrabbit.mk.api.MicroKernel;
 import org.apache.jackrabbit.mk.api.MicroKernelException;
+import org.apache.jackrabbit.mk.blobs.MemoryBlobStore;
 import org.apache.jackrabbit.mk.core.MicroKernelImpl;
+import org.apache.jackrabbit.mk.core.Repository;
+import org.apache.jackrabbit.mk.model.CommitQueue;
+import org.apache.jackrabbit.mk.persistence.InMemPersistence;
+import org.apache.jackrabbit.mk.store.DefaultRevisionStore;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -33,8 +38,32 @@ public class ConcurrentTest {
 
     @Test
     public void test() throws Exception {
+        Concurrent.run("MicroKernel", createCommitTask(mk));
+    }
+
+    @Test
+    public void groupCommit() throws Exception {
+        DefaultRevisionStore rs = new DefaultRevisionStore(new InMemPersistence(), null);
+        rs.initialize();
+        Repository rep;
+        System.setProperty(CommitQueue.GROUP_COMMIT, "true");
+        try {
+            rep = new Repository(rs, new MemoryBlobStore());
+        } finally {
+            System.clearProperty(CommitQueue.GROUP_COMMIT);
+        }
+        MicroKernelImpl mk = new MicroKernelImpl(rep);
+        try {
+            Concurrent.run("MicroKernel group commit", createCommitTask(mk), 8, 1000);
+            assertEquals(0, mk.getChildNodeCount("/", null));
+        } finally {
+            mk.dispose();
+        }
+    }
+
+    private static Concurrent.Task createCommitTask(final MicroKernel mk) {
         final AtomicInteger id = new AtomicInteger();
-        Concurrent.run("MicroKernel", new Concurrent.Task() {
+        return new Concurrent.Task() {
             @Override
             public void call() throws Exception {
                 long start = System.currentTimeMillis();
@@ -53,7 +82,7 @@ public class ConcurrentTest {
                 Assert.assertTrue(mk.nodeExists("/" + i, rev));
                 Assert.assertFalse(mk.nodeExists("/" + i, newRev));
             }
-        });
+        };
     }
 
     @Test
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.mk.model;
+
+import org.apache.jackrabbit.mk.persistence.InMemPersistence;
+import org.apache.jackrabbit.mk.store.DefaultRevisionStore;
+import org.apache.jackrabbit.mk.store.RevisionStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChildNodeEntriesBTreeTest {
+
+    private DefaultRevisionStore rs;
+
+    @Before
+    public void setUp() throws Exception {
+        rs = new DefaultRevisionStore(new InMemPersistence(), null);
+        rs.initialize();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        rs.close();
+    }
+
+    @Test
+    public void sortedAndPaged() throws Exception {
+        doTestSortedAndPaged();
+    }
+
+    @Test
+    public void smallPages() throws Exception {
+        // many levels of inner pages
+        System.setProperty(ChildNodeEntriesBTree.PAGE_SIZE, "8");
+        try {
+            doTestSortedAndPaged();
+            doTestDiff();
+        } finally {
+            System.clearProperty(ChildNodeEntriesBTree.PAGE_SIZE);
+        }
+    }
+
+    private void doTestSortedAndPaged() throws Exception {
+        TreeMap<String, Id> expected = new TreeMap<String, Id>();
+        MutableNode node = new MutableNode(rs);
+        Random r = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            String name = "n" + r.nextInt(100000);
+            Id id = newId(i);
+            expected.put(name, id);
+            node.add(new ChildNodeEntry(name, id));
+        }
+        StoredNode stored = store(node);
+        assertTrue(stored.childEntries instanceof ChildNodeEntriesBTree);
+        assertEntries(expected, stored);
+
+        // remove most entries, so that pages are merged and the tree shrinks
+        node = new MutableNode(stored, rs);
+        for (Iterator<String> it = expected.keySet().iterator(); it.hasNext(); ) {
+            String name = it.next();
+            if (r.nextInt(10) > 0) {
+                assertEquals(expected.get(name), node.remove(name).getId());
+                it.remove();
+            }
+        }
+        assertNull(node.remove("x"));
+        assertEntries(expected, store(node));
+    }
+
+    @Test
+    public void diff() throws Exception {
+        doTestDiff();
+    }
+
+    private void doTestDiff() throws Exception {
+        MutableNode node = new MutableNode(rs);
+        for (int i = 0; i < 10000; i++) {
+            node.add(new ChildNodeEntry("n" + i, newId(i)));
+        }
+        StoredNode before = store(node);
+        node = new MutableNode(before, rs);
+        node.remove("n5");
+        node.remove("n5000");
+        node.add(new ChildNodeEntry("n6000", newId(-1)));
+        node.add(new ChildNodeEntry("new", newId(-2)));
+        StoredNode after = store(node);
+
+        final List<String> changes = new ArrayList<String>();
+        before.diff(after, new NodeDiffHandler() {
+            @Override
+            public void propAdded(String propName, String value) {
+            }
+            @Override
+            public void propChanged(String propName, String oldValue, String newValue) {
+            }
+            @Override
+            public void propDeleted(String propName, String value) {
+            }
+            @Override
+            public void childNodeAdded(ChildNodeEntry added) {
+                changes.add("+" + added.getName());
+            }
+            @Override
+            public void childNodeDeleted(ChildNodeEntry deleted) {
+                changes.add("-" + deleted.getName());
+            }
+            @Override
+            public void childNodeChanged(ChildNodeEntry changed, Id newId) {
+                changes.add("^" + changed.getName());
+            }
+        });
+        assertEquals("[+new, -n5, -n5000, ^n6000]", changes.toString());
+    }
+
+    private StoredNode store(MutableNode node) throws Exception {
+        RevisionStore.PutToken token = rs.createPutToken();
+        return rs.getNode(rs.putNode(token, node));
+    }
+
+    private static void assertEntries(TreeMap<String, Id> expected, Node node) {
+        assertEquals(expected.size(), node.getChildNodeCount());
+        for (Map.Entry<String, Id> e : expected.entrySet()) {
+            assertEquals(e.getValue(), node.getChildNodeEntry(e.getKey()).getId());
+        }
+        List<String> names = new ArrayList<String>(expected.keySet());
+        for (int offset = 0; offset < names.size(); offset += 997) {
+            Iterator<ChildNodeEntry> it = node.getChildNodeEntries(offset, 1500);
+            for (int i = offset; i < Math.min(offset + 1500, names.size()); i++) {
+                assertEquals(names.get(i), it.next().getName());
+            }
+            assertTrue(!it.hasNext());
+        }
+    }
+
+    private static Id newId(int i) {
+        return new Id(new byte[] { (byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i });
+    }
+
+}
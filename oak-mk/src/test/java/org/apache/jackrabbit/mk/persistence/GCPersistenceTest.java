@@ -66,13 +66,15 @@ public class GCPersistenceTest {
     public static Collection classes() {
         Class[][] pmClasses = new Class[][] {
                 { H2Persistence.class },
-                { InMemPersistence.class }
+                { InMemPersistence.class },
+                { SegmentPersistence.class }
         };
         return Arrays.asList(pmClasses);
     }
     
     @After
     public void tearDown() throws Exception {
+        setTime(0);
         IOUtils.closeQuietly(pm);
     }
 
@@ -124,6 +126,65 @@ public class GCPersistenceTest {
         pm.readNode(new StoredNode(id, null));
     }
     
+    @Test
+    public void testMarkNodes() throws Exception {
+        MutableNode node1 = new MutableNode(null);
+        node1.getProperties().put("a", "1");
+        Id id1 = pm.writeNode(node1);
+        MutableNode node2 = new MutableNode(null);
+        node2.getProperties().put("b", "2");
+        Id id2 = pm.writeNode(node2);
+
+        Thread.sleep(100);
+
+        pm.start();
+
+        assertTrue(pm.markNode(id1));
+        assertEquals(Arrays.asList(id2), pm.markNodes(Arrays.asList(id1, id2)));
+
+        pm.sweep();
+        pm.readNode(new StoredNode(id1, null));
+        pm.readNode(new StoredNode(id2, null));
+    }
+
+    @Test
+    public void testIncrementalCycle() throws Exception {
+        // only the H2 persistence knows the age of its objects
+        boolean supported = pm instanceof H2Persistence;
+        // in the past, so that the next cycle with the system clock sweeps
+        long time = System.currentTimeMillis() - 10000;
+
+        setTime(time);
+        MutableNode node1 = new MutableNode(null);
+        node1.getProperties().put("a", "1");
+        Id id1 = pm.writeNode(node1);
+
+        setTime(time + 1000);
+        pm.start();
+        assertTrue(pm.markNode(id1));
+        pm.sweep();
+
+        setTime(time + 2000);
+        MutableNode node2 = new MutableNode(null);
+        node2.getProperties().put("b", "2");
+        Id id2 = pm.writeNode(node2);
+
+        setTime(time + 3000);
+        assertEquals(supported, pm.startIncremental());
+        // the old generation is never reported as unmarked, while a full
+        // cycle needs to mark it again
+        assertEquals(!supported, pm.markNode(id1));
+        pm.sweep();
+
+        try {
+            pm.readNode(new StoredNode(id2, null));
+            fail();
+        } catch (NotFoundException e) {
+            /* expected */
+        }
+        pm.readNode(new StoredNode(id1, null));
+    }
+
     @Test
     public void testReplaceCommit() throws Exception {
         MutableCommit c1 = new MutableCommit();
@@ -143,5 +204,10 @@ public class GCPersistenceTest {
         
         assertEquals(null, pm.readCommit(Id.fromLong(2)).getParentId());
     }
-}
 
+    private void setTime(long time) {
+        if (pm instanceof H2Persistence) {
+            ((H2Persistence) pm).setTime(time);
+        }
+    }
+}
@@ -26,11 +26,13 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.jackrabbit.mk.blobs.MemoryBlobStore;
 import org.apache.jackrabbit.mk.core.MicroKernelImpl;
 import org.apache.jackrabbit.mk.core.Repository;
 import org.apache.jackrabbit.mk.model.Id;
+import org.apache.jackrabbit.mk.model.MutableCommit;
 import org.apache.jackrabbit.mk.model.StoredCommit;
 import org.apache.jackrabbit.mk.persistence.GCPersistence;
 import org.apache.jackrabbit.mk.persistence.InMemPersistence;
@@ -45,6 +47,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Tests verifying the inner workings of <code>DefaultRevisionStore</code>.
@@ -105,6 +108,95 @@ public class DefaultRevisionStoreTest {
         assertEquals(1, parseJSONArray(history).size());
     }
 
+    /**
+     * Verify marking with multiple threads preserves the head revision.
+     * 
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testParallelGC() throws Exception {
+        rs.setGCThreads(4);
+
+        StringBuilder jsop = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            jsop.append("+\"n" + i + "\" : { \"a\":{}, \"b\":{ \"c\":{} } }\n");
+        }
+        mk.commit("/", jsop.toString(), mk.getHeadRevision(), null);
+        mk.commit("/n0", "-\"a\"", mk.getHeadRevision(), null);
+
+        String headRevision = mk.getHeadRevision();
+
+        rs.gc();
+
+        assertEquals(headRevision, mk.getHeadRevision());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i != 0, mk.nodeExists("/n" + i + "/a", headRevision));
+            assertTrue(mk.nodeExists("/n" + i + "/b/c", headRevision));
+        }
+        assertEquals(1, rs.getMarkedCommitCount());
+        assertEquals(1, rs.getGCCycleCount());
+    }
+
+    /**
+     * Verify garbage collection keeps the pages of sorted child node entries.
+     * 
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testManyChildNodesGC() throws Exception {
+        StringBuilder jsop = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            jsop.append("+\"n" + i + "\" : {}\n");
+        }
+        mk.commit("/", "+\"many\" : {}", mk.getHeadRevision(), null);
+        mk.commit("/many", jsop.toString(), mk.getHeadRevision(), null);
+        mk.commit("/many", "-\"n1\"", mk.getHeadRevision(), null);
+
+        String headRevision = mk.getHeadRevision();
+        String contents = mk.getNodes("/many", headRevision, 0, 1000, 1000, null);
+
+        rs.gc();
+
+        assertEquals(2999, mk.getChildNodeCount("/many", headRevision));
+        assertEquals(contents, mk.getNodes("/many", headRevision, 0, 1000, 1000, null));
+    }
+
+    /**
+     * Verify nodes evicted from the cache are read from the off-heap cache.
+     *
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testOffHeapCache() throws Exception {
+        System.setProperty(DefaultRevisionStore.CACHE_SIZE, "10000");
+        System.setProperty(DefaultRevisionStore.OFF_HEAP_CACHE_SIZE, "1000000");
+        DefaultRevisionStore store = new DefaultRevisionStore(new InMemPersistence(), null);
+        try {
+            store.initialize();
+        } finally {
+            System.clearProperty(DefaultRevisionStore.CACHE_SIZE);
+            System.clearProperty(DefaultRevisionStore.OFF_HEAP_CACHE_SIZE);
+        }
+        MicroKernelImpl mk2 = new MicroKernelImpl(new Repository(store, new MemoryBlobStore()));
+        try {
+            StringBuilder jsop = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                jsop.append("+\"n" + i + "\" : { \"x\":" + i + ", \"b\":{ \"c\":{ \"y\":" + i + " } } }\n");
+            }
+            mk2.commit("/", jsop.toString(), mk2.getHeadRevision(), null);
+
+            OffHeapCache l2 = store.getOffHeapCache();
+            assertTrue(l2.size() > 0);
+            String headRevision = mk2.getHeadRevision();
+            for (int i = 0; i < 100; i++) {
+                assertTrue(mk2.nodeExists("/n" + i + "/b/c", headRevision));
+            }
+            assertTrue(l2.getHitCount() > 0);
+        } finally {
+            mk2.dispose();
+        }
+    }
+
     /**
      * Verify branch and merge works with garbage collection.
      * 
@@ -199,6 +291,63 @@ public class DefaultRevisionStoreTest {
         }
     }
 
+    /**
+     * Verify a head that fails to be persisted is never seen by readers.
+     *
+     * @throws Exception if an error occurs
+     */
+    @Test
+    public void testFailedPersistHead() throws Exception {
+        final AtomicBoolean failWrite = new AtomicBoolean();
+        final DefaultRevisionStore store = new DefaultRevisionStore(new InMemPersistence() {
+            @Override
+            public void writeHead(Id id) {
+                if (failWrite.get()) {
+                    throw new IllegalStateException("write failed");
+                }
+                super.writeHead(id);
+            }
+        });
+        store.initialize();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Id head = store.getHeadCommitId();
+            MutableCommit commit = new MutableCommit();
+            commit.setParentId(head);
+            commit.setRootNodeId(store.getHeadCommit().getRootNodeId());
+            commit.setCommitTS(System.currentTimeMillis());
+            failWrite.set(true);
+
+            Future<Id> reader;
+            store.lockHead();
+            try {
+                Id id = store.putHeadCommit(store.createPutToken(), commit, null, null, false);
+                // only the thread holding the lock sees the new head
+                assertEquals(id, store.getHeadCommitId());
+                reader = executor.submit(new Callable<Id>() {
+                    @Override
+                    public Id call() throws Exception {
+                        return store.getHeadCommitId();
+                    }
+                });
+                try {
+                    store.persistHead();
+                    fail();
+                } catch (IllegalStateException e) {
+                    /* expected */
+                }
+                assertEquals(head, store.getHeadCommitId());
+            } finally {
+                store.unlockHead();
+            }
+            assertEquals(head, reader.get());
+            assertEquals(head, store.getHeadCommitId());
+        } finally {
+            executor.shutdown();
+            store.close();
+        }
+    }
+
     @Test
     public void putTokenImpl() throws InterruptedException, ExecutionException {
         final Set<PutToken> tokens = Collections.synchronizedSet(new HashSet<PutToken>());
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.mk.store;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.jackrabbit.mk.model.Id;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@code OffHeapCache}.
+ */
+public class OffHeapCacheTest {
+
+    private File file;
+
+    @Before
+    public void setup() {
+        file = new File("target/offHeapCacheTest.dat");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testGetPut() throws Exception {
+        OffHeapCache cache = new OffHeapCache(1024 * 1024);
+        assertNull(cache.get(Id.fromLong(1)));
+        cache.put(Id.fromLong(1), data(1, 100));
+        cache.put(Id.fromLong(2), data(2, 200));
+        assertTrue(Arrays.equals(data(1, 100), cache.get(Id.fromLong(1))));
+        assertTrue(Arrays.equals(data(2, 200), cache.get(Id.fromLong(2))));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        cache.clear();
+        assertNull(cache.get(Id.fromLong(1)));
+        cache.close();
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        // 4 chunks of 1 KB
+        OffHeapCache cache = new OffHeapCache(4 * 1024, 1024, null);
+        for (int i = 0; i < 100; i++) {
+            cache.put(Id.fromLong(i), data(i, 100));
+        }
+        // the oldest entries are dropped, the most recent ones are kept
+        assertNull(cache.get(Id.fromLong(0)));
+        assertTrue(Arrays.equals(data(99, 100), cache.get(Id.fromLong(99))));
+        assertTrue(cache.size() < 40);
+        // too large
+        cache.put(Id.fromLong(100), data(100, 2000));
+        assertNull(cache.get(Id.fromLong(100)));
+        cache.close();
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        OffHeapCache cache = new OffHeapCache(64 * 1024, 4 * 1024, file);
+        for (int i = 0; i < 100; i++) {
+            cache.put(Id.fromLong(i), data(i, 100));
+        }
+        int size = cache.size();
+        cache.close();
+
+        cache = new OffHeapCache(64 * 1024, 4 * 1024, file);
+        assertEquals(size, cache.size());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(Arrays.equals(data(i, 100), cache.get(Id.fromLong(i))));
+        }
+        // continue writing after the last entry
+        cache.put(Id.fromLong(100), data(100, 100));
+        assertTrue(Arrays.equals(data(100, 100), cache.get(Id.fromLong(100))));
+        assertTrue(Arrays.equals(data(99, 100), cache.get(Id.fromLong(99))));
+        cache.close();
+    }
+
+    private static byte[] data(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+}
@@ -96,6 +96,12 @@ public class MongoBlobStore extends AbstractBlobStore {
         markInUse();
     }
 
+    @Override
+    public void resumeMark(long markStart) throws Exception {
+        minLastModified = markStart;
+        markInUse();
+    }
+
     @Override
     protected boolean isMarkEnabled() {
         return minLastModified != 0;